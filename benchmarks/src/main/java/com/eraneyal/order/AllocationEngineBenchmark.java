@@ -0,0 +1,135 @@
+package com.eraneyal.order;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Benchmarks the allocation decision path of {@link AllocationEngine}.
+  * <p>
+  * The stock index holds {@code sites} sites and {@code catalogSize} items. Each item is
+  * stocked at a random subset of the sites, so orders are usually split over a few sites.
+  * The {@code plan} benchmark measures the decision alone, while the {@code allocate}
+  * benchmark also reserves the stock of the chosen sites.
+  */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class AllocationEngineBenchmark
+{
+
+    @Param ({"2", "20", "200"})
+    public int sites;
+
+    @Param ({"1", "5", "20"})
+    public int itemsPerOrder;
+
+    @Param ({"10000"})
+    public int catalogSize;
+
+/**
+  * Holds the number of pre-generated orders.
+  */
+
+    private static final int ORDERS = 1024;
+
+    private AllocationEngine engine;
+
+    private List<Map<String,OrderItem>> orders;
+
+    private Customer customer;
+
+    private int next;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        Random random = new Random (42);
+
+        List<Site> catalog = new ArrayList<> ();
+        for (int s = 0; s < sites; s++) {
+            catalog.add (new Site (Integer.toString (s),
+                                   "Site " + s,
+                                   new Address ("Street " + s, "City", "Israel", 10000 + s),
+                                   s % 2 == 0 ? "FedEx" : "DeliverIt"));
+        }
+        StockIndex index = new StockIndex (catalog);
+        for (int i = 0; i < catalogSize; i++) {
+            for (int s = 0; s < sites; s++) {
+                if (random.nextInt (4) == 0) {
+                    index.setStock (Integer.toString (s), "item-" + i, Integer.MAX_VALUE / 2);
+                }
+            }
+// -- make sure every item is stocked somewhere
+            index.setStock (Integer.toString (random.nextInt (sites)), "item-" + i, Integer.MAX_VALUE / 2);
+        }
+        engine = new AllocationEngine (index);
+
+        orders = new ArrayList<> (ORDERS);
+        for (int o = 0; o < ORDERS; o++) {
+            Map<String,OrderItem> items = new HashMap<> ();
+            while (items.size () < itemsPerOrder) {
+                String ident = "item-" + random.nextInt (catalogSize);
+                items.put (ident, new OrderItem (ident, "name", 1 + random.nextInt (3)));
+            }
+            orders.add (items);
+        }
+
+        customer = new Customer ("Eran",
+                                 "Eyal",
+                                 new Address ("Some Street 42", "Some City", "Israel", 12345),
+                                 "someone@gmail.com",
+                                 "0521234567");
+    }
+
+    private Map<String,OrderItem> nextOrder ()
+    {
+        next = (next + 1) & (ORDERS - 1);
+
+        return orders.get (next);
+    }
+
+    @Benchmark
+    public List<AllocationEngine.Assignment> plan ()
+    {
+        return engine.plan (nextOrder ());
+    }
+
+    @Benchmark
+    @Threads (4)
+    public List<AllocationEngine.Assignment> planConcurrently ()
+    {
+        return engine.plan (orders.get (ThreadLocalRandom.current ().nextInt (ORDERS)));
+    }
+
+    @Benchmark
+    public Map<String,Allocation> allocate ()
+    {
+// -- the stock levels are high enough to never run out during a trial, so the reserved
+// -- stock isn't returned
+        return engine.allocate (nextOrder (), customer);
+    }
+
+}
@@ -0,0 +1,273 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.OrderServiceClient;
+
+import akka.actor.Address;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.cluster.MemberStatus;
+import akka.cluster.sharding.ShardRegion;
+import akka.cluster.sharding.typed.ClusterShardingQuery;
+import akka.cluster.sharding.typed.GetClusterShardingStats;
+import akka.cluster.sharding.typed.HashCodeMessageExtractor;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.typed.Cluster;
+import akka.grpc.GrpcClientSettings;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import org.HdrHistogram.Histogram;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Measures the overhead of cluster sharding as the cluster grows, without PostgreSQL or
+  * the courier container: the nodes of the cluster are actor systems in this JVM, each
+  * initialized with {@link Main#init}, with the settings of the local cluster
+  * (local-shared.conf), an in-memory journal, and the {@link CourierSimulator} as the
+  * courier booking APIs.
+  * <p>
+  * For each configured cluster size, the nodes are started and joined, the load of
+  * {@link LoadGenerator} is driven through the gRPC endpoints of all the nodes (round
+  * robin), and the nodes are stopped. The report shows the throughput and the latencies
+  * of each size, along with the share of the calls that needed a remote hop, i.e. whose
+  * order entity was hosted by another node than the node that received the call.
+  * <p>
+  * The in-memory journal is local to each node, so an entity that moves to another node
+  * loses its state. Shards are only allocated once all the nodes joined, so entities
+  * don't move during a run. The projections of the Order events read the R2DBC tables, so
+  * they don't run, and nodes share a single JVM (CPU, heap and GC), so absolute numbers
+  * are lower than those of separate JVMs; the trend over the cluster size is the result.
+  * <p>
+  * Run with {@code java -cp target/benchmarks.jar com.eraneyal.order.ClusterBenchmark}.
+  */
+
+public final class ClusterBenchmark
+{
+
+/**
+  * Represents the results of a cluster size.
+  */
+
+    private record Result (int nodes, double callsPerSecond, Histogram latencies, long calls, long remoteCalls) {}
+
+    private ClusterBenchmark ()
+    {
+    }
+
+    public static void main (String[] args) throws Exception
+    {
+        Config root =
+            ConfigFactory.systemProperties ()
+                         .withFallback (ConfigFactory.parseResources ("cluster-benchmark.conf"))
+                         .withFallback (ConfigFactory.parseResources ("load-generator.conf"))
+                         .withFallback (ConfigFactory.parseResources ("courier-simulator.conf"))
+                         .withFallback (ConfigFactory.defaultReference ())
+                         .resolve ();
+        Config config = root.getConfig ("cluster-benchmark");
+        ActorSystem<Void> client = ActorSystem.create (Behaviors.empty (), "ClusterBenchmark", root);
+        List<Result> results = new ArrayList<> ();
+
+        try {
+            startCourier (client, config.getConfig ("courier"));
+            for (int nodes : config.getIntList ("node-counts")) {
+                results.add (run (client, config, nodes));
+            }
+        } finally {
+            client.terminate ();
+            client.getWhenTerminated ().toCompletableFuture ().get ();
+        }
+
+        System.out.printf ("%n%-6s %10s %9s %9s %9s %9s%n", "nodes", "calls/s", "p50", "p99", "p99.9", "remote");
+        for (Result result : results) {
+            System.out.printf ("%-6d %10.1f %9.2f %9.2f %9.2f %8.1f%%%n",
+                               result.nodes (),
+                               result.callsPerSecond (),
+                               result.latencies ().getValueAtPercentile (50) / 1000.0,
+                               result.latencies ().getValueAtPercentile (99) / 1000.0,
+                               result.latencies ().getValueAtPercentile (99.9) / 1000.0,
+                               result.calls () > 0 ? 100.0 * result.remoteCalls () / result.calls () : 0.0);
+        }
+    }
+
+/**
+  * Starts a cluster of the given size, drives the load through it, and stops it.
+  */
+
+    private static Result run (ActorSystem<Void> client, Config config, int size) throws Exception
+    {
+        System.out.printf ("%n--- %d node(s)%n", size);
+        Path archive = Files.createTempDirectory ("cluster-benchmark-archive");
+        List<ActorSystem<Void>> nodes = new ArrayList<> ();
+
+        try {
+            for (int i = 0; i < size; i++) {
+                ActorSystem<Void> node = ActorSystem.create (Behaviors.empty (), "OrderService", nodeConfig (config, archive, i, size));
+                nodes.add (node);
+                Main.init (node);
+            }
+            awaitMembers (nodes.get (0), size, config.getDuration ("join-timeout"));
+
+            List<OrderServiceClient> clients = new ArrayList<> ();
+            for (int i = 0; i < size; i++) {
+                clients.add (OrderServiceClient.create (
+                    GrpcClientSettings.connectToServiceAt ("127.0.0.1", config.getInt ("base-ports.grpc") + i, client)
+                                      .withTls (false),
+                    client));
+            }
+
+            Map<String,int[]> lifecycles = new ConcurrentHashMap<> ();
+            LoadGenerator generator =
+                new LoadGenerator (config.getConfig ("load"),
+                                   clients,
+                                   (orderID, target, calls) -> lifecycles.put (orderID, new int[] { target, calls }));
+            generator.run ();
+            generator.report (System.out);
+
+            Map<String,Integer> hosts = shardHosts (nodes);
+            HashCodeMessageExtractor<Order.Command> extractor =
+                new HashCodeMessageExtractor<> (nodes.get (0).settings ().config ().getInt ("akka.cluster.sharding.number-of-shards"));
+            long calls = 0;
+            long remoteCalls = 0;
+            for (Map.Entry<String,int[]> lifecycle : lifecycles.entrySet ()) {
+                Integer host = hosts.get (extractor.shardId (lifecycle.getKey ()));
+                if (host != null) {
+                    calls += lifecycle.getValue ()[1];
+                    if (host != lifecycle.getValue ()[0]) {
+                        remoteCalls += lifecycle.getValue ()[1];
+                    }
+                }
+            }
+
+            Histogram latencies = new Histogram (3);
+            long count = 0;
+            for (String call : LoadGenerator.CALLS) {
+                Histogram histogram = generator.histogram (call);
+                latencies.add (histogram);
+                count += histogram.getTotalCount ();
+            }
+            double seconds = config.getDuration ("load.duration").toMillis () / 1000.0;
+
+            return new Result (size, count / seconds, latencies, calls, remoteCalls);
+        } finally {
+            for (ActorSystem<Void> node : nodes) {
+                node.terminate ();
+            }
+            for (ActorSystem<Void> node : nodes) {
+                node.getWhenTerminated ().toCompletableFuture ().get (30, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+/**
+  * Returns the configuration of node i of a cluster of the given size.
+  */
+
+    private static Config nodeConfig (Config config, Path archive, int i, int size)
+    {
+        int remote = config.getInt ("base-ports.remote");
+        int management = config.getInt ("base-ports.management");
+        int grpc = config.getInt ("base-ports.grpc");
+
+        List<Map<String,Object>> endpoints = new ArrayList<> ();
+        for (int j = 0; j < size; j++) {
+            endpoints.add (Map.of ("host", "127.0.0.1", "port", management + j));
+        }
+
+        Map<String,Object> overrides = new HashMap<> ();
+        overrides.put ("akka.remote.artery.canonical.port", remote + i);
+        overrides.put ("akka.management.http.port", management + i);
+        overrides.put ("order-service.grpc.port", grpc + i);
+        overrides.put ("akka.discovery.config.services.order-service.endpoints", endpoints);
+        overrides.put ("akka.persistence.journal.plugin", "akka.persistence.journal.inmem");
+        overrides.put ("akka.persistence.snapshot-store.plugin", "akka.persistence.snapshot-store.local");
+        overrides.put ("akka.persistence.snapshot-store.local.dir", archive.resolve ("snapshots-" + i).toString ());
+        overrides.put ("akka.cluster.jmx.multi-mbeans-in-same-jvm", "on");
+        overrides.put ("akka.loglevel", "WARNING");
+        overrides.put ("order-service.projections-enabled", "off");
+        overrides.put ("order-service.archive.directory", archive.toString ());
+
+        return ConfigFactory.parseMap (overrides)
+                            .withFallback (ConfigFactory.parseResources ("local-shared.conf"))
+                            .withFallback (ConfigFactory.load ())
+                            .resolve ();
+    }
+
+/**
+  * Waits until the given number of members are up.
+  */
+
+    private static void awaitMembers (ActorSystem<Void> node, int size, Duration timeout) throws InterruptedException
+    {
+        long deadline = System.nanoTime () + timeout.toNanos ();
+
+        while (Cluster.get (node).state ().getMembers ().stream ()
+                      .filter (member -> member.status () == MemberStatus.up ())
+                      .count () < size) {
+            if (System.nanoTime () > deadline) {
+                throw new IllegalStateException ("The cluster of " + size + " nodes didn't form within " + timeout);
+            }
+            Thread.sleep (100);
+        }
+    }
+
+/**
+  * Returns the index of the node that hosts each shard of the Order entities.
+  */
+
+    private static Map<String,Integer> shardHosts (List<ActorSystem<Void>> nodes) throws Exception
+    {
+        Map<Address,Integer> indexes = new HashMap<> ();
+        for (int i = 0; i < nodes.size (); i++) {
+            indexes.put (Cluster.get (nodes.get (i)).selfMember ().address (), i);
+        }
+
+        ActorSystem<Void> node = nodes.get (0);
+        Duration timeout = Duration.ofSeconds (10);
+        ShardRegion.ClusterShardingStats stats =
+            AskPattern.<ClusterShardingQuery,ShardRegion.ClusterShardingStats>ask (
+                ClusterSharding.get (node).shardState (),
+                replyTo -> new GetClusterShardingStats (Order.ENTITY_KEY, timeout, replyTo),
+                timeout.plusSeconds (1),
+                node.scheduler ())
+            .toCompletableFuture ()
+            .get ();
+
+        Map<String,Integer> hosts = new HashMap<> ();
+        for (Map.Entry<Address,ShardRegion.ShardRegionStats> region : stats.getRegions ().entrySet ()) {
+            for (String shard : region.getValue ().getStats ().keySet ()) {
+                hosts.put (shard, indexes.get (region.getKey ()));
+            }
+        }
+        return hosts;
+    }
+
+/**
+  * Starts the courier simulator, which books deliveries in the protocols of the couriers.
+  */
+
+    private static void startCourier (ActorSystem<Void> system, Config config)
+    {
+        try {
+            CourierSimulator.start (system, config)
+                            .toCompletableFuture ()
+                            .get (10, TimeUnit.SECONDS);
+        }
+        catch (Exception exc) {
+            System.out.printf ("The courier simulator couldn't bind port %d, using the service that holds it: %s%n",
+                               config.getInt ("port"),
+                               exc);
+        }
+    }
+
+}
@@ -0,0 +1,553 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.Address;
+import com.eraneyal.order.proto.Customer;
+import com.eraneyal.order.proto.Item;
+import com.eraneyal.order.proto.OrderDetailsRequest;
+import com.eraneyal.order.proto.OrderDetailsResponse;
+import com.eraneyal.order.proto.OrderServiceClient;
+import com.eraneyal.order.proto.PackItemsRequest;
+import com.eraneyal.order.proto.ReceiveOrderRequest;
+import com.eraneyal.order.proto.TrackUpdateRequest;
+import com.eraneyal.order.proto.TrackingStatus;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.grpc.GrpcClientSettings;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+  * Generates load on the order service over gRPC, with order lifecycles that follow the
+  * real order flow: ReceiveOrder, FetchOrderDetails until the order is allocated, then
+  * PackItems and TrackingUpdate calls (up to delivered) for each allocation, with
+  * FetchOrderDetails calls mixed in. The mix is configured in load-generator.conf.
+  * <p>
+  * In the open mode, lifecycles start at a constant arrival rate, and every call has the
+  * time it was due: the arrival time for the first call, and the completion of the
+  * previous step plus the think time for the following calls. Latencies are measured from
+  * the due time rather than from the time the call was actually sent, so the latencies are
+  * not hidden by a stalled client or service (coordinated omission). In the closed mode,
+  * a fixed number of lifecycles run back to back, and latencies are corrected with the
+  * configured expected interval, if any.
+  * <p>
+  * At the end, the latency distribution of each call type (in milliseconds) is printed,
+  * along with the throughput and the number of errors.
+  * <p>
+  * Run with {@code java -cp target/benchmarks.jar com.eraneyal.order.LoadGenerator}, and
+  * override settings with system properties, e.g.
+  * {@code -Dload-generator.arrival-rate=100}.
+  */
+
+public final class LoadGenerator
+{
+
+/**
+  * Receives the lifecycles as they complete.
+  */
+
+    @FunctionalInterface
+    interface Listener
+    {
+
+/**
+  * Called when a lifecycle completes (or fails).
+  * <p>
+  * @param orderID the order identifier
+  * @param target the index of the target the calls were sent to
+  * @param calls the number of calls that were made
+  */
+
+        void completed (String orderID, int target, int calls);
+
+    }
+
+/**
+  * Holds the call types, in report order.
+  */
+
+    static final List<String> CALLS =
+        List.of ("ReceiveOrder", "FetchOrderDetails", "PackItems", "TrackingUpdate");
+
+/**
+  * Holds the tracking statuses of a delivery, in order.
+  */
+
+    private static final List<TrackingStatus> TRACKING =
+        List.of (TrackingStatus.PICKED_BY_COURIER, TrackingStatus.ENROUTE_TO_CUSTOMER, TrackingStatus.DELIVERED);
+
+    private final Config _config;
+
+    private final List<OrderServiceClient> _clients;
+
+    private final boolean _open;
+
+    private final long _expectedIntervalNanos;
+
+    private final long _thinkNanos;
+
+    private final long _pollNanos;
+
+    private final Duration _callTimeout;
+
+    private final int _maxInFlight;
+
+    private final Listener _listener;
+
+/**
+  * Holds the latency recorders (in microseconds), indexed by call type.
+  */
+
+    private final Map<String,Recorder> _latencies = new ConcurrentHashMap<> ();
+
+/**
+  * Holds the number of failed calls, indexed by call type.
+  */
+
+    private final Map<String,LongAdder> _errors = new ConcurrentHashMap<> ();
+
+/**
+  * Holds the latencies reported so far, indexed by call type.
+  */
+
+    private final Map<String,Histogram> _histograms = new ConcurrentHashMap<> ();
+
+    private final AtomicInteger _inFlight = new AtomicInteger ();
+
+    private final AtomicLong _next = new AtomicLong ();
+
+    private final LongAdder _started = new LongAdder ();
+
+    private final LongAdder _completed = new LongAdder ();
+
+    private final LongAdder _failed = new LongAdder ();
+
+    private final LongAdder _dropped = new LongAdder ();
+
+/**
+  * Holds the time from which latencies are recorded, i.e. the end of the warm-up.
+  */
+
+    private volatile long _measureFrom;
+
+/**
+  * Holds the time after which no new lifecycle is started.
+  */
+
+    private volatile long _stopAt;
+
+    LoadGenerator (Config config, List<OrderServiceClient> clients)
+    {
+        this (config, clients, (orderID, target, calls) -> {});
+    }
+
+    LoadGenerator (Config config, List<OrderServiceClient> clients, Listener listener)
+    {
+        _listener = listener;
+        _config = config;
+        _clients = clients;
+        _open = "open".equals (config.getString ("mode"));
+        _expectedIntervalNanos = config.getDuration ("expected-interval").toNanos ();
+        _thinkNanos = config.getDuration ("lifecycle.think-time").toNanos ();
+        _pollNanos = config.getDuration ("lifecycle.poll-interval").toNanos ();
+        _callTimeout = config.getDuration ("call-timeout");
+        _maxInFlight = config.getInt ("max-in-flight");
+        for (String call : CALLS) {
+            _latencies.put (call, new Recorder (3));
+            _errors.put (call, new LongAdder ());
+        }
+    }
+
+    public static void main (String[] args) throws Exception
+    {
+        Config root =
+            ConfigFactory.systemProperties ()
+                         .withFallback (ConfigFactory.parseResources ("load-generator.conf"))
+                         .withFallback (ConfigFactory.defaultReference ())
+                         .resolve ();
+        Config config = root.getConfig ("load-generator");
+        ActorSystem<Void> system = ActorSystem.create (Behaviors.empty (), "LoadGenerator", root);
+
+        try {
+            List<OrderServiceClient> clients = new ArrayList<> ();
+            for (String target : config.getStringList ("targets")) {
+                String[] hostPort = target.split (":");
+                clients.add (OrderServiceClient.create (
+                    GrpcClientSettings.connectToServiceAt (hostPort[0], Integer.parseInt (hostPort[1]), system)
+                                      .withTls (false),
+                    system));
+            }
+
+            LoadGenerator generator = new LoadGenerator (config, clients);
+            generator.run ();
+            generator.report (System.out);
+            generator.writeHistograms ();
+        } finally {
+            system.terminate ();
+            system.getWhenTerminated ().toCompletableFuture ().get ();
+        }
+    }
+
+/**
+  * Runs the load for the warm-up and the configured duration, then waits for the
+  * lifecycles in progress to complete.
+  */
+
+    void run () throws Exception
+    {
+        long start = System.nanoTime ();
+        _measureFrom = start + _config.getDuration ("warm-up").toNanos ();
+        _stopAt = _measureFrom + _config.getDuration ("duration").toNanos ();
+
+        if (_open) {
+            long periodNanos = (long) (1e9 / _config.getDouble ("arrival-rate"));
+            for (long arrival = start; arrival < _stopAt; arrival += periodNanos) {
+                sleepUntil (arrival);
+// -- a late arrival keeps its due time, so the delay is part of its latencies
+                if (_inFlight.get () >= _maxInFlight) {
+                    _dropped.increment ();
+                } else {
+                    startLifecycle (arrival);
+                }
+            }
+        } else {
+            for (int i = 0; i < _config.getInt ("concurrency"); i++) {
+                loop ();
+            }
+            sleepUntil (_stopAt);
+        }
+
+        long drainUntil = System.nanoTime () + _config.getDuration ("drain-timeout").toNanos ();
+        while (_inFlight.get () > 0 && System.nanoTime () < drainUntil) {
+            Thread.sleep (100);
+        }
+    }
+
+    private static void sleepUntil (long time)
+    {
+        for (long wait = time - System.nanoTime (); wait > 0; wait = time - System.nanoTime ()) {
+            LockSupport.parkNanos (wait);
+        }
+    }
+
+/**
+  * Runs lifecycles back to back until the duration ends (closed mode).
+  */
+
+    private void loop ()
+    {
+        if (System.nanoTime () < _stopAt) {
+            startLifecycle (System.nanoTime ()).whenComplete ((done, exc) -> loop ());
+        }
+    }
+
+    private CompletionStage<Void> startLifecycle (long due)
+    {
+        _inFlight.incrementAndGet ();
+        _started.increment ();
+        int target = (int) (_next.getAndIncrement () % _clients.size ());
+        Lifecycle lifecycle = new Lifecycle (_clients.get (target));
+
+        return lifecycle.run (due)
+                        .whenComplete ((done, exc) -> {
+                            _listener.completed (lifecycle._orderID, target, lifecycle._calls);
+                            _inFlight.decrementAndGet ();
+                            if (exc != null) {
+                                _failed.increment ();
+                            } else {
+                                _completed.increment ();
+                            }
+                        });
+    }
+
+/**
+  * Runs a call that was due at the given time, once that time has come, and records its
+  * latency. A failed call is counted, and fails the returned stage.
+  * <p>
+  * @param name the call type
+  * @param due the due time of the call
+  * @param call the call
+  * @return the response
+  */
+
+    private <T> CompletionStage<T> call (String name, long due, Supplier<CompletionStage<T>> call)
+    {
+        long delay = due - System.nanoTime ();
+        CompletionStage<Void> ready =
+            delay > 0
+                ? CompletableFuture.runAsync (() -> {}, CompletableFuture.delayedExecutor (delay, TimeUnit.NANOSECONDS))
+                : CompletableFuture.completedFuture (null);
+
+        return ready.thenCompose (
+            x -> {
+// -- in the closed mode, calls are sent when they are ready, so the latency is measured
+// -- from the time they were sent
+                long from = _open ? due : System.nanoTime ();
+                return call.get ()
+                           .toCompletableFuture ()
+                           .orTimeout (_callTimeout.toMillis (), TimeUnit.MILLISECONDS)
+                           .whenComplete ((response, exc) -> {
+                               if (exc != null) {
+                                   _errors.get (name).increment ();
+                               }
+                               if (due >= _measureFrom) {
+                                   long micros = Math.max (0, (System.nanoTime () - from) / 1000);
+                                   if (!_open && _expectedIntervalNanos > 0) {
+                                       _latencies.get (name).recordValueWithExpectedInterval (micros, _expectedIntervalNanos / 1000);
+                                   } else {
+                                       _latencies.get (name).recordValue (micros);
+                                   }
+                               }
+                           });
+            });
+    }
+
+/**
+  * Prints the report.
+  */
+
+    void report (PrintStream out)
+    {
+        double seconds = _config.getDuration ("duration").toMillis () / 1000.0;
+
+        out.printf ("%nmode: %s, lifecycles started: %d, completed: %d, failed: %d, dropped: %d%n",
+                    _open ? "open" : "closed", _started.sum (), _completed.sum (), _failed.sum (), _dropped.sum ());
+        if (!_open && _expectedIntervalNanos == 0) {
+            out.println ("note: closed mode latencies are not corrected for coordinated omission (expected-interval = 0)");
+        }
+        out.printf ("%-18s %9s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                    "call", "count", "errors", "rps", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (String call : CALLS) {
+            Histogram histogram = histogram (call);
+            out.printf ("%-18s %9d %8d %7.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                        call,
+                        histogram.getTotalCount (),
+                        _errors.get (call).sum (),
+                        histogram.getTotalCount () / seconds,
+                        histogram.getMean () / 1000.0,
+                        histogram.getValueAtPercentile (50) / 1000.0,
+                        histogram.getValueAtPercentile (90) / 1000.0,
+                        histogram.getValueAtPercentile (99) / 1000.0,
+                        histogram.getValueAtPercentile (99.9) / 1000.0,
+                        histogram.getMaxValue () / 1000.0);
+        }
+    }
+
+/**
+  * Writes the latency distributions, if a histogram directory is configured.
+  */
+
+    void writeHistograms () throws IOException
+    {
+        String dir = _config.getString ("histogram-dir");
+
+        if (!dir.isEmpty ()) {
+            Files.createDirectories (Path.of (dir));
+            for (String call : CALLS) {
+                try (PrintStream out = new PrintStream (new FileOutputStream (Path.of (dir, call + ".hgrm").toFile ()))) {
+                    histogram (call).outputPercentileDistribution (out, 1000.0);
+                }
+            }
+        }
+    }
+
+/**
+  * Returns the latencies recorded for a call type so far, in microseconds.
+  */
+
+    Histogram histogram (String call)
+    {
+        Histogram histogram = _histograms.computeIfAbsent (call, c -> new Histogram (3));
+        histogram.add (_latencies.get (call).getIntervalHistogram ());
+        return histogram;
+    }
+
+// ------------------------------------------------------------
+// Order lifecycle
+// ------------------------------------------------------------
+
+/**
+  * Represents the lifecycle of an order. A lifecycle fails on the first failed call, or
+  * if the order isn't allocated within the call timeout. Its steps run one at a time, so
+  * its state isn't shared between threads.
+  */
+
+    private final class Lifecycle
+    {
+
+        private final OrderServiceClient _client;
+
+        private final String _orderID = "load-" + UUID.randomUUID ();
+
+        private final SplittableRandom _random = new SplittableRandom (ThreadLocalRandom.current ().nextLong ());
+
+        private int _calls = 0;
+
+        Lifecycle (OrderServiceClient client)
+        {
+            _client = client;
+        }
+
+        private <T> CompletionStage<T> call (String name, long due, Supplier<CompletionStage<T>> call)
+        {
+            _calls++;
+            return LoadGenerator.this.call (name, due, call);
+        }
+
+/**
+  * Runs the lifecycle. The first call is due at the given time.
+  */
+
+        CompletionStage<Void> run (long due)
+        {
+            return call ("ReceiveOrder", due, () -> _client.receiveOrder (receiveRequest ()))
+                .thenCompose (x -> fetches (System.nanoTime () + _thinkNanos))
+                .thenCompose (next -> awaitAllocation (next, next + _callTimeout.toNanos ()))
+                .thenCompose (order -> {
+                    CompletionStage<Long> step = CompletableFuture.completedFuture (System.nanoTime () + _thinkNanos);
+                    for (com.eraneyal.order.proto.Allocation allocation : order.getAllocationsList ()) {
+                        step = step.thenCompose (next -> deliver (allocation.getAllocationId (), next));
+                    }
+                    return step;
+                })
+                .thenApply (x -> (Void) null);
+        }
+
+/**
+  * Polls the order until it is allocated.
+  * <p>
+  * @param due the due time of the first poll
+  * @param deadline the time after which the order is given up
+  * @return the allocated order
+  */
+
+        private CompletionStage<OrderDetailsResponse> awaitAllocation (long due, long deadline)
+        {
+            return call ("FetchOrderDetails", due, () -> _client.fetchOrderDetails (fetchRequest ()))
+                .thenCompose (order -> {
+                    boolean allocated =
+                        order.getAllocationsCount () > 0 &&
+                        order.getAllocationsList ().stream ().noneMatch (a -> "N/A".equals (a.getAllocationId ()));
+                    if (allocated) {
+                        return CompletableFuture.completedFuture (order);
+                    } else if (System.nanoTime () > deadline) {
+                        return CompletableFuture.failedFuture (new IllegalStateException ("Order " + _orderID + " not allocated"));
+                    }
+                    return awaitAllocation (System.nanoTime () + _pollNanos, deadline);
+                });
+        }
+
+/**
+  * Packs an allocation and tracks it to delivery, according to the lifecycle mix.
+  * <p>
+  * @return the due time of the next step
+  */
+
+        private CompletionStage<Long> deliver (String allocationID, long due)
+        {
+            if (_random.nextDouble () >= _config.getDouble ("lifecycle.pack-ratio")) {
+                return CompletableFuture.completedFuture (due);
+            }
+
+            CompletionStage<Long> step =
+                call ("PackItems", due, () -> _client.packItems (
+                        PackItemsRequest.newBuilder ().setOrderId (_orderID).setAllocationId (allocationID).build ()))
+                    .thenCompose (x -> fetches (System.nanoTime () + _thinkNanos));
+            if (_random.nextDouble () < _config.getDouble ("lifecycle.track-ratio")) {
+                for (TrackingStatus status : TRACKING) {
+                    step = step.thenCompose (
+                        next -> call ("TrackingUpdate", next, () -> _client.trackingUpdate (
+                                        TrackUpdateRequest.newBuilder ()
+                                                          .setOrderId (_orderID)
+                                                          .setAllocationId (allocationID)
+                                                          .setStatus (status)
+                                                          .build ()))
+                                    .thenCompose (x -> fetches (System.nanoTime () + _thinkNanos)));
+                }
+            }
+            return step;
+        }
+
+/**
+  * Makes the FetchOrderDetails calls that follow a step: on average fetches-per-step
+  * calls, a think time apart.
+  * <p>
+  * @return the due time of the next step
+  */
+
+        private CompletionStage<Long> fetches (long due)
+        {
+            double expected = _config.getDouble ("lifecycle.fetches-per-step");
+            int count = (int) expected + (_random.nextDouble () < expected - (int) expected ? 1 : 0);
+
+            CompletionStage<Long> step = CompletableFuture.completedFuture (due);
+            for (int i = 0; i < count; i++) {
+                step = step.thenCompose (
+                    next -> call ("FetchOrderDetails", next, () -> _client.fetchOrderDetails (fetchRequest ()))
+                                .thenApply (x -> System.nanoTime () + _thinkNanos));
+            }
+            return step;
+        }
+
+        private OrderDetailsRequest fetchRequest ()
+        {
+            return OrderDetailsRequest.newBuilder ().setOrderId (_orderID).build ();
+        }
+
+        private ReceiveOrderRequest receiveRequest ()
+        {
+            List<String> itemIDs = new ArrayList<> (_config.getStringList ("lifecycle.item-ids"));
+            List<Integer> zipCodes = _config.getIntList ("lifecycle.zip-codes");
+            int items = _random.nextInt (_config.getInt ("lifecycle.min-items"), _config.getInt ("lifecycle.max-items") + 1);
+
+            ReceiveOrderRequest.Builder request = ReceiveOrderRequest.newBuilder ().setOrderId (_orderID);
+            for (int i = 0; i < items && !itemIDs.isEmpty (); i++) {
+                String itemID = itemIDs.remove (_random.nextInt (itemIDs.size ()));
+                request.addItems (Item.newBuilder ()
+                                      .setItemId (itemID)
+                                      .setName ("item " + itemID)
+                                      .setQuantity (1 + _random.nextInt (3)));
+            }
+            return request.setCustomer (
+                              Customer.newBuilder ()
+                                      .setFirstName ("Load")
+                                      .setLastName ("Generator")
+                                      .setAddress (Address.newBuilder ()
+                                                          .setStreet ("Street 1")
+                                                          .setCity ("City")
+                                                          .setCountry ("Israel")
+                                                          .setZipCode (zipCodes.get (_random.nextInt (zipCodes.size ()))))
+                                      .setEmail (_orderID + "@example.com")
+                                      .setMobilePhone ("0500000000"))
+                          .build ();
+        }
+
+    }
+
+}
@@ -0,0 +1,221 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.OrderDetailsResponse;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+
+import com.typesafe.config.ConfigFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Benchmarks the hot path of an order: the state transitions of the event handler,
+  * the conversion of the state to order details and to the proto response of
+  * FetchOrderDetails, and the serialization of the events and states (as written to the
+  * journal and the snapshots).
+  * <p>
+  * Each order has {@code allocations} allocations of 3 items, and each allocation went
+  * through the whole delivery lifecycle, so its status history is complete. The
+  * transitions add a status to one of the allocations.
+  * <p>
+  * Allocation rates matter as much as times on this path, so the {@link #main} method
+  * runs the benchmark with the GC profiler, and writes the results in the JSON format of
+  * the baseline results (see benchmarks/results).
+  */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class OrderBenchmark
+{
+
+    @Param ({"1", "4", "16"})
+    public int allocations;
+
+    private ActorSystem<Void> system;
+
+    private Serialization serialization;
+
+    private Order.AllocatedOrderState state;
+
+    private Order.OrderDetails details;
+
+    private Order.OrderAllocationsReceived allocationsEvent;
+
+    private Order.TrackingUpdated trackingEvent;
+
+    private byte[] allocationsEventBytes;
+
+    private int allocationsEventSerializer;
+
+    private String allocationsEventManifest;
+
+    private Instant timestamp;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        system = ActorSystem.create (
+            Behaviors.empty (),
+            "OrderBenchmark",
+            ConfigFactory.parseString ("akka.actor.provider = local\nakka.loglevel = WARNING")
+                         .withFallback (ConfigFactory.load ()));
+        serialization = SerializationExtension.get (system);
+
+        Customer customer =
+            new Customer ("First", "Last", new Address ("Street 1", "City", "Israel", 12345), "a@b.com", "0500000000");
+        Instant start = Instant.parse ("2024-07-01T10:00:00Z");
+        Map<String,Allocation> allocationMap = new HashMap<> ();
+        for (int a = 0; a < allocations; a++) {
+            Map<String,OrderItem> items = new HashMap<> ();
+            for (int i = 0; i < 3; i++) {
+                String itemID = Integer.toString (a * 3 + i);
+                items.put (itemID, new OrderItem (itemID, "item " + itemID, 1 + i));
+            }
+            Map<Instant,Allocation.Status> statuses = new TreeMap<> ();
+            statuses.put (start, Allocation.Status.ALLOCATED);
+            statuses.put (start.plusSeconds (3600), Allocation.Status.PACKED);
+            statuses.put (start.plusSeconds (7200), Allocation.Status.PICKED_BY_COURIER);
+            statuses.put (start.plusSeconds (10800), Allocation.Status.ENROUTE_TO_CUSTOMER);
+            String allocationID = Integer.toString (a);
+            allocationMap.put (allocationID,
+                               new Allocation (allocationID,
+                                               "Site " + a,
+                                               new Address ("Site Street " + a, "City", "Israel", 10000 + a),
+                                               items,
+                                               a % 2 == 0 ? "FedEx" : "DeliverIt",
+                                               "TRK-" + a,
+                                               statuses));
+        }
+
+        state = new Order.AllocatedOrderState (allocationMap, customer);
+        details = state.toOrderDetails ();
+        timestamp = start.plusSeconds (14400);
+        allocationsEvent = new Order.OrderAllocationsReceived ("order-1", allocationMap);
+        trackingEvent = new Order.TrackingUpdated ("order-1", "0", Allocation.Status.DELIVERED, timestamp);
+
+        Serializer serializer = serialization.findSerializerFor (allocationsEvent);
+        allocationsEventBytes = serializer.toBinary (allocationsEvent);
+        allocationsEventSerializer = serializer.identifier ();
+        allocationsEventManifest = Serializers.manifestFor (serializer, allocationsEvent);
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown ()
+    {
+        system.terminate ();
+    }
+
+    @Benchmark
+    public Order.State newStatus ()
+    {
+        return Order.AllocatedOrderState.allocatedOrderWithNewStatus (
+            state.allocations (), state.customer (), "0", Allocation.Status.DELIVERED, timestamp);
+    }
+
+    @Benchmark
+    public Order.State newTrackingID ()
+    {
+        return Order.AllocatedOrderState.allocatedOrderWithNewTrackingID (
+            state.allocations (), state.customer (), "0", "TRK-NEW", timestamp);
+    }
+
+/**
+  * Measures a transition through the event handler, as in recovery.
+  */
+
+    @Benchmark
+    public Order.State applyEvent ()
+    {
+        return Order.applyEvent (state, trackingEvent);
+    }
+
+    @Benchmark
+    public Order.OrderDetails toOrderDetails ()
+    {
+        return state.toOrderDetails ();
+    }
+
+    @Benchmark
+    public OrderDetailsResponse toProtoOrder ()
+    {
+        return OrderServiceImpl.toProtoOrder ("order-1", details);
+    }
+
+    @Benchmark
+    public byte[] serializeTrackingEvent ()
+    {
+        return serialization.serialize (trackingEvent).get ();
+    }
+
+    @Benchmark
+    public byte[] serializeAllocationsEvent ()
+    {
+        return serialization.serialize (allocationsEvent).get ();
+    }
+
+    @Benchmark
+    public Object deserializeAllocationsEvent ()
+    {
+        return serialization.deserialize (allocationsEventBytes,
+                                          allocationsEventSerializer,
+                                          allocationsEventManifest).get ();
+    }
+
+/**
+  * Measures the serialization of the state, as in a snapshot or an order view row.
+  */
+
+    @Benchmark
+    public byte[] serializeState ()
+    {
+        return serialization.serialize (state).get ();
+    }
+
+/**
+  * Runs the benchmark with the GC profiler, and writes the results to the given file
+  * (target/OrderBenchmark.json by default).
+  */
+
+    public static void main (String[] args) throws Exception
+    {
+        new Runner (new OptionsBuilder ()
+                        .include (OrderBenchmark.class.getSimpleName ())
+                        .addProfiler (GCProfiler.class)
+                        .resultFormat (ResultFormatType.JSON)
+                        .result (args.length > 0 ? args[0] : "target/OrderBenchmark.json")
+                        .build ())
+            .run ();
+    }
+
+}
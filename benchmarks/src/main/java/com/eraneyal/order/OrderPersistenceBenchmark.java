@@ -0,0 +1,215 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.pattern.StatusReply;
+import akka.persistence.r2dbc.session.javadsl.R2dbcSession;
+
+import com.typesafe.config.ConfigFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+  * Compares the event sourced {@link Order} entity with the durable state
+  * {@link DurableOrder} entity under the same workload, to choose the entity mode of a
+  * deployment.
+  * <p>
+  * Requires the PostgreSQL database of the service (see docker-compose.yml and
+  * ddl-scripts), since the point is to measure the R2DBC journal and durable state store.
+  * The workload is the part of the order lifecycle that doesn't need a courier API, i.e.
+  * receiving an order and allocating it:
+  * <ul>
+  * <li>{@code write} measures the latency of receiving a new order (a persisted event, or
+  * a persisted state).</li>
+  * <li>{@code recover} measures the time to start an entity of an existing allocated order
+  * and read its state, i.e. the recovery time.</li>
+  * </ul>
+  * All the entities share a single allocation service, started with the actor system, so
+  * the measurements don't include the startup of a private allocation service per entity.
+  * The storage used by the orders of the run (journal and snapshot rows, or durable state
+  * rows) is printed when the trial ends.
+  */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.SampleTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 2, time = 5)
+@Measurement (iterations = 5, time = 5)
+@Fork (1)
+public class OrderPersistenceBenchmark
+{
+
+    @Param ({"event-sourced", "durable-state"})
+    public String mode;
+
+/**
+  * Holds the number of orders that are recovered.
+  */
+
+    private static final int ORDERS = 200;
+
+    private static final Duration TIMEOUT = Duration.ofSeconds (10);
+
+    private ActorSystem<Void> system;
+
+    private ActorRef<OrderAllocationService.Command> allocator;
+
+    private String runID;
+
+    private final AtomicLong next = new AtomicLong ();
+
+    private final AtomicLong written = new AtomicLong ();
+
+    @Setup (Level.Trial)
+    public void setup () throws Exception
+    {
+        system = ActorSystem.create (
+            Behaviors.empty (),
+            "OrderPersistenceBenchmark",
+            ConfigFactory.parseString ("akka.actor.provider = local\nakka.loglevel = WARNING")
+                         .withFallback (ConfigFactory.load ()));
+        allocator = system.systemActorOf (OrderAllocationService.createStandalone (), "allocator", Props.empty ());
+        runID = UUID.randomUUID ().toString ().substring (0, 8);
+
+        for (int i = 0; i < ORDERS; i++) {
+            ActorRef<Order.Command> order = spawn (orderID (i));
+            receive (order);
+            while (fetch (order).allocations ().isEmpty ()) {
+                Thread.sleep (10);
+            }
+            system.stop (order);
+        }
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown () throws Exception
+    {
+        String pattern = Order.ENTITY_KEY.name () + "|" + runID + "-%";
+        String sql =
+            "durable-state".equals (mode)
+                ? "SELECT coalesce(sum(pg_column_size(d.*)), 0) AS bytes, count(*) AS rows " +
+                  "FROM durable_state d WHERE persistence_id LIKE $1"
+                : "SELECT coalesce(sum(bytes), 0) AS bytes, coalesce(sum(rows), 0) AS rows FROM (" +
+                  "SELECT sum(pg_column_size(j.*)) AS bytes, count(*) AS rows FROM event_journal j WHERE persistence_id LIKE $1 " +
+                  "UNION ALL SELECT sum(pg_column_size(s.*)), count(*) FROM snapshot s WHERE persistence_id LIKE $1) t";
+
+        Map.Entry<Long,Long> usage =
+            R2dbcSession.withSession (
+                system,
+                session -> session.selectOne (
+                    session.createStatement (sql).bind (0, pattern),
+                    row -> Map.entry (row.get ("bytes", Number.class).longValue (),
+                                      row.get ("rows", Number.class).longValue ())))
+                .toCompletableFuture ()
+                .get ()
+                .orElse (Map.entry (0L, 0L));
+        long orders = ORDERS + written.get ();
+        System.out.printf ("%n[%s] storage: %d bytes in %d rows, %d bytes per order%n",
+                           mode, usage.getKey (), usage.getValue (), usage.getKey () / orders);
+
+        system.terminate ();
+        system.getWhenTerminated ().toCompletableFuture ().get ();
+    }
+
+/**
+  * Measures the latency of receiving a new order.
+  */
+
+    @Benchmark
+    public StatusReply<Done> write () throws Exception
+    {
+        ActorRef<Order.Command> order = spawn (orderID (ORDERS + (int) written.getAndIncrement ()));
+        try {
+            return receive (order);
+        } finally {
+            system.stop (order);
+        }
+    }
+
+/**
+  * Measures the recovery time of an existing order.
+  */
+
+    @Benchmark
+    public Order.OrderDetails recover () throws Exception
+    {
+        int i = (int) (next.getAndIncrement () % ORDERS);
+        ActorRef<Order.Command> order = spawn (orderID (i));
+        try {
+            return fetch (order);
+        } finally {
+            system.stop (order);
+        }
+    }
+
+    private ActorRef<Order.Command> spawn (String orderID)
+    {
+        Behavior<Order.Command> behavior =
+            "durable-state".equals (mode)
+                ? DurableOrder.create (orderID, allocator)
+                : Order.create (orderID, allocator);
+        return system.systemActorOf (behavior, "order-" + UUID.randomUUID (), Props.empty ());
+    }
+
+    private String orderID (int i)
+    {
+        return runID + "-" + i;
+    }
+
+/**
+  * Receives an order.
+  */
+
+    private StatusReply<Done> receive (ActorRef<Order.Command> order) throws Exception
+    {
+        Map<String,OrderItem> items = new HashMap<> ();
+        for (int i = 1; i <= 4; i++) {
+            items.put (Integer.toString (i), new OrderItem (Integer.toString (i), "item " + i, 1 + i));
+        }
+        Customer customer =
+            new Customer ("First", "Last", new Address ("Street 1", "City", "Israel", 12345), "a@b.com", "0500000000");
+
+        StatusReply<Done> reply =
+            AskPattern.<Order.Command,StatusReply<Done>>ask (
+                order, replyTo -> new Order.ReceiveOrder (items, customer, replyTo), TIMEOUT, system.scheduler ())
+            .toCompletableFuture ()
+            .get ();
+        if (reply.isError ()) {
+            throw new IllegalStateException (reply.getError ());
+        }
+        return reply;
+    }
+
+    private Order.OrderDetails fetch (ActorRef<Order.Command> order) throws Exception
+    {
+        return AskPattern.<Order.Command,Order.OrderDetails>ask (
+                order, Order.FetchOrderDetails::new, TIMEOUT, system.scheduler ())
+            .toCompletableFuture ()
+            .get ();
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.eraneyal.order;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Benchmarks the nearest-site lookup of {@link SiteLocator}, for sites and customers spread
+  * randomly over a region of about 400 x 200 km.
+  */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class SiteLocatorBenchmark
+{
+
+    @Param ({"100", "1000", "10000"})
+    public int sites;
+
+    @Param ({"10"})
+    public int nearest;
+
+/**
+  * Holds the number of customer zip codes.
+  */
+
+    private static final int CUSTOMERS = 1024;
+
+    private SiteLocator locator;
+
+    private int next;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        Random random = new Random (42);
+        Map<Integer,GeocodeTable.GeoPoint> locations = new HashMap<> ();
+        List<Site> catalog = new ArrayList<> ();
+
+        for (int s = 0; s < sites; s++) {
+            locations.put (CUSTOMERS + s, new GeocodeTable.GeoPoint (29.5 + random.nextDouble () * 3.5,
+                                                                     34.2 + random.nextDouble () * 1.5));
+            catalog.add (new Site (Integer.toString (s),
+                                   "Site " + s,
+                                   new Address ("Street " + s, "City", "Israel", CUSTOMERS + s),
+                                   "FedEx"));
+        }
+        for (int c = 0; c < CUSTOMERS; c++) {
+            locations.put (c, new GeocodeTable.GeoPoint (29.5 + random.nextDouble () * 3.5,
+                                                         34.2 + random.nextDouble () * 1.5));
+        }
+
+        locator = new SiteLocator (catalog, new GeocodeTable (locations));
+    }
+
+    @Benchmark
+    public int[] nearestSites ()
+    {
+        next = (next + 1) & (CUSTOMERS - 1);
+
+        return locator.nearest (next, nearest);
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.eraneyal.order;
+
+import akka.util.ByteString;
+
+import com.typesafe.config.ConfigFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Benchmarks the extraction of the tracking identifier from courier booking responses:
+  * decoding the response and parsing it as a whole (as done before the scanner), against
+  * scanning the response bytes for the tracking identifier (see {@link JsonScanner}).
+  * <p>
+  * The responses are those of the FedEx definition, of three sizes: the tracking
+  * identifier alone ("small", ~60 bytes), a booking confirmation with the shipment
+  * details ("medium", ~1 KB), and a confirmation that also carries the label image and
+  * the tracking events ("large", ~18 KB). The tracking identifier is the last field, so
+  * the whole response is scanned.
+  */
+
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class TrackingIDBenchmark
+{
+
+    @Param ({"small", "medium", "large"})
+    public String size;
+
+    private CourierDefinition definition;
+
+    private ByteString response;
+
+    @Setup (Level.Trial)
+    public void setup ()
+    {
+        definition = CourierDefinition.fromConfig (
+            ConfigFactory.load ().getConfig ("order-service.couriers.definitions.FedEx"));
+        response = ByteString.fromString (response (size, new Random (7)));
+    }
+
+    @Benchmark
+    public String parse () throws CourierBookingHandlerException
+    {
+        return definition.getTrackingID (response.utf8String ());
+    }
+
+    @Benchmark
+    public String scan () throws CourierBookingHandlerException
+    {
+        return definition.getTrackingID (response);
+    }
+
+/**
+  * Returns a booking response of the given size.
+  */
+
+    static String response (String size, Random random)
+    {
+        StringBuilder json = new StringBuilder (20000).append ('{');
+
+        if (!size.equals ("small")) {
+            json.append ("\"status\": \"CONFIRMED\", \"service\": \"FEDEX_GROUND\", ")
+                .append ("\"booking-id\": \"order-").append (random.nextInt (1000000)).append ("-1\", ")
+                .append ("\"created\": \"2024-07-01T10:15:30.123Z\", ")
+                .append ("\"estimated-delivery\": {\"from\": \"2024-07-03T08:00:00Z\", \"to\": \"2024-07-03T18:00:00Z\"}, ")
+                .append ("\"shipper\": {\"name\": \"TLV Warehouse\", \"address\": {\"street\": \"Namir 15\", ")
+                .append ("\"city\": \"Tel Aviv\", \"country\": \"Israel\", \"zip\": \"12345\"}}, ")
+                .append ("\"recipient\": {\"name\": \"Yael Cohen\", \"email\": \"yael.cohen@example.com\", ")
+                .append ("\"phone\": \"+972-52-123-4567\", \"address\": {\"street\": \"Bialik 89\", ")
+                .append ("\"city\": \"Ramat Gan\", \"country\": \"Israel\", \"zip\": \"64722\"}}, ")
+                .append ("\"packages\": [");
+            for (int i = 0; i < 3; i++) {
+                json.append (i > 0 ? ", " : "")
+                    .append ("{\"sequence\": ").append (i + 1)
+                    .append (", \"weight\": {\"value\": ").append (1 + random.nextInt (20)).append (".5, \"units\": \"KG\"}")
+                    .append (", \"dimensions\": {\"length\": 40, \"width\": 30, \"height\": 20, \"units\": \"CM\"}")
+                    .append (", \"reference\": \"ITEM-").append (random.nextInt (10000)).append ("\"}");
+            }
+            json.append ("], \"charges\": {\"total\": 42.17, \"currency\": \"ILS\", \"surcharges\": [\"FUEL\", \"RESIDENTIAL\"]}, ");
+        }
+
+        if (size.equals ("large")) {
+            byte[] label = new byte[10000];
+            random.nextBytes (label);
+            json.append ("\"label\": {\"format\": \"PNG\", \"encoding\": \"BASE64\", \"content\": \"")
+                .append (Base64.getEncoder ().encodeToString (label))
+                .append ("\"}, \"events\": [");
+            for (int i = 0; i < 20; i++) {
+                json.append (i > 0 ? ", " : "")
+                    .append ("{\"timestamp\": \"2024-07-01T1").append (i % 10).append (":00:00Z\", ")
+                    .append ("\"code\": \"EV").append (i).append ("\", ")
+                    .append ("\"description\": \"Shipment information sent to FedEx \\u2013 step ").append (i).append ("\", ")
+                    .append ("\"location\": {\"city\": \"Tel Aviv\", \"country\": \"IL\"}}");
+            }
+            json.append ("], ");
+        }
+
+        return json.append ("\"tracking-id\": \"").append (new UUID (random.nextLong (), random.nextLong ())).append ("\"}")
+                   .toString ();
+    }
+
+/**
+  * Runs the benchmark with the GC profiler, and writes the results to the given file
+  * (target/TrackingIDBenchmark.json by default).
+  */
+
+    public static void main (String[] args) throws Exception
+    {
+        new Runner (new OptionsBuilder ()
+                        .include (TrackingIDBenchmark.class.getSimpleName ())
+                        .addProfiler (GCProfiler.class)
+                        .resultFormat (ResultFormatType.JSON)
+                        .result (args.length > 0 ? args[0] : "target/TrackingIDBenchmark.json")
+                        .build ())
+            .run ();
+    }
+
+}
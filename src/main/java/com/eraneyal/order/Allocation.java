@@ -3,10 +3,17 @@ package com.eraneyal.order;
 import akka.serialization.jackson.CborSerializable;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 /**
   * Represents an immutable allocation of an entire order or a subset of an offer's items.
@@ -23,6 +30,7 @@ public final class Allocation implements CborSerializable
         NA,                     // not applicable
         CREATED,                // a newly created order without allocations
         ALLOCATED,              // allocation created
+        BOOKING,                // allocation items packed, delivery booking in progress
         PACKED,                 // allocation items packed and booked for delivery
         PICKED_BY_COURIER,      // courier picked the allocation items for delivery
         ENROUTE_TO_CUSTOMER,    // courier is on the way to the customer
@@ -199,4 +207,68 @@ public final class Allocation implements CborSerializable
         return latest;
     }
 
+/**
+  * Groups allocations that can be delivered as a single parcel: the allocations that are
+  * collected at the same address and delivered by the same courier (e.g. the bins or the
+  * waves of a site). The groups, and the allocations of each group, are ordered by
+  * allocation identifier.
+  * <p>
+  * @param allocations the allocations
+  * @return the parcels, each a group of one or more allocations
+  */
+
+    public static List<List<Allocation>> consolidate (Collection<Allocation> allocations)
+    {
+        Map<List<Object>,List<Allocation>> parcels = new LinkedHashMap<> ();
+
+        allocations.stream ()
+                   .sorted (Comparator.comparing (Allocation::getID))
+                   .forEach (allocation -> {
+                       Address address = allocation.getAddress ();
+                       List<Object> key = Arrays.asList (allocation.getCourier (),
+                                                         address.getStreet (),
+                                                         address.getCity (),
+                                                         address.getCountry (),
+                                                         address.getZipCode ());
+                       parcels.computeIfAbsent (key, k -> new ArrayList<> ()).add (allocation);
+                   });
+
+        return new ArrayList<> (parcels.values ());
+    }
+
+/**
+  * Returns a single allocation that holds the items of a parcel, to book its delivery
+  * with one courier call. The allocation has the location and statuses of the first
+  * allocation of the parcel, and an identifier of its own, made of the identifiers of all
+  * the allocations joined by plus signs, so the booking identifier of the parcel doesn't
+  * collide with the booking of any single allocation (couriers deduplicate bookings by
+  * it). The quantities of an item that is split across allocations are added up.
+  * <p>
+  * @param parcel the allocations of the parcel (see {@link #consolidate})
+  * @return the allocation of the parcel
+  */
+
+    public static Allocation merge (List<Allocation> parcel)
+    {
+        Allocation first = parcel.get (0);
+        if (parcel.size () == 1) {
+            return first;
+        }
+
+        Map<String,OrderItem> items = new HashMap<> ();
+        for (Allocation allocation : parcel) {
+            for (OrderItem item : allocation._items.values ()) {
+                items.merge (item.getItemID (),
+                             item,
+                             (current, other) -> new OrderItem (current.getItemID (),
+                                                                current.getName (),
+                                                                current.getQuantity () + other.getQuantity ()));
+            }
+        }
+
+        String ident = parcel.stream ().map (Allocation::getID).collect (Collectors.joining ("+"));
+
+        return new Allocation (ident, first._name, first._address, items, first._courier, null, first._statuses);
+    }
+
 }
@@ -1,10 +1,13 @@
 package com.eraneyal.order;
 
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
-  * A builder for generating Order.Allocation instances based on hard-coded templates.
+  * A builder for generating Order.Allocation instances, either for a given site or based on
+  * hard-coded templates.
   */
 
 public class AllocationBuilder
@@ -28,6 +31,13 @@ public class AllocationBuilder
 
     private Map<String,OrderItem> _items;
 
+/**
+  * Holds the site from which the items will be collected, or null if a template should
+  * be used.
+  */
+
+    private Site _site;
+
 /**
   * Creates a new builder instance.
   */
@@ -64,6 +74,36 @@ public class AllocationBuilder
         return this;
     }
 
+/**
+  * Sets the site from which the items of the allocation will be collected.
+  * <p>
+  * @param site the site
+  * @return the builder instance
+  */
+
+    public AllocationBuilder setSite (Site site)
+    {
+        _site = site;
+
+        return this;
+    }
+
+/**
+  * Returns the sites matching the hard-coded allocation templates.
+  * <p>
+  * @return the sites matching the hard-coded allocation templates
+  */
+
+    public static List<Site> getTemplateSites ()
+    {
+        return Arrays.stream (AllocationBuilder._allocations)
+                     .map (template -> new Site (template.getID (),
+                                                 template.getName (),
+                                                 template.getAddress (),
+                                                 template.getCourier ()))
+                     .toList ();
+    }
+
 /**
   * Returns a new Order.Allocation instance.
   * <p>
@@ -72,6 +112,17 @@ public class AllocationBuilder
 
     public Allocation build ()
     {
+        if (_site != null) {
+            return new Allocation (
+                Integer.toString (_ident),
+                _site.getName (),
+                _site.getAddress (),
+                _items,
+                _site.getCourier (),
+                null,
+                Map.of (Instant.now (), Allocation.Status.ALLOCATED));
+        }
+
         Allocation template = AllocationBuilder._allocations[_ident % AllocationBuilder._allocations.length];
 
         return new Allocation (
@@ -0,0 +1,350 @@
+package com.eraneyal.order;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+  * Implements an inventory-aware allocation engine, which decides the sites from which the
+  * items of an order are collected, based on the stock levels held by a {@link StockIndex}.
+  * <p>
+  * The engine chooses sites that minimize the number of allocations required to fulfil an
+  * order: if a single site can supply all the items, a single allocation is created.
+  * Otherwise, the site that can supply the most remaining items is chosen repeatedly (a
+  * greedy approximation of the minimal set cover), until all the items are assigned.
+  * <p>
+  * When a {@link SiteLocator} is available, only the sites nearest to the customer are
+  * considered at first, and ties are broken in favour of the nearer site. If the nearest
+  * sites can't fulfil the order, all the sites are considered.
+  * <p>
+  * When a {@link PlanCache} is available, the plan of a repeated item set and region is
+  * reused rather than computed again, as long as its stock can be reserved.
+  * <p>
+  * The stock of the chosen sites is reserved when the allocations are created. If a
+  * reservation fails because of a concurrent allocation, the reservations made so far are
+  * released, and the decision is made again based on the updated stock levels.
+  * <p>
+  * Instances of this class are thread safe, and a single instance is shared by all the
+  * allocation workers of a node.
+  */
+
+public final class AllocationEngine
+{
+
+/**
+  * Represents the assignment of a subset of the order items to a site.
+  * <p>
+  * @param position the position of the site in the stock index
+  * @param items the items assigned to the site, indexed by item identifier
+  */
+
+    public record Assignment (int position, Map<String,OrderItem> items) {}
+
+/**
+  * Holds the maximum number of attempts to reserve the stock of an order.
+  */
+
+    private static final int MAX_ATTEMPTS = 3;
+
+/**
+  * Holds the stock index.
+  */
+
+    private final StockIndex _index;
+
+/**
+  * Holds the spatial index of the sites, or null if sites should be considered in
+  * position order.
+  */
+
+    private final SiteLocator _locator;
+
+/**
+  * Holds the number of nearest sites considered at first.
+  */
+
+    private final int _nearest;
+
+/**
+  * Holds the plan cache, or null if plans are always computed.
+  */
+
+    private final PlanCache _cache;
+
+/**
+  * Creates a new engine for the given stock index, which considers the sites in position
+  * order.
+  * <p>
+  * @param index the stock index
+  */
+
+    public AllocationEngine (StockIndex index)
+    {
+        this (index, null, 0);
+    }
+
+/**
+  * Creates a new engine for the given stock index, which considers the sites nearest to
+  * the customer first.
+  * <p>
+  * @param index the stock index
+  * @param locator the spatial index of the sites, whose positions match the stock index
+  * @param nearest the number of nearest sites considered at first
+  */
+
+    public AllocationEngine (StockIndex index, SiteLocator locator, int nearest)
+    {
+        this (index, locator, nearest, null);
+    }
+
+/**
+  * Creates a new engine for the given stock index, which considers the sites nearest to
+  * the customer first, and reuses cached plans. The cache is notified of the stock level
+  * changes of the index.
+  * <p>
+  * @param index the stock index
+  * @param locator the spatial index of the sites, whose positions match the stock index
+  * @param nearest the number of nearest sites considered at first
+  * @param cache the plan cache, or null if plans are always computed
+  */
+
+    public AllocationEngine (StockIndex index, SiteLocator locator, int nearest, PlanCache cache)
+    {
+        _index = index;
+        _locator = locator;
+        _nearest = nearest;
+        _cache = cache;
+        if (cache != null) {
+            index.setListener (cache);
+        }
+    }
+
+/**
+  * Returns the stock index.
+  * <p>
+  * @return the stock index
+  */
+
+    public StockIndex getStockIndex ()
+    {
+        return _index;
+    }
+
+/**
+  * Allocates the given order items, and reserves their stock.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @param customer the customer of the order
+  * @return the order allocations indexed by allocation identifier, or an empty map if the
+  * 		order can't be fulfilled with the current stock levels
+  */
+
+    public Map<String,Allocation> allocate (Map<String,OrderItem> items, Customer customer)
+    {
+        List<Assignment> plan = reserve (items, customer);
+
+        return plan != null ? toAllocations (plan) : Map.of ();
+    }
+
+/**
+  * Decides the sites from which the given order items are collected, and reserves their
+  * stock.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @param customer the customer of the order
+  * @return the reserved assignments of items to sites, or null if the order can't be
+  * 		fulfilled with the current stock levels
+  */
+
+    public List<Assignment> reserve (Map<String,OrderItem> items, Customer customer)
+    {
+        int[] candidates =
+            _locator != null && customer != null
+                ? _locator.nearest (customer.getAddress ().getZipCode (), _nearest)
+                : null;
+
+        PlanCache.Key key = _cache != null ? _cache.key (items, candidates) : null;
+        if (key != null) {
+            List<Assignment> cached = _cache.get (key, items);
+            if (cached != null) {
+                if (tryReserve (cached)) {
+                    return cached;
+                }
+// -- the cached plan can't be reserved anymore, so a new plan is computed
+                _cache.evict (key);
+            }
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            List<Assignment> plan = plan (items, candidates);
+            if (plan == null && candidates != null) {
+// -- the nearest sites can't fulfil the order, so consider all the sites
+                plan = plan (items, null);
+            }
+            if (plan == null) {
+                break;
+            }
+            if (tryReserve (plan)) {
+                if (key != null) {
+                    _cache.put (key, plan);
+                }
+                return plan;
+            }
+        }
+
+        return null;
+    }
+
+/**
+  * Releases the stock reserved for the given assignments.
+  * <p>
+  * @param plan the reserved assignments of items to sites
+  */
+
+    public void release (List<Assignment> plan)
+    {
+        for (Assignment assignment : plan) {
+            _index.release (assignment.position (), assignment.items ());
+        }
+    }
+
+/**
+  * Creates the order allocations of the given assignments.
+  * <p>
+  * @param plan the assignments of items to sites
+  * @return the order allocations indexed by allocation identifier
+  */
+
+    public Map<String,Allocation> toAllocations (List<Assignment> plan)
+    {
+        Map<String,Allocation> allocations = new HashMap<> ();
+        int ident = 1;
+
+        for (Assignment assignment : plan) {
+            Allocation allocation =
+                new AllocationBuilder ().setID (ident++)
+                                        .setSite (_index.getSite (assignment.position ()))
+                                        .setItems (assignment.items ())
+                                        .build ();
+            allocations.put (allocation.getID (), allocation);
+        }
+
+        return allocations;
+    }
+
+/**
+  * Decides the sites from which the given order items are collected, considering all the
+  * sites in position order, without reserving their stock.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @return the assignments of items to sites, or null if the order can't be fulfilled with
+  * 		the current stock levels
+  */
+
+    public List<Assignment> plan (Map<String,OrderItem> items)
+    {
+        return plan (items, null);
+    }
+
+/**
+  * Decides the sites from which the given order items are collected, without reserving
+  * their stock.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @param candidates the positions of the sites to consider in order of preference, or
+  * 		  null to consider all the sites in position order
+  * @return the assignments of items to sites, or null if the order can't be fulfilled with
+  * 		the current stock levels
+  */
+
+    public List<Assignment> plan (Map<String,OrderItem> items, int[] candidates)
+    {
+        OrderItem[] ordered = items.values ().toArray (new OrderItem[0]);
+        int count = ordered.length;
+        int words = (count + 63) >>> 6;
+        int sites = candidates != null ? candidates.length : _index.getSiteCount ();
+
+// -- compute, per candidate site, a bit mask of the items the site can supply in full
+        AtomicIntegerArray[] stock = new AtomicIntegerArray[count];
+        for (int i = 0; i < count; i++) {
+            stock[i] = _index.getItemStock (ordered[i].getItemID ());
+        }
+        long[] cover = new long[sites * words];
+        for (int s = 0; s < sites; s++) {
+            int position = candidates != null ? candidates[s] : s;
+            for (int i = 0; i < count; i++) {
+                if (stock[i] == null || stock[i].get (position) >= ordered[i].getQuantity ()) {
+                    cover[s * words + (i >>> 6)] |= 1L << i;
+                }
+            }
+        }
+
+        long[] remaining = new long[words];
+        for (int i = 0; i < count; i++) {
+            remaining[i >>> 6] |= 1L << i;
+        }
+
+// -- repeatedly choose the site that supplies the most remaining items
+        List<Assignment> plan = new ArrayList<> ();
+        int left = count;
+        while (left > 0) {
+            int best = -1;
+            int bestCount = 0;
+            for (int s = 0; s < sites; s++) {
+                int covered = 0;
+                for (int w = 0; w < words; w++) {
+                    covered += Long.bitCount (cover[s * words + w] & remaining[w]);
+                }
+                if (covered > bestCount) {
+                    best = s;
+                    bestCount = covered;
+                }
+            }
+            if (best < 0) {
+// -- some items can't be supplied by any site
+                return null;
+            }
+
+            Map<String,OrderItem> assigned = new HashMap<> ();
+            for (int w = 0; w < words; w++) {
+                long bits = cover[best * words + w] & remaining[w];
+                remaining[w] &= ~bits;
+                while (bits != 0) {
+                    OrderItem item = ordered[(w << 6) + Long.numberOfTrailingZeros (bits)];
+                    assigned.put (item.getItemID (), item);
+                    bits &= bits - 1;
+                }
+            }
+            plan.add (new Assignment (candidates != null ? candidates[best] : best, assigned));
+            left -= bestCount;
+        }
+
+        return plan;
+    }
+
+/**
+  * Reserves the stock of the given assignments. Either all the assignments are reserved,
+  * or none of them.
+  * <p>
+  * @param plan the assignments of items to sites
+  * @return true if the stock was reserved
+  */
+
+    private boolean tryReserve (List<Assignment> plan)
+    {
+        for (int i = 0; i < plan.size (); i++) {
+            Assignment assignment = plan.get (i);
+            if (!_index.reserve (assignment.position (), assignment.items ())) {
+                for (int j = 0; j < i; j++) {
+                    _index.release (plan.get (j).position (), plan.get (j).items ());
+                }
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
@@ -1,10 +1,29 @@
 package com.eraneyal.order;
 
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
   * Represents a courier API for booking order delivery.
+  * <p>
+  * The courier APIs are defined in configuration (order-service.couriers, see
+  * couriers.conf), and compiled into {@link CourierDefinition} handlers when loaded. The
+  * definitions of an optional external file are reloaded when the file changes, so
+  * couriers can be added without a restart. A courier API may have several endpoints
+  * (base URIs), across which its requests are balanced (see {@link CourierEndpoints}).
   */
 
 public class CourierBookingAPI
@@ -16,11 +35,21 @@ public class CourierBookingAPI
 
     public static final String _DEFAULT = "default";
 
+    private static final Logger logger = LoggerFactory.getLogger (CourierBookingAPI.class);
+
 /**
-  * Holds a hard-coded static registry of courier APIs.
+  * Holds the registry of courier APIs, by courier identifier. The registry is replaced as
+  * a whole when the definitions are reloaded.
   */
 
-    private static Map<String, CourierBookingAPI> _availableBookingAPIs;
+    private static volatile Map<String, CourierBookingAPI> _availableBookingAPIs =
+        CourierBookingAPI.fromConfig (ConfigFactory.load ().getConfig ("order-service.couriers"));
+
+/**
+  * Holds the last modification time of the loaded definitions file.
+  */
+
+    private static long _fileModified;
 
 /**
   * Holds the courier identifier.
@@ -29,10 +58,10 @@ public class CourierBookingAPI
     private final String _ident;
 
 /**
-  * Holds the base URI of the booking API.
+  * Holds the base URIs of the endpoints of the booking API.
   */
 
-    private final String _baseUri;
+    private final List<String> _baseUris;
 
 /**
   * Holds the booking handler.
@@ -40,6 +69,18 @@ public class CourierBookingAPI
 
     private final CourierBookingHandler _bookingHandler;
 
+/**
+  * Holds the hedging policy of the booking requests, or null if they aren't hedged.
+  */
+
+    private final CourierHedging.Policy _hedging;
+
+/**
+  * Holds the load balancing policy of the endpoints.
+  */
+
+    private final CourierEndpoints.Policy _loadBalancing;
+
 /**
   * Constructs a new courier booking API.
   * <p>
@@ -49,10 +90,39 @@ public class CourierBookingAPI
   */
 
     public CourierBookingAPI (String ident, String baseUri, CourierBookingHandler  bookingHandler)
+    {
+        this (ident,
+              List.of (baseUri),
+              bookingHandler,
+              null,
+              CourierEndpoints.Policy.fromConfig (
+                  ConfigFactory.load ().getConfig ("order-service.couriers.load-balancing")));
+    }
+
+/**
+  * Constructs a new courier booking API, with several endpoints and hedged booking
+  * requests.
+  * <p>
+  * @param ident the courier identifier
+  * @param baseUris the base URIs of the endpoints of the API
+  * @param bookingHandler the booking API handler
+  * @param hedging the hedging policy of the booking requests, or null if they aren't
+  *        hedged
+  * @param loadBalancing the load balancing policy of the endpoints
+  */
+
+    public CourierBookingAPI (
+        String ident,
+        List<String> baseUris,
+        CourierBookingHandler bookingHandler,
+        CourierHedging.Policy hedging,
+        CourierEndpoints.Policy loadBalancing)
     {
         _ident = ident;
-        _baseUri = baseUri;
+        _baseUris = List.copyOf (baseUris);
         _bookingHandler = bookingHandler;
+        _hedging = hedging;
+        _loadBalancing = loadBalancing;
     }
 
 /**
@@ -67,14 +137,25 @@ public class CourierBookingAPI
     }
 
 /**
-  * Returns the base URI of the booking API.
+  * Returns the base URI of the first endpoint of the booking API.
   * <p>
   * @return the base URI of the booking API
   */
 
     public String getBaseURI ()
     {
-        return _baseUri;
+        return _baseUris.get (0);
+    }
+
+/**
+  * Returns the base URIs of the endpoints of the booking API.
+  * <p>
+  * @return the base URIs of the endpoints of the booking API
+  */
+
+    public List<String> getBaseURIs ()
+    {
+        return _baseUris;
     }
 
 /**
@@ -88,14 +169,32 @@ public class CourierBookingAPI
         return _bookingHandler;
     }
 
+/**
+  * Returns the hedging policy of the booking requests.
+  * <p>
+  * @return the hedging policy of the booking requests, or null if they aren't hedged
+  */
+
+    public CourierHedging.Policy getHedging ()
+    {
+        return _hedging;
+    }
+
+/**
+  * Returns the load balancing policy of the endpoints.
+  * <p>
+  * @return the load balancing policy of the endpoints
+  */
+
+    public CourierEndpoints.Policy getLoadBalancing ()
+    {
+        return _loadBalancing;
+    }
+
 /**
   * Returns the booking API matching the passed courier identifier, or the default booking
   * API if the requested courier identifier is not registered.
   * <p>
-  * NOTE: The available courier booking APIs have been hard-coded in this class. If these
-  * 	  APIs were used in some production software, I would initialize them either from
-  * 	  configuration files or from a DB table (depending on the required flexibility).
-  * <p>
   * @param ident the courier identifier
   * @return the booking API matching the passed courier identifier, or the default
   * 		booking API if the requested courier identifier is not registered
@@ -103,41 +202,134 @@ public class CourierBookingAPI
 
     public static CourierBookingAPI getInstanceOrDefault (String ident)
     {
-        CourierBookingAPI api = CourierBookingAPI._availableBookingAPIs.get (ident);
+        Map<String, CourierBookingAPI> apis = CourierBookingAPI._availableBookingAPIs;
+        CourierBookingAPI api = apis.get (ident);
 
         if (api == null) {
-            api = CourierBookingAPI._availableBookingAPIs.get (CourierBookingAPI._DEFAULT);
+            api = apis.get (CourierBookingAPI._DEFAULT);
         }
 
         return api;
     }
 
-    static {
+/**
+  * Loads the courier APIs from the configuration of the actor system and the definitions
+  * file, if any, and schedules the reloading of the definitions file when it changes.
+  * <p>
+  * @param system the actor system
+  */
 
-// -- initialize a hard-coded static registry of supported booking APIs.
-        CourierBookingAPI._availableBookingAPIs = new HashMap<> ();
+    public static void init (ActorSystem<?> system)
+    {
+        Config config = system.settings ().config ().getConfig ("order-service.couriers");
+
+        reload (config, true);
+        if (!config.getString ("file").isEmpty ()) {
+            Duration interval = config.getDuration ("reload-interval");
+            system.scheduler ().scheduleWithFixedDelay (
+                interval,
+                interval,
+                () -> reload (config, false),
+                system.dispatchers ().lookup (DispatcherSelector.blocking ()));
+        }
+    }
 
-        CourierBookingAPI._availableBookingAPIs.put (
-            "FedEx",
-            new CourierBookingAPI (
-                "FedEx",
-                "http://localhost:8080/courier/fedex-book.jsp",
-                new FedExBookingHandlerImpl ()));
+/**
+  * Loads the courier APIs from the given configuration, and the definitions file if it
+  * was modified since it was last loaded (or always, if forced). A reload that fails
+  * keeps the current courier APIs.
+  * <p>
+  * @param config the couriers configuration
+  * @param force whether to load the definitions even if the file wasn't modified
+  * @exception ConfigException if forced, and the definitions can't be loaded
+  */
 
-        CourierBookingAPI._availableBookingAPIs.put (
-            "DeliverIt",
-            new CourierBookingAPI (
-                "DeliverIt",
-                "http://localhost:8080/courier/deliverit-book.jsp",
-                new DeliverItBookingHandlerImpl ()));
+    static synchronized void reload (Config config, boolean force)
+    {
+        String path = config.getString ("file");
+        File file = path.isEmpty () ? null : new File (path);
+        long modified = file != null ? file.lastModified () : 0;
 
-        CourierBookingAPI._availableBookingAPIs.put (
-            CourierBookingAPI._DEFAULT,
-            new CourierBookingAPI (
-                CourierBookingAPI._DEFAULT,
-                "http://www.example.com",
-                new FakeBookingHandlerImpl ()));
+        if (!force && modified == CourierBookingAPI._fileModified) {
+            return;
+        }
 
+        try {
+            Config definitions = config;
+            if (file != null && file.exists ()) {
+                definitions = ConfigFactory.parseFile (file).withFallback (config).resolve ();
+            }
+            CourierBookingAPI._availableBookingAPIs = CourierBookingAPI.fromConfig (definitions);
+            CourierBookingAPI._fileModified = modified;
+            if (file != null) {
+                logger.info ("Loaded courier definitions {}", CourierBookingAPI._availableBookingAPIs.keySet ());
+            }
+        }
+        catch (ConfigException configEx) {
+            if (force) {
+                throw configEx;
+            }
+            logger.warn ("Failed to reload the courier definitions of {}, keeping the current ones", path, configEx);
+        }
+    }
+
+/**
+  * Compiles the courier APIs of the given configuration.
+  * <p>
+  * @param config the couriers configuration
+  * @return the courier APIs, by courier identifier
+  * @exception ConfigException if a definition is invalid
+  */
+
+    static Map<String, CourierBookingAPI> fromConfig (Config config)
+    {
+        Map<String, CourierBookingAPI> apis = new HashMap<> ();
+        Config definitions = config.getConfig ("definitions");
+
+        for (String ident : definitions.root ().keySet ()) {
+            Config definition = definitions.getConfig ("\"" + ident + "\"");
+            if (!definition.hasPath ("base-uri") && !definition.hasPath ("endpoints")) {
+// -- the settings of a courier booked by a booking service
+                continue;
+            }
+            apis.put (ident,
+                      new CourierBookingAPI (ident,
+                                             CourierDefinition.baseUris (definition),
+                                             definition.hasPath ("handler")
+                                                 ? instantiate (definition)
+                                                 : CourierDefinition.fromConfig (definition),
+                                             CourierHedging.Policy.fromConfig (settings (config, definition, "hedging")),
+                                             CourierEndpoints.Policy.fromConfig (
+                                                 settings (config, definition, "load-balancing"))));
+        }
+        if (!apis.containsKey (CourierBookingAPI._DEFAULT)) {
+            throw new ConfigException.Missing (definitions.origin (), CourierBookingAPI._DEFAULT);
+        }
+
+        return Map.copyOf (apis);
+    }
+
+/**
+  * Returns the settings of a definition at the given path, falling back to the settings
+  * shared by all the definitions.
+  */
+
+    private static Config settings (Config config, Config definition, String path)
+    {
+        return definition.hasPath (path)
+            ? definition.getConfig (path).withFallback (config.getConfig (path))
+            : config.getConfig (path);
+    }
+
+    private static CourierBookingHandler instantiate (Config definition)
+    {
+        try {
+            return (CourierBookingHandler)
+                Class.forName (definition.getString ("handler")).getDeclaredConstructor ().newInstance ();
+        }
+        catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new ConfigException.BadValue (definition.origin (), "handler", ex.toString (), ex);
+        }
     }
 
 }
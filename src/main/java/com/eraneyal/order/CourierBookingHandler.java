@@ -1,5 +1,7 @@
 package com.eraneyal.order;
 
+import akka.util.ByteString;
+
 import java.util.Map;
 
 /**
@@ -48,6 +50,24 @@ public interface CourierBookingHandler
     public String getBookingURI (String baseAddr, Map<String,String> params)
         throws CourierBookingHandlerException;
 
+/**
+  * Returns the complete URI for the HTTP GET request of the passed order details. By
+  * default, the URI is made of the request parameters of {@link #getHTTPRequestParams}.
+  * <p>
+  * @param baseAddr the base address of the courier API call
+  * @param order the order identifier
+  * @param allocation the allocation details of the entire order or a subset of the order
+  * @param customer the customer details
+  * @return the complete URI for the HTTP GET request
+  * @exception CourierBookingHandlerException in case of failure to construct the URI
+  */
+
+    public default String getBookingURI (String baseAddr, String order, Allocation allocation, Customer customer)
+        throws CourierBookingHandlerException
+    {
+        return getBookingURI (baseAddr, getHTTPRequestParams (order, allocation, customer));
+    }
+
 /**
   * Returns the tracking identifier returned from the third-party courier API.
   * <p>
@@ -59,4 +79,20 @@ public interface CourierBookingHandler
     public String getTrackingID (String response)
         throws CourierBookingHandlerException;
 
+/**
+  * Returns the tracking identifier returned from the third-party courier API, given the
+  * bytes of the response. By default, the response is decoded and passed to
+  * {@link #getTrackingID(String)}.
+  * <p>
+  * @param response the HTTP response body
+  * @return the tracking identifier returned from the third-party courier API
+  * @exception CourierBookingHandlerException in case of any failures to parse the response
+  */
+
+    public default String getTrackingID (ByteString response)
+        throws CourierBookingHandlerException
+    {
+        return getTrackingID (response != null ? response.utf8String () : null);
+    }
+
 }
@@ -0,0 +1,172 @@
+package com.eraneyal.order;
+
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.StatusCodes;
+import akka.util.ByteString;
+
+import scala.concurrent.ExecutionContext;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+  * Implements the booking service of a courier booking API, which books delivery with a
+  * single HTTP GET request described by its {@link CourierBookingHandler}.
+  * <p>
+  * The request is built, and the response read and parsed, on the executor of the
+  * booking work, so a slow or misbehaving handler never runs on the thread of an entity.
+  * Each request goes to an endpoint of the booking API chosen by its load balancer (see
+  * {@link CourierEndpoints}), and is hedged if the booking API has a hedging policy (see
+  * {@link CourierHedging}), in which case the hedge may go to another endpoint.
+  */
+
+final class CourierBookingHandlerAdapter implements CourierBookingService
+{
+
+    private final CourierBookingAPI _api;
+
+    private final Context _context;
+
+    private final Duration _responseTimeout;
+
+    private final CourierHedging _hedging;
+
+    private final CourierEndpoints _endpoints;
+
+    private final ExecutionContext _executor;
+
+/**
+  * Creates the booking service of the given courier booking API.
+  * <p>
+  * @param api the courier booking API
+  * @param context the shared resources of the booking services
+  * @param responseTimeout the maximum time to read the response body
+  * @param hedging the hedged requests of the courier, used if the booking API has a
+  *        hedging policy
+  * @param endpoints the load balancer of the endpoints of the courier
+  */
+
+    CourierBookingHandlerAdapter (
+        CourierBookingAPI api,
+        Context context,
+        Duration responseTimeout,
+        CourierHedging hedging,
+        CourierEndpoints endpoints)
+    {
+        _api = api;
+        _context = context;
+        _responseTimeout = responseTimeout;
+        _hedging = hedging;
+        _endpoints = endpoints;
+        _executor = ExecutionContext.fromExecutor (context.executor ());
+    }
+
+/**
+  * Returns the courier booking API of this service.
+  * <p>
+  * @return the courier booking API
+  */
+
+    CourierBookingAPI getAPI ()
+    {
+        return _api;
+    }
+
+    @Override
+    public CompletionStage<BookingResult> book (String order, Allocation allocation, Customer customer)
+    {
+        CourierBookingHandler handler = _api.getBookingHandler ();
+
+        return CompletableFuture
+            .supplyAsync (() -> send (handler, order, allocation, customer), _context.executor ())
+            .thenCompose (Function.identity ())
+            .thenComposeAsync (this::readEntity, _context.executor ())
+            .thenApplyAsync (body -> new BookingResult (uncheck (() -> handler.getTrackingID (body))),
+                             _context.executor ());
+    }
+
+    private CompletionStage<HttpResponse> send (
+        CourierBookingHandler handler,
+        String order,
+        Allocation allocation,
+        Customer customer)
+    {
+        if (_api.getHedging () == null) {
+            return request (handler, order, allocation, customer);
+        }
+// -- the hedge is built on the booking executor too
+        return _hedging.send (() -> request (handler, order, allocation, customer),
+                              _api.getHedging (),
+                              _context.system ().scheduler (),
+                              _executor,
+                              _context.materializer ());
+    }
+
+/**
+  * Sends a booking request to the endpoint chosen by the load balancer, and reports its
+  * outcome to the load balancer: a transport failure or a 5xx status count as a failure
+  * of the endpoint, while other statuses only decline the booking.
+  */
+
+    private CompletionStage<HttpResponse> request (
+        CourierBookingHandler handler,
+        String order,
+        Allocation allocation,
+        Customer customer)
+    {
+        CourierEndpoints.Endpoint endpoint = _endpoints.choose (_api.getBaseURIs (), _api.getLoadBalancing ());
+
+        String uri;
+        try {
+            uri = handler.getBookingURI (endpoint.getURI (), order, allocation, customer);
+        }
+        catch (CourierBookingHandlerException | RuntimeException ex) {
+// -- a failed stage, so a failing hedge fails like a failing request
+            return CompletableFuture.failedStage (ex);
+        }
+
+        long start = endpoint.start ();
+        return _context.http ()
+                       .singleRequest (HttpRequest.create (uri))
+                       .whenComplete ((response, ex) ->
+                           endpoint.complete (start, ex == null && response.status ().intValue () < 500));
+    }
+
+    private CompletionStage<ByteString> readEntity (HttpResponse response)
+    {
+        if (!response.status ().equals (StatusCodes.OK)) {
+            response.discardEntityBytes (_context.materializer ());
+            throw new CompletionException (
+                new CourierBookingHandlerException ("booking API returned status code " + response.status ()));
+        }
+
+        return response.entity ()
+                       .toStrict (_responseTimeout.toMillis (), _context.materializer ())
+                       .thenApply (entity -> entity.getData ());
+    }
+
+/**
+  * Represents a handler call, which may fail with a handler exception.
+  */
+
+    @FunctionalInterface
+    private interface HandlerCall<T>
+    {
+        T call () throws CourierBookingHandlerException;
+    }
+
+    private static <T> T uncheck (HandlerCall<T> call)
+    {
+        try {
+            return call.call ();
+        }
+        catch (CourierBookingHandlerException bookingEx) {
+            throw new CompletionException (bookingEx);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorSystem;
+import akka.http.javadsl.Http;
+import akka.stream.Materializer;
+
+import com.typesafe.config.Config;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+  * Represents the asynchronous booking of order delivery with a courier.
+  * <p>
+  * Unlike a {@link CourierBookingHandler}, which describes a single HTTP GET request, a
+  * booking service performs the whole booking, so it can send POST requests, fetch
+  * authentication tokens, or make several calls per booking. Services are plugged in with
+  * the {@link java.util.ServiceLoader} mechanism: a {@link Provider} implementation is
+  * listed in a META-INF/services/com.eraneyal.order.CourierBookingService$Provider
+  * resource. A service takes precedence over a courier definition of the same courier;
+  * couriers without a service are booked with their {@link CourierBookingHandler} (see
+  * {@link CourierBookingHandlerAdapter}).
+  */
+
+public interface CourierBookingService
+{
+
+/**
+  * Represents a successful booking.
+  * <p>
+  * @param trackingID the delivery tracking identifier returned by the courier
+  */
+
+    record BookingResult (String trackingID) {}
+
+/**
+  * Represents the shared resources available to booking services.
+  * <p>
+  * @param system the actor system
+  * @param http the HTTP extension, whose connection pools are shared by all couriers
+  * @param materializer the materializer used to read the responses
+  * @param executor the executor of the booking work, which must not run on the threads
+  *        of the entities
+  * @param config the definition of the courier in order-service.couriers.definitions,
+  *        or an empty configuration
+  */
+
+    record Context (ActorSystem<?> system, Http http, Materializer materializer, Executor executor, Config config) {}
+
+/**
+  * Creates the booking service of a courier. Implementations must have a public
+  * no-argument constructor.
+  */
+
+    interface Provider
+    {
+
+/**
+  * Returns the identifier of the courier booked by the services of this provider.
+  * <p>
+  * @return the courier identifier
+  */
+
+        String getCourier ();
+
+/**
+  * Creates the booking service of the courier.
+  * <p>
+  * @param context the shared resources available to the service
+  * @return the booking service
+  */
+
+        CourierBookingService create (Context context);
+
+    }
+
+/**
+  * Books delivery for an order allocation. The returned stage fails with a
+  * {@link CourierBookingHandlerException} if the courier rejects the booking or the
+  * booking can't be made.
+  * <p>
+  * @param order the order identifier
+  * @param allocation the allocation details of the entire order or a subset of the order
+  * @param customer the customer details
+  * @return the result of the booking
+  */
+
+    CompletionStage<BookingResult> book (String order, Allocation allocation, Customer customer);
+
+}
@@ -0,0 +1,227 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import akka.http.javadsl.Http;
+import akka.stream.Materializer;
+import akka.stream.SystemMaterializer;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+/**
+  * Books delivery with the couriers, on behalf of the order entities of an actor system.
+  * <p>
+  * Couriers that have a {@link CourierBookingService} (loaded with the
+  * {@link java.util.ServiceLoader} mechanism) are booked by their service, and the other
+  * couriers by their {@link CourierBookingAPI}, looked up at each booking so reloaded
+  * definitions apply. The booking service of a booking API is created once, and only
+  * replaced when its definition is reloaded. All the couriers share the HTTP connection pools of the actor
+  * system, and the booking work runs on a dedicated dispatcher
+  * (order-service.couriers.dispatcher), never on the threads of the entities.
+  */
+
+public final class CourierBookings implements Extension
+{
+
+    private static final Logger logger = LoggerFactory.getLogger (CourierBookings.class);
+
+/**
+  * Identifies the extension.
+  */
+
+    public static final ExtensionId<CourierBookings> ID =
+        new ExtensionId<> ()
+        {
+            @Override
+            public CourierBookings createExtension (ActorSystem<?> system)
+            {
+                return new CourierBookings (system);
+            }
+        };
+
+/**
+  * Holds the shared resources of the booking services.
+  */
+
+    private final CourierBookingService.Context _context;
+
+/**
+  * Holds the maximum time to read a booking response.
+  */
+
+    private final Duration _responseTimeout;
+
+/**
+  * Holds whether allocations that share a parcel are booked together.
+  */
+
+    private final boolean _consolidation;
+
+/**
+  * Holds the booking services loaded from the providers, by courier identifier.
+  */
+
+    private final Map<String,CourierBookingService> _services = new HashMap<> ();
+
+/**
+  * Holds the hedged requests of the couriers booked by their booking APIs, by courier
+  * identifier.
+  */
+
+    private final Map<String,CourierHedging> _hedging = new ConcurrentHashMap<> ();
+
+/**
+  * Holds the load balancers of the endpoints of the couriers booked by their booking APIs,
+  * by courier identifier.
+  */
+
+    private final Map<String,CourierEndpoints> _endpoints = new ConcurrentHashMap<> ();
+
+/**
+  * Holds the booking services of the couriers booked by their booking APIs, by courier
+  * identifier.
+  */
+
+    private final Map<String,CourierBookingHandlerAdapter> _adapters = new ConcurrentHashMap<> ();
+
+    private CourierBookings (ActorSystem<?> system)
+    {
+        Config config = system.settings ().config ().getConfig ("order-service.couriers");
+        Http http = Http.get (system);
+        Materializer materializer = SystemMaterializer.get (system).materializer ();
+        Executor executor =
+            system.dispatchers ().lookup (DispatcherSelector.fromConfig ("order-service.couriers.dispatcher"));
+
+        _context = new CourierBookingService.Context (system, http, materializer, executor, ConfigFactory.empty ());
+        _responseTimeout = config.getDuration ("response-timeout");
+        _consolidation = config.getBoolean ("consolidation");
+
+        for (CourierBookingService.Provider provider : ServiceLoader.load (CourierBookingService.Provider.class)) {
+            String courier = provider.getCourier ();
+            String path = "definitions.\"" + courier + "\"";
+            Config definition = config.hasPath (path) ? config.getConfig (path) : ConfigFactory.empty ();
+            _services.put (courier,
+                           provider.create (new CourierBookingService.Context (system, http, materializer, executor, definition)));
+            logger.info ("Loaded the booking service of courier {}", courier);
+        }
+    }
+
+/**
+  * Returns the courier bookings of the given actor system.
+  * <p>
+  * @param system the actor system
+  * @return the courier bookings of the actor system
+  */
+
+    public static CourierBookings get (ActorSystem<?> system)
+    {
+        return ID.apply (system);
+    }
+
+/**
+  * Returns the parcels of allocations that are packed together, each booked with a single
+  * courier call: the allocations with the same collection address and courier (see
+  * {@link Allocation#consolidate}), or each allocation on its own when consolidation is
+  * disabled.
+  * <p>
+  * @param allocations the allocations
+  * @return the parcels
+  */
+
+    public List<List<Allocation>> parcels (Collection<Allocation> allocations)
+    {
+        if (_consolidation) {
+            return Allocation.consolidate (allocations);
+        }
+
+        return allocations.stream ()
+                          .sorted (Comparator.comparing (Allocation::getID))
+                          .map (List::of)
+                          .collect (Collectors.toList ());
+    }
+
+/**
+  * Books delivery for an order allocation with its courier, or with the default courier
+  * if the courier has neither a booking service nor a booking API.
+  * <p>
+  * @param order the order identifier
+  * @param allocation the allocation details of the entire order or a subset of the order
+  * @param customer the customer details
+  * @return the result of the booking, which fails if the booking fails
+  */
+
+    public CompletionStage<CourierBookingService.BookingResult> book (
+        String order,
+        Allocation allocation,
+        Customer customer)
+    {
+        CourierBookingService service = _services.get (allocation.getCourier ());
+        if (service == null) {
+            service = adapter (CourierBookingAPI.getInstanceOrDefault (allocation.getCourier ()));
+        }
+
+        try {
+            return service.book (order, allocation, customer);
+        }
+        catch (RuntimeException ex) {
+            return CompletableFuture.failedStage (ex);
+        }
+    }
+
+/**
+  * Returns the booking service of the given booking API, which is created on first use,
+  * and again once the booking API was reloaded.
+  */
+
+    private CourierBookingHandlerAdapter adapter (CourierBookingAPI api)
+    {
+        CourierBookingHandlerAdapter adapter = _adapters.get (api.getID ());
+        if (adapter != null && adapter.getAPI () == api) {
+            return adapter;
+        }
+
+        return _adapters.compute (
+            api.getID (),
+            (ident, current) -> current != null && current.getAPI () == api
+                ? current
+                : new CourierBookingHandlerAdapter (api,
+                                                    _context,
+                                                    _responseTimeout,
+                                                    api.getHedging () != null ? hedging (ident) : null,
+                                                    _endpoints.computeIfAbsent (ident, CourierEndpoints::new)));
+    }
+
+/**
+  * Returns the hedged requests of the given courier, and registers their metrics when they
+  * are first used.
+  */
+
+    private CourierHedging hedging (String courier)
+    {
+        return _hedging.computeIfAbsent (courier, ident -> {
+            CourierHedging hedging = new CourierHedging ();
+            Metrics.register ("CourierHedging", ident, hedging.getMetrics ());
+            return hedging;
+        });
+    }
+
+}
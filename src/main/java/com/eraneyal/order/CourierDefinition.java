@@ -0,0 +1,596 @@
+package com.eraneyal.order;
+
+import akka.util.ByteString;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigValueType;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+  * Implements the booking handler of a courier defined in configuration (see
+  * couriers.conf): the request parameters are fields of the allocation and the customer
+  * (or literal values), and the tracking identifier is read from a path of the JSON
+  * response.
+  * <p>
+  * A definition is compiled once into an encoder, which writes the booking URI straight
+  * into a per-thread buffer: the base URIs of the endpoints and the parameter names are
+  * encoded up front, and the field values are percent-encoded in place, without the
+  * intermediate parameter map and strings of {@link CourierBookingHandlerImpl}. The
+  * encoding is the same as {@link java.net.URLEncoder} with UTF-8.
+  */
+
+public final class CourierDefinition extends CourierBookingHandlerImpl
+{
+
+/**
+  * Represents the fields of an allocation and its customer that can be passed as request
+  * parameters.
+  */
+
+    enum Field
+    {
+        ORDER_ID ("order.id"),
+        ALLOCATION_ID ("allocation.id"),
+        BOOKING_ID ("booking.id"),
+        ALLOCATION_NAME ("allocation.name"),
+        ALLOCATION_STREET ("allocation.street"),
+        ALLOCATION_CITY ("allocation.city"),
+        ALLOCATION_COUNTRY ("allocation.country"),
+        ALLOCATION_ZIP_CODE ("allocation.zip-code"),
+        CUSTOMER_FIRST_NAME ("customer.first-name"),
+        CUSTOMER_LAST_NAME ("customer.last-name"),
+        CUSTOMER_STREET ("customer.street"),
+        CUSTOMER_CITY ("customer.city"),
+        CUSTOMER_COUNTRY ("customer.country"),
+        CUSTOMER_ZIP_CODE ("customer.zip-code"),
+        CUSTOMER_EMAIL ("customer.email"),
+        CUSTOMER_MOBILE_PHONE ("customer.mobile-phone");
+
+        private final String _name;
+
+        Field (String name)
+        {
+            _name = name;
+        }
+
+/**
+  * Returns the field of the given name, or null if there's no such field.
+  */
+
+        static Field forName (String name)
+        {
+            for (Field field : values ()) {
+                if (field._name.equals (name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+/**
+  * Returns the value of this field.
+  */
+
+        String value (String order, Allocation allocation, Customer customer)
+        {
+            return switch (this) {
+                case ORDER_ID -> order;
+                case ALLOCATION_ID -> allocation.getID ();
+                case BOOKING_ID -> order + '-' + allocation.getID ();
+                case ALLOCATION_NAME -> allocation.getName ();
+                case ALLOCATION_STREET -> allocation.getAddress ().getStreet ();
+                case ALLOCATION_CITY -> allocation.getAddress ().getCity ();
+                case ALLOCATION_COUNTRY -> allocation.getAddress ().getCountry ();
+                case ALLOCATION_ZIP_CODE -> Integer.toString (allocation.getAddress ().getZipCode ());
+                case CUSTOMER_FIRST_NAME -> customer.getFirstName ();
+                case CUSTOMER_LAST_NAME -> customer.getLastName ();
+                case CUSTOMER_STREET -> customer.getAddress ().getStreet ();
+                case CUSTOMER_CITY -> customer.getAddress ().getCity ();
+                case CUSTOMER_COUNTRY -> customer.getAddress ().getCountry ();
+                case CUSTOMER_ZIP_CODE -> Integer.toString (customer.getAddress ().getZipCode ());
+                case CUSTOMER_EMAIL -> customer.getEMail ();
+                case CUSTOMER_MOBILE_PHONE -> customer.getMobilePhone ();
+            };
+        }
+
+/**
+  * Writes the encoded value of this field to the given buffer. The composite and
+  * numeric fields are written without creating their string values.
+  */
+
+        void write (UriBuffer out, String order, Allocation allocation, Customer customer)
+        {
+            switch (this) {
+                case BOOKING_ID -> {
+                    out.appendEncoded (order);
+                    out.append ((byte) '-');
+                    out.appendEncoded (allocation.getID ());
+                }
+                case ALLOCATION_ZIP_CODE -> out.appendInt (allocation.getAddress ().getZipCode ());
+                case CUSTOMER_ZIP_CODE -> out.appendInt (customer.getAddress ().getZipCode ());
+                default -> out.appendEncoded (value (order, allocation, customer));
+            }
+        }
+    }
+
+/**
+  * Holds the buffers in which booking URIs are encoded, one per thread.
+  */
+
+    private static final ThreadLocal<UriBuffer> BUFFERS = ThreadLocal.withInitial (() -> new UriBuffer (512));
+
+/**
+  * Holds the base URIs of the endpoints of the booking API, and each one encoded with the
+  * separator of the first parameter.
+  */
+
+    private final String[] _baseUris;
+
+    private final byte[][] _encodedBaseUris;
+
+/**
+  * Holds the names of the request parameters, in the order they are written.
+  */
+
+    private final String[] _names;
+
+/**
+  * Holds the encoded text written before each parameter value: the name of the first
+  * parameter, then the separator and the name of each other parameter.
+  */
+
+    private final byte[][] _prefixes;
+
+/**
+  * Holds the field of each parameter, or null for a literal value.
+  */
+
+    private final Field[] _fields;
+
+/**
+  * Holds the literal value of each parameter (null for a field), and its encoding.
+  */
+
+    private final String[] _literals;
+
+    private final byte[][] _encodedLiterals;
+
+/**
+  * Holds the path of the tracking identifier in the JSON response, and its UTF-8
+  * encoded keys.
+  */
+
+    private final String[] _trackingPath;
+
+    private final byte[][] _trackingKeys;
+
+/**
+  * Compiles a courier definition.
+  * <p>
+  * @param baseUri the base URI of the booking API
+  * @param params the request parameters: the values are either a {@link Field} name, or
+  *        a literal value prefixed with '='
+  * @param trackingPath the dot separated path of the tracking identifier in the JSON
+  *        response
+  * @exception IllegalArgumentException if a parameter refers to an unknown field
+  */
+
+    public CourierDefinition (String baseUri, Map<String,String> params, String trackingPath)
+    {
+        this (List.of (baseUri), params, trackingPath);
+    }
+
+/**
+  * Compiles a courier definition of a booking API with several endpoints.
+  * <p>
+  * @param baseUris the base URIs of the endpoints of the booking API
+  * @param params the request parameters: the values are either a {@link Field} name, or
+  *        a literal value prefixed with '='
+  * @param trackingPath the dot separated path of the tracking identifier in the JSON
+  *        response
+  * @exception IllegalArgumentException if a parameter refers to an unknown field
+  */
+
+    public CourierDefinition (List<String> baseUris, Map<String,String> params, String trackingPath)
+    {
+        _baseUris = baseUris.toArray (new String[0]);
+        _encodedBaseUris = new byte[_baseUris.length][];
+        _names = new TreeSet<> (params.keySet ()).toArray (new String[0]);
+        _prefixes = new byte[_names.length][];
+        _fields = new Field[_names.length];
+        _literals = new String[_names.length];
+        _encodedLiterals = new byte[_names.length][];
+        _trackingPath = trackingPath.split ("\\.");
+        _trackingKeys = JsonScanner.encodePath (_trackingPath);
+
+        for (int i = 0; i < _names.length; i++) {
+            String value = params.get (_names[i]);
+            if (value.startsWith ("=")) {
+                _literals[i] = value.substring (1);
+                _encodedLiterals[i] = encode (_literals[i]);
+            } else {
+                _fields[i] = Field.forName (value);
+                if (_fields[i] == null) {
+                    throw new IllegalArgumentException ("Unknown field " + value + " of parameter " + _names[i]);
+                }
+            }
+
+            UriBuffer prefix = new UriBuffer (64);
+            if (i > 0) {
+                prefix.append ((byte) '&');
+            }
+            prefix.append (_names[i].getBytes (StandardCharsets.UTF_8));
+            prefix.append ((byte) '=');
+            _prefixes[i] = prefix.toBytes ();
+        }
+
+        for (int i = 0; i < _baseUris.length; i++) {
+            UriBuffer base = new UriBuffer (64);
+            base.append (_baseUris[i].getBytes (StandardCharsets.UTF_8));
+            base.append ((byte) (_baseUris[i].indexOf ('?') < 0 ? '?' : '&'));
+            _encodedBaseUris[i] = base.toBytes ();
+        }
+    }
+
+/**
+  * Compiles a courier definition from configuration (see couriers.conf).
+  * <p>
+  * @param definition the configuration of the definition
+  * @return the compiled definition
+  * @exception ConfigException if the definition is missing a setting or refers to an
+  *            unknown field
+  */
+
+    public static CourierDefinition fromConfig (Config definition)
+    {
+        Map<String,String> params = new LinkedHashMap<> ();
+        Config paramsConfig = definition.getConfig ("params");
+
+        for (String name : paramsConfig.root ().keySet ()) {
+            String path = "\"" + name + "\"";
+            if (paramsConfig.getValue (path).valueType () == ConfigValueType.OBJECT) {
+                params.put (name, "=" + paramsConfig.getConfig (path).getString ("value"));
+            } else {
+                params.put (name, paramsConfig.getString (path));
+            }
+        }
+
+        try {
+            return new CourierDefinition (baseUris (definition),
+                                          params,
+                                          definition.getString ("tracking-id"));
+        }
+        catch (IllegalArgumentException argEx) {
+            throw new ConfigException.BadValue (definition.origin (), "params", argEx.getMessage ());
+        }
+    }
+
+/**
+  * Returns the base URIs of the endpoints of a definition: its endpoints, or its single
+  * base-uri.
+  * <p>
+  * @param definition the configuration of the definition
+  * @return the base URIs of the endpoints
+  * @exception ConfigException if the definition has neither endpoints nor a base URI
+  */
+
+    static List<String> baseUris (Config definition)
+    {
+        if (!definition.hasPath ("endpoints")) {
+            return List.of (definition.getString ("base-uri"));
+        }
+
+        List<String> endpoints = definition.getStringList ("endpoints");
+        if (endpoints.isEmpty ()) {
+            throw new ConfigException.BadValue (definition.origin (), "endpoints", "no endpoints");
+        }
+        return endpoints;
+    }
+
+/**
+  * Returns the passed order details an HTTP requests parameters.
+  * <p>
+  * @param order the order identifier
+  * @param allocation the allocation details of the entire order or a subset of the order
+  * @param customer the customer details
+  * @return the passed order details an HTTP requests parameters
+  * @exception CourierBookingHandlerException in case of failure to construct the HTTP
+  * 		   request parameters
+  */
+
+    @Override
+    public Map<String,String> getHTTPRequestParams (
+        String order,
+        Allocation allocation,
+        Customer customer)
+        throws CourierBookingHandlerException
+    {
+        validate (order, allocation, customer);
+
+        Map<String,String> params = new LinkedHashMap<> ();
+        for (int i = 0; i < _names.length; i++) {
+            params.put (_names[i],
+                        _fields[i] != null ? _fields[i].value (order, allocation, customer) : _literals[i]);
+        }
+
+        return params;
+    }
+
+/**
+  * Returns the complete URI for the HTTP GET request of the passed order details,
+  * encoded by the compiled encoder of this definition.
+  * <p>
+  * @param baseAddr the base address of the courier API call
+  * @param order the order identifier
+  * @param allocation the allocation details of the entire order or a subset of the order
+  * @param customer the customer details
+  * @return the complete URI for the HTTP GET request
+  * @exception CourierBookingHandlerException in case of failure to construct the URI
+  */
+
+    @Override
+    public String getBookingURI (String baseAddr, String order, Allocation allocation, Customer customer)
+        throws CourierBookingHandlerException
+    {
+        int base = indexOf (baseAddr);
+        if (base < 0 || _names.length == 0) {
+            return super.getBookingURI (baseAddr, order, allocation, customer);
+        }
+        validate (order, allocation, customer);
+
+        UriBuffer out = BUFFERS.get ();
+        out.reset ();
+        out.append (_encodedBaseUris[base]);
+        for (int i = 0; i < _names.length; i++) {
+            out.append (_prefixes[i]);
+            if (_fields[i] != null) {
+                _fields[i].write (out, order, allocation, customer);
+            } else {
+                out.append (_encodedLiterals[i]);
+            }
+        }
+
+        return out.toString ();
+    }
+
+/**
+  * Returns the index of the given base URI among the endpoints, or -1 if it isn't one.
+  */
+
+    private int indexOf (String baseAddr)
+    {
+        for (int i = 0; i < _baseUris.length; i++) {
+            if (_baseUris[i] == baseAddr || _baseUris[i].equals (baseAddr)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+/**
+  * Returns the tracking identifier returned from the third-party courier API.
+  * <p>
+  * @param response the HTTP response
+  * @return the tracking identifier returned from the third-party courier API
+  * @exception CourierBookingHandlerException in case of any failures to parse the response
+  */
+
+    @Override
+    public String getTrackingID (String response)
+        throws CourierBookingHandlerException
+    {
+        if (response == null) {
+            throw new CourierBookingHandlerException ("Missing response");
+        }
+
+        Object value;
+        try {
+            value = new JSONParser ().parse (response);
+        }
+        catch (ParseException parseEx) {
+            throw new CourierBookingHandlerException ("Failed to parse response JSON", parseEx);
+        }
+        for (int i = 0; i < _trackingPath.length && value != null; i++) {
+            value = value instanceof JSONObject json ? json.get (_trackingPath[i]) : null;
+        }
+
+        String ident = value != null ? value.toString () : null;
+        if (ident == null || ident.isEmpty ()) {
+            throw new CourierBookingHandlerException ("Missing tracking identifier");
+        }
+
+        return ident;
+    }
+
+/**
+  * Returns the tracking identifier returned from the third-party courier API, given the
+  * bytes of the response. The tracking identifier is scanned for in place (see
+  * {@link JsonScanner}), and the response is only decoded and parsed as a whole if it
+  * can't be scanned.
+  * <p>
+  * @param response the HTTP response body
+  * @return the tracking identifier returned from the third-party courier API
+  * @exception CourierBookingHandlerException in case of any failures to parse the response
+  */
+
+    @Override
+    public String getTrackingID (ByteString response)
+        throws CourierBookingHandlerException
+    {
+        if (response == null) {
+            throw new CourierBookingHandlerException ("Missing response");
+        }
+
+        String ident;
+        try {
+            ident = JsonScanner.find (response, _trackingKeys);
+        }
+        catch (JsonScanner.UnsupportedDocumentException unsupportedEx) {
+            return getTrackingID (response.utf8String ());
+        }
+        if (ident == null || ident.isEmpty ()) {
+            throw new CourierBookingHandlerException ("Missing tracking identifier");
+        }
+
+        return ident;
+    }
+
+    private static void validate (String order, Allocation allocation, Customer customer)
+        throws CourierBookingHandlerException
+    {
+        if (order == null) {
+            throw new CourierBookingHandlerException ("Missing order identifier");
+        }
+        if (allocation == null) {
+            throw new CourierBookingHandlerException ("Missing order allocation");
+        }
+        if (customer == null) {
+            throw new CourierBookingHandlerException ("Missing order customer");
+        }
+    }
+
+    private static byte[] encode (String value)
+    {
+        UriBuffer out = new UriBuffer (value.length () * 3);
+        out.appendEncoded (value);
+        return out.toBytes ();
+    }
+
+/**
+  * Implements a growable buffer of the ASCII bytes of a URI.
+  */
+
+    static final class UriBuffer
+    {
+
+        private static final byte[] HEX = "0123456789ABCDEF".getBytes (StandardCharsets.US_ASCII);
+
+        private byte[] _bytes;
+
+        private int _length;
+
+        UriBuffer (int capacity)
+        {
+            _bytes = new byte[Math.max (capacity, 16)];
+        }
+
+        void reset ()
+        {
+            _length = 0;
+        }
+
+        void append (byte b)
+        {
+            ensure (1);
+            _bytes[_length++] = b;
+        }
+
+        void append (byte[] bytes)
+        {
+            ensure (bytes.length);
+            System.arraycopy (bytes, 0, _bytes, _length, bytes.length);
+            _length += bytes.length;
+        }
+
+        void appendInt (int value)
+        {
+            long remaining = value;
+            if (remaining < 0) {
+                append ((byte) '-');
+                remaining = -remaining;
+            }
+            ensure (10);
+            int start = _length;
+            do {
+                _bytes[_length++] = (byte) ('0' + remaining % 10);
+                remaining /= 10;
+            } while (remaining > 0);
+            for (int i = start, j = _length - 1; i < j; i++, j--) {
+                byte b = _bytes[i];
+                _bytes[i] = _bytes[j];
+                _bytes[j] = b;
+            }
+        }
+
+/**
+  * Appends the given value in the application/x-www-form-urlencoded format. Null values
+  * are written as empty values.
+  */
+
+        void appendEncoded (String value)
+        {
+            if (value == null) {
+                return;
+            }
+
+            for (int i = 0; i < value.length (); i++) {
+                char c = value.charAt (i);
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                    append ((byte) c);
+                } else if (c == ' ') {
+                    append ((byte) '+');
+                } else if (c < 0x80) {
+                    appendEscaped (c);
+                } else if (c < 0x800) {
+                    appendEscaped (0xc0 | (c >> 6));
+                    appendEscaped (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate (c)
+                           && i + 1 < value.length ()
+                           && Character.isLowSurrogate (value.charAt (i + 1))) {
+                    int codePoint = Character.toCodePoint (c, value.charAt (++i));
+                    appendEscaped (0xf0 | (codePoint >> 18));
+                    appendEscaped (0x80 | ((codePoint >> 12) & 0x3f));
+                    appendEscaped (0x80 | ((codePoint >> 6) & 0x3f));
+                    appendEscaped (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate (c)) {
+// -- an unpaired surrogate is replaced with '?', as the UTF-8 encoder does
+                    appendEscaped ('?');
+                } else {
+                    appendEscaped (0xe0 | (c >> 12));
+                    appendEscaped (0x80 | ((c >> 6) & 0x3f));
+                    appendEscaped (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void appendEscaped (int b)
+        {
+            ensure (3);
+            _bytes[_length++] = '%';
+            _bytes[_length++] = HEX[(b >> 4) & 0xf];
+            _bytes[_length++] = HEX[b & 0xf];
+        }
+
+        private void ensure (int count)
+        {
+            if (_length + count > _bytes.length) {
+                _bytes = Arrays.copyOf (_bytes, Math.max (_bytes.length * 2, _length + count));
+            }
+        }
+
+        byte[] toBytes ()
+        {
+            return Arrays.copyOf (_bytes, _length);
+        }
+
+        @Override
+        public String toString ()
+        {
+            return new String (_bytes, 0, _length, StandardCharsets.ISO_8859_1);
+        }
+
+    }
+
+}
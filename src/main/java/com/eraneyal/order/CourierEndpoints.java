@@ -0,0 +1,483 @@
+package com.eraneyal.order;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+  * Balances the booking requests of a courier across the endpoints of its booking API.
+  * <p>
+  * Each request picks two endpoints at random and takes the one with the lower load (the
+  * power of two choices), where the load of an endpoint is its peak-EWMA response time
+  * multiplied by its requests in flight. The peak-EWMA jumps to a response time above it
+  * and decays towards the response times below it, so a slow endpoint is avoided at once
+  * and retried gradually as it recovers.
+  * <p>
+  * An endpoint that fails several consecutive requests (with a transport failure or a 5xx
+  * status) is ejected for a time that grows with its recent ejections, but no more than
+  * a share of the endpoints is ejected at once. When all the candidate endpoints are
+  * ejected the requests go to all the endpoints, since a failing request beats no request.
+  */
+
+public final class CourierEndpoints
+{
+
+/**
+  * Represents the metrics of an endpoint.
+  */
+
+    public interface CourierEndpointMXBean
+    {
+
+/**
+  * Returns the base URI of the endpoint.
+  */
+
+        String getURI ();
+
+/**
+  * Returns the number of requests sent to the endpoint.
+  */
+
+        long getRequests ();
+
+/**
+  * Returns the number of requests that failed with a transport failure or a 5xx status.
+  */
+
+        long getFailures ();
+
+/**
+  * Returns the current number of requests awaiting a response.
+  */
+
+        int getInFlight ();
+
+/**
+  * Returns the peak-EWMA response time that the endpoint is selected by, in milliseconds.
+  */
+
+        double getLatencyMillis ();
+
+/**
+  * Returns true if the endpoint is currently ejected.
+  */
+
+        boolean isEjected ();
+
+/**
+  * Returns the number of times the endpoint was ejected.
+  */
+
+        long getEjections ();
+
+    }
+
+/**
+  * Represents the load balancing settings of a courier.
+  * <p>
+  * @param decayTime the time over which the peak-EWMA response time decays
+  * @param consecutiveFailures the consecutive failures that eject an endpoint
+  * @param baseEjectionTime the ejection time of an endpoint, multiplied by its recent
+  *        ejections
+  * @param maxEjectionTime the maximum ejection time of an endpoint, after which its
+  *        ejections are also forgotten
+  * @param maxEjectionPercent the maximum percentage of the endpoints that can be ejected
+  *        at once
+  */
+
+    public record Policy (
+        Duration decayTime,
+        int consecutiveFailures,
+        Duration baseEjectionTime,
+        Duration maxEjectionTime,
+        int maxEjectionPercent)
+    {
+
+/**
+  * Returns the policy of the given load balancing settings.
+  * <p>
+  * @param config the load balancing settings
+  * @return the policy
+  */
+
+        public static Policy fromConfig (Config config)
+        {
+            return new Policy (config.getDuration ("decay-time"),
+                               config.getInt ("consecutive-failures"),
+                               config.getDuration ("base-ejection-time"),
+                               config.getDuration ("max-ejection-time"),
+                               config.getInt ("max-ejection-percent"));
+        }
+
+    }
+
+/**
+  * Holds the load of an endpoint that has requests in flight but no response time yet,
+  * so new endpoints are tried with a single request before receiving more.
+  */
+
+    private static final double PENALTY = 1e12;
+
+/**
+  * Represents an endpoint of the booking API.
+  */
+
+    public final class Endpoint
+    {
+
+        private final String _uri;
+
+        private final AtomicInteger _inFlight = new AtomicInteger ();
+
+        private final LongAdder _requests = new LongAdder ();
+
+        private final LongAdder _failures = new LongAdder ();
+
+/**
+  * Holds the peak-EWMA response time in nanoseconds and the time it was last updated.
+  * Guarded by this.
+  */
+
+        private double _latency;
+
+        private long _stamp = System.nanoTime ();
+
+/**
+  * Holds the consecutive failures, the recent ejections, and the end of the current or
+  * last ejection. Guarded by this.
+  */
+
+        private int _consecutiveFailures;
+
+        private int _ejections;
+
+        private volatile long _ejectedUntil = System.nanoTime ();
+
+        private volatile boolean _ejected;
+
+        private final LongAdder _totalEjections = new LongAdder ();
+
+        private Endpoint (String uri)
+        {
+            _uri = uri;
+        }
+
+/**
+  * Returns the base URI of the endpoint.
+  * <p>
+  * @return the base URI of the endpoint
+  */
+
+        public String getURI ()
+        {
+            return _uri;
+        }
+
+/**
+  * Starts a request to the endpoint.
+  * <p>
+  * @return the start time of the request, to pass to {@link #complete}
+  */
+
+        public long start ()
+        {
+            _inFlight.incrementAndGet ();
+            _requests.increment ();
+            return System.nanoTime ();
+        }
+
+/**
+  * Completes a request to the endpoint.
+  * <p>
+  * @param start the start time of the request
+  * @param success whether the endpoint handled the request, even if it declined the
+  *        booking
+  */
+
+        public void complete (long start, boolean success)
+        {
+            long now = System.nanoTime ();
+
+            _inFlight.decrementAndGet ();
+            if (!success) {
+                _failures.increment ();
+            }
+            synchronized (this) {
+                observe (now, now - start, success);
+                if (success) {
+                    _consecutiveFailures = 0;
+                } else if (++_consecutiveFailures >= _policy.consecutiveFailures ()
+                           && now - _ejectedUntil >= 0
+                           && canEject ()) {
+                    eject (now);
+                }
+            }
+        }
+
+/**
+  * Updates the peak-EWMA response time with a response time. Failures only raise it, so
+  * an endpoint that fails fast doesn't attract the requests until it is ejected.
+  */
+
+        private void observe (long now, long rtt, boolean success)
+        {
+            double w = Math.exp (-(double) (now - _stamp) / _policy.decayTime ().toNanos ());
+// -- decay the peak before comparing it, so an old peak doesn't hide a slower response
+            double latency = _latency * w;
+            if (rtt > latency) {
+                _latency = rtt;
+            } else if (success) {
+                _latency = latency + rtt * (1 - w);
+            } else {
+                _latency = latency;
+            }
+            _stamp = now;
+        }
+
+        private double decayed (long now)
+        {
+            return _latency * Math.exp (-(double) (now - _stamp) / _policy.decayTime ().toNanos ());
+        }
+
+        private void eject (long now)
+        {
+// -- an endpoint that stayed healthy for the maximum ejection time starts over
+            if (now - _ejectedUntil > _policy.maxEjectionTime ().toNanos ()) {
+                _ejections = 0;
+            }
+            _ejections++;
+            _consecutiveFailures = 0;
+            _ejectedUntil = now + Math.min (_policy.baseEjectionTime ().toNanos () * _ejections,
+                                            _policy.maxEjectionTime ().toNanos ());
+            _ejected = true;
+            _totalEjections.increment ();
+        }
+
+/**
+  * Returns whether the endpoint is ejected, and returns it to service when its ejection
+  * is over.
+  */
+
+        private boolean ejected (long now)
+        {
+            if (!_ejected) {
+                return false;
+            }
+            synchronized (this) {
+                if (_ejected && now - _ejectedUntil >= 0) {
+                    _ejected = false;
+                }
+                return _ejected;
+            }
+        }
+
+        private double load (long now)
+        {
+            int inFlight = _inFlight.get ();
+            double latency;
+            synchronized (this) {
+                latency = decayed (now);
+            }
+            if (latency == 0 && inFlight > 0) {
+                return PENALTY + inFlight;
+            }
+            return latency * (inFlight + 1);
+        }
+
+/**
+  * Returns the metrics of the endpoint.
+  * <p>
+  * @return the metrics of the endpoint
+  */
+
+        public CourierEndpointMXBean getMetrics ()
+        {
+            return new CourierEndpointMXBean () {
+                @Override
+                public String getURI ()
+                {
+                    return _uri;
+                }
+
+                @Override
+                public long getRequests ()
+                {
+                    return _requests.sum ();
+                }
+
+                @Override
+                public long getFailures ()
+                {
+                    return _failures.sum ();
+                }
+
+                @Override
+                public int getInFlight ()
+                {
+                    return _inFlight.get ();
+                }
+
+                @Override
+                public double getLatencyMillis ()
+                {
+                    synchronized (Endpoint.this) {
+                        return decayed (System.nanoTime ()) / 1_000_000;
+                    }
+                }
+
+                @Override
+                public boolean isEjected ()
+                {
+                    return ejected (System.nanoTime ());
+                }
+
+                @Override
+                public long getEjections ()
+                {
+                    return _totalEjections.sum ();
+                }
+            };
+        }
+
+    }
+
+    private final String _courier;
+
+/**
+  * Holds the current policy, and the endpoints of the current base URIs. Both are replaced
+  * when the booking API is reloaded with other settings.
+  */
+
+    private volatile Policy _policy;
+
+    private volatile List<String> _uris = List.of ();
+
+    private volatile Endpoint[] _endpoints = new Endpoint[0];
+
+/**
+  * Creates the load balancer of the given courier.
+  * <p>
+  * @param courier the courier identifier, which names the metrics of its endpoints
+  */
+
+    public CourierEndpoints (String courier)
+    {
+        _courier = courier;
+    }
+
+/**
+  * Chooses the endpoint of a request.
+  * <p>
+  * @param uris the base URIs of the booking API, in the order of the definition
+  * @param policy the load balancing policy
+  * @return the chosen endpoint
+  */
+
+    public Endpoint choose (List<String> uris, Policy policy)
+    {
+        _policy = policy;
+        Endpoint[] endpoints = _endpoints;
+        if (!uris.equals (_uris)) {
+            endpoints = update (uris);
+        }
+        if (endpoints.length == 1) {
+            return endpoints[0];
+        }
+
+        long now = System.nanoTime ();
+        ThreadLocalRandom random = ThreadLocalRandom.current ();
+        Endpoint[] candidates = new Endpoint[endpoints.length];
+        int count = 0;
+
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.ejected (now)) {
+                candidates[count++] = endpoint;
+            }
+        }
+        if (count == 0) {
+            candidates = endpoints;
+            count = endpoints.length;
+        } else if (count == 1) {
+            return candidates[0];
+        }
+
+        int first = random.nextInt (count);
+        int second = random.nextInt (count - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        return candidates[first].load (now) <= candidates[second].load (now) ? candidates[first] : candidates[second];
+    }
+
+/**
+  * Replaces the endpoints with the given base URIs, keeping the state of the endpoints
+  * whose base URIs remain, and registers their metrics.
+  */
+
+    private synchronized Endpoint[] update (List<String> uris)
+    {
+        if (uris.equals (_uris)) {
+            return _endpoints;
+        }
+
+        Map<String,Endpoint> current = new HashMap<> ();
+        for (Endpoint endpoint : _endpoints) {
+            current.put (endpoint._uri, endpoint);
+        }
+
+        Endpoint[] endpoints = new Endpoint[uris.size ()];
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = current.get (uris.get (i));
+            endpoints[i] = endpoint != null ? endpoint : new Endpoint (uris.get (i));
+            Metrics.register ("CourierEndpoint", _courier + "-" + i, endpoints[i].getMetrics ());
+        }
+        for (int i = endpoints.length; i < _endpoints.length; i++) {
+            Metrics.unregister ("CourierEndpoint", _courier + "-" + i);
+        }
+
+        _endpoints = endpoints;
+        _uris = List.copyOf (uris);
+
+        return endpoints;
+    }
+
+/**
+  * Returns whether another endpoint can be ejected within the maximum ejection
+  * percentage.
+  */
+
+    private boolean canEject ()
+    {
+        long now = System.nanoTime ();
+        Endpoint[] endpoints = _endpoints;
+        int ejected = 1;
+
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint._ejected && now - endpoint._ejectedUntil < 0) {
+                ejected++;
+            }
+        }
+
+        return ejected * 100 <= _policy.maxEjectionPercent () * endpoints.length;
+    }
+
+/**
+  * Returns the endpoints of the current base URIs.
+  * <p>
+  * @return the endpoints
+  */
+
+    public List<Endpoint> getEndpoints ()
+    {
+        return List.of (_endpoints);
+    }
+
+}
@@ -0,0 +1,344 @@
+package com.eraneyal.order;
+
+import akka.actor.Cancellable;
+import akka.actor.typed.Scheduler;
+import akka.http.javadsl.model.HttpResponse;
+import akka.stream.Materializer;
+
+import com.typesafe.config.Config;
+
+import scala.concurrent.ExecutionContext;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+  * Implements hedged booking requests for a courier: when a request hasn't been answered
+  * after a delay, an identical request is sent, the first successful response wins, and
+  * the other response is discarded when it arrives (which releases its pooled
+  * connection). The losing request isn't aborted, since the HTTP client has no way to
+  * abort a request in flight, so it runs to completion at the courier. An error response
+  * (e.g. 503 or 429) doesn't win while the other request is in flight. Hedging
+  * cuts the latency tail of couriers whose slow responses are sporadic, at the cost of a
+  * few extra requests, so it must only be enabled for couriers that deduplicate bookings
+  * by their idempotency key (the booking.id parameter).
+  * <p>
+  * The delay adapts to the courier: it is the configured quantile (e.g. p95) of the
+  * response times observed in the previous window, bounded by a minimum and a maximum,
+  * so roughly that share of the requests is hedged. Hedges are also limited to a budget
+  * per window, so a slow courier doesn't receive twice the load.
+  */
+
+public final class CourierHedging
+{
+
+/**
+  * Represents the metrics of the hedged requests of a courier.
+  */
+
+    public interface CourierHedgingMXBean
+    {
+
+/**
+  * Returns the number of booking requests, not counting their hedges.
+  */
+
+        long getRequests ();
+
+/**
+  * Returns the number of hedges sent, i.e. the requests that weren't answered within the
+  * hedging delay, while the budget of their window allowed it.
+  */
+
+        long getHedges ();
+
+/**
+  * Returns the number of hedges that were answered before the requests they hedged.
+  */
+
+        long getHedgeWins ();
+
+/**
+  * Returns the share of the requests that were hedged.
+  */
+
+        double getHedgeRate ();
+
+/**
+  * Returns the share of the hedges that were answered first.
+  */
+
+        double getWinRate ();
+
+/**
+  * Returns the current hedging delay, in milliseconds, or -1 until a window had enough
+  * response times to compute it.
+  */
+
+        long getDelayMillis ();
+
+    }
+
+/**
+  * Represents the hedging settings of a courier.
+  * <p>
+  * @param quantile the quantile of the response times used as the hedging delay
+  * @param initialDelay the delay until enough response times were observed
+  * @param minDelay the minimum delay
+  * @param maxDelay the maximum delay
+  * @param window the period over which response times are observed
+  * @param minSamples the minimum number of response times of a window for its quantile
+  *        to be used
+  * @param budget the maximum ratio of hedges to requests in a window
+  */
+
+    public record Policy (
+        double quantile,
+        Duration initialDelay,
+        Duration minDelay,
+        Duration maxDelay,
+        Duration window,
+        int minSamples,
+        double budget)
+    {
+
+/**
+  * Returns the policy of the given hedging settings, or null if hedging is disabled.
+  * <p>
+  * @param config the hedging settings
+  * @return the policy, or null if hedging is disabled
+  */
+
+        public static Policy fromConfig (Config config)
+        {
+            if (!config.getBoolean ("enabled")) {
+                return null;
+            }
+            return new Policy (config.getDouble ("quantile"),
+                               config.getDuration ("initial-delay"),
+                               config.getDuration ("min-delay"),
+                               config.getDuration ("max-delay"),
+                               config.getDuration ("window"),
+                               config.getInt ("min-samples"),
+                               config.getDouble ("budget"));
+        }
+
+    }
+
+/**
+  * Holds the relative accuracy of the response time sketches.
+  */
+
+    private static final double ACCURACY = 0.02;
+
+    private final LongAdder _requests = new LongAdder ();
+
+    private final LongAdder _hedges = new LongAdder ();
+
+    private final LongAdder _hedgeWins = new LongAdder ();
+
+/**
+  * Holds the response times of the current window, in milliseconds, and the start of the
+  * window. Guarded by this.
+  */
+
+    private QuantileSketch _window = new QuantileSketch (ACCURACY);
+
+    private long _windowStart = System.nanoTime ();
+
+/**
+  * Holds the number of requests and hedges of the current window. Guarded by this.
+  */
+
+    private int _windowRequests;
+
+    private int _windowHedges;
+
+/**
+  * Holds the current hedging delay in milliseconds, or -1 until a window had enough
+  * samples.
+  */
+
+    private volatile long _delayMillis = -1;
+
+/**
+  * Sends a request, and a hedge request if the request isn't answered within the current
+  * hedging delay.
+  * <p>
+  * @param request sends the request, each time it is called
+  * @param policy the hedging policy
+  * @param scheduler the scheduler of the hedge requests
+  * @param executor the executor of the scheduled hedge requests
+  * @param materializer the materializer used to discard the losing response
+  * @return the first successful (2xx) response, or the outcome of the last request if
+  *         all the requests failed
+  */
+
+    public CompletionStage<HttpResponse> send (
+        Supplier<CompletionStage<HttpResponse>> request,
+        Policy policy,
+        Scheduler scheduler,
+        ExecutionContext executor,
+        Materializer materializer)
+    {
+        CompletableFuture<HttpResponse> result = new CompletableFuture<> ();
+// -- the number of requests in flight. the hedge is only sent while the first request
+// -- is in flight alone
+        AtomicInteger pending = new AtomicInteger (1);
+
+        _requests.increment ();
+        synchronized (this) {
+            _windowRequests++;
+        }
+        attempt (request, policy, result, pending, false, materializer);
+
+        Cancellable timer = scheduler.scheduleOnce (
+            delay (policy),
+            () -> {
+                if (!result.isDone () && withinBudget (policy) && pending.compareAndSet (1, 2)) {
+                    _hedges.increment ();
+                    attempt (request, policy, result, pending, true, materializer);
+                }
+            },
+            executor);
+        result.whenComplete ((response, ex) -> timer.cancel ());
+
+        return result;
+    }
+
+    private void attempt (
+        Supplier<CompletionStage<HttpResponse>> request,
+        Policy policy,
+        CompletableFuture<HttpResponse> result,
+        AtomicInteger pending,
+        boolean hedge,
+        Materializer materializer)
+    {
+        long start = System.nanoTime ();
+
+        request.get ().whenComplete ((response, ex) -> {
+            int remaining = pending.decrementAndGet ();
+            if (ex == null && response.status ().isSuccess ()) {
+                record (policy, Duration.ofNanos (System.nanoTime () - start).toMillis ());
+                if (result.complete (response)) {
+                    if (hedge) {
+                        _hedgeWins.increment ();
+                    }
+                } else {
+// -- the other request won
+                    response.discardEntityBytes (materializer);
+                }
+            } else if (remaining == 0) {
+// -- the last request failed too. an error response is the result, so the caller reports
+// -- its status
+                if (ex != null) {
+                    result.completeExceptionally (ex);
+                } else if (!result.complete (response)) {
+                    response.discardEntityBytes (materializer);
+                }
+            } else if (ex == null) {
+// -- an error response (e.g. 503 or 429) doesn't beat the other request, which may still
+// -- succeed
+                response.discardEntityBytes (materializer);
+            }
+        });
+    }
+
+/**
+  * Returns whether a hedge request can be sent within the budget of the current window,
+  * and counts it against the budget if it can.
+  */
+
+    private synchronized boolean withinBudget (Policy policy)
+    {
+        if (_windowHedges + 1 > policy.budget () * _windowRequests) {
+            return false;
+        }
+        _windowHedges++;
+        return true;
+    }
+
+/**
+  * Records a response time, and starts a new window when the current window is over.
+  */
+
+    private synchronized void record (Policy policy, long millis)
+    {
+        _window.add (millis);
+
+        long now = System.nanoTime ();
+        if (now - _windowStart >= policy.window ().toNanos ()) {
+            if (_window.count () >= policy.minSamples ()) {
+                _delayMillis = _window.quantile (policy.quantile ());
+            }
+            _window = new QuantileSketch (ACCURACY);
+            _windowStart = now;
+            _windowRequests = 0;
+            _windowHedges = 0;
+        }
+    }
+
+    private Duration delay (Policy policy)
+    {
+        long millis = _delayMillis;
+        if (millis < 0) {
+            return policy.initialDelay ();
+        }
+        return Duration.ofMillis (Math.min (Math.max (millis, policy.minDelay ().toMillis ()),
+                                            policy.maxDelay ().toMillis ()));
+    }
+
+/**
+  * Returns the metrics of the hedged requests.
+  * <p>
+  * @return the metrics of the hedged requests
+  */
+
+    public CourierHedgingMXBean getMetrics ()
+    {
+        return new CourierHedgingMXBean () {
+            @Override
+            public long getRequests ()
+            {
+                return _requests.sum ();
+            }
+
+            @Override
+            public long getHedges ()
+            {
+                return _hedges.sum ();
+            }
+
+            @Override
+            public long getHedgeWins ()
+            {
+                return _hedgeWins.sum ();
+            }
+
+            @Override
+            public double getHedgeRate ()
+            {
+                long requests = _requests.sum ();
+                return requests > 0 ? (double) _hedges.sum () / requests : 0;
+            }
+
+            @Override
+            public double getWinRate ()
+            {
+                long hedges = _hedges.sum ();
+                return hedges > 0 ? (double) _hedgeWins.sum () / hedges : 0;
+            }
+
+            @Override
+            public long getDelayMillis ()
+            {
+                return _delayMillis;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,346 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.DailyDeliveryStats;
+import com.eraneyal.order.proto.DeliveryStatsResponse;
+import com.eraneyal.order.proto.StageStats;
+
+import akka.actor.typed.ActorSystem;
+import akka.persistence.r2dbc.session.javadsl.R2dbcSession;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+
+/**
+  * Implements the delivery performance statistics of couriers and sites, which are kept up
+  * to date from the Order events by {@link DeliveryStatsProjection}.
+  * <p>
+  * The statistics are the durations of the delivery stages of the allocations, as
+  * {@link QuantileSketch quantile sketches} per courier or site, per stage and per day (in
+  * UTC, the day the stage was completed). Since sketches are mergeable, the statistics of
+  * several days are answered by merging the daily sketches, and the journal is never read.
+  */
+
+public final class DeliveryStats
+{
+
+/**
+  * Represents the delivery stages.
+  */
+
+    public enum Stage {
+        PACKING,                // from allocation to packing
+        DELIVERY,               // from packing to delivery
+        FULFILMENT              // from allocation to delivery
+    }
+
+/**
+  * Represents the dimensions of the statistics.
+  */
+
+    public enum Dimension {
+        COURIER,
+        SITE
+    }
+
+/**
+  * Represents the key of a sketch.
+  * <p>
+  * @param dimension the dimension
+  * @param name the courier or site name
+  * @param day the day the stage was completed
+  * @param stage the stage
+  */
+
+    record Key (Dimension dimension, String name, LocalDate day, Stage stage) {}
+
+/**
+  * Orders the keys, so sketches are always locked in the same order.
+  */
+
+    static final Comparator<Key> KEY_ORDER =
+        Comparator.comparing (Key::dimension)
+                  .thenComparing (Key::name)
+                  .thenComparing (Key::day)
+                  .thenComparing (Key::stage);
+
+/**
+  * Represents the progress of an allocation through the stages.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param courier the courier
+  * @param site the site name
+  * @param allocatedAt the allocation time
+  * @param packedAt the packing time, or null
+  */
+
+    record Progress (
+        String orderID,
+        String allocationID,
+        String courier,
+        String site,
+        Instant allocatedAt,
+        Instant packedAt) {}
+
+/**
+  * Holds the maximum number of days of a query.
+  */
+
+    static final int MAX_DAYS = 366;
+
+/**
+  * Holds the statement that selects the sketches of a courier or a site.
+  */
+
+    private static final String SELECT_SQL =
+        "SELECT day, stage, sketch FROM delivery_stats WHERE dimension = $1 AND name = $2 " +
+        "AND day BETWEEN $3 AND $4 ORDER BY day";
+
+/**
+  * Holds the actor system.
+  */
+
+    private final ActorSystem<?> _system;
+
+/**
+  * Creates a new instance.
+  * <p>
+  * @param system the actor system
+  */
+
+    public DeliveryStats (ActorSystem<?> system)
+    {
+        _system = system;
+    }
+
+/**
+  * Returns the statistics of a courier or a site.
+  * <p>
+  * @param dimension the dimension
+  * @param name the courier or site name
+  * @param from the first day
+  * @param to the last day
+  * @return the statistics of each day, and of all the days
+  * @throws IllegalArgumentException if the days are out of order or span too many days
+  */
+
+    public CompletionStage<DeliveryStatsResponse> fetch (
+        Dimension dimension,
+        String name,
+        LocalDate from,
+        LocalDate to)
+    {
+        if (from.isAfter (to) || from.plusDays (MAX_DAYS).isBefore (to)) {
+            throw new IllegalArgumentException ("The days must be in order, and span at most " + MAX_DAYS + " days");
+        }
+
+        return R2dbcSession.withSession (
+                _system,
+                session -> session.select (
+                    session.createStatement (SELECT_SQL)
+                           .bind (0, dimension.name ())
+                           .bind (1, name)
+                           .bind (2, from)
+                           .bind (3, to),
+                    row -> Map.entry (new Key (dimension,
+                                               name,
+                                               row.get ("day", LocalDate.class),
+                                               Stage.valueOf (row.get ("stage", String.class))),
+                                      QuantileSketch.fromBytes (row.get ("sketch", byte[].class)))))
+            .thenApply (DeliveryStats::toResponse);
+    }
+
+/**
+  * Converts the sketches of a query to the response.
+  * <p>
+  * @param sketches the sketches, ordered by day
+  * @return the response
+  */
+
+    static DeliveryStatsResponse toResponse (List<Map.Entry<Key,QuantileSketch>> sketches)
+    {
+        TreeMap<LocalDate,Map<Stage,QuantileSketch>> days = new TreeMap<> ();
+        Map<Stage,QuantileSketch> total = new EnumMap<> (Stage.class);
+
+        for (Map.Entry<Key,QuantileSketch> entry : sketches) {
+            days.computeIfAbsent (entry.getKey ().day (), day -> new EnumMap<> (Stage.class))
+                .put (entry.getKey ().stage (), entry.getValue ());
+            QuantileSketch merged = total.get (entry.getKey ().stage ());
+            if (merged == null) {
+                merged = entry.getValue ().copy ();
+                total.put (entry.getKey ().stage (), merged);
+            } else {
+                merged.merge (entry.getValue ());
+            }
+        }
+
+        DeliveryStatsResponse.Builder response = DeliveryStatsResponse.newBuilder ();
+        days.forEach ((day, stages) -> {
+            DailyDeliveryStats.Builder daily = DailyDeliveryStats.newBuilder ().setDay (day.toString ());
+            stages.forEach ((stage, sketch) -> daily.addStages (toStageStats (stage, sketch)));
+            response.addDays (daily);
+        });
+        total.forEach ((stage, sketch) -> response.addTotal (toStageStats (stage, sketch)));
+
+        return response.build ();
+    }
+
+    private static StageStats toStageStats (Stage stage, QuantileSketch sketch)
+    {
+        return StageStats.newBuilder ()
+                         .setStage (stage.name ())
+                         .setCount (sketch.count ())
+                         .setP50Millis (sketch.quantile (0.5))
+                         .setP95Millis (sketch.quantile (0.95))
+                         .build ();
+    }
+
+/**
+  * Aggregates the stage durations of a batch of events into sketches.
+  * <p>
+  * The progress of the allocations is read before the batch is aggregated, and is
+  * updated by the events of the batch. Allocations that were delivered no longer need
+  * their progress, which is then removed.
+  */
+
+    static final class Aggregation
+    {
+
+        private final double _accuracy;
+
+        private final Map<String,Progress> _progress;
+
+        private final Map<String,Progress> _updated = new HashMap<> ();
+
+        private final Map<String,Progress> _removed = new HashMap<> ();
+
+        private final TreeMap<Key,QuantileSketch> _sketches = new TreeMap<> (KEY_ORDER);
+
+/**
+  * Creates a new aggregation.
+  * <p>
+  * @param accuracy the relative accuracy of the sketches
+  * @param progress the progress of the allocations of the orders of the batch
+  */
+
+        Aggregation (double accuracy, List<Progress> progress)
+        {
+            _accuracy = accuracy;
+            _progress = new HashMap<> ();
+            progress.forEach (p -> _progress.put (ident (p.orderID (), p.allocationID ()), p));
+        }
+
+/**
+  * Applies an event.
+  * <p>
+  * @param event the event
+  * @param timestamp the time the event was written
+  */
+
+        void apply (Order.Event event, Instant timestamp)
+        {
+            switch (event) {
+            case Order.OrderAllocationsReceived evt ->
+                evt.allocations ().values ().forEach (allocation -> update (
+                    new Progress (evt.orderID (),
+                                  allocation.getID (),
+                                  allocation.getCourier (),
+                                  allocation.getName (),
+                                  timestamp,
+                                  null)));
+            case Order.OrderAllocationPacked evt -> {
+                Progress progress = _progress.get (ident (evt.orderID (), evt.allocationID ()));
+// -- allocations that were allocated before the statistics were kept are ignored
+                if (progress != null) {
+                    record (progress, Stage.PACKING, progress.allocatedAt (), evt.timestamp ());
+                    update (new Progress (progress.orderID (),
+                                          progress.allocationID (),
+                                          progress.courier (),
+                                          progress.site (),
+                                          progress.allocatedAt (),
+                                          evt.timestamp ()));
+                }
+            }
+            case Order.TrackingUpdated evt when evt.status () == Allocation.Status.DELIVERED -> {
+                Progress progress = _progress.get (ident (evt.orderID (), evt.allocationID ()));
+                if (progress != null) {
+                    if (progress.packedAt () != null) {
+                        record (progress, Stage.DELIVERY, progress.packedAt (), evt.timestamp ());
+                    }
+                    record (progress, Stage.FULFILMENT, progress.allocatedAt (), evt.timestamp ());
+                    String ident = ident (evt.orderID (), evt.allocationID ());
+                    _progress.remove (ident);
+                    _updated.remove (ident);
+                    _removed.put (ident, progress);
+                }
+            }
+            default -> {
+            }
+            }
+        }
+
+/**
+  * Returns the progress of the allocations that was updated by the batch.
+  */
+
+        Iterable<Progress> updated ()
+        {
+            return _updated.values ();
+        }
+
+/**
+  * Returns the progress of the allocations that were delivered in the batch.
+  */
+
+        Iterable<Progress> removed ()
+        {
+            return _removed.values ();
+        }
+
+/**
+  * Returns the sketches of the batch, in lock order.
+  */
+
+        Map<Key,QuantileSketch> sketches ()
+        {
+            return _sketches;
+        }
+
+        private void update (Progress progress)
+        {
+            String ident = ident (progress.orderID (), progress.allocationID ());
+            _progress.put (ident, progress);
+            _updated.put (ident, progress);
+            _removed.remove (ident);
+        }
+
+        private void record (Progress progress, Stage stage, Instant start, Instant end)
+        {
+            long millis = Math.max (0, Duration.between (start, end).toMillis ());
+            LocalDate day = LocalDate.ofInstant (end, ZoneOffset.UTC);
+
+            _sketches.computeIfAbsent (new Key (Dimension.COURIER, progress.courier (), day, stage),
+                                       key -> new QuantileSketch (_accuracy))
+                     .add (millis);
+            _sketches.computeIfAbsent (new Key (Dimension.SITE, progress.site (), day, stage),
+                                       key -> new QuantileSketch (_accuracy))
+                     .add (millis);
+        }
+
+        private static String ident (String orderID, String allocationID)
+        {
+            return orderID + '\u0000' + allocationID;
+        }
+
+    }
+
+}
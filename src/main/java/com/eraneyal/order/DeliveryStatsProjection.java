@@ -0,0 +1,237 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.typed.ActorSystem;
+import akka.persistence.query.Offset;
+import akka.persistence.query.typed.EventEnvelope;
+import akka.persistence.r2dbc.query.javadsl.R2dbcReadJournal;
+import akka.projection.Projection;
+import akka.projection.ProjectionId;
+import akka.projection.eventsourced.javadsl.EventSourcedProvider;
+import akka.projection.javadsl.SourceProvider;
+import akka.projection.r2dbc.R2dbcProjectionSettings;
+import akka.projection.r2dbc.javadsl.R2dbcHandler;
+import akka.projection.r2dbc.javadsl.R2dbcProjection;
+import akka.projection.r2dbc.javadsl.R2dbcSession;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import com.typesafe.config.Config;
+
+import io.r2dbc.spi.Statement;
+
+/**
+  * Implements the projection that keeps the delivery statistics (see
+  * {@link DeliveryStats}) up to date from the Order events.
+  * <p>
+  * Events are processed in groups, and the stage durations of a group are aggregated into
+  * sketches in memory before they are merged into the stored sketches, so a busy courier
+  * costs a sketch update per group rather than per event. The progress of the allocations
+  * through the stages (allocation and packing times) is kept in the
+  * delivery_allocation_progress table until the allocation is delivered. Everything is
+  * written in the same transaction as the projection offset (exactly once).
+  * <p>
+  * Stored sketches are shared by the projection instances, so they are locked (in the
+  * same order by every instance, to avoid deadlocks) while they are merged.
+  */
+
+public final class DeliveryStatsProjection
+{
+
+/**
+  * Holds the projection name.
+  */
+
+    static final String NAME = "DeliveryStatsProjection";
+
+    private static final String SELECT_PROGRESS_SQL =
+        "SELECT order_id, allocation_id, courier, site, allocated_at, packed_at " +
+        "FROM delivery_allocation_progress WHERE order_id = ANY($1)";
+
+    private static final String UPSERT_PROGRESS_SQL =
+        "INSERT INTO delivery_allocation_progress (order_id, allocation_id, courier, site, allocated_at, packed_at) " +
+        "VALUES ($1, $2, $3, $4, $5, $6) ON CONFLICT (order_id, allocation_id) DO UPDATE SET " +
+        "courier = excluded.courier, site = excluded.site, allocated_at = excluded.allocated_at, " +
+        "packed_at = excluded.packed_at";
+
+    private static final String DELETE_PROGRESS_SQL =
+        "DELETE FROM delivery_allocation_progress WHERE order_id = $1 AND allocation_id = $2";
+
+    private static final String INSERT_SKETCH_SQL =
+        "INSERT INTO delivery_stats (dimension, name, day, stage, sketch) VALUES ($1, $2, $3, $4, $5) " +
+        "ON CONFLICT (dimension, name, day, stage) DO NOTHING";
+
+    private static final String LOCK_SKETCH_SQL =
+        "SELECT sketch FROM delivery_stats WHERE dimension = $1 AND name = $2 AND day = $3 AND stage = $4 " +
+        "FOR UPDATE";
+
+    private static final String UPDATE_SKETCH_SQL =
+        "UPDATE delivery_stats SET sketch = $5 WHERE dimension = $1 AND name = $2 AND day = $3 AND stage = $4";
+
+    private DeliveryStatsProjection ()
+    {
+    }
+
+/**
+  * Starts the projection instances.
+  * <p>
+  * @param system the actor system
+  */
+
+    public static void init (ActorSystem<?> system)
+    {
+        Config config = system.settings ().config ().getConfig ("order-service.delivery-stats");
+
+        SlicedProjection.init (
+            system,
+            NAME,
+            config.getInt ("projection-instances"),
+            (minSlice, maxSlice) -> createProjection (system, config, minSlice, maxSlice));
+    }
+
+/**
+  * Returns the projection of a slice range.
+  */
+
+    private static Projection<EventEnvelope<Order.Event>> createProjection (
+        ActorSystem<?> system,
+        Config config,
+        int minSlice,
+        int maxSlice)
+    {
+        SourceProvider<Offset,EventEnvelope<Order.Event>> sourceProvider =
+            EventSourcedProvider.eventsBySlices (
+                system,
+                R2dbcReadJournal.Identifier (),
+                Order.ENTITY_KEY.name (),
+                minSlice,
+                maxSlice);
+
+        ProjectionId projectionId = ProjectionId.of (NAME, "orders-" + minSlice + "-" + maxSlice);
+        Optional<R2dbcProjectionSettings> settings = Optional.empty ();
+        double accuracy = config.getDouble ("relative-accuracy");
+
+        return R2dbcProjection.groupedWithin (
+                projectionId,
+                settings,
+                sourceProvider,
+                () -> new Handler (accuracy),
+                system)
+            .withGroup (config.getInt ("group-size"), config.getDuration ("group-within"));
+    }
+
+/**
+  * Implements the handler that aggregates a group of events into the statistics.
+  */
+
+    static final class Handler extends R2dbcHandler<List<EventEnvelope<Order.Event>>>
+    {
+
+/**
+  * Holds the relative accuracy of the sketches.
+  */
+
+        private final double _accuracy;
+
+        Handler (double accuracy)
+        {
+            _accuracy = accuracy;
+        }
+
+        @Override
+        public CompletionStage<Done> process (R2dbcSession session, List<EventEnvelope<Order.Event>> envelopes)
+        {
+            String[] orderIDs = envelopes.stream ()
+                                         .map (envelope -> envelope.event ().orderID ())
+                                         .distinct ()
+                                         .toArray (String[]::new);
+
+            return session.select (session.createStatement (SELECT_PROGRESS_SQL).bind (0, orderIDs),
+                                   row -> new DeliveryStats.Progress (
+                                       row.get ("order_id", String.class),
+                                       row.get ("allocation_id", String.class),
+                                       row.get ("courier", String.class),
+                                       row.get ("site", String.class),
+                                       row.get ("allocated_at", OffsetDateTime.class).toInstant (),
+                                       Optional.ofNullable (row.get ("packed_at", OffsetDateTime.class))
+                                               .map (OffsetDateTime::toInstant)
+                                               .orElse (null)))
+                .thenCompose (progress -> {
+                    DeliveryStats.Aggregation aggregation = new DeliveryStats.Aggregation (_accuracy, progress);
+                    for (EventEnvelope<Order.Event> envelope : envelopes) {
+                        aggregation.apply (envelope.event (), Instant.ofEpochMilli (envelope.timestamp ()));
+                    }
+
+                    List<Statement> statements = new ArrayList<> ();
+                    for (DeliveryStats.Progress p : aggregation.updated ()) {
+                        Statement statement =
+                            session.createStatement (UPSERT_PROGRESS_SQL)
+                                   .bind (0, p.orderID ())
+                                   .bind (1, p.allocationID ())
+                                   .bind (2, p.courier ())
+                                   .bind (3, p.site ())
+                                   .bind (4, OrderView.toOffsetDateTime (p.allocatedAt ()));
+                        if (p.packedAt () != null) {
+                            statement.bind (5, OrderView.toOffsetDateTime (p.packedAt ()));
+                        } else {
+                            statement.bindNull (5, OffsetDateTime.class);
+                        }
+                        statements.add (statement);
+                    }
+                    for (DeliveryStats.Progress p : aggregation.removed ()) {
+                        statements.add (session.createStatement (DELETE_PROGRESS_SQL)
+                                               .bind (0, p.orderID ())
+                                               .bind (1, p.allocationID ()));
+                    }
+
+                    CompletionStage<Done> done =
+                        statements.isEmpty ()
+                            ? CompletableFuture.completedFuture (Done.getInstance ())
+                            : session.update (statements).thenApply (counts -> Done.getInstance ());
+// -- the sketches are merged one by one, in lock order
+                    for (Map.Entry<DeliveryStats.Key,QuantileSketch> entry : aggregation.sketches ().entrySet ()) {
+                        done = done.thenCompose (d -> merge (session, entry.getKey (), entry.getValue ()));
+                    }
+                    return done;
+                });
+        }
+
+/**
+  * Merges a sketch into the stored sketch of its key.
+  */
+
+        private CompletionStage<Done> merge (R2dbcSession session, DeliveryStats.Key key, QuantileSketch sketch)
+        {
+            return session.updateOne (bindKey (session.createStatement (INSERT_SKETCH_SQL), key)
+                                          .bind (4, new QuantileSketch (_accuracy).toBytes ()))
+                .thenCompose (inserted -> session.selectOne (
+                    bindKey (session.createStatement (LOCK_SKETCH_SQL), key),
+                    row -> QuantileSketch.fromBytes (row.get ("sketch", byte[].class))))
+                .thenCompose (stored -> {
+                    QuantileSketch merged = stored.orElseGet (() -> new QuantileSketch (_accuracy));
+                    merged.merge (sketch);
+                    return session.updateOne (bindKey (session.createStatement (UPDATE_SKETCH_SQL), key)
+                                                  .bind (4, merged.toBytes ()));
+                })
+                .thenApply (count -> Done.getInstance ());
+        }
+
+        private static Statement bindKey (Statement statement, DeliveryStats.Key key)
+        {
+            return statement.bind (0, key.dimension ().name ())
+                            .bind (1, key.name ())
+                            .bind (2, key.day ())
+                            .bind (3, key.stage ().name ());
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.Order.BlankState;
+import com.eraneyal.order.Order.Command;
+import com.eraneyal.order.Order.Event;
+import com.eraneyal.order.Order.State;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.SupervisorStrategy;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.state.RecoveryCompleted;
+import akka.persistence.typed.state.javadsl.CommandHandlerWithReply;
+import akka.persistence.typed.state.javadsl.DurableStateBehaviorWithEnforcedReplies;
+import akka.persistence.typed.state.javadsl.EffectBuilder;
+import akka.persistence.typed.state.javadsl.ReplyEffect;
+import akka.persistence.typed.state.javadsl.SignalHandler;
+
+import java.time.Duration;
+
+/**
+  * The durable state implementation of the order entity. It handles the same command
+  * protocol as {@link Order}, with the same replies, and is selected per deployment with
+  * the order-service.entity-mode setting.
+  * <p>
+  * Instead of persisting events, each change persists the whole order state, which is
+  * stored as a single row of the durable state store (replacing the previous revision).
+  * Commands are handled by the same {@link OrderDecisions} as {@link Order}, and a change
+  * is computed by applying the events that {@link Order} would persist to the current
+  * state (see {@link Order#applyEvent}), so both implementations always agree on the
+  * replies and the resulting state. Recovery reads a single row regardless of the history
+  * of the order, at the cost of writing the whole state on every change.
+  * <p>
+  * Since no events are persisted, the read models and the published events that are
+  * built from the Order events (see {@link OrderViewProjection},
+  * {@link DeliveryStatsProjection} and {@link OrderEventProducer}) are not available in
+  * this mode.
+  */
+
+public final class DurableOrder extends DurableStateBehaviorWithEnforcedReplies<Command, State>
+{
+
+/**
+  * Holds the command handling logic, shared with {@link Order}.
+  */
+
+    private final OrderDecisions _decisions;
+
+/**
+  * Creates an actor for the given order identifier, that uses the given allocation
+  * service.
+  * <p>
+  * @param ident the order identifier
+  * @param allocator a reference to the allocation service
+  * @return a new actor for the given order identifier
+  */
+
+    public static Behavior<Command> create (String ident, ActorRef<OrderAllocationService.Command> allocator)
+    {
+        return Behaviors.setup (
+            ctx -> Behaviors.withTimers (
+                timers -> new DurableOrder (ident, ctx, timers, allocator)));
+    }
+
+/**
+  * Creates a standalone actor for the given order identifier, that uses a private
+  * allocation service running as a child actor (e.g. for testing).
+  * <p>
+  * @param ident the order identifier
+  * @return a new actor for the given order identifier
+  */
+
+    public static Behavior<Command> create (String ident)
+    {
+        return Behaviors.setup (
+            ctx -> Behaviors.withTimers (
+                timers -> new DurableOrder (ident,
+                                            ctx,
+                                            timers,
+                                            ctx.spawn (OrderAllocationService.createStandalone (), "allocator"))));
+    }
+
+/**
+  * Creates a new order instance.
+  * <p>
+  * @param ident the order identifier.
+  * @param ctx the actor context
+  * @param timers the timer scheduler
+  * @param allocator a reference to the allocation service
+  */
+
+    private DurableOrder (
+        String ident,
+        ActorContext<Command> ctx,
+        TimerScheduler<Command> timers,
+        ActorRef<OrderAllocationService.Command> allocator)
+    {
+        super (
+            PersistenceId.of (Order.ENTITY_KEY.name (), ident),
+            SupervisorStrategy.restartWithBackoff (Duration.ofMillis (200),
+                                                   Duration.ofSeconds (5),
+                                                   0.1));
+        _decisions = new OrderDecisions (ident, ctx, timers, allocator);
+    }
+
+    @Override
+    public State emptyState ()
+    {
+        return new BlankState ();
+    }
+
+// ------------------------------------------------------------
+// Command handling logic
+// ------------------------------------------------------------
+
+/**
+  * Returns a handler for incoming commands. The handling of each command is decided by
+  * {@link OrderDecisions}, and the state that results from its events is persisted.
+  * <p>
+  * @return the command handler
+  */
+
+    @Override
+    public CommandHandlerWithReply<Command, State> commandHandler ()
+    {
+        return newCommandHandlerWithReplyBuilder ()
+            .forAnyState ()
+            .onAnyCommand ((state, cmd) -> effect (state, _decisions.decide (state, cmd)));
+    }
+
+/**
+  * Returns the effect of a decision.
+  * <p>
+  * @param state the order state
+  * @param decision the decision
+  * @return the reply effect
+  */
+
+    private <R> ReplyEffect<State> effect (State state, OrderDecisions.Decision<R> decision)
+    {
+        State newState = state;
+        for (Event event : decision.events ()) {
+            newState = Order.applyEvent (newState, event);
+        }
+
+        EffectBuilder<State> effect =
+            decision.events ().isEmpty () ? Effect ().none () : Effect ().persist (newState);
+
+        if (decision.then () != null) {
+            effect = effect.thenRun (decision.then ()::accept);
+        }
+
+        return decision.replyTo () != null
+            ? effect.thenReply (decision.replyTo (), decision.reply ()::apply)
+            : effect.thenNoReply ();
+    }
+
+/**
+  * Handle recovery.
+  */
+
+    @Override
+    public SignalHandler<State> signalHandler ()
+    {
+        return newSignalHandlerBuilder ()
+            .onSignal (RecoveryCompleted.instance (), state -> _decisions.onRecoveryCompleted (state, false))
+            .build ();
+    }
+
+}
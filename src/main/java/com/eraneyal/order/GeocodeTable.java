@@ -0,0 +1,102 @@
+package com.eraneyal.order;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+  * Implements a local geocode table, which maps zip codes to geographic coordinates.
+  * <p>
+  * The table is loaded from a classpath resource of "zip,latitude,longitude" lines. Empty
+  * lines and lines starting with '#' are ignored.
+  */
+
+public final class GeocodeTable
+{
+
+/**
+  * Represents an immutable geographic location.
+  * <p>
+  * @param latitude the latitude in degrees
+  * @param longitude the longitude in degrees
+  */
+
+    public record GeoPoint (double latitude, double longitude) {}
+
+/**
+  * Holds the locations, indexed by zip code.
+  */
+
+    private final Map<Integer,GeoPoint> _locations;
+
+/**
+  * Creates a new table for the given locations.
+  * <p>
+  * @param locations the locations, indexed by zip code
+  */
+
+    public GeocodeTable (Map<Integer,GeoPoint> locations)
+    {
+        _locations = new HashMap<> (locations);
+    }
+
+/**
+  * Returns the location of the given zip code, or null if the zip code is unknown.
+  * <p>
+  * @param zipCode the zip code
+  * @return the location of the given zip code, or null if the zip code is unknown
+  */
+
+    public GeoPoint lookup (int zipCode)
+    {
+        return _locations.get (zipCode);
+    }
+
+/**
+  * Loads a table from the given classpath resource.
+  * <p>
+  * @param resource the name of the classpath resource
+  * @return the loaded table
+  * @exception IllegalArgumentException if the resource is missing or malformed
+  */
+
+    public static GeocodeTable load (String resource)
+    {
+        Map<Integer,GeoPoint> locations = new HashMap<> ();
+
+        InputStream in = GeocodeTable.class.getClassLoader ().getResourceAsStream (resource);
+        if (in == null) {
+            throw new IllegalArgumentException ("Geocode table " + resource + " not found");
+        }
+
+        try (BufferedReader reader = new BufferedReader (new InputStreamReader (in, StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine ()) != null) {
+                lineNumber++;
+                line = line.trim ();
+                if (line.isEmpty () || line.startsWith ("#")) {
+                    continue;
+                }
+                String[] fields = line.split (",");
+                if (fields.length != 3) {
+                    throw new IllegalArgumentException (
+                        "Malformed line " + lineNumber + " in geocode table " + resource);
+                }
+                locations.put (Integer.parseInt (fields[0].trim ()),
+                               new GeoPoint (Double.parseDouble (fields[1].trim ()),
+                                             Double.parseDouble (fields[2].trim ())));
+            }
+        }
+        catch (IOException | NumberFormatException exc) {
+            throw new IllegalArgumentException ("Failed to load geocode table " + resource, exc);
+        }
+
+        return new GeocodeTable (locations);
+    }
+
+}
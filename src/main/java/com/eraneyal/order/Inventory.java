@@ -0,0 +1,517 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.SupervisorStrategy;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+import akka.persistence.typed.PersistenceId;
+import akka.persistence.typed.javadsl.CommandHandlerWithReply;
+import akka.persistence.typed.javadsl.EventHandler;
+import akka.persistence.typed.javadsl.EventSourcedBehaviorWithEnforcedReplies;
+import akka.persistence.typed.javadsl.ReplyEffect;
+import akka.persistence.typed.javadsl.RetentionCriteria;
+import akka.serialization.jackson.CborSerializable;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+  * Represents an event sourced Inventory entity, which holds the stock of an item at a
+  * site, and reserves it for orders.
+  * <p>
+  * The stock of an item at a site may be striped over several entities (see
+  * {@link InventoryReservations}), so that a popular item doesn't turn a single entity into
+  * a hotspot. Each entity holds the stock of a single stripe, and is identified by
+  * {@link #entityID(String, String, int)}.
+  * <p>
+  * Reservations and releases are processed in batches, so a single command (and a single
+  * write to the journal) serves many orders. Both are idempotent: a reservation identifier
+  * that is already held is accepted again without reserving more stock, and releasing an
+  * unknown reservation identifier has no effect. Reservation identifiers are remembered for
+  * {@link #RESERVATION_RETENTION}, which bounds the state size; an older reservation can't
+  * be released anymore, and its stock is considered consumed. Likewise, restocks are
+  * idempotent for {@link #RESTOCK_RETENTION}, except for the {@link #INITIAL_RESTOCK_ID
+  * initial stock}, which is added once.
+  */
+
+public class Inventory
+       extends EventSourcedBehaviorWithEnforcedReplies<Inventory.Command, Inventory.Event, Inventory.State>
+{
+
+// ------------------------------------------------------------
+// The Commands supported by this entity
+// ------------------------------------------------------------
+
+/**
+  * Represents the commands supported by this entity.
+  */
+
+    public sealed interface Command extends CborSerializable {}
+
+/**
+  * Represents a request to reserve stock.
+  * <p>
+  * @param reservationID the reservation identifier (e.g. the order identifier)
+  * @param quantity the quantity to reserve
+  */
+
+    public record Reservation (String reservationID, int quantity) implements CborSerializable {}
+
+/**
+  * Represents a command to reserve stock for a batch of reservations. Each reservation is
+  * accepted or rejected on its own.
+  * <p>
+  * @param reservations the reservations
+  * @param replyTo a reference to the actor that will receive the result
+  */
+
+    record ReserveBatch (List<Reservation> reservations, ActorRef<StockStatus> replyTo)
+    implements Command {}
+
+/**
+  * Represents a command to release the stock of a batch of reservations.
+  * <p>
+  * @param reservationIDs the reservation identifiers
+  * @param replyTo a reference to the actor that will receive the result
+  */
+
+    record ReleaseBatch (List<String> reservationIDs, ActorRef<StockStatus> replyTo)
+    implements Command {}
+
+/**
+  * Represents a command to add stock. The command is idempotent for a given restock
+  * identifier.
+  * <p>
+  * @param restockID the restock identifier
+  * @param quantity the quantity to add
+  * @param replyTo a reference to the actor that will receive the result
+  */
+
+    record AddStock (String restockID, int quantity, ActorRef<StockStatus> replyTo)
+    implements Command {}
+
+/**
+  * Represents a command to fetch the available stock.
+  * <p>
+  * @param replyTo a reference to the actor that will receive the result
+  */
+
+    record GetStock (ActorRef<StockStatus> replyTo) implements Command {}
+
+/**
+  * Represents the result of an inventory command.
+  * <p>
+  * @param accepted the identifiers of the accepted reservations (or releases)
+  * @param available the available stock after the command was processed
+  */
+
+    public record StockStatus (Set<String> accepted, int available) implements CborSerializable {}
+
+// ------------------------------------------------------------
+// The Events persisted by this entity
+// ------------------------------------------------------------
+
+/**
+  * Represents the events persisted by this entity.
+  */
+
+    public sealed interface Event extends CborSerializable {}
+
+/**
+  * Represents added stock.
+  * <p>
+  * @param restockID the restock identifier
+  * @param quantity the added quantity
+  * @param timestamp the timestamp of the restock
+  */
+
+    record StockAdded (String restockID, int quantity, Instant timestamp) implements Event {}
+
+/**
+  * Represents reserved stock.
+  * <p>
+  * @param reservationID the reservation identifier
+  * @param quantity the reserved quantity
+  * @param timestamp the timestamp of the reservation
+  */
+
+    record StockReserved (String reservationID, int quantity, Instant timestamp) implements Event {}
+
+/**
+  * Represents released stock.
+  * <p>
+  * @param reservationID the reservation identifier
+  * @param quantity the released quantity
+  */
+
+    record StockReleased (String reservationID, int quantity) implements Event {}
+
+// ------------------------------------------------------------
+// The entity's State
+// ------------------------------------------------------------
+
+/**
+  * Represents a held reservation.
+  * <p>
+  * @param quantity the reserved quantity
+  * @param timestamp the timestamp of the reservation
+  */
+
+    record Held (int quantity, Instant timestamp) implements CborSerializable {}
+
+/**
+  * Represents the entity's state.
+  * <p>
+  * The state is immutable: every event returns a new state, so a snapshot that is being
+  * serialized is never changed by the events that follow it. Reservations are bounded by
+  * {@link #RESERVATION_RETENTION}, and restocks by {@link #RESTOCK_RETENTION}, which also
+  * bounds the cost of copying them.
+  * <p>
+  * @param available the available stock
+  * @param reservations the held reservations, indexed by reservation identifier, in
+  *        reservation order
+  * @param restocks the timestamps of the applied restocks, indexed by restock identifier,
+  *        in restock order
+  */
+
+    public record State (
+        int available,
+        LinkedHashMap<String,Held> reservations,
+        LinkedHashMap<String,Instant> restocks)
+    implements CborSerializable
+    {
+
+/**
+  * Returns the available stock.
+  * <p>
+  * @return the available stock
+  */
+
+        public int getAvailable ()
+        {
+            return available;
+        }
+
+/**
+  * Returns true if a reservation is held for the given identifier.
+  * <p>
+  * @param reservationID the reservation identifier
+  * @return true if a reservation is held for the given identifier
+  */
+
+        public boolean isHeld (String reservationID)
+        {
+            return reservations.containsKey (reservationID);
+        }
+
+/**
+  * Returns true if the given restock was applied.
+  * <p>
+  * @param restockID the restock identifier
+  * @return true if the given restock was applied
+  */
+
+        public boolean isRestocked (String restockID)
+        {
+            return restocks.containsKey (restockID);
+        }
+
+/**
+  * Returns a new state with added stock. Restocks older than the retention period are
+  * forgotten, except for the initial stock.
+  * <p>
+  * @param restockID the restock identifier
+  * @param quantity the added quantity
+  * @param timestamp the timestamp of the restock
+  * @return the new state
+  */
+
+        State restocked (String restockID, int quantity, Instant timestamp)
+        {
+            LinkedHashMap<String,Instant> newRestocks = new LinkedHashMap<> (restocks);
+            newRestocks.put (restockID, timestamp);
+
+// -- the initial stock is added on every start, so it's never forgotten
+            Instant cutoff = timestamp.minus (RESTOCK_RETENTION);
+            newRestocks.entrySet ().removeIf (restock -> !INITIAL_RESTOCK_ID.equals (restock.getKey ())
+                                                        && restock.getValue ().isBefore (cutoff));
+
+            return new State (available + quantity, reservations, newRestocks);
+        }
+
+/**
+  * Returns a new state with a held reservation. Reservations older than the retention
+  * period are forgotten (their stock stays consumed).
+  * <p>
+  * @param reservationID the reservation identifier
+  * @param held the reservation
+  * @return the new state
+  */
+
+        State reserved (String reservationID, Held held)
+        {
+            LinkedHashMap<String,Held> newReservations = new LinkedHashMap<> (reservations);
+            newReservations.put (reservationID, held);
+
+            Instant cutoff = held.timestamp ().minus (RESERVATION_RETENTION);
+            Iterator<Map.Entry<String,Held>> oldest = newReservations.entrySet ().iterator ();
+            while (oldest.hasNext () && oldest.next ().getValue ().timestamp ().isBefore (cutoff)) {
+                oldest.remove ();
+            }
+
+            return new State (available - held.quantity (), newReservations, restocks);
+        }
+
+/**
+  * Returns a new state without the given reservation. The state is returned as is if
+  * the reservation isn't held.
+  * <p>
+  * @param reservationID the reservation identifier
+  * @return the new state
+  */
+
+        State released (String reservationID)
+        {
+            Held held = reservations.get (reservationID);
+            if (held == null) {
+                return this;
+            }
+
+            LinkedHashMap<String,Held> newReservations = new LinkedHashMap<> (reservations);
+            newReservations.remove (reservationID);
+
+            return new State (available + held.quantity (), newReservations, restocks);
+        }
+
+    }
+
+/**
+  * Holds the entity type key.
+  */
+
+    static final EntityTypeKey<Command>
+        ENTITY_KEY = EntityTypeKey.create (Command.class, "Inventory");
+
+/**
+  * Holds the time reservation identifiers are remembered.
+  */
+
+    static final Duration RESERVATION_RETENTION = Duration.ofDays (1);
+
+/**
+  * Holds the time restock identifiers are remembered.
+  */
+
+    static final Duration RESTOCK_RETENTION = Duration.ofDays (1);
+
+/**
+  * Holds the restock identifier of the initial stock of the allocator configuration.
+  */
+
+    static final String INITIAL_RESTOCK_ID = "initial";
+
+/**
+  * Initializes cluster sharding for Inventory entities.
+  * <p>
+  * @param system the actor system
+  */
+
+    public static void init (ActorSystem<?> system)
+    {
+        ClusterSharding.get (system).init (
+            Entity.of (
+                ENTITY_KEY,
+                ctx -> Inventory.create (ctx.getEntityId ())));
+    }
+
+/**
+  * Returns the entity identifier of a stripe of the stock of an item at a site.
+  * <p>
+  * @param siteID the site identifier
+  * @param itemID the item identifier
+  * @param stripe the stripe
+  * @return the entity identifier
+  */
+
+    public static String entityID (String siteID, String itemID, int stripe)
+    {
+        return siteID + '#' + itemID + '#' + stripe;
+    }
+
+/**
+  * Creates an actor for the given entity identifier.
+  * <p>
+  * @param entityID the entity identifier
+  * @return a new actor for the given entity identifier
+  */
+
+    public static Behavior<Command> create (String entityID)
+    {
+        return new Inventory (entityID);
+    }
+
+    @Override
+    public RetentionCriteria retentionCriteria ()
+    {
+        return RetentionCriteria.snapshotEvery (100);
+    }
+
+/**
+  * Creates a new inventory instance.
+  * <p>
+  * @param entityID the entity identifier
+  */
+
+    private Inventory (String entityID)
+    {
+        super (
+            PersistenceId.of (ENTITY_KEY.name (), entityID),
+            SupervisorStrategy.restartWithBackoff (Duration.ofMillis (200),
+                                                   Duration.ofSeconds (5),
+                                                   0.1));
+    }
+
+    @Override
+    public State emptyState ()
+    {
+        return new State (0, new LinkedHashMap<> (), new LinkedHashMap<> ());
+    }
+
+// ------------------------------------------------------------
+// Command handling logic
+// ------------------------------------------------------------
+
+/**
+  * Returns a handler for incoming commands.
+  * <p>
+  * @return the command handler
+  */
+
+    @Override
+    public CommandHandlerWithReply<Command, Event, State> commandHandler ()
+    {
+        return newCommandHandlerWithReplyBuilder ()
+            .forAnyState ()
+            .onCommand (ReserveBatch.class, this::onReserveBatch)
+            .onCommand (ReleaseBatch.class, this::onReleaseBatch)
+            .onCommand (AddStock.class, this::onAddStock)
+            .onCommand (GetStock.class,
+                        (state, cmd) -> Effect ().reply (cmd.replyTo (),
+                                                         new StockStatus (Set.of (), state.available ())))
+            .build ();
+    }
+
+/**
+  * Handles a batch of reservations. A reservation is accepted if it is already held, or
+  * if enough stock is available for it.
+  * <p>
+  * @param state the inventory state
+  * @param cmd the command
+  * @return the reply effect
+  */
+
+    private ReplyEffect<Event, State> onReserveBatch (State state, ReserveBatch cmd)
+    {
+        List<Event> events = new ArrayList<> ();
+        Set<String> accepted = new HashSet<> ();
+        int available = state.available ();
+        Instant now = Instant.now ();
+
+        for (Reservation reservation : cmd.reservations ()) {
+            if (state.isHeld (reservation.reservationID ()) || accepted.contains (reservation.reservationID ())) {
+                accepted.add (reservation.reservationID ());
+            } else if (reservation.quantity () > 0 && reservation.quantity () <= available) {
+                available -= reservation.quantity ();
+                events.add (new StockReserved (reservation.reservationID (), reservation.quantity (), now));
+                accepted.add (reservation.reservationID ());
+            }
+        }
+
+        if (events.isEmpty ()) {
+            return Effect ().reply (cmd.replyTo (), new StockStatus (accepted, state.available ()));
+        } else {
+            return Effect ().persist (events)
+                            .thenReply (cmd.replyTo (), newState -> new StockStatus (accepted, newState.available ()));
+        }
+    }
+
+/**
+  * Handles a batch of releases. Unknown reservation identifiers are ignored.
+  * <p>
+  * @param state the inventory state
+  * @param cmd the command
+  * @return the reply effect
+  */
+
+    private ReplyEffect<Event, State> onReleaseBatch (State state, ReleaseBatch cmd)
+    {
+        List<Event> events = new ArrayList<> ();
+        Set<String> accepted = new HashSet<> ();
+
+        for (String reservationID : cmd.reservationIDs ()) {
+            Held held = state.reservations ().get (reservationID);
+            if (held != null && accepted.add (reservationID)) {
+                events.add (new StockReleased (reservationID, held.quantity ()));
+            }
+        }
+
+        if (events.isEmpty ()) {
+            return Effect ().reply (cmd.replyTo (), new StockStatus (accepted, state.available ()));
+        } else {
+            return Effect ().persist (events)
+                            .thenReply (cmd.replyTo (), newState -> new StockStatus (accepted, newState.available ()));
+        }
+    }
+
+/**
+  * Handles added stock. A restock that was already applied is ignored.
+  * <p>
+  * @param state the inventory state
+  * @param cmd the command
+  * @return the reply effect
+  */
+
+    private ReplyEffect<Event, State> onAddStock (State state, AddStock cmd)
+    {
+        if (cmd.quantity () <= 0 || state.isRestocked (cmd.restockID ())) {
+            return Effect ().reply (cmd.replyTo (), new StockStatus (Set.of (), state.available ()));
+        } else {
+            return Effect ().persist (new StockAdded (cmd.restockID (), cmd.quantity (), Instant.now ()))
+                            .thenReply (cmd.replyTo (), newState -> new StockStatus (Set.of (), newState.available ()));
+        }
+    }
+
+// ------------------------------------------------------------
+// Event handling logic
+// ------------------------------------------------------------
+
+/**
+  * Handle events.
+  */
+
+    @Override
+    public EventHandler<State, Event> eventHandler ()
+    {
+        return newEventHandlerBuilder ()
+            .forAnyState ()
+            .onEvent (StockAdded.class,
+                      (state, evt) -> state.restocked (evt.restockID (), evt.quantity (), evt.timestamp ()))
+            .onEvent (StockReserved.class,
+                      (state, evt) -> state.reserved (evt.reservationID (),
+                                                      new Held (evt.quantity (), evt.timestamp ())))
+            .onEvent (StockReleased.class,
+                      (state, evt) -> state.released (evt.reservationID ()))
+            .build ();
+    }
+
+}
@@ -0,0 +1,761 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.RecipientRef;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+  * Implements a node local front end to the {@link Inventory} entities, which reserves the
+  * stock of an order durably.
+  * <p>
+  * Requests are not sent to the entities one by one. Instead, the reservations and
+  * releases destined to the same entity are buffered for a short batch window (or until
+  * the batch is full), and are then sent as a single command, so a popular item costs one
+  * entity round trip and one journal write per batch rather than per order.
+  * <p>
+  * The stock of a hot item is striped over several entities. A reservation starts at a
+  * stripe chosen by its identifier, and moves on to the next stripe if the stripe doesn't
+  * have enough stock, until all the stripes were tried. The stripe counts are part of the
+  * entity identifiers, so they must not change once stock was added.
+  * <p>
+  * The lines of an order are reserved independently. If any line can't be reserved, the
+  * lines reserved so far are released, and the request fails. A request that isn't
+  * complete within the reserve timeout fails the same way, and its lines that are
+  * reserved afterwards are released as their replies arrive, so a request that failed
+  * never holds stock.
+  */
+
+public class InventoryReservations extends AbstractBehavior<InventoryReservations.Command>
+{
+
+/**
+  * Represents the commands supported by this actor.
+  */
+
+    public sealed interface Command {}
+
+/**
+  * Represents a quantity of an item at a site.
+  * <p>
+  * @param siteID the site identifier
+  * @param itemID the item identifier
+  * @param quantity the quantity
+  */
+
+    public record Line (String siteID, String itemID, int quantity) {}
+
+/**
+  * Represents the outcome of the reservation of a line.
+  * <p>
+  * @param line the line
+  * @param stripe the stripe from which the line was reserved, or -1 if it wasn't reserved
+  * @param available the available stock of the item at the site (summed over the stripes
+  * 		 that were tried), if the line wasn't reserved
+  */
+
+    public record LineResult (Line line, int stripe, int available) {}
+
+/**
+  * Represents the result of a reservation request.
+  * <p>
+  * @param reserved true if all the lines were reserved
+  * @param lines the outcomes of the reservations of the lines
+  */
+
+    public record ReserveResult (boolean reserved, List<LineResult> lines) {}
+
+/**
+  * Represents a request to reserve the given lines.
+  * <p>
+  * @param reservationID the reservation identifier (e.g. the order identifier)
+  * @param lines the lines to reserve
+  * @param replyTo a reference to the actor that will receive the result
+  */
+
+    public record Reserve (String reservationID, List<Line> lines, ActorRef<ReserveResult> replyTo)
+    implements Command {}
+
+/**
+  * Represents a request to release reserved lines.
+  * <p>
+  * @param reservationID the reservation identifier
+  * @param lines the reserved lines, as returned by a successful reservation
+  */
+
+    public record Release (String reservationID, List<LineResult> lines) implements Command {}
+
+/**
+  * Represents a request to add stock of an item at a site. The quantity is spread evenly
+  * over the stripes of the item.
+  * <p>
+  * @param restockID the restock identifier, which makes the request idempotent
+  * @param line the added stock
+  * @param replyTo a reference to the actor that will be notified once the stock was added
+  */
+
+    public record AddStock (String restockID, Line line, ActorRef<Done> replyTo) implements Command {}
+
+/**
+  * Represents a request to read the available stock of the given lines, summed over the
+  * stripes of their items. The quantities of the lines are ignored.
+  * <p>
+  * @param lines the lines, by site and item
+  * @param replyTo a reference to the actor that will receive the stock levels
+  */
+
+    public record GetStock (List<Line> lines, ActorRef<StockLevels> replyTo) implements Command {}
+
+/**
+  * Represents the available stock of the lines of a {@link GetStock} request.
+  * <p>
+  * @param lines the lines, each with its available stock and no stripe
+  */
+
+    public record StockLevels (List<LineResult> lines) {}
+
+/**
+  * Represents a timer notification to send the buffered batches.
+  */
+
+    private record Flush () implements Command {}
+
+/**
+  * Represents a timer notification that a reservation request reached its timeout.
+  */
+
+    private record Expire (Request request) implements Command {}
+
+/**
+  * Represents the outcome of a batch of reservations sent to an entity.
+  */
+
+    private record ReserveBatchCompleted (List<Pending> batch, Inventory.StockStatus status, Throwable failure)
+    implements Command {}
+
+/**
+  * Represents the outcome of a batch of releases sent to an entity.
+  */
+
+    private record ReleaseBatchCompleted (String entityID, int size, Throwable failure)
+    implements Command {}
+
+/**
+  * Represents the settings of the front end.
+  * <p>
+  * @param stripes the number of stripes of an item
+  * @param hotItemStripes the number of stripes of a hot item
+  * @param hotItems the identifiers of the hot items
+  * @param batchWindow the time requests are buffered before they are sent
+  * @param maxBatchSize the maximum number of requests sent to an entity in a single batch
+  * @param askTimeout the timeout of a batch sent to an entity
+  * @param reserveTimeout the timeout of a reservation request, which may try several
+  *        stripes in turn
+  */
+
+    public record Settings (
+        int stripes,
+        int hotItemStripes,
+        Set<String> hotItems,
+        Duration batchWindow,
+        int maxBatchSize,
+        Duration askTimeout,
+        Duration reserveTimeout)
+    {
+
+/**
+  * Validates the settings. Every item has at least one stripe, which holds its stock.
+  * <p>
+  * @throws IllegalArgumentException if a stripe count is less than 1
+  */
+
+        public Settings
+        {
+            if (stripes < 1 || hotItemStripes < 1) {
+                throw new IllegalArgumentException ("Stripe counts must be at least 1");
+            }
+        }
+
+/**
+  * Returns the number of stripes of the given item.
+  * <p>
+  * @param itemID the item identifier
+  * @return the number of stripes of the given item
+  */
+
+        public int stripesOf (String itemID)
+        {
+            return hotItems.contains (itemID) ? hotItemStripes : stripes;
+        }
+
+/**
+  * Loads the settings from the given configuration.
+  * <p>
+  * @param config the inventory configuration
+  * @return the settings
+  */
+
+        public static Settings fromConfig (Config config)
+        {
+            return new Settings (
+                config.getInt ("stripes"),
+                config.getInt ("hot-item-stripes"),
+                Set.copyOf (config.getStringList ("hot-items")),
+                config.getDuration ("batch-window"),
+                config.getInt ("max-batch-size"),
+                config.getDuration ("ask-timeout"),
+                config.getDuration ("reserve-timeout"));
+        }
+
+    }
+
+/**
+  * Holds the progress of a reservation request.
+  */
+
+    private static final class Request
+    {
+        final Reserve command;
+        final int[] stripes;
+        final int[] tried;
+        final int[] available;
+        final boolean[] reserved;
+        int pending;
+        boolean completed;
+
+        Request (Reserve command)
+        {
+            int count = command.lines ().size ();
+            this.command = command;
+            this.stripes = new int[count];
+            this.tried = new int[count];
+            this.available = new int[count];
+            this.reserved = new boolean[count];
+            this.pending = count;
+        }
+    }
+
+/**
+  * Represents a buffered reservation of a line of a request at a stripe.
+  */
+
+    private record Pending (Request request, int line, int stripe) {}
+
+/**
+  * Holds the timer key of the batch window.
+  */
+
+    private static final Object FLUSH_TIMER_KEY = new Object ();
+
+/**
+  * Holds the settings.
+  */
+
+    private final Settings _settings;
+
+/**
+  * Holds a function that returns a reference to an entity, given its identifier.
+  */
+
+    private final Function<String,RecipientRef<Inventory.Command>> _entities;
+
+/**
+  * Holds the timer scheduler.
+  */
+
+    private final TimerScheduler<Command> _timers;
+
+/**
+  * Holds the buffered reservations, indexed by entity identifier.
+  */
+
+    private Map<String,List<Pending>> _reservations = new HashMap<> ();
+
+/**
+  * Holds the buffered releases, indexed by entity identifier.
+  */
+
+    private Map<String,List<String>> _releases = new HashMap<> ();
+
+/**
+  * Initializes cluster sharding for the Inventory entities, and starts the front end on
+  * this node. The initial stock levels of the allocator configuration are added once.
+  * <p>
+  * @param system the actor system
+  * @return a reference to the front end
+  */
+
+    public static ActorRef<Command> init (ActorSystem<?> system)
+    {
+        Config config = system.settings ().config ();
+        ClusterSharding sharding = ClusterSharding.get (system);
+
+        Inventory.init (system);
+        ActorRef<Command> reservations =
+            system.systemActorOf (
+                create (Settings.fromConfig (config.getConfig ("order-service.inventory")),
+                        entityID -> sharding.entityRefFor (Inventory.ENTITY_KEY, entityID)),
+                "inventory-reservations",
+                Props.empty ());
+
+        for (Config stock : config.getConfigList ("order-service.allocator.stock")) {
+            reservations.tell (
+                new AddStock (
+                    Inventory.INITIAL_RESTOCK_ID,
+                    new Line (stock.getString ("site"), stock.getString ("item"), stock.getInt ("quantity")),
+                    system.ignoreRef ()));
+        }
+
+        return reservations;
+    }
+
+/**
+  * Returns a factory for a behavior.
+  * <p>
+  * @param settings the settings
+  * @param entities a function that returns a reference to an entity, given its identifier
+  * @return a factory for a behavior
+  */
+
+    public static Behavior<Command> create (
+        Settings settings,
+        Function<String,RecipientRef<Inventory.Command>> entities)
+    {
+        return Behaviors.setup (
+            context -> Behaviors.withTimers (
+                timers -> new InventoryReservations (context, timers, settings, entities)));
+    }
+
+/**
+  * Creates a new instance.
+  * <p>
+  * @param context the actor context
+  * @param timers the timer scheduler
+  * @param settings the settings
+  * @param entities a function that returns a reference to an entity, given its identifier
+  */
+
+    private InventoryReservations (
+        ActorContext<Command> context,
+        TimerScheduler<Command> timers,
+        Settings settings,
+        Function<String,RecipientRef<Inventory.Command>> entities)
+    {
+        super (context);
+        _timers = timers;
+        _settings = settings;
+        _entities = entities;
+    }
+
+/**
+  * Determines how messages to this actor are processed.
+  */
+
+    @Override
+    public Receive<Command> createReceive ()
+    {
+        return newReceiveBuilder ()
+                .onMessage (Reserve.class, this::onReserve)
+                .onMessage (Release.class, this::onRelease)
+                .onMessage (AddStock.class, this::onAddStock)
+                .onMessage (GetStock.class, this::onGetStock)
+                .onMessage (Flush.class, this::onFlush)
+                .onMessage (Expire.class, this::onExpire)
+                .onMessage (ReserveBatchCompleted.class, this::onReserveBatchCompleted)
+                .onMessage (ReleaseBatchCompleted.class, this::onReleaseBatchCompleted)
+                .build ();
+    }
+
+/**
+  * Buffers the lines of a reservation request, each at its first stripe.
+  * <p>
+  * @param command the reservation request
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onReserve (Reserve command)
+    {
+        Request request = new Request (command);
+
+        if (request.pending == 0) {
+            command.replyTo ().tell (new ReserveResult (true, List.of ()));
+        } else {
+            _timers.startSingleTimer (request, new Expire (request), _settings.reserveTimeout ());
+            for (int i = 0; i < command.lines ().size (); i++) {
+                Line line = command.lines ().get (i);
+                int stripe = Math.floorMod (command.reservationID ().hashCode (), _settings.stripesOf (line.itemID ()));
+                enqueueReservation (new Pending (request, i, stripe));
+            }
+        }
+
+        return this;
+    }
+
+/**
+  * Buffers the release of reserved lines.
+  * <p>
+  * @param command the release request
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onRelease (Release command)
+    {
+        for (LineResult result : command.lines ()) {
+            if (result.stripe () >= 0) {
+                enqueueRelease (
+                    Inventory.entityID (result.line ().siteID (), result.line ().itemID (), result.stripe ()),
+                    command.reservationID ());
+            }
+        }
+
+        return this;
+    }
+
+/**
+  * Adds stock to the stripes of an item at a site. Restocks are rare, so they are sent
+  * right away rather than batched.
+  * <p>
+  * @param command the restock request
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onAddStock (AddStock command)
+    {
+        Line line = command.line ();
+        int stripes = _settings.stripesOf (line.itemID ());
+        ActorSystem<Void> system = getContext ().getSystem ();
+        List<CompletionStage<Inventory.StockStatus>> replies = new ArrayList<> ();
+
+        for (int stripe = 0; stripe < stripes; stripe++) {
+// -- spread the quantity evenly, giving the remainder to the first stripes
+            int quantity = line.quantity () / stripes + (stripe < line.quantity () % stripes ? 1 : 0);
+            RecipientRef<Inventory.Command> entity =
+                _entities.apply (Inventory.entityID (line.siteID (), line.itemID (), stripe));
+            replies.add (
+                AskPattern.ask (
+                    entity,
+                    replyTo -> new Inventory.AddStock (command.restockID (), quantity, replyTo),
+                    _settings.askTimeout (),
+                    system.scheduler ()));
+        }
+
+        CompletionStage<Inventory.StockStatus> all = replies.get (0);
+        for (int i = 1; i < replies.size (); i++) {
+            all = all.thenCombine (replies.get (i), (a, b) -> b);
+        }
+        all.whenComplete ((status, failure) -> {
+            if (failure != null) {
+                system.log ().warn ("Failed to add stock of item {} at site {}",
+                                    line.itemID (), line.siteID (), failure);
+            } else {
+                command.replyTo ().tell (Done.getInstance ());
+            }
+        });
+
+        return this;
+    }
+
+/**
+  * Reads the available stock of the stripes of the given lines. Reads are rare (they
+  * resync the stock index of a node that can't plan an order), so they are sent right
+  * away rather than batched. If any stripe can't be read, no reply is sent.
+  * <p>
+  * @param command the read request
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onGetStock (GetStock command)
+    {
+        ActorSystem<Void> system = getContext ().getSystem ();
+        List<CompletableFuture<LineResult>> results = new ArrayList<> ();
+
+        for (Line line : command.lines ()) {
+            CompletableFuture<Integer> available = CompletableFuture.completedFuture (0);
+            for (int stripe = 0; stripe < _settings.stripesOf (line.itemID ()); stripe++) {
+                RecipientRef<Inventory.Command> entity =
+                    _entities.apply (Inventory.entityID (line.siteID (), line.itemID (), stripe));
+                available = available.thenCombine (
+                    AskPattern.ask (entity, Inventory.GetStock::new, _settings.askTimeout (), system.scheduler ()),
+                    (sum, status) -> sum + status.available ());
+            }
+            results.add (available.thenApply (sum -> new LineResult (line, -1, sum)));
+        }
+
+        CompletableFuture.allOf (results.toArray (new CompletableFuture<?>[0]))
+                         .whenComplete ((ignored, failure) -> {
+                             if (failure != null) {
+                                 system.log ().warn ("Failed to read the stock of {} lines",
+                                                     command.lines ().size (), failure);
+                             } else {
+                                 command.replyTo ().tell (
+                                     new StockLevels (results.stream ().map (CompletableFuture::join).toList ()));
+                             }
+                         });
+
+        return this;
+    }
+
+/**
+  * Sends the buffered batches to the entities.
+  * <p>
+  * @param command the timer notification
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onFlush (Flush command)
+    {
+        Map<String,List<Pending>> reservations = _reservations;
+        Map<String,List<String>> releases = _releases;
+        _reservations = new HashMap<> ();
+        _releases = new HashMap<> ();
+
+        reservations.forEach (this::sendReservations);
+        releases.forEach (this::sendReleases);
+
+        return this;
+    }
+
+/**
+  * Fails a reservation request that reached its timeout. The lines reserved so far are
+  * released.
+  * <p>
+  * @param command the timer notification
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onExpire (Expire command)
+    {
+        if (!command.request ().completed) {
+            getContext ().getLog ().warn ("Reservation {} timed out", command.request ().command.reservationID ());
+            complete (command.request ());
+        }
+
+        return this;
+    }
+
+/**
+  * Processes the outcome of a batch of reservations. A line that wasn't reserved moves on
+  * to its next stripe, if there is one. A line whose batch failed gives up, and its
+  * possible reservation at the stripe is released.
+  * <p>
+  * @param command the outcome of the batch
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onReserveBatchCompleted (ReserveBatchCompleted command)
+    {
+        if (command.failure () != null) {
+            getContext ().getLog ().warn ("Failed to reserve a batch of {} lines", command.batch ().size (), command.failure ());
+        }
+
+        for (Pending pending : command.batch ()) {
+            Request request = pending.request ();
+            int i = pending.line ();
+            String itemID = request.command.lines ().get (i).itemID ();
+            boolean accepted =
+                command.status () != null && command.status ().accepted ().contains (request.command.reservationID ());
+            request.tried[i]++;
+
+            if (request.completed) {
+// -- the request timed out, so a line reserved (or maybe reserved) after its reply is
+// -- released
+                if (accepted || command.failure () != null) {
+                    Line line = request.command.lines ().get (i);
+                    enqueueRelease (Inventory.entityID (line.siteID (), itemID, pending.stripe ()),
+                                    request.command.reservationID ());
+                }
+                continue;
+            }
+
+            if (accepted) {
+                request.reserved[i] = true;
+                request.stripes[i] = pending.stripe ();
+            } else {
+                if (command.status () != null) {
+                    request.available[i] += command.status ().available ();
+                }
+                int stripes = _settings.stripesOf (itemID);
+                if (command.failure () != null) {
+// -- the entity may have persisted the reservation before the ask failed, so release it
+// -- (releasing a reservation that isn't held has no effect)
+                    Line line = request.command.lines ().get (i);
+                    enqueueRelease (Inventory.entityID (line.siteID (), itemID, pending.stripe ()),
+                                    request.command.reservationID ());
+                } else if (request.tried[i] < stripes) {
+                    enqueueReservation (new Pending (request, i, (pending.stripe () + 1) % stripes));
+                    continue;
+                }
+                request.stripes[i] = -1;
+            }
+
+            if (--request.pending == 0) {
+                complete (request);
+            }
+        }
+
+        return this;
+    }
+
+/**
+  * Processes the outcome of a batch of releases.
+  * <p>
+  * @param command the outcome of the batch
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onReleaseBatchCompleted (ReleaseBatchCompleted command)
+    {
+        if (command.failure () != null) {
+            getContext ().getLog ().warn ("Failed to release a batch of {} reservations of {}",
+                                          command.size (), command.entityID (), command.failure ());
+        }
+
+        return this;
+    }
+
+/**
+  * Replies to a reservation request whose lines were all processed, or that timed out. If
+  * any line wasn't reserved, the reserved lines are released.
+  * <p>
+  * @param request the reservation request
+  */
+
+    private void complete (Request request)
+    {
+        List<LineResult> results = new ArrayList<> ();
+        boolean reserved = true;
+
+        request.completed = true;
+        _timers.cancel (request);
+        for (int i = 0; i < request.reserved.length; i++) {
+            results.add (new LineResult (request.command.lines ().get (i),
+                                         request.reserved[i] ? request.stripes[i] : -1,
+                                         request.reserved[i] ? 0 : request.available[i]));
+            reserved &= request.reserved[i];
+        }
+        if (!reserved) {
+            onRelease (new Release (request.command.reservationID (), results));
+        }
+
+        request.command.replyTo ().tell (new ReserveResult (reserved, results));
+    }
+
+/**
+  * Buffers a reservation, and sends the batch of its entity if it is full.
+  * <p>
+  * @param pending the reservation
+  */
+
+    private void enqueueReservation (Pending pending)
+    {
+        Line line = pending.request ().command.lines ().get (pending.line ());
+        String entityID = Inventory.entityID (line.siteID (), line.itemID (), pending.stripe ());
+        List<Pending> batch = _reservations.computeIfAbsent (entityID, key -> new ArrayList<> ());
+
+        batch.add (pending);
+        if (batch.size () >= _settings.maxBatchSize ()) {
+            _reservations.remove (entityID);
+            sendReservations (entityID, batch);
+        } else {
+            scheduleFlush ();
+        }
+    }
+
+/**
+  * Buffers a release, and sends the batch of its entity if it is full.
+  * <p>
+  * @param entityID the entity identifier
+  * @param reservationID the reservation identifier
+  */
+
+    private void enqueueRelease (String entityID, String reservationID)
+    {
+        List<String> batch = _releases.computeIfAbsent (entityID, key -> new ArrayList<> ());
+
+        batch.add (reservationID);
+        if (batch.size () >= _settings.maxBatchSize ()) {
+            _releases.remove (entityID);
+            sendReleases (entityID, batch);
+        } else {
+            scheduleFlush ();
+        }
+    }
+
+/**
+  * Starts the batch window, unless it is already running.
+  */
+
+    private void scheduleFlush ()
+    {
+        if (!_timers.isTimerActive (FLUSH_TIMER_KEY)) {
+            _timers.startSingleTimer (FLUSH_TIMER_KEY, new Flush (), _settings.batchWindow ());
+        }
+    }
+
+/**
+  * Sends a batch of reservations to an entity.
+  * <p>
+  * @param entityID the entity identifier
+  * @param batch the reservations
+  */
+
+    private void sendReservations (String entityID, List<Pending> batch)
+    {
+        List<Inventory.Reservation> reservations = new ArrayList<> (batch.size ());
+        for (Pending pending : batch) {
+            reservations.add (
+                new Inventory.Reservation (
+                    pending.request ().command.reservationID (),
+                    pending.request ().command.lines ().get (pending.line ()).quantity ()));
+        }
+
+        getContext ().ask (
+            Inventory.StockStatus.class,
+            _entities.apply (entityID),
+            _settings.askTimeout (),
+            replyTo -> new Inventory.ReserveBatch (reservations, replyTo),
+            (status, failure) -> new ReserveBatchCompleted (batch, status, failure));
+    }
+
+/**
+  * Sends a batch of releases to an entity.
+  * <p>
+  * @param entityID the entity identifier
+  * @param batch the reservation identifiers
+  */
+
+    private void sendReleases (String entityID, List<String> batch)
+    {
+        List<String> reservationIDs = new ArrayList<> (new HashSet<> (batch));
+
+        getContext ().ask (
+            Inventory.StockStatus.class,
+            _entities.apply (entityID),
+            _settings.askTimeout (),
+            replyTo -> new Inventory.ReleaseBatch (reservationIDs, replyTo),
+            (status, failure) -> new ReleaseBatchCompleted (entityID, batch.size (), failure));
+    }
+
+}
@@ -0,0 +1,392 @@
+package com.eraneyal.order;
+
+import akka.util.ByteString;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+  * Implements the extraction of a single field from a JSON document, by scanning its
+  * bytes in place: the structure of the document is checked as it is scanned (numbers
+  * only loosely), but no object tree is built, and only the extracted value is decoded
+  * into a string.
+  * <p>
+  * The field is given as a path of object keys. As in a parsed object, the last value of
+  * a duplicate key wins. String, boolean and null values are extracted; other values
+  * (numbers, objects and arrays) are reported as unsupported, and left to a full parser.
+  */
+
+final class JsonScanner
+{
+
+/**
+  * Represents a document that can't be scanned: malformed JSON, or an unsupported value
+  * at the requested path. Thrown without a stack trace, since it is expected and handled
+  * by parsing the document with a full parser.
+  */
+
+    static final class UnsupportedDocumentException extends Exception
+    {
+
+        UnsupportedDocumentException (String message)
+        {
+            super (message, null, false, false);
+        }
+
+    }
+
+/**
+  * Holds the maximum nesting depth of the scanned documents.
+  */
+
+    private static final int MAX_DEPTH = 256;
+
+    private final ByteString _json;
+
+    private final byte[][] _path;
+
+    private final int _length;
+
+    private int _pos;
+
+    private JsonScanner (ByteString json, byte[][] path)
+    {
+        _json = json;
+        _path = path;
+        _length = json.length ();
+    }
+
+/**
+  * Returns the UTF-8 encoding of the given path of keys, as passed to {@link #find}.
+  * <p>
+  * @param path the keys
+  * @return the encoded keys
+  */
+
+    static byte[][] encodePath (String[] path)
+    {
+        byte[][] encoded = new byte[path.length][];
+        for (int i = 0; i < path.length; i++) {
+            encoded[i] = path[i].getBytes (StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+/**
+  * Returns the value of the field at the given path of the given JSON document, or null
+  * if the document has no such field, or its value is null.
+  * <p>
+  * @param json the JSON document
+  * @param path the UTF-8 encoded keys of the field
+  * @return the value of the field, or null if the document has no such field
+  * @exception UnsupportedDocumentException if the document is malformed, or the value of
+  *            the field isn't a string, a boolean or null
+  */
+
+    static String find (ByteString json, byte[][] path)
+        throws UnsupportedDocumentException
+    {
+        JsonScanner scanner = new JsonScanner (json, path);
+
+        scanner.skipWhitespace ();
+        String value = scanner.value (0);
+        scanner.skipWhitespace ();
+        if (scanner._pos != scanner._length) {
+            throw new UnsupportedDocumentException ("Unexpected content after the document");
+        }
+
+        return value;
+    }
+
+/**
+  * Scans a value at the given depth of the path, and returns the value of the field if
+  * the value is, or contains, the field.
+  */
+
+    private String value (int depth)
+        throws UnsupportedDocumentException
+    {
+        if (depth > MAX_DEPTH) {
+            throw new UnsupportedDocumentException ("Document too deep");
+        }
+        if (depth == _path.length) {
+            return target ();
+        }
+        if (peek () != '{') {
+            skipValue (depth);
+            return null;
+        }
+
+        String result = null;
+        _pos++;
+        skipWhitespace ();
+        if (peek () == '}') {
+            _pos++;
+            return null;
+        }
+        while (true) {
+            boolean match = key (_path[depth]);
+            skipWhitespace ();
+            expect (':');
+            skipWhitespace ();
+            if (match) {
+                result = value (depth + 1);
+            } else {
+                skipValue (depth + 1);
+            }
+            skipWhitespace ();
+            byte b = next ();
+            if (b == '}') {
+                return result;
+            } else if (b != ',') {
+                throw new UnsupportedDocumentException ("Expected ',' or '}' at " + (_pos - 1));
+            }
+            skipWhitespace ();
+        }
+    }
+
+/**
+  * Scans the value of the field.
+  */
+
+    private String target ()
+        throws UnsupportedDocumentException
+    {
+        byte b = peek ();
+        if (b == '"') {
+            int start = _pos + 1;
+            boolean escaped = skipString ();
+            return escaped ? decode (start, _pos - 1) : _json.slice (start, _pos - 1).utf8String ();
+        } else if (b == 't') {
+            literal ("true");
+            return "true";
+        } else if (b == 'f') {
+            literal ("false");
+            return "false";
+        } else if (b == 'n') {
+            literal ("null");
+            return null;
+        }
+        throw new UnsupportedDocumentException ("Unsupported value at " + _pos);
+    }
+
+/**
+  * Scans a key, and returns whether it equals the given key.
+  */
+
+    private boolean key (byte[] key)
+        throws UnsupportedDocumentException
+    {
+        if (peek () != '"') {
+            throw new UnsupportedDocumentException ("Expected a key at " + _pos);
+        }
+        int start = _pos + 1;
+        boolean escaped = skipString ();
+        int end = _pos - 1;
+
+        if (escaped) {
+            return decode (start, end).equals (new String (key, StandardCharsets.UTF_8));
+        }
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (_json.apply (start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipValue (int depth)
+        throws UnsupportedDocumentException
+    {
+        if (depth > MAX_DEPTH) {
+            throw new UnsupportedDocumentException ("Document too deep");
+        }
+
+        byte b = peek ();
+        switch (b) {
+            case '"' -> skipString ();
+            case 't' -> literal ("true");
+            case 'f' -> literal ("false");
+            case 'n' -> literal ("null");
+            case '{', '[' -> {
+                byte close = (byte) (b == '{' ? '}' : ']');
+                _pos++;
+                skipWhitespace ();
+                if (peek () == close) {
+                    _pos++;
+                    return;
+                }
+                while (true) {
+                    if (b == '{') {
+                        if (peek () != '"') {
+                            throw new UnsupportedDocumentException ("Expected a key at " + _pos);
+                        }
+                        skipString ();
+                        skipWhitespace ();
+                        expect (':');
+                        skipWhitespace ();
+                    }
+                    skipValue (depth + 1);
+                    skipWhitespace ();
+                    byte next = next ();
+                    if (next == close) {
+                        return;
+                    } else if (next != ',') {
+                        throw new UnsupportedDocumentException ("Expected ',' at " + (_pos - 1));
+                    }
+                    skipWhitespace ();
+                }
+            }
+            default -> skipNumber ();
+        }
+    }
+
+/**
+  * Skips a string, and returns whether it contains escape sequences.
+  */
+
+    private boolean skipString ()
+        throws UnsupportedDocumentException
+    {
+        boolean escaped = false;
+
+        _pos++;
+        while (true) {
+            byte b = next ();
+            if (b == '"') {
+                return escaped;
+            } else if (b == '\\') {
+                escaped = true;
+                byte e = next ();
+                if (e == 'u') {
+                    for (int i = 0; i < 4; i++) {
+                        hex (next ());
+                    }
+                } else if ("\"\\/bfnrt".indexOf (e) < 0) {
+                    throw new UnsupportedDocumentException ("Invalid escape at " + (_pos - 1));
+                }
+            } else if (b >= 0 && b < 0x20) {
+                throw new UnsupportedDocumentException ("Control character in string at " + (_pos - 1));
+            }
+        }
+    }
+
+    private void skipNumber ()
+        throws UnsupportedDocumentException
+    {
+        int start = _pos;
+
+        while (_pos < _length) {
+            byte b = _json.apply (_pos);
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                _pos++;
+            } else {
+                break;
+            }
+        }
+        if (_pos == start) {
+            throw new UnsupportedDocumentException ("Unexpected character at " + _pos);
+        }
+    }
+
+    private void literal (String literal)
+        throws UnsupportedDocumentException
+    {
+        for (int i = 0; i < literal.length (); i++) {
+            if (next () != literal.charAt (i)) {
+                throw new UnsupportedDocumentException ("Invalid literal at " + (_pos - 1));
+            }
+        }
+    }
+
+/**
+  * Decodes a string that contains escape sequences, given the positions of its content.
+  */
+
+    private String decode (int start, int end)
+        throws UnsupportedDocumentException
+    {
+        StringBuilder value = new StringBuilder (end - start);
+        int segment = start;
+
+        for (int i = start; i < end; i++) {
+            if (_json.apply (i) != '\\') {
+                continue;
+            }
+            value.append (_json.slice (segment, i).utf8String ());
+            byte e = _json.apply (++i);
+            switch (e) {
+                case 'b' -> value.append ('\b');
+                case 'f' -> value.append ('\f');
+                case 'n' -> value.append ('\n');
+                case 'r' -> value.append ('\r');
+                case 't' -> value.append ('\t');
+                case 'u' -> {
+                    int c = 0;
+                    for (int j = 0; j < 4; j++) {
+                        c = (c << 4) | hex (_json.apply (++i));
+                    }
+                    value.append ((char) c);
+                }
+                default -> value.append ((char) e);
+            }
+            segment = i + 1;
+        }
+        value.append (_json.slice (segment, end).utf8String ());
+
+        return value.toString ();
+    }
+
+    private static int hex (byte b)
+        throws UnsupportedDocumentException
+    {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        throw new UnsupportedDocumentException ("Invalid hex digit");
+    }
+
+    private void skipWhitespace ()
+    {
+        while (_pos < _length) {
+            byte b = _json.apply (_pos);
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                _pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void expect (char c)
+        throws UnsupportedDocumentException
+    {
+        if (next () != c) {
+            throw new UnsupportedDocumentException ("Expected '" + c + "' at " + (_pos - 1));
+        }
+    }
+
+    private byte peek ()
+        throws UnsupportedDocumentException
+    {
+        if (_pos >= _length) {
+            throw new UnsupportedDocumentException ("Unexpected end of document");
+        }
+        return _json.apply (_pos);
+    }
+
+    private byte next ()
+        throws UnsupportedDocumentException
+    {
+        byte b = peek ();
+        _pos++;
+        return b;
+    }
+
+}
@@ -2,6 +2,7 @@ package com.eraneyal.order;
 
 import com.eraneyal.order.proto.OrderService;
 
+import akka.actor.typed.ActorRef;
 import akka.actor.typed.ActorSystem;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.management.cluster.bootstrap.ClusterBootstrap;
@@ -47,9 +48,18 @@ public class Main
         AkkaManagement.get (system).start ();
         ClusterBootstrap.get (system).start ();
 
-        Order.init (system);
+        CourierBookingAPI.init (system);
+
+        ActorRef<OrderAllocationService.Command> allocator = OrderAllocationService.init (system);
+        Order.init (system, allocator);
 
         Config config = system.settings ().config ();
+        if (config.getBoolean ("order-service.projections-enabled")) {
+            OrderViewProjection.init (system);
+            DeliveryStatsProjection.init (system);
+            OrderArchiver.init (system);
+        }
+
         String grpcInterface = config.getString ("order-service.grpc.interface");
         int grpcPort = config.getInt ("order-service.grpc.port");
         OrderService grpcService = new OrderServiceImpl (system);
@@ -0,0 +1,91 @@
+package com.eraneyal.order;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+  * Publishes the metrics of the order service as JMX MXBeans of the platform MBean server,
+  * under the "com.eraneyal.order" domain, where they can be read by any JMX client or
+  * exporter.
+  */
+
+public final class Metrics
+{
+
+    private static final Logger logger = LoggerFactory.getLogger (Metrics.class);
+
+/**
+  * Holds the JMX domain of the metrics.
+  */
+
+    static final String DOMAIN = "com.eraneyal.order";
+
+    private Metrics ()
+    {
+    }
+
+/**
+  * Registers an MXBean under the given type, replacing a previously registered MXBean of
+  * the same type (e.g. of an earlier actor system in the same JVM). Failures are logged and
+  * otherwise ignored, since metrics are not essential to the service.
+  * <p>
+  * @param type the type of the MXBean, e.g. "PlanCache"
+  * @param mxbean the MXBean
+  */
+
+    public static void register (String type, Object mxbean)
+    {
+        register (type, null, mxbean);
+    }
+
+/**
+  * Registers an MXBean under the given type and name, for types that have several
+  * instances, replacing a previously registered MXBean of the same type and name.
+  * <p>
+  * @param type the type of the MXBean, e.g. "Projection"
+  * @param name the name of the instance, or null
+  * @param mxbean the MXBean
+  */
+
+    public static void register (String type, String name, Object mxbean)
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+            ObjectName objectName =
+                new ObjectName (DOMAIN + ":type=" + type + (name != null ? ",name=" + name : ""));
+            if (server.isRegistered (objectName)) {
+                server.unregisterMBean (objectName);
+            }
+            server.registerMBean (mxbean, objectName);
+        } catch (JMException e) {
+            logger.warn ("Failed to register {} metrics", type, e);
+        }
+    }
+
+/**
+  * Unregisters the MXBean of the given type and name, if it is registered.
+  * <p>
+  * @param type the type of the MXBean
+  * @param name the name of the instance
+  */
+
+    public static void unregister (String type, String name)
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+            ObjectName objectName = new ObjectName (DOMAIN + ":type=" + type + ",name=" + name);
+            if (server.isRegistered (objectName)) {
+                server.unregisterMBean (objectName);
+            }
+        } catch (JMException e) {
+            logger.warn ("Failed to unregister {} metrics", type, e);
+        }
+    }
+
+}
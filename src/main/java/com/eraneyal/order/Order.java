@@ -7,18 +7,15 @@ import akka.actor.typed.Behavior;
 import akka.actor.typed.SupervisorStrategy;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.TimerScheduler;
 import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.Entity;
 import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
-import akka.http.javadsl.Http;
-import akka.http.javadsl.model.HttpRequest;
-import akka.http.javadsl.model.HttpResponse;
-import akka.http.javadsl.model.StatusCodes;
 import akka.pattern.StatusReply;
 import akka.persistence.typed.PersistenceId;
 import akka.persistence.typed.RecoveryCompleted;
 import akka.persistence.typed.javadsl.CommandHandlerWithReply;
-import akka.persistence.typed.javadsl.CommandHandlerWithReplyBuilderByState;
+import akka.persistence.typed.javadsl.EffectBuilder;
 import akka.persistence.typed.javadsl.EventHandler;
 import akka.persistence.typed.javadsl.EventSourcedBehavior;
 import akka.persistence.typed.javadsl.EventSourcedBehaviorWithEnforcedReplies;
@@ -26,14 +23,14 @@ import akka.persistence.typed.javadsl.ReplyEffect;
 import akka.persistence.typed.javadsl.RetentionCriteria;
 import akka.persistence.typed.javadsl.SignalHandler;
 import akka.serialization.jackson.CborSerializable;
-import akka.stream.Materializer;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
-import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -71,13 +68,41 @@ public class Order
     implements Command {}
 
 /**
-  * Represents a command to persist order allocations.
+  * Represents a command to persist order allocations. Only the allocations of the first
+  * attempt that reaches the order are persisted, and the stock reserved for the others is
+  * released through the allocation service that planned them.
   * <p>
   * @param allocations the order allocations
+  * @param reservationID the identifier of the stock reservation of the allocations
+  * @param plan the assignments of the items to the site positions of the planning node
+  * @param reserved the reserved lines of the tracked items, or an empty list if no stock
+  *                 was reserved durably
+  * @param allocator a reference to the allocation service that planned the allocations
+  */
+
+    record ReceiveOrderAllocations (
+        Map<String,Allocation> allocations,
+        String reservationID,
+        List<AllocationEngine.Assignment> plan,
+        List<InventoryReservations.LineResult> reserved,
+        ActorRef<OrderAllocationService.Command> allocator)
+    implements Command {}
+
+/**
+  * Represents a rejection of an allocation request, by an overloaded allocation service or
+  * for lack of stock.
+  * <p>
+  * @param reason the reason to the rejection
   */
 
-    record ReceiveOrderAllocations (Map<String,Allocation> allocations)
-    implements Command {}
+    record AllocationRejected (String reason) implements Command {}
+
+/**
+  * Represents a command to request order allocation again, after a rejection or when no
+  * allocations were received in time.
+  */
+
+    record RetryAllocation () implements Command {}
 
 /**
   * Represents a command to mark the items of an order allocation as packed, and book
@@ -101,11 +126,58 @@ public class Order
 
     record PackOrderAllocationResult (String trackingID) implements CborSerializable {}
 
+/**
+  * Represents a command to mark the items of an order allocation as packed, and book
+  * delivery for them in the background. The reply is sent once the pack intent is
+  * persisted, and the result of the booking is published with {@link PackResults} when
+  * it finishes.
+  * <p>
+  * @param allocationID the allocation identifier
+  * @param replyTo a reference to the actor that will receive the booking job, or the
+  *                reason it couldn't be started
+  */
+
+    record StartPackOrderAllocation (
+        String allocationID,
+        ActorRef<StatusReply<PackJob>> replyTo)
+    implements Command {}
+
+/**
+  * Represents the response to a start pack order allocation request.
+  * <p>
+  * @param jobID the identifier of the booking job (see {@link PackResults#jobID})
+  */
+
+    record PackJob (String jobID) implements CborSerializable {}
+
+/**
+  * Represents a command to mark the items of all the allocated order allocations as
+  * packed, and book delivery for them in parallel.
+  * <p>
+  * @param replyTo a reference to the actor that will receive the reply for successful
+  *                or failed processing
+  */
+
+    record PackAllOrderAllocations (ActorRef<StatusReply<PackAllOrderAllocationsResult>> replyTo)
+    implements Command {}
+
+/**
+  * Represents the response to a pack all order allocations request.
+  * <p>
+  * @param trackingIDs the delivery tracking identifiers of the packed allocations, indexed
+  *                    by allocation identifier
+  * @param errors the reasons the other allocations weren't packed, indexed by allocation
+  *               identifier
+  */
+
+    record PackAllOrderAllocationsResult (Map<String,String> trackingIDs, Map<String,String> errors)
+    implements CborSerializable {}
+
 /**
   * Represents the result of a book delivery courier API call.
   */
 
-    private sealed interface BookDeliveryResult {}
+    sealed interface BookDeliveryResult {}
 
 /**
   * Represents success result of a book delivery courier API call.
@@ -113,7 +185,7 @@ public class Order
   * @param trackingID the delivery tracking identifier returned by the courier API
   */
 
-    private record BookDeliverySuccess (String trackingID) implements BookDeliveryResult {}
+    record BookDeliverySuccess (String trackingID) implements BookDeliveryResult {}
 
 /**
   * Represents failure result of a book delivery courier API call.
@@ -121,7 +193,7 @@ public class Order
   * @param reason the reason to the failure
   */
 
-    private record BookDeliveryFailure (String reason) implements BookDeliveryResult {}
+    record BookDeliveryFailure (String reason) implements BookDeliveryResult {}
 
 /**
   * Represents a command to complete the processing of the PackOrderAllocation command
@@ -130,13 +202,34 @@ public class Order
   * @param allocationID the allocation identifier
   * @param result the result of the book delivery courier API call
   * @param replyTo a reference to the actor that sent the original PackOrderAllocation
-  * 	   command, that will receive the reply for successful or failed processing
+  * 	   command, that will receive the reply for successful or failed processing, or the
+  * 	   ignoring actor for a booking in the background
+  * @param background true if the booking runs in the background (see
+  * 	   {@link StartPackOrderAllocation}), whose result ends the booking job
   */
 
-    private record WrappedPackOrderAllocationResult (
+    record WrappedPackOrderAllocationResult (
         String allocationID,
         BookDeliveryResult result,
-        ActorRef<StatusReply<PackOrderAllocationResult>> replyTo)
+        ActorRef<StatusReply<PackOrderAllocationResult>> replyTo,
+        boolean background)
+    implements Command {}
+
+/**
+  * Represents a command to complete the processing of the PackAllOrderAllocations command
+  * after the calls to the courier booking APIs finish.
+  * <p>
+  * @param results the results of the book delivery courier API calls, indexed by
+  *                allocation identifier
+  * @param bookings the number of booking API calls that were in progress at once
+  * @param replyTo a reference to the actor that sent the original PackAllOrderAllocations
+  * 	   command, that will receive the reply for successful or failed processing
+  */
+
+    record WrappedPackAllOrderAllocationsResult (
+        Map<String,BookDeliveryResult> results,
+        int bookings,
+        ActorRef<StatusReply<PackAllOrderAllocationsResult>> replyTo)
     implements Command {}
 
 /**
@@ -154,6 +247,26 @@ public class Order
         ActorRef<StatusReply<Done>> replyTo)
     implements Command {}
 
+/**
+  * Represents a command to update the tracking status of all the order allocations that
+  * were booked as a parcel under a tracking identifier. The allocations are updated
+  * together, or not at all.
+  * <p>
+  * @param trackingID the tracking identifier
+  * @param allocationID the identifier of an allocation of the parcel, which is updated
+  * 	   alone if no allocation holds the tracking identifier
+  * @param status the new tracking status
+  * @param replyTo a reference to the actor that will receive acknowledgement for
+  * 	   successful or failed processing
+  */
+
+    record UpdateParcelTracking (
+        String trackingID,
+        String allocationID,
+        Allocation.Status status,
+        ActorRef<StatusReply<Done>> replyTo)
+    implements Command {}
+
 /**
   * Represents a command to fetch order details along with its allocations.
   * <p>
@@ -254,6 +367,31 @@ public class Order
     record OrderAllocationPacked (String orderID, String allocationID, String trackingID, Instant timestamp)
     implements Event {}
 
+/**
+  * Represents an order allocation whose items are marked as packed, and whose delivery
+  * is booked in the background.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param timestamp the timestamp of the packing
+  */
+
+    record OrderAllocationBookingStarted (String orderID, String allocationID, Instant timestamp)
+    implements Event {}
+
+/**
+  * Represents a failed background delivery booking of an order allocation, which returns
+  * the allocation to the allocated status so it can be packed again.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param reason the reason to the failure
+  * @param timestamp the timestamp of the failure
+  */
+
+    record OrderAllocationBookingFailed (String orderID, String allocationID, String reason, Instant timestamp)
+    implements Event {}
+
 /**
   * Represents an updated tracking status of an allocation.
   * <p>
@@ -552,16 +690,10 @@ public class Order
         ENTITY_KEY = EntityTypeKey.create (Command.class, "Order");
 
 /**
-  * Holds the maximum number of booking API calls that be concurrently in progress.
-  */
-
-    private static final int MAX_BOOKINGS_IN_PROGRESS = 10;
-
-/**
-  * Holds the order identifier.
+  * Holds the command handling logic, shared with {@link DurableOrder}.
   */
 
-    private final String _ident;
+    private final OrderDecisions _decisions;
 
 /**
   * Holds the actor context.
@@ -569,41 +701,47 @@ public class Order
 
     private final ActorContext<Command> _ctx;
 
-/**
-  * Used for executing the courier booking API call.
-  */
-
-    private final Http _http;
-
-/**
-  * Used for executing the courier booking API call.
-  */
-
-    private final Materializer _materializer;
-
-/**
-  * Holds the current number of booking API calls in progress.
-  */
-
-    private int _bookingsInProgress = 0;
-
 /**
   * Initializes cluster sharding for Order entities, which distributes the entities over
-  * the nodes in the Akka cluster.
+  * the nodes in the Akka cluster. The entities are event sourced, or durable state
+  * entities (see {@link DurableOrder}), according to the order-service.entity-mode
+  * setting.
   * <p>
   * @param system the actor system
+  * @param allocator a reference to the allocation service
   */
 
-    public static void init (ActorSystem<?> system)
+    public static void init (ActorSystem<?> system, ActorRef<OrderAllocationService.Command> allocator)
     {
+        boolean durable = "durable-state".equals (system.settings ().config ().getString ("order-service.entity-mode"));
+
         ClusterSharding.get (system).init (
             Entity.of (
                 ENTITY_KEY,
-                ctx -> Order.create (ctx.getEntityId ())));
+                ctx -> durable
+                           ? DurableOrder.create (ctx.getEntityId (), allocator)
+                           : Order.create (ctx.getEntityId (), allocator)));
     }
 
 /**
-  * Creates an actor for the given order identifier.
+  * Creates an actor for the given order identifier, that uses the given allocation
+  * service.
+  * <p>
+  * @param ident the order identifier
+  * @param allocator a reference to the allocation service
+  * @return a new actor for the given order identifier
+  */
+
+    public static Behavior<Command> create (String ident, ActorRef<OrderAllocationService.Command> allocator)
+    {
+        return Behaviors.setup (
+            ctx -> Behaviors.withTimers (
+                timers -> EventSourcedBehavior.start (new Order (ident, ctx, timers, allocator), ctx)));
+    }
+
+/**
+  * Creates a standalone actor for the given order identifier, that uses a private
+  * allocation service running as a child actor (e.g. for testing).
   * <p>
   * @param ident the order identifier
   * @return a new actor for the given order identifier
@@ -612,7 +750,13 @@ public class Order
     public static Behavior<Command> create (String ident)
     {
         return Behaviors.setup (
-            ctx -> EventSourcedBehavior.start (new Order (ident, ctx), ctx));
+            ctx -> Behaviors.withTimers (
+                timers -> EventSourcedBehavior.start (
+                    new Order (ident,
+                               ctx,
+                               timers,
+                               ctx.spawn (OrderAllocationService.createStandalone (), "allocator")),
+                    ctx)));
     }
 
     @Override
@@ -621,24 +765,58 @@ public class Order
         return RetentionCriteria.snapshotEvery (100);
     }
 
+/**
+  * Tags each event with its type, so consumers of the published events (see
+  * {@link OrderEventProducer}) can filter them by tag.
+  */
+
+    @Override
+    public Set<String> tagsFor (Event event)
+    {
+        return Set.of (tagOf (event));
+    }
+
+/**
+  * Returns the tag of an event.
+  * <p>
+  * @param event the event
+  * @return the tag of the event
+  */
+
+    static String tagOf (Event event)
+    {
+        return switch (event) {
+        case OrderReceived evt -> "order-received";
+        case OrderAllocationsReceived evt -> "order-allocated";
+        case OrderAllocationPacked evt -> "allocation-packed";
+        case OrderAllocationBookingStarted evt -> "booking-started";
+        case OrderAllocationBookingFailed evt -> "booking-failed";
+        case TrackingUpdated evt -> "tracking-updated";
+        };
+    }
+
 /**
   * Creates a new order instance.
   * <p>
   * @param ident the order identifier.
   * @param ctx the actor context
+  * @param timers the timer scheduler
+  * @param allocator a reference to the allocation service
   */
 
-    private Order (String ident, ActorContext<Command> ctx)
+    private Order (
+        String ident,
+        ActorContext<Command> ctx,
+        TimerScheduler<Command> timers,
+        ActorRef<OrderAllocationService.Command> allocator)
     {
         super (
             PersistenceId.of (ENTITY_KEY.name (), ident),
             SupervisorStrategy.restartWithBackoff (Duration.ofMillis (200),
                                                    Duration.ofSeconds (5),
                                                    0.1));
-        _ident = ident;
+        _decisions = new OrderDecisions (ident, ctx, timers, allocator);
         _ctx = ctx;
-        _http = Http.get (ctx.getSystem ());
-        _materializer = Materializer.createMaterializer (ctx.getSystem ());
     }
 
     @Override
@@ -652,348 +830,39 @@ public class Order
 // ------------------------------------------------------------
 
 /**
-  * Returns a handler for incoming commands.
+  * Returns a handler for incoming commands. The handling of each command is decided by
+  * {@link OrderDecisions}, and its events are persisted.
   * <p>
   * @return the command handler
   */
 
     @Override
     public CommandHandlerWithReply<Command, Event, State> commandHandler ()
-    {
-        return newOrderHandler ()
-            .orElse (existingOrderHandler ())
-            .orElse (allocatedOrderHandler ())
-            .orElse (defaultHandler ())
-            .build ();
-    }
-
-/**
-  * Return command handler for new (empty) orders. Only {@link ReceiveOrder} is allowed.
-  * <p>
-  * @return the command handler
-  */
-
-    private CommandHandlerWithReplyBuilderByState<Command, Event, State, State>
-        newOrderHandler ()
-    {
-        return newCommandHandlerWithReplyBuilder ()
-            .forState (state -> state instanceof BlankState)
-            .onCommand (ReceiveOrder.class, this::onReceiveOrder)
-            .onCommand (
-                PackOrderAllocation.class,
-                cmd -> Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Order doesn't exist")))
-            .onCommand (
-                UpdateTracking.class,
-                cmd -> Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Order doesn't exist")));
-    }
-
-/**
-  * Return command handler for existing orders without allocations.
-  * Only {@link ReceiveOrderAllocations} is allowed.
-  * <p>
-  * @return the command handler
-  */
-
-    private CommandHandlerWithReplyBuilderByState<Command, Event, State, State>
-        existingOrderHandler ()
-    {
-        return newCommandHandlerWithReplyBuilder ()
-            .forState (state -> state instanceof NewOrderState)
-            .onCommand (
-                ReceiveOrder.class,
-                cmd -> Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Order already exists")))
-            .onCommand (ReceiveOrderAllocations.class, this::onReceiveAllocations)
-            .onCommand (
-                PackOrderAllocation.class,
-                cmd -> Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Order has no allocations")))
-            .onCommand (
-                UpdateTracking.class,
-                cmd -> Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Order has no allocations")));
-    }
-
-/**
-  * Return command handler for existing orders with allocations.
-  * Only {@link ReceiveOrderAllocations} is allowed.
-  * <p>
-  * @return the command handler
-  */
-
-    private CommandHandlerWithReplyBuilderByState<Command, Event, State, State>
-        allocatedOrderHandler ()
-    {
-        return newCommandHandlerWithReplyBuilder ()
-            .forState (state -> state instanceof AllocatedOrderState)
-            .onCommand (
-                ReceiveOrder.class,
-                cmd -> Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Order already exists")))
-            .onCommand (
-                ReceiveOrderAllocations.class,
-                cmd -> Effect ().noReply ())
-            .onCommand (PackOrderAllocation.class, this::onPackAllocation)
-            .onCommand (WrappedPackOrderAllocationResult.class, this::onPackAllocationResult)
-            .onCommand (UpdateTracking.class, this::onUpdateTracking);
-    }
-
-/**
-  * Return default command handler. Only {@link FetchOrderDetails} is allowed.
-  * <p>
-  * @return the default command handler
-  */
-
-    private CommandHandlerWithReplyBuilderByState<Command, Event, State, State>
-        defaultHandler ()
     {
         return newCommandHandlerWithReplyBuilder ()
             .forAnyState ()
-            .onCommand (FetchOrderDetails.class,
-                        (state, cmd) -> Effect ().reply (cmd.replyTo (),
-                                                         state.toOrderDetails ()));
-    }
-
-/**
-  * Handles a new order. The order is persisted, order allocation is initiated, and an
-  * acknowledgement is sent to the caller.
-  * <p>
-  * @param state the order state
-  * @param cmd the command
-  * @return the reply effect
-  */
-
-    private ReplyEffect<Event, State> onReceiveOrder (State state, ReceiveOrder cmd)
-    {
-        if (cmd.customer () == null) {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Customer details must be supplied"));
-        } else if (cmd.items () == null || cmd.items ().isEmpty ()) {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Order must contain at least one item"));
-        } else {
-            return Effect ().persist (new OrderReceived (_ident,
-                                                         cmd.items (),
-                                                         cmd.customer ()))
-                            .thenRun (newState ->
-                                _ctx.spawn (OrderAllocator.create (), _ident + "-allocator")
-                                    .tell (new OrderAllocator.Allocate (cmd.items (),
-                                                                        cmd.customer (),
-                                                                        _ctx.getSelf ())))
-                            .thenReply (cmd.replyTo (), x -> StatusReply.ack ());
-        }
-    }
-
-/**
-  * Handles received order allocations. The order allocations are persisted.
-  * <p>
-  * @param state the order state
-  * @param cmd the command
-  * @return the reply effect
-  */
-
-    private ReplyEffect<Event, State> onReceiveAllocations (State state, ReceiveOrderAllocations cmd)
-    {
-        if (cmd.allocations () != null && !cmd.allocations ().isEmpty ()) {
-            return Effect ().persist (new OrderAllocationsReceived (_ident,
-                                                                    cmd.allocations ()))
-                            .thenNoReply ();
-        } else {
-            return Effect ().noReply ();
-        }
+            .onAnyCommand ((state, cmd) -> effect (_decisions.decide (state, cmd)));
     }
 
 /**
-  * Handles order allocation packing. The courier booking API is executed, and when a
-  * response is returned, a new command containing the response is sent to same actor.
+  * Returns the effect of a decision.
   * <p>
-  * @param state the order state
-  * @param cmd the command
+  * @param decision the decision
   * @return the reply effect
   */
 
-    private ReplyEffect<Event, State> onPackAllocation (State state, PackOrderAllocation cmd)
+    private <R> ReplyEffect<Event, State> effect (OrderDecisions.Decision<R> decision)
     {
-        if (cmd.allocationID () == null || cmd.allocationID ().isBlank ()) {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Pack items request must contain a valid allocation identifier"));
-        } else if (state instanceof AllocatedOrderState allocated) {
-            if (allocated.hasAllocation (cmd.allocationID ())) {
-                if (allocated.getLatestAllocationStatus (cmd.allocationID ()) == Allocation.Status.ALLOCATED) {
-                    if (_bookingsInProgress == MAX_BOOKINGS_IN_PROGRESS) {
-                        return Effect ().reply (cmd.replyTo (),
-                            StatusReply.error ("Max " + MAX_BOOKINGS_IN_PROGRESS + " concurrent pack operations supported"));
-                    } else {
-                        try {
-                            Allocation allocation = allocated.getAllocation (cmd.allocationID ());
-                            CourierBookingAPI booking =
-                                CourierBookingAPI.getInstanceOrDefault (allocation.getCourier ());
-                            CourierBookingHandler handler = booking.getBookingHandler();
-                            Map<String,String> params = handler.getHTTPRequestParams (
-                                _ident,
-                                allocation,
-                                allocated.customer ());
-                            String uri = handler.getBookingURI (booking.getBaseURI (), params);
-                            _bookingsInProgress++;
-                            final CompletionStage<HttpResponse>
-                                futureResponse = _http.singleRequest (HttpRequest.create (uri));
-                            _ctx.pipeToSelf (
-                                futureResponse,
-                                (response, ex) -> {
-                                    if (ex != null) {
-// -- booking API failed
-                                        return new WrappedPackOrderAllocationResult (
-                                            cmd.allocationID (),
-                                            new BookDeliveryFailure ("failed to book delivery: " + ex.getMessage ()),
-                                            cmd.replyTo ());
-                                    } else {
-                                        if (response.status ().equals (StatusCodes.OK)) {
-// -- booking API successful
-                                            return
-                                                response.entity ()
-                                                        .toStrict (5000, _materializer)
-                                                        .thenApply (entity -> {
-                                                            try {
-                                                                String responseBody = entity.getData ().utf8String ();
-                                                                String trackingID =
-                                                                    booking.getBookingHandler ()
-                                                                           .getTrackingID (responseBody);
-                                                                return new WrappedPackOrderAllocationResult (
-                                                                    cmd.allocationID (),
-                                                                    new BookDeliverySuccess (trackingID),
-                                                                    cmd.replyTo ());
-                                                            }
-                                                            catch (CourierBookingHandlerException bookingEx) {
-                                                                return new WrappedPackOrderAllocationResult (
-                                                                    cmd.allocationID (),
-                                                                    new BookDeliveryFailure ("failed to book delivery: " + bookingEx.getMessage ()),
-                                                                    cmd.replyTo ());
-                                                            }
-                                                        })
-                                                        .toCompletableFuture ()
-                                                        .join ();
-                                        } else {
-// -- booking API failed
-                                            return new WrappedPackOrderAllocationResult (
-                                                cmd.allocationID (),
-                                                new BookDeliveryFailure ("failed to book delivery with status code " + response.status ()),
-                                                cmd.replyTo ());
-                                        }
-                                    }
-                                });
-                            return Effect ().noReply ();
-                        }
-                        catch (CourierBookingHandlerException bookingEx) {
-                            return Effect ().reply (cmd.replyTo (),
-                                StatusReply.error ("failed to book delivery: " + bookingEx.getMessage ()));
-                        }
-                    }
-                } else {
-                    return Effect ().reply (
-                        cmd.replyTo (),
-                        StatusReply.success (
-                            new PackOrderAllocationResult (
-                                allocated.getAllocation (cmd.allocationID ()).getTrackingID ())));
-                }
-            } else {
-                return Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Allocation not found"));
-            }
-        } else {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Order is not yet allocated"));
-        }
-    }
-
-/**
-  * Completes the handling of order allocation packing, when the courier booking API
-  * response is returned. Persists the new allocation state.
-  * <p>
-  * @param state the order state
-  * @param cmd the command
-  * @return the reply effect
-  */
+        EffectBuilder<Event, State> effect =
+            decision.events ().isEmpty () ? Effect ().none () : Effect ().persist (decision.events ());
 
-    private ReplyEffect<Event, State> onPackAllocationResult (State state, WrappedPackOrderAllocationResult cmd)
-    {
-        _bookingsInProgress--;
-        if (state instanceof AllocatedOrderState allocated) {
-            if (allocated.hasAllocation (cmd.allocationID ())) {
-                if (allocated.getLatestAllocationStatus (cmd.allocationID ()) == Allocation.Status.ALLOCATED) {
-                    return switch (cmd.result) {
-                    case BookDeliverySuccess success ->
-                        Effect ().persist (new OrderAllocationPacked (_ident,
-                                                                      cmd.allocationID (),
-                                                                      success.trackingID (),
-                                                                      Instant.now ()))
-                                 .thenReply (
-                                     cmd.replyTo (),
-                                     newstate -> StatusReply.success (
-                                         new PackOrderAllocationResult (success.trackingID ())));
-                    case BookDeliveryFailure failure ->
-                        Effect ().reply (
-                            cmd.replyTo (),
-                            StatusReply.error ("failed to book delivery: " + failure.reason));
-                    };
-                } else {
-                    return Effect ().reply (
-                        cmd.replyTo (),
-                        StatusReply.success (
-                            new PackOrderAllocationResult (
-                                allocated.getAllocation (cmd.allocationID ()).getTrackingID ())));
-                }
-            } else {
-                return Effect ().reply (cmd.replyTo (),
-                                        StatusReply.error ("Allocation not found"));
-            }
-        } else {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Order is not yet allocated"));
+        if (decision.then () != null) {
+            effect = effect.thenRun (decision.then ()::accept);
         }
-    }
-
-/**
-  * Handles order allocation tracking update. Persists the new allocation state.
-  * <p>
-  * @param state the order state
-  * @param cmd the command
-  * @return the reply effect
-  */
 
-    private ReplyEffect<Event, State> onUpdateTracking (State state, UpdateTracking cmd)
-    {
-        if (cmd.allocationID () == null || cmd.allocationID ().isBlank ()) {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Tracking update request must contain a valid allocation identifier"));
-        } else if (cmd.status () == null) {
-            return Effect ().reply (cmd.replyTo (),
-                                    StatusReply.error ("Tracking update request must contain a valid status"));
-        } else if (state instanceof AllocatedOrderState allocated) {
-            if (allocated.hasAllocation (cmd.allocationID ())) {
-                if (allocated.getLatestAllocationStatus (cmd.allocationID ()).ordinal () >= Allocation.Status.PACKED.ordinal () &&
-                    allocated.getLatestAllocationStatus (cmd.allocationID ()).ordinal () < cmd.status().ordinal ()) {
-                    return Effect ().persist (new TrackingUpdated (_ident,
-                                                                   cmd.allocationID (),
-                                                                   cmd.status (),
-                                                                   Instant.now ()))
-                                    .thenReply (cmd.replyTo (), x -> StatusReply.ack ());
-                } else {
-                    return Effect ().reply (
-                        cmd.replyTo (),
-                        StatusReply.error ("Existing allocation status inconsistent with requested tracking status"));
-                }
-            } else {
-                return Effect ().reply (
-                    cmd.replyTo (),
-                    StatusReply.error ("Allocation not found"));
-            }
-        } else {
-            return Effect ().reply (
-                cmd.replyTo (),
-                StatusReply.error ("Order is not yet allocated"));
-        }
+        return decision.replyTo () != null
+            ? effect.thenReply (decision.replyTo (), decision.reply ()::apply)
+            : effect.thenNoReply ();
     }
 
 // ------------------------------------------------------------
@@ -1006,21 +875,41 @@ public class Order
 
     @Override
     public EventHandler<State, Event> eventHandler () {
-        var builder = newEventHandlerBuilder ();
-        builder
-            .forStateType (BlankState.class)
-            .onEvent (OrderReceived.class, (state, evt) -> Order.NewOrderState.newOrder (evt.items (), evt.customer ()));
-
-        builder
-            .forStateType (NewOrderState.class)
-            .onEvent (OrderAllocationsReceived.class, (state, evt) -> Order.AllocatedOrderState.allocatedOrder (evt.allocations (), state.customer ()));
+        return newEventHandlerBuilder ()
+            .forAnyState ()
+            .onAnyEvent (Order::applyEvent);
+    }
 
-        builder
-            .forStateType (AllocatedOrderState.class)
-            .onEvent(OrderAllocationPacked.class, (state, evt) -> Order.AllocatedOrderState.allocatedOrderWithNewTrackingID (state.allocations (), state.customer (), evt.allocationID (), evt.trackingID (), evt.timestamp ()))
-            .onEvent(TrackingUpdated.class, (state, evt) -> Order.AllocatedOrderState.allocatedOrderWithNewStatus (state.allocations (), state.customer (), evt.allocationID (), evt.status (), evt.timestamp ()));
+/**
+  * Returns the state that results from applying an event to a state. This is the single
+  * definition of the state transitions of an order, shared by the entity and the read
+  * side projections.
+  * <p>
+  * @param state the current state
+  * @param event the event
+  * @return the new state
+  * @throws IllegalStateException if the event can't be applied to the state
+  */
 
-        return builder.build ();
+    static State applyEvent (State state, Event event)
+    {
+        return switch (state) {
+        case BlankState blank when event instanceof OrderReceived evt ->
+            Order.NewOrderState.newOrder (evt.items (), evt.customer ());
+        case NewOrderState newOrder when event instanceof OrderAllocationsReceived evt ->
+            Order.AllocatedOrderState.allocatedOrder (evt.allocations (), newOrder.customer ());
+        case AllocatedOrderState allocated when event instanceof OrderAllocationPacked evt ->
+            Order.AllocatedOrderState.allocatedOrderWithNewTrackingID (allocated.allocations (), allocated.customer (), evt.allocationID (), evt.trackingID (), evt.timestamp ());
+        case AllocatedOrderState allocated when event instanceof OrderAllocationBookingStarted evt ->
+            Order.AllocatedOrderState.allocatedOrderWithNewStatus (allocated.allocations (), allocated.customer (), evt.allocationID (), Allocation.Status.BOOKING, evt.timestamp ());
+        case AllocatedOrderState allocated when event instanceof OrderAllocationBookingFailed evt ->
+            Order.AllocatedOrderState.allocatedOrderWithNewStatus (allocated.allocations (), allocated.customer (), evt.allocationID (), Allocation.Status.ALLOCATED, evt.timestamp ());
+        case AllocatedOrderState allocated when event instanceof TrackingUpdated evt ->
+            Order.AllocatedOrderState.allocatedOrderWithNewStatus (allocated.allocations (), allocated.customer (), evt.allocationID (), evt.status (), evt.timestamp ());
+        default ->
+            throw new IllegalStateException (
+                "Unexpected event " + event.getClass ().getSimpleName () + " in state " + state.getClass ().getSimpleName ());
+        };
     }
 
 /**
@@ -1031,18 +920,10 @@ public class Order
     public SignalHandler<State> signalHandler ()
     {
         return newSignalHandlerBuilder ()
-            .onSignal (
-                RecoveryCompleted.instance (),
-                state -> {
-// -- if a new order was persisted, but failed to be assigned allocations, attempt to
-// -- create allocations again
-                    if (state instanceof NewOrderState newOrder) {
-                        _ctx.spawn (OrderAllocator.create (), _ident + "-allocator")
-                            .tell (new OrderAllocator.Allocate (newOrder.items (),
-                                                                newOrder.customer (),
-                                                                _ctx.getSelf ()));
-                    }
-                })
+// -- the archival job deletes the events of an order, but keeps its sequence number
+            .onSignal (RecoveryCompleted.instance (),
+                       state -> _decisions.onRecoveryCompleted (state,
+                                                                state instanceof BlankState && lastSequenceNumber (_ctx) > 0))
             .build ();
     }
 
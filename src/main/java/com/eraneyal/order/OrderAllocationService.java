@@ -0,0 +1,381 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.Props;
+import akka.actor.typed.SupervisorStrategy;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.PoolRouter;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.Routers;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.actor.typed.receptionist.ServiceKey;
+import akka.cluster.typed.Cluster;
+import akka.serialization.jackson.CborSerializable;
+
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+  * Implements a cluster-wide order allocation service, which replaces the per-order
+  * allocator actors.
+  * <p>
+  * Each node that has the configured allocator role (or every node, if no role is
+  * configured) runs a single instance of this actor, which routes allocation requests to a
+  * pool of {@link OrderAllocator} workers running on a dedicated dispatcher. The workers
+  * share a single {@link AllocationEngine}, whose stock index is initialized from the
+  * configuration, and reserve stock durably through the {@link InventoryReservations}
+  * front end of the node. The {@link Inventory} entities are the single owner of the
+  * stock, shared by all the nodes, while the stock index of a node is only a view used to
+  * plan allocations. The instances are registered with the receptionist, and the Order
+  * entities reach them through a group router, so allocation work is spread over all the
+  * allocator nodes regardless of where the entities are hosted. The allocations an entity
+  * doesn't accept are released through the instance that planned them, which returns
+  * their stock to its stock index as well as to the inventory.
+  * <p>
+  * The number of allocation requests in progress per instance is bounded. When the bound
+  * is reached, new requests are rejected with {@link Order.AllocationRejected}, so the
+  * Order entity can back off and retry instead of silently queueing up more work.
+  */
+
+public class OrderAllocationService extends AbstractBehavior<OrderAllocationService.Command>
+{
+
+/**
+  * Represents the commands supported by this actor.
+  */
+
+    public sealed interface Command extends CborSerializable {}
+
+/**
+  * Represents a request to allocate order items for a given customer.
+  * <p>
+  * @param orderID the order identifier
+  * @param reservationID the identifier of the stock reservation of this request, which is
+  * 	   unique per allocation attempt, so a late reply to an earlier attempt can be
+  * 	   released without releasing the stock of the accepted one
+  * @param items the items of the order, indexed by item identifier
+  * @param customer the customer of the order
+  * @param replyTo a reference to the Order entity that will receive the allocations, or
+  * 	   a rejection if the service is overloaded
+  */
+
+    public record Allocate (
+        String orderID,
+        String reservationID,
+        Map<String,OrderItem> items,
+        Customer customer,
+        ActorRef<Order.Command> replyTo)
+    implements Command {}
+
+/**
+  * Represents a request to release the stock reserved for allocations that an order
+  * entity didn't accept (e.g. a late reply to an allocation attempt that was retried). It
+  * must be sent to the instance that planned the allocations, whose stock index holds
+  * the reservation of the plan.
+  * <p>
+  * @param reservationID the reservation identifier
+  * @param plan the reserved assignments of items to site positions
+  * @param lines the lines reserved durably, or an empty list
+  */
+
+    public record Release (
+        String reservationID,
+        List<AllocationEngine.Assignment> plan,
+        List<InventoryReservations.LineResult> lines)
+    implements Command {}
+
+/**
+  * Represents a notification sent by a worker when it completes an allocation request.
+  */
+
+    record WorkerDone () implements Command {}
+
+/**
+  * Holds the service key under which the allocation services are registered.
+  */
+
+    static final ServiceKey<Command>
+        SERVICE_KEY = ServiceKey.create (Command.class, "order-allocation-service");
+
+/**
+  * Holds the number of workers of a standalone service.
+  */
+
+    private static final int DEFAULT_POOL_SIZE = 1;
+
+/**
+  * Holds the maximum number of allocation requests in progress of a standalone service.
+  */
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+/**
+  * Holds the pool of allocation workers.
+  */
+
+    private final ActorRef<OrderAllocator.Command> _workers;
+
+/**
+  * Holds the allocation engine shared by the workers.
+  */
+
+    private final AllocationEngine _engine;
+
+/**
+  * Holds a reference to the inventory reservations front end, or null if stock is
+  * reserved in the stock index only.
+  */
+
+    private final ActorRef<InventoryReservations.Command> _inventory;
+
+/**
+  * Holds the maximum number of allocation requests in progress.
+  */
+
+    private final int _maxInFlight;
+
+/**
+  * Holds the current number of allocation requests in progress.
+  */
+
+    private int _inFlight = 0;
+
+/**
+  * Initializes the allocation service on this node (if no role is configured, or if the
+  * node has the configured role), and returns a router that distributes allocation requests over all the allocation services
+  * in the cluster.
+  * <p>
+  * @param system the actor system
+  * @return a router to the allocation services in the cluster
+  */
+
+    public static ActorRef<Command> init (ActorSystem<?> system)
+    {
+        Config config = system.settings ().config ().getConfig ("order-service.allocator");
+        String role = config.getString ("use-role");
+
+        if (role.isEmpty () || Cluster.get (system).selfMember ().hasRole (role)) {
+            Config inventory = system.settings ().config ().getConfig ("order-service.inventory");
+            ActorRef<Command> service =
+                system.systemActorOf (
+                    OrderAllocationService.create (
+                        config.getInt ("pool-size"),
+                        config.getInt ("max-in-flight"),
+                        DispatcherSelector.fromConfig ("order-service.allocator.dispatcher"),
+                        createEngine (
+                            config,
+                            SiteCatalog.fromConfig (
+                                system.settings ().config ().getConfig ("order-service.sites"))),
+                        InventoryReservations.init (system),
+                        inventory.getDuration ("reserve-timeout")),
+                    "order-allocation-service",
+                    Props.empty ());
+            system.receptionist ().tell (Receptionist.register (SERVICE_KEY, service));
+        }
+
+        return system.systemActorOf (
+            Routers.group (SERVICE_KEY).withRoundRobinRouting (),
+            "order-allocation-router",
+            Props.empty ());
+    }
+
+/**
+  * Returns an allocation engine for the configured site catalog, whose stock index is
+  * initialized from the given allocator configuration. If the plan cache is enabled, its
+  * metrics are published as the "PlanCache" MXBean.
+  * <p>
+  * @param config the allocator configuration
+  * @param catalog the site catalog
+  * @return the allocation engine
+  */
+
+    static AllocationEngine createEngine (Config config, SiteCatalog catalog)
+    {
+        StockIndex index = new StockIndex (catalog.getSites ());
+
+        for (Config stock : config.getConfigList ("stock")) {
+            index.setStock (stock.getString ("site"),
+                            stock.getString ("item"),
+                            stock.getInt ("quantity"));
+        }
+
+        PlanCache cache = null;
+        if (config.getInt ("plan-cache.size") > 0) {
+            cache = new PlanCache (config.getInt ("plan-cache.size"),
+                                   config.getInt ("plan-cache.invalidation-threshold"));
+            Metrics.register ("PlanCache", cache.getMetrics ());
+        }
+
+        return new AllocationEngine (index, catalog.getLocator (), config.getInt ("nearest-sites"), cache);
+    }
+
+/**
+  * Returns a factory for a behavior.
+  * <p>
+  * @param poolSize the number of allocation workers
+  * @param maxInFlight the maximum number of allocation requests in progress
+  * @param workerProps the props (e.g. dispatcher) of the allocation workers
+  * @param engine the allocation engine shared by the workers
+  * @param inventory a reference to the inventory reservations front end, or null if stock
+  * 		 is reserved in the stock index only (e.g. a standalone service)
+  * @param reserveTimeout the timeout of a durable reservation
+  * @return a factory for a behavior
+  */
+
+    public static Behavior<Command> create (
+        int poolSize,
+        int maxInFlight,
+        Props workerProps,
+        AllocationEngine engine,
+        ActorRef<InventoryReservations.Command> inventory,
+        Duration reserveTimeout)
+    {
+        return Behaviors.setup (
+            context -> new OrderAllocationService (context,
+                                                   poolSize,
+                                                   maxInFlight,
+                                                   workerProps,
+                                                   engine,
+                                                   inventory,
+                                                   OrderAllocator.create (context.getSelf (),
+                                                                          engine,
+                                                                          inventory,
+                                                                          reserveTimeout)));
+    }
+
+/**
+  * Returns a factory for a behavior of a standalone service (e.g. for testing), which uses
+  * the default dispatcher and an allocation engine with no tracked items.
+  * <p>
+  * @return a factory for a behavior
+  */
+
+    public static Behavior<Command> createStandalone ()
+    {
+        return create (
+            DEFAULT_POOL_SIZE,
+            DEFAULT_MAX_IN_FLIGHT,
+            Props.empty (),
+            new AllocationEngine (new StockIndex (AllocationBuilder.getTemplateSites ())),
+            null,
+            null);
+    }
+
+/**
+  * Creates a new instance.
+  * <p>
+  * @param context the actor context
+  * @param poolSize the number of allocation workers
+  * @param maxInFlight the maximum number of allocation requests in progress
+  * @param workerProps the props (e.g. dispatcher) of the allocation workers
+  * @param engine the allocation engine shared by the workers
+  * @param inventory a reference to the inventory reservations front end, or null
+  * @param worker the behavior of an allocation worker
+  */
+
+    private OrderAllocationService (
+        ActorContext<Command> context,
+        int poolSize,
+        int maxInFlight,
+        Props workerProps,
+        AllocationEngine engine,
+        ActorRef<InventoryReservations.Command> inventory,
+        Behavior<OrderAllocator.Command> worker)
+    {
+        super (context);
+
+        PoolRouter<OrderAllocator.Command> pool =
+            Routers.pool (
+                poolSize,
+                Behaviors.supervise (worker)
+                         .onFailure (SupervisorStrategy.restart ()))
+                   .withRouteeProps (workerProps);
+        _workers = context.spawn (pool, "workers");
+        _engine = engine;
+        _inventory = inventory;
+        _maxInFlight = maxInFlight;
+    }
+
+/**
+  * Determines how messages to this actor are processed.
+  */
+
+    @Override
+    public Receive<Command> createReceive ()
+    {
+        return newReceiveBuilder ()
+                .onMessage (Allocate.class, this::onAllocate)
+                .onMessage (Release.class, this::onRelease)
+                .onMessage (WorkerDone.class, this::onWorkerDone)
+                .build ();
+    }
+
+/**
+  * Routes an allocation request to a worker, or rejects it if too many requests are
+  * already in progress.
+  * <p>
+  * @param command the allocation request
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onAllocate (Allocate command)
+    {
+        if (_inFlight >= _maxInFlight) {
+            command.replyTo ().tell (
+                new Order.AllocationRejected (
+                    "Max " + _maxInFlight + " concurrent allocations supported"));
+        } else {
+            _inFlight++;
+            _workers.tell (new OrderAllocator.Allocate (command.orderID (),
+                                                        command.reservationID (),
+                                                        command.items (),
+                                                        command.customer (),
+                                                        command.replyTo ()));
+        }
+
+        return this;
+    }
+
+/**
+  * Releases the stock of allocations that an order entity didn't accept, both in the
+  * stock index and in the inventory.
+  * <p>
+  * @param command the release request
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onRelease (Release command)
+    {
+        _engine.release (command.plan ());
+        if (_inventory != null && !command.lines ().isEmpty ()) {
+            _inventory.tell (new InventoryReservations.Release (command.reservationID (), command.lines ()));
+        }
+
+        return this;
+    }
+
+/**
+  * Records the completion of an allocation request by a worker.
+  * <p>
+  * @param command the completion notification
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onWorkerDone (WorkerDone command)
+    {
+        if (_inFlight > 0) {
+            _inFlight--;
+        }
+
+        return this;
+    }
+
+}
@@ -7,8 +7,11 @@ import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
   * Implements an actor that allocates an order, i.e. decides the storage locations from
@@ -16,7 +19,21 @@ import java.util.Map;
   * to deliver them.
   * <p>
   * An order may be split into multiple allocations, which means the ordered items may be
-  * collected from multiple storage locations and delivered separately.
+  * collected from multiple storage locations and delivered separately. The allocation
+  * decision itself is made by an {@link AllocationEngine}, shared by all the workers of a
+  * node.
+  * <p>
+  * The stock index of the engine is a node local view of the stock levels, used to plan
+  * allocations. When the {@link InventoryReservations} front end is available, the stock
+  * of the tracked items is reserved durably by the {@link Inventory} entities, which own
+  * the stock of all the nodes, before the allocations are sent to the order entity along
+  * with their reservation. When the stock index can't supply an order, the stock levels
+  * that block it are read from the inventory entities before the order is rejected, so a
+  * stock index that fell behind the inventory is corrected rather than trusted.
+  * <p>
+  * Instances of this actor are long lived workers, routed by {@link OrderAllocationService}.
+  * A worker notifies the service when it completes an allocation request, so the service
+  * can keep track of the number of allocation requests in progress.
   */
 
 public class OrderAllocator extends AbstractBehavior<OrderAllocator.Command>
@@ -31,34 +48,128 @@ public class OrderAllocator extends AbstractBehavior<OrderAllocator.Command>
 /**
   * Represents a command to allocate order items for a given customer.
   * <p>
+  * @param orderID the order identifier
+  * @param reservationID the identifier of the stock reservation of the request
   * @param items the items of the order, indexed by item identifier
   * @param customer the customer of the order
   * @param replyTo a reference to the Order entity that will receive the allocations
   */
 
-    record Allocate (Map<String,OrderItem> items, Customer customer, ActorRef<Order.Command> replyTo)
+    record Allocate (
+        String orderID,
+        String reservationID,
+        Map<String,OrderItem> items,
+        Customer customer,
+        ActorRef<Order.Command> replyTo)
+    implements Command {}
+
+/**
+  * Represents the result of the durable reservation of an allocation plan.
+  */
+
+    private record WrappedReserveResult (
+        Allocate command,
+        List<AllocationEngine.Assignment> plan,
+        InventoryReservations.ReserveResult result,
+        Throwable failure)
     implements Command {}
 
+/**
+  * Represents the stock levels read from the inventory, for an order that the stock index
+  * couldn't supply.
+  */
+
+    private record WrappedStockLevels (
+        Allocate command,
+        InventoryReservations.StockLevels levels,
+        Throwable failure)
+    implements Command {}
+
+/**
+  * Holds a reference to the allocation service that routes requests to this worker.
+  */
+
+    private final ActorRef<OrderAllocationService.Command> _service;
+
+/**
+  * Holds the allocation engine.
+  */
+
+    private final AllocationEngine _engine;
+
+/**
+  * Holds a reference to the inventory reservations front end, or null if stock is reserved
+  * in the node local stock index only.
+  */
+
+    private final ActorRef<InventoryReservations.Command> _inventory;
+
+/**
+  * Holds the timeout of a durable reservation. The front end fails a reservation that
+  * takes longer, and its reply is awaited for twice as long.
+  */
+
+    private final Duration _reserveTimeout;
+
+/**
+  * Returns a factory for a behavior, which reserves stock in the node local stock index
+  * only.
+  * <p>
+  * @param service a reference to the allocation service that routes requests to the worker
+  * @param engine the allocation engine
+  * @return a factory for a behavior
+  */
+
+    public static Behavior<Command> create (
+        ActorRef<OrderAllocationService.Command> service,
+        AllocationEngine engine)
+    {
+        return create (service, engine, null, null);
+    }
+
 /**
   * Returns a factory for a behavior.
   * <p>
+  * @param service a reference to the allocation service that routes requests to the worker
+  * @param engine the allocation engine
+  * @param inventory a reference to the inventory reservations front end, or null if stock
+  * 		 is reserved in the node local stock index only
+  * @param reserveTimeout the timeout of a durable reservation
   * @return a factory for a behavior
   */
 
-    public static Behavior<Command> create ()
+    public static Behavior<Command> create (
+        ActorRef<OrderAllocationService.Command> service,
+        AllocationEngine engine,
+        ActorRef<InventoryReservations.Command> inventory,
+        Duration reserveTimeout)
     {
-        return Behaviors.setup (context -> new OrderAllocator (context));
+        return Behaviors.setup (
+            context -> new OrderAllocator (context, service, engine, inventory, reserveTimeout));
     }
 
 /**
   * Creates a new instance.
   * <p>
   * @param context the actor context
+  * @param service a reference to the allocation service that routes requests to this worker
+  * @param engine the allocation engine
+  * @param inventory a reference to the inventory reservations front end, or null
+  * @param reserveTimeout the timeout of a durable reservation
   */
 
-    private OrderAllocator (ActorContext<Command> context)
+    private OrderAllocator (
+        ActorContext<Command> context,
+        ActorRef<OrderAllocationService.Command> service,
+        AllocationEngine engine,
+        ActorRef<InventoryReservations.Command> inventory,
+        Duration reserveTimeout)
     {
         super (context);
+        _service = service;
+        _engine = engine;
+        _inventory = inventory;
+        _reserveTimeout = reserveTimeout;
     }
 
 /**
@@ -69,62 +180,249 @@ public class OrderAllocator extends AbstractBehavior<OrderAllocator.Command>
     public Receive<Command> createReceive () {
         return newReceiveBuilder ()
                 .onMessage (OrderAllocator.Allocate.class, this::onAllocate)
+                .onMessage (WrappedReserveResult.class, this::onReserveResult)
+                .onMessage (WrappedStockLevels.class, this::onStockLevels)
                 .build ();
     }
 
 /**
   * Processes a command to allocate ordered items for a given customer.
   * <p>
-  * NOTE: The following logic doesn't perform real order allocation (which would require
-  *       integration with the inventory of the stores and/or warehouses from which the
-  *       items were ordered, to determine from where the order can be fulfilled).
-  *       Instead, we only simulate the creation of allocation[s] by using hard-coded
-  *       allocations. If the order has a single item, we create a single allocation.
-  *       Otherwise, we randomly decide if to create a single allocation for all the items
-  *       or to arbitrarily split them into two allocations.
-  * <p>
   * @param command the command to allocate ordered items for a given customer
   * @return the new behavior for follow-up messages
   */
 
     private Behavior<Command> onAllocate (OrderAllocator.Allocate command)
     {
-        Map<String,Allocation> allocations = new HashMap<> ();
+        boolean done = true;
+
+        try {
+            done = allocate (command, false);
+        }
+        finally {
+// -- the worker is reused for follow-up requests, so the service must be notified even if
+// -- the allocation failed
+            if (done) {
+                _service.tell (new OrderAllocationService.WorkerDone ());
+            }
+        }
+
+        return this;
+    }
+
+/**
+  * Processes the stock levels read from the inventory for an order that the stock index
+  * couldn't supply. The stock levels replace the local ones, and the order is planned
+  * again.
+  * <p>
+  * @param wrapped the stock levels
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onStockLevels (WrappedStockLevels wrapped)
+    {
+        boolean done = true;
+
+        try {
+            if (wrapped.levels () != null) {
+                for (InventoryReservations.LineResult line : wrapped.levels ().lines ()) {
+                    _engine.getStockIndex ().setStock (line.line ().siteID (),
+                                                       line.line ().itemID (),
+                                                       Math.max (0, line.available ()));
+                }
+                done = allocate (wrapped.command (), true);
+            } else {
+                getContext ().getLog ().warn ("Failed to read the inventory of order {}",
+                                              wrapped.command ().orderID (), wrapped.failure ());
+                reject (wrapped.command (), "Failed to read the inventory");
+            }
+        }
+        finally {
+            if (done) {
+                _service.tell (new OrderAllocationService.WorkerDone ());
+            }
+        }
+
+        return this;
+    }
+
+/**
+  * Allocates ordered items for a given customer. If the order can't be fulfilled with the
+  * stock levels of the stock index, the levels of the items that block it are read from
+  * the inventory once, and the order is planned again with them. An order that can't be
+  * fulfilled is rejected, so the order entity backs off before it requests allocation
+  * again.
+  * <p>
+  * @param command the command to allocate ordered items for a given customer
+  * @param synced true if the stock levels were already read from the inventory
+  * @return true if the request is complete, or false if it awaits the inventory
+  */
+
+    private boolean allocate (OrderAllocator.Allocate command, boolean synced)
+    {
         Map<String,OrderItem> items = command.items ();
-// -- NOTE: though we are not using the customer in this simulation, a real allocation
-// --		logic will probably use the customer's address to find the optimal allocation
-// --       site and courier service
         Customer customer = command.customer ();
 
-        if (items != null && items.size() > 0 && customer != null) {
-            if (items.size () <= 1 || Math.random () < 0.5) {
-// -- create a single allocation for all items
-                Allocation one = new AllocationBuilder ().setID (1)
-                                                         .setItems (items)
-                                                         .build ();
-                allocations.put (one.getID (), one);
-            } else {
-// -- split the items into two allocations
-                Map.Entry<String,OrderItem> first = items.entrySet ().iterator ().next ();
-                items = new HashMap<> (items);
-                items.remove (first.getKey ());
-// -- a first allocation for the first item
-                Allocation one = new AllocationBuilder ().setID (1)
-                                                         .setItems (Map.of (first.getKey (),
-                                                                            first.getValue ()))
-                                                         .build ();
-                allocations.put (one.getID (), one);
-// -- a second allocation for the remaining items
-                Allocation two = new AllocationBuilder ().setID (2)
-                                                         .setItems (items)
-                                                         .build ();
-                allocations.put (two.getID (), two);
+        if (items == null || items.isEmpty () || customer == null) {
+            return true;
+        }
+
+        List<AllocationEngine.Assignment> plan = _engine.reserve (items, customer);
+        if (plan == null) {
+            List<InventoryReservations.Line> shortages =
+                _inventory != null && !synced ? toShortages (items) : List.of ();
+            if (shortages.isEmpty ()) {
+                getContext ().getLog ().warn ("Insufficient stock to allocate order {}", command.orderID ());
+                reject (command, "Insufficient stock");
+                return true;
             }
+// -- the stock index may have fallen behind the inventory, e.g. when stock was added on
+// -- another node, so the blocking stock levels are read before the order is rejected
+            getContext ().ask (
+                InventoryReservations.StockLevels.class,
+                _inventory,
+                _reserveTimeout.multipliedBy (2),
+                replyTo -> new InventoryReservations.GetStock (shortages, replyTo),
+                (levels, failure) -> new WrappedStockLevels (command, levels, failure));
+            return false;
+        }
+
+        List<InventoryReservations.Line> lines = toLines (plan);
+        if (_inventory == null || lines.isEmpty ()) {
 // -- send the allocations to the order entity
-            command.replyTo ().tell (new Order.ReceiveOrderAllocations (allocations));
+            command.replyTo ().tell (
+                new Order.ReceiveOrderAllocations (_engine.toAllocations (plan),
+                                                   command.reservationID (),
+                                                   plan,
+                                                   List.of (),
+                                                   _service));
+            return true;
+        }
+
+// -- reserve the stock durably before sending the allocations. the worker keeps serving
+// -- other requests in the meantime
+        getContext ().ask (
+            InventoryReservations.ReserveResult.class,
+            _inventory,
+            _reserveTimeout.multipliedBy (2),
+            replyTo -> new InventoryReservations.Reserve (command.reservationID (), lines, replyTo),
+            (result, failure) -> new WrappedReserveResult (command, plan, result, failure));
+        return false;
+    }
+
+/**
+  * Rejects an allocation request that can't be fulfilled.
+  * <p>
+  * @param command the allocation request
+  * @param reason the reason to the rejection
+  */
+
+    private void reject (OrderAllocator.Allocate command, String reason)
+    {
+        command.replyTo ().tell (new Order.AllocationRejected (reason));
+    }
+
+/**
+  * Processes the result of the durable reservation of an allocation plan. If the stock
+  * couldn't be reserved, the local reservation is released, and the stock levels reported
+  * by the inventory entities replace the local ones.
+  * <p>
+  * @param wrapped the result of the durable reservation
+  * @return the new behavior for follow-up messages
+  */
+
+    private Behavior<Command> onReserveResult (WrappedReserveResult wrapped)
+    {
+        try {
+            if (wrapped.result () != null && wrapped.result ().reserved ()) {
+                wrapped.command ().replyTo ().tell (
+                    new Order.ReceiveOrderAllocations (_engine.toAllocations (wrapped.plan ()),
+                                                       wrapped.command ().reservationID (),
+                                                       wrapped.plan (),
+                                                       wrapped.result ().lines (),
+                                                       _service));
+            } else {
+                _engine.release (wrapped.plan ());
+                if (wrapped.result () != null) {
+                    getContext ().getLog ().warn ("Insufficient inventory to allocate order {}",
+                                                  wrapped.command ().orderID ());
+                    for (InventoryReservations.LineResult line : wrapped.result ().lines ()) {
+                        if (line.stripe () < 0) {
+                            _engine.getStockIndex ().setStock (line.line ().siteID (),
+                                                               line.line ().itemID (),
+                                                               Math.max (0, line.available ()));
+                        }
+                    }
+                    reject (wrapped.command (), "Insufficient stock");
+                } else {
+// -- the front end didn't reply, although it fails a reservation that times out and
+// -- releases its stock, so it's likely gone
+                    getContext ().getLog ().warn ("Failed to reserve inventory of order {}",
+                                                  wrapped.command ().orderID (), wrapped.failure ());
+                    reject (wrapped.command (), "Failed to reserve inventory");
+                }
+            }
+        }
+        finally {
+            _service.tell (new OrderAllocationService.WorkerDone ());
+        }
+
+        return this;
+    }
+
+/**
+  * Returns the lines of the tracked items of an order that no site can supply according
+  * to the stock index, at every site.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @return the lines whose stock levels block the order
+  */
+
+    private List<InventoryReservations.Line> toShortages (Map<String,OrderItem> items)
+    {
+        StockIndex index = _engine.getStockIndex ();
+        List<InventoryReservations.Line> lines = new ArrayList<> ();
+
+        for (OrderItem item : items.values ()) {
+            AtomicIntegerArray stock = index.getItemStock (item.getItemID ());
+            if (stock == null) {
+                continue;
+            }
+            boolean supplied = false;
+            for (int position = 0; position < stock.length () && !supplied; position++) {
+                supplied = stock.get (position) >= item.getQuantity ();
+            }
+            if (!supplied) {
+                for (int position = 0; position < index.getSiteCount (); position++) {
+                    lines.add (new InventoryReservations.Line (index.getSite (position).getID (), item.getItemID (), 0));
+                }
+            }
+        }
+
+        return lines;
+    }
+
+/**
+  * Returns the lines of the tracked items of the given plan.
+  * <p>
+  * @param plan the assignments of items to sites
+  * @return the lines of the tracked items
+  */
+
+    private List<InventoryReservations.Line> toLines (List<AllocationEngine.Assignment> plan)
+    {
+        StockIndex index = _engine.getStockIndex ();
+        List<InventoryReservations.Line> lines = new ArrayList<> ();
+
+        for (AllocationEngine.Assignment assignment : plan) {
+            String siteID = index.getSite (assignment.position ()).getID ();
+            for (OrderItem item : assignment.items ().values ()) {
+                if (index.isTracked (item.getItemID ())) {
+                    lines.add (new InventoryReservations.Line (siteID, item.getItemID (), item.getQuantity ()));
+                }
+            }
         }
 
-// -- the actor should be stopped after the allocations are returned to the order entity
-        return Behaviors.stopped ();
+        return lines;
     }
 }
@@ -0,0 +1,899 @@
+package com.eraneyal.order;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+  * Implements the cold store of archived orders: immutable segment files on local disk,
+  * which hold the serialized states of orders that were removed from the hot tables by
+  * {@link OrderArchiver}.
+  * <p>
+  * A segment holds its orders sorted by order identifier, in blocks that are compressed
+  * separately, followed by a sparse index (the first order identifier of each block) and
+  * a bloom filter of the order identifiers. The index and the bloom filters of all the
+  * segments are kept in memory, so looking up an order that isn't archived usually costs
+  * no disk access at all, and looking up an archived order costs a single block read per
+  * segment that may hold it (segments are searched newest first).
+  * <p>
+  * Segments are written to a temporary file and renamed once complete, so readers never
+  * see a partial segment. Other readers of the same directory (e.g. other nodes, if the
+  * directory is shared) pick up new segments at most a refresh interval after they were
+  * written.
+  * <p>
+  * Since every segment costs an open file and a bloom filter probe per lookup, the writer
+  * keeps their number bounded by merging adjacent segments (see {@link #compact}). A
+  * merged segment replaces the segments it was merged from, which are deleted once it is
+  * in place, and readers drop the segments whose files are gone when they refresh.
+  */
+
+public final class OrderArchive implements AutoCloseable
+{
+
+/**
+  * Represents the metrics of the archive.
+  */
+
+    public interface OrderArchiveMXBean
+    {
+
+/**
+  * Returns the current number of segments, as last seen by this instance.
+  */
+
+        int getSegments ();
+
+/**
+  * Returns the number of orders held by the segments, counting an order once per segment
+  * that holds it.
+  */
+
+        long getOrders ();
+
+/**
+  * Returns the number of lookups that found the order in a segment.
+  */
+
+        long getHits ();
+
+/**
+  * Returns the number of lookups that didn't find the order in any segment.
+  */
+
+        long getMisses ();
+
+    }
+
+/**
+  * Represents an archived order.
+  * <p>
+  * @param orderID the order identifier
+  * @param serializerID the identifier of the serializer of the order state
+  * @param manifest the serialization manifest of the order state, which may be empty
+  * @param payload the serialized order state
+  */
+
+    public record Entry (String orderID, int serializerID, String manifest, byte[] payload) {}
+
+/**
+  * Holds the magic number at the end of a segment.
+  */
+
+    private static final int MAGIC = 0x4f415243;
+
+/**
+  * Holds the file name suffix of a segment.
+  */
+
+    private static final String SUFFIX = ".seg";
+
+/**
+  * Holds the number of bloom filter bits per order.
+  */
+
+    private static final int BLOOM_BITS_PER_ORDER = 10;
+
+/**
+  * Holds the number of hash functions of the bloom filters.
+  */
+
+    private static final int BLOOM_HASHES = 7;
+
+/**
+  * Holds the number of adjacent segments merged at once.
+  */
+
+    private static final int MERGE_FACTOR = 4;
+
+/**
+  * Holds the archive directory.
+  */
+
+    private final Path _directory;
+
+/**
+  * Holds the uncompressed size of a block.
+  */
+
+    private final int _blockSize;
+
+/**
+  * Holds the minimal time between two scans of the directory for new segments.
+  */
+
+    private final long _refreshNanos;
+
+/**
+  * Holds the open segments, newest first.
+  */
+
+    private volatile List<Segment> _segments = List.of ();
+
+/**
+  * Holds the time of the last scan of the directory.
+  */
+
+    private volatile long _refreshedAt;
+
+/**
+  * Holds the modification time of the directory at the last scan.
+  */
+
+    private volatile long _directoryModifiedAt;
+
+    private final LongAdder _hits = new LongAdder ();
+
+    private final LongAdder _misses = new LongAdder ();
+
+/**
+  * Creates a new instance, and opens the segments of the directory.
+  * <p>
+  * @param directory the archive directory, which is created if it doesn't exist
+  * @param blockSize the uncompressed size of a block
+  * @param refreshInterval the minimal time between two scans of the directory for
+  * 	   segments written by other instances
+  * @throws UncheckedIOException if the directory can't be read
+  */
+
+    public OrderArchive (Path directory, int blockSize, Duration refreshInterval)
+    {
+        _directory = directory;
+        _blockSize = blockSize;
+        _refreshNanos = refreshInterval.toNanos ();
+        try {
+            Files.createDirectories (directory);
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+        refresh ();
+    }
+
+/**
+  * Returns the metrics of the archive.
+  * <p>
+  * @return the metrics of the archive
+  */
+
+    public OrderArchiveMXBean getMetrics ()
+    {
+        return new OrderArchiveMXBean ()
+        {
+            public int getSegments () { return _segments.size (); }
+
+            public long getOrders () { return _segments.stream ().mapToLong (Segment::orders).sum (); }
+
+            public long getHits () { return _hits.sum (); }
+
+            public long getMisses () { return _misses.sum (); }
+        };
+    }
+
+/**
+  * Returns true if the given order may be archived, i.e. false if it is certainly not
+  * archived. No disk access is involved, so segments written by other instances are only
+  * seen once the archive was refreshed (see {@link #find} and {@link #refreshIfModified}).
+  * <p>
+  * @param orderID the order identifier
+  * @return true if the order may be archived
+  */
+
+    public boolean mightContain (String orderID)
+    {
+        for (Segment segment : _segments) {
+            if (segment.mightContain (orderID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+/**
+  * Returns an archived order. This reads from disk (and scans the directory for new
+  * segments, once per refresh interval), so it must not be called from a dispatcher that
+  * runs actors.
+  * <p>
+  * @param orderID the order identifier
+  * @return the archived order, or an empty optional if the order isn't archived
+  * @throws UncheckedIOException if a segment can't be read
+  */
+
+    public Optional<Entry> find (String orderID)
+    {
+        maybeRefresh ();
+        while (true) {
+            try {
+                for (Segment segment : _segments) {
+                    if (segment.mightContain (orderID)) {
+                        Optional<Entry> entry = segment.find (orderID);
+                        if (entry.isPresent ()) {
+                            _hits.increment ();
+                            return entry;
+                        }
+                    }
+                }
+                _misses.increment ();
+                return Optional.empty ();
+            }
+            catch (ClosedChannelException exc) {
+// -- a segment was merged into a newer one while it was read, so the lookup is repeated
+            }
+            catch (IOException exc) {
+                throw new UncheckedIOException ("Failed to read the archive", exc);
+            }
+        }
+    }
+
+/**
+  * Writes the given orders to a new segment. An order that was archived before may be
+  * written again, in which case the newest segment wins.
+  * <p>
+  * @param entries the orders
+  * @throws UncheckedIOException if the segment can't be written
+  */
+
+    public void write (List<Entry> entries)
+    {
+        if (entries.isEmpty ()) {
+            return;
+        }
+
+        TreeMap<String,Entry> sorted = new TreeMap<> ();
+        for (Entry entry : entries) {
+            sorted.put (entry.orderID (), entry);
+        }
+
+// -- the name starts with the time, so segments sort by age, even if written within a millisecond
+        List<Segment> segments = _segments;
+        long millis = segments.isEmpty ()
+                          ? System.currentTimeMillis ()
+                          : Math.max (System.currentTimeMillis (), segments.get (0).millis () + 1);
+        Iterator<Entry> iterator = sorted.values ().iterator ();
+        writeFile (segmentName (millis),
+                   () -> iterator.hasNext () ? iterator.next () : null,
+                   sorted.size ());
+
+        refresh ();
+    }
+
+/**
+  * Merges adjacent segments until there are at most the given number of segments. Each
+  * step merges the adjacent segments that hold the fewest orders, so small segments are
+  * merged soon, while large segments are rewritten rarely. Only the writer of the archive
+  * may compact it.
+  * <p>
+  * @param maxSegments the maximum number of segments
+  * @throws UncheckedIOException if a segment can't be read or written
+  */
+
+    public void compact (int maxSegments)
+    {
+        refresh ();
+        while (_segments.size () > Math.max (1, maxSegments)) {
+            List<Segment> segments = _segments;
+            int width = Math.min (MERGE_FACTOR, segments.size ());
+            int first = 0;
+            long fewest = Long.MAX_VALUE;
+            for (int i = 0; i + width <= segments.size (); i++) {
+                long orders = 0;
+                for (int j = i; j < i + width; j++) {
+                    orders += segments.get (j).orders ();
+                }
+                if (orders < fewest) {
+                    first = i;
+                    fewest = orders;
+                }
+            }
+            merge (segments.subList (first, first + width));
+        }
+    }
+
+/**
+  * Scans the directory, and opens the segments that aren't open yet.
+  * <p>
+  * @throws UncheckedIOException if the directory or a segment can't be read
+  */
+
+    public synchronized void refresh ()
+    {
+        try {
+            _directoryModifiedAt = Files.getLastModifiedTime (_directory).toMillis ();
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list (_directory)) {
+            files = list.filter (f -> f.getFileName ().toString ().endsWith (SUFFIX)).toList ();
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+
+// -- the segments whose files are gone were merged into a newer segment
+        Set<String> names = files.stream ().map (f -> f.getFileName ().toString ()).collect (Collectors.toSet ());
+        List<Segment> segments = new ArrayList<> ();
+        for (Segment segment : _segments) {
+            if (names.remove (segment.name ())) {
+                segments.add (segment);
+            } else {
+                closeQuietly (segment);
+            }
+        }
+
+        for (String name : names) {
+            try {
+                segments.add (Segment.open (_directory.resolve (name)));
+            }
+            catch (NoSuchFileException exc) {
+// -- merged away since the directory was listed
+            }
+            catch (IOException exc) {
+                throw new UncheckedIOException (exc);
+            }
+        }
+
+        segments.sort (Comparator.comparing (Segment::name).reversed ());
+        _segments = List.copyOf (segments);
+        _refreshedAt = System.nanoTime ();
+    }
+
+/**
+  * Scans the directory for new segments, if it was modified since the last scan. This is
+  * cheaper than {@link #refresh}, but may miss a segment written within the resolution of
+  * the modification time of the directory, until the next scan.
+  * <p>
+  * @throws UncheckedIOException if the directory or a segment can't be read
+  */
+
+    public void refreshIfModified ()
+    {
+        try {
+            if (Files.getLastModifiedTime (_directory).toMillis () != _directoryModifiedAt) {
+                refresh ();
+            }
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+    }
+
+/**
+  * Closes the segments.
+  */
+
+    @Override
+    public synchronized void close ()
+    {
+        for (Segment segment : _segments) {
+            closeQuietly (segment);
+        }
+        _segments = List.of ();
+    }
+
+    private void maybeRefresh ()
+    {
+        if (System.nanoTime () - _refreshedAt > _refreshNanos) {
+            refresh ();
+        }
+    }
+
+    private static void closeQuietly (Segment segment)
+    {
+        try {
+            segment.channel ().close ();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+/**
+  * Returns the name of a new segment. The name starts with the given time, so segments
+  * sort by age.
+  */
+
+    private static String segmentName (long millis)
+    {
+        return String.format ("segment-%016x-%s", millis, UUID.randomUUID ().toString ().substring (0, 8));
+    }
+
+/**
+  * Merges adjacent segments into a new segment, which takes their place in the order of
+  * the segments, and deletes them. An order held by several of the segments is taken
+  * from the newest one.
+  * <p>
+  * @param run the segments, newest first
+  */
+
+    private void merge (List<Segment> run)
+    {
+        PriorityQueue<Cursor> cursors =
+            new PriorityQueue<> (Comparator.comparing ((Cursor c) -> c.current.orderID ()).thenComparingInt (c -> c.rank));
+        long capacity = 0;
+        try {
+            for (int i = 0; i < run.size (); i++) {
+                Cursor cursor = new Cursor (run.get (i), i);
+                if (cursor.advance ()) {
+                    cursors.add (cursor);
+                }
+                capacity += run.get (i).orders ();
+            }
+
+// -- the merged segment is named after the newest segment of the run, so it sorts in its place
+            writeFile (segmentName (run.get (0).millis ()),
+                       () -> {
+                           if (cursors.isEmpty ()) {
+                               return null;
+                           }
+// -- the cursors are ordered by order identifier, then newest first, so older copies are skipped
+                           Entry entry = cursors.peek ().current;
+                           while (!cursors.isEmpty () && cursors.peek ().current.orderID ().equals (entry.orderID ())) {
+                               Cursor cursor = cursors.poll ();
+                               if (cursor.advance ()) {
+                                   cursors.add (cursor);
+                               }
+                           }
+                           return entry;
+                       },
+                       capacity);
+
+            for (Segment segment : run) {
+                Files.deleteIfExists (_directory.resolve (segment.name ()));
+            }
+        }
+        catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+
+        refresh ();
+    }
+
+/**
+  * Writes a segment file under a temporary name, and renames it once it is complete.
+  * <p>
+  * @param name the name of the segment, without its suffix
+  * @param entries the orders, sorted by order identifier
+  * @param capacity the maximum number of orders, which sizes the bloom filter
+  */
+
+    private void writeFile (String name, Entries entries, long capacity)
+    {
+        Path temp = _directory.resolve (name + ".tmp");
+        Path target = _directory.resolve (name + SUFFIX);
+
+        try {
+            try (FileChannel channel = FileChannel.open (temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writeSegment (channel, entries, capacity);
+                channel.force (true);
+            }
+            Files.move (temp, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException exc) {
+            try {
+                Files.deleteIfExists (temp);
+            }
+            catch (IOException ignored) {
+            }
+            throw new UncheckedIOException (exc);
+        }
+    }
+
+/**
+  * Writes a segment: the compressed blocks, then the index, the bloom filter, and the
+  * footer (the position of the index and the magic number).
+  */
+
+    private void writeSegment (FileChannel channel, Entries entries, long capacity) throws IOException
+    {
+        long[] bloom = new long[(int) Math.max (1, (capacity * BLOOM_BITS_PER_ORDER + 63) / 64)];
+        List<String> firstKeys = new ArrayList<> ();
+        List<long[]> positions = new ArrayList<> ();
+        ByteArrayOutputStream block = new ByteArrayOutputStream ();
+        DataOutputStream blockOut = new DataOutputStream (block);
+        int blockCount = 0;
+        int orders = 0;
+        String lastKey = null;
+        long position = 0;
+
+        for (Entry entry = entries.next (); entry != null; entry = entries.next ()) {
+            if (blockCount == 0) {
+                firstKeys.add (entry.orderID ());
+            }
+            blockOut.writeUTF (entry.orderID ());
+            blockOut.writeInt (entry.serializerID ());
+// -- a serializer without manifests may leave the manifest null, which is read back as ""
+            blockOut.writeUTF (entry.manifest () != null ? entry.manifest () : "");
+            blockOut.writeInt (entry.payload ().length);
+            blockOut.write (entry.payload ());
+            blockCount++;
+            orders++;
+            lastKey = entry.orderID ();
+            addToBloom (bloom, entry.orderID ());
+
+            if (block.size () >= _blockSize) {
+                position += writeBlock (channel, position, block, blockCount, positions);
+                blockCount = 0;
+            }
+        }
+        if (blockCount > 0) {
+            position += writeBlock (channel, position, block, blockCount, positions);
+        }
+
+        ByteArrayOutputStream footer = new ByteArrayOutputStream ();
+        DataOutputStream out = new DataOutputStream (footer);
+        out.writeInt (orders);
+        out.writeUTF (lastKey);
+        out.writeInt (firstKeys.size ());
+        for (int i = 0; i < firstKeys.size (); i++) {
+            out.writeUTF (firstKeys.get (i));
+            out.writeLong (positions.get (i)[0]);
+            out.writeInt ((int) positions.get (i)[1]);
+        }
+        out.writeInt (bloom.length);
+        for (long word : bloom) {
+            out.writeLong (word);
+        }
+        out.writeLong (position);
+        out.writeInt (MAGIC);
+        writeFully (channel, ByteBuffer.wrap (footer.toByteArray ()), position);
+    }
+
+/**
+  * Compresses and writes a block, and records its position and compressed length.
+  * <p>
+  * @return the compressed length
+  */
+
+    private static int writeBlock (
+        FileChannel channel,
+        long position,
+        ByteArrayOutputStream block,
+        int count,
+        List<long[]> positions)
+        throws IOException
+    {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream (block.size () + 4);
+        new DataOutputStream (raw).writeInt (count);
+        block.writeTo (raw);
+        block.reset ();
+
+        byte[] compressed = compress (raw.toByteArray ());
+        writeFully (channel, ByteBuffer.wrap (compressed), position);
+        positions.add (new long[] { position, compressed.length });
+        return compressed.length;
+    }
+
+    private static byte[] compress (byte[] data)
+    {
+        Deflater deflater = new Deflater (Deflater.BEST_SPEED);
+        try {
+            deflater.setInput (data);
+            deflater.finish ();
+            ByteArrayOutputStream out = new ByteArrayOutputStream (data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished ()) {
+                out.write (buffer, 0, deflater.deflate (buffer));
+            }
+            return out.toByteArray ();
+        } finally {
+            deflater.end ();
+        }
+    }
+
+    private static byte[] decompress (byte[] data) throws IOException
+    {
+        Inflater inflater = new Inflater ();
+        try {
+            inflater.setInput (data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream (data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished ()) {
+                int n = inflater.inflate (buffer);
+                if (n == 0 && (inflater.needsInput () || inflater.needsDictionary ())) {
+                    throw new IOException ("Truncated block");
+                }
+                out.write (buffer, 0, n);
+            }
+            return out.toByteArray ();
+        }
+        catch (DataFormatException exc) {
+            throw new IOException ("Corrupt block", exc);
+        } finally {
+            inflater.end ();
+        }
+    }
+
+    private static void writeFully (FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining ()) {
+            position += channel.write (buffer, position);
+        }
+    }
+
+    private static ByteBuffer readFully (FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate (length);
+        while (buffer.hasRemaining ()) {
+            int n = channel.read (buffer, position + buffer.position ());
+            if (n < 0) {
+                throw new IOException ("Unexpected end of segment");
+            }
+        }
+        return buffer.flip ();
+    }
+
+// ------------------------------------------------------------
+// Bloom filters
+// ------------------------------------------------------------
+
+    private static void addToBloom (long[] bloom, String orderID)
+    {
+        long bits = bloom.length * 64L;
+        int h1 = orderID.hashCode ();
+        int h2 = secondHash (orderID);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod (h1 + (long) i * h2, bits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean bloomContains (long[] bloom, String orderID)
+    {
+        long bits = bloom.length * 64L;
+        int h1 = orderID.hashCode ();
+        int h2 = secondHash (orderID);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Math.floorMod (h1 + (long) i * h2, bits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+/**
+  * Returns an FNV-1a hash of the UTF-8 bytes of a string, which is independent of
+  * {@link String#hashCode}.
+  */
+
+    private static int secondHash (String s)
+    {
+        int hash = 0x811c9dc5;
+        for (byte b : s.getBytes (StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+
+// ------------------------------------------------------------
+// Segments
+// ------------------------------------------------------------
+
+/**
+  * Represents an open segment, along with its index and bloom filter.
+  */
+
+    private record Segment (
+        String name,
+        FileChannel channel,
+        long orders,
+        String lastKey,
+        String[] firstKeys,
+        long[] offsets,
+        int[] lengths,
+        long[] bloom)
+    {
+
+        static Segment open (Path file) throws IOException
+        {
+            FileChannel channel = FileChannel.open (file, StandardOpenOption.READ);
+            try {
+                long size = channel.size ();
+                ByteBuffer tail = readFully (channel, size - 12, 12);
+                long indexPosition = tail.getLong ();
+                if (tail.getInt () != MAGIC) {
+                    throw new IOException ("Not a segment: " + file);
+                }
+
+                ByteBuffer footer = readFully (channel, indexPosition, (int) (size - 12 - indexPosition));
+                DataInputStream in = new DataInputStream (new ByteArrayInputStream (footer.array ()));
+                int orders = in.readInt ();
+                String lastKey = in.readUTF ();
+                int blocks = in.readInt ();
+                String[] firstKeys = new String[blocks];
+                long[] offsets = new long[blocks];
+                int[] lengths = new int[blocks];
+                for (int i = 0; i < blocks; i++) {
+                    firstKeys[i] = in.readUTF ();
+                    offsets[i] = in.readLong ();
+                    lengths[i] = in.readInt ();
+                }
+                long[] bloom = new long[in.readInt ()];
+                for (int i = 0; i < bloom.length; i++) {
+                    bloom[i] = in.readLong ();
+                }
+
+                return new Segment (file.getFileName ().toString (), channel, orders, lastKey,
+                                    firstKeys, offsets, lengths, bloom);
+            }
+            catch (IOException | RuntimeException exc) {
+                channel.close ();
+                throw exc;
+            }
+        }
+
+/**
+  * Returns the time the segment was written, from its name.
+  */
+
+        long millis ()
+        {
+            return Long.parseUnsignedLong (name.substring ("segment-".length (), "segment-".length () + 16), 16);
+        }
+
+        boolean mightContain (String orderID)
+        {
+            return firstKeys.length > 0 &&
+                   orderID.compareTo (firstKeys[0]) >= 0 &&
+                   orderID.compareTo (lastKey) <= 0 &&
+                   bloomContains (bloom, orderID);
+        }
+
+        Optional<Entry> find (String orderID) throws IOException
+        {
+            int block = Arrays.binarySearch (firstKeys, orderID);
+            if (block < 0) {
+// -- the block whose first key precedes the order identifier
+                block = -block - 2;
+            }
+            if (block < 0) {
+                return Optional.empty ();
+            }
+
+            DataInputStream in = readBlock (block);
+            int count = in.readInt ();
+            for (int i = 0; i < count; i++) {
+                Entry entry = readEntry (in);
+                int order = entry.orderID ().compareTo (orderID);
+                if (order == 0) {
+                    return Optional.of (entry);
+                } else if (order > 0) {
+                    break;
+                }
+            }
+            return Optional.empty ();
+        }
+
+        DataInputStream readBlock (int block) throws IOException
+        {
+            byte[] data = decompress (readFully (channel, offsets[block], lengths[block]).array ());
+            return new DataInputStream (new ByteArrayInputStream (data));
+        }
+    }
+
+    private static Entry readEntry (DataInputStream in) throws IOException
+    {
+        String orderID = in.readUTF ();
+        int serializerID = in.readInt ();
+        String manifest = in.readUTF ();
+        byte[] payload = new byte[in.readInt ()];
+        in.readFully (payload);
+        return new Entry (orderID, serializerID, manifest, payload);
+    }
+
+/**
+  * Supplies the orders written to a segment.
+  */
+
+    private interface Entries
+    {
+
+/**
+  * Returns the next order, or null if there are no more orders.
+  */
+
+        Entry next () throws IOException;
+    }
+
+/**
+  * Reads the orders of a segment in order, one block at a time.
+  */
+
+    private static final class Cursor
+    {
+        final Segment segment;
+
+/**
+  * Holds the age rank of the segment within the merged segments (0 is the newest).
+  */
+
+        final int rank;
+
+        Entry current;
+
+        private int _block = 0;
+
+        private DataInputStream _in;
+
+        private int _remaining = 0;
+
+        Cursor (Segment segment, int rank)
+        {
+            this.segment = segment;
+            this.rank = rank;
+        }
+
+/**
+  * Moves to the next order of the segment.
+  * <p>
+  * @return false if there are no more orders
+  */
+
+        boolean advance () throws IOException
+        {
+            while (_remaining == 0) {
+                if (_block == segment.firstKeys ().length) {
+                    current = null;
+                    return false;
+                }
+                _in = segment.readBlock (_block++);
+                _remaining = _in.readInt ();
+            }
+            current = readEntry (_in);
+            _remaining--;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.cluster.sharding.typed.ShardedDaemonProcessSettings;
+import akka.cluster.sharding.typed.javadsl.ShardedDaemonProcess;
+import akka.persistence.r2dbc.cleanup.javadsl.EventSourcedCleanup;
+import akka.persistence.r2dbc.session.javadsl.R2dbcSession;
+import akka.persistence.typed.PersistenceId;
+
+import com.typesafe.config.Config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+  * Implements the archival job, which moves delivered orders from the hot tables to the
+  * cold store (see {@link OrderArchive}).
+  * <p>
+  * An order is archived once all its allocations are delivered, and its last event is
+  * older than the configured cut-off. Candidates are read from the order view, which
+  * already holds the serialized order state, and only if the view holds every event of
+  * the order. The states are written to a new segment of the archive before the events
+  * and snapshot of the orders are deleted (through {@link EventSourcedCleanup}, which
+  * keeps the sequence numbers of the orders), and their view rows last, so a failure in
+  * between only archives the same orders again in the next run. The search index and the
+  * tracking index of the orders are kept.
+  * <p>
+  * The job runs as a sharded daemon process with a single instance, so it runs on one
+  * node of the cluster at a time, and it is the only writer of the archive, which it
+  * compacts after each batch. Since the other nodes read the archive for
+  * FetchOrderDetails, the archive directory must be shared by all the nodes (e.g. a
+  * network volume) when the job is enabled in a cluster of more than one node.
+  */
+
+public final class OrderArchiver
+{
+
+/**
+  * Represents the commands supported by the job.
+  */
+
+    sealed interface Command {}
+
+/**
+  * Represents a command to archive the next batch of orders.
+  */
+
+    private record ArchiveBatch () implements Command {}
+
+/**
+  * Represents the completion of a batch.
+  * <p>
+  * @param archived the number of archived orders, or -1 if the batch failed
+  */
+
+    private record BatchDone (int archived) implements Command {}
+
+    private static final String TIMER_KEY = "archive";
+
+/**
+  * Holds the statement that selects the orders to archive: delivered orders whose last
+  * event is older than the cut-off, and whose view row holds all their events.
+  */
+
+    private static final String SELECT_SQL =
+        "SELECT v.order_id, v.seq_nr, v.state_ser_id, v.state_ser_manifest, v.state_payload " +
+        "FROM order_view v WHERE v.status = 'DELIVERED' " +
+        "AND v.event_timestamp < transaction_timestamp() - make_interval(secs => $1) " +
+        "AND NOT EXISTS (SELECT 1 FROM event_journal j WHERE j.persistence_id = $2 || v.order_id " +
+        "AND j.seq_nr > v.seq_nr) " +
+        "ORDER BY v.event_timestamp LIMIT $3";
+
+    private static final String DELETE_VIEW_SQL =
+        "DELETE FROM order_view v USING unnest($1::text[], $2::bigint[]) AS a(order_id, seq_nr) " +
+        "WHERE v.order_id = a.order_id AND v.seq_nr = a.seq_nr";
+
+/**
+  * Represents an order to archive.
+  */
+
+    private record Candidate (long seqNr, OrderArchive.Entry entry) {}
+
+/**
+  * Holds the archive of a node, which is shared by the job and the order service.
+  */
+
+    private record ArchiveExtension (OrderArchive archive) implements Extension {}
+
+/**
+  * Identifies the extension.
+  */
+
+    private static final ExtensionId<ArchiveExtension> ID =
+        new ExtensionId<> ()
+        {
+            @Override
+            public ArchiveExtension createExtension (ActorSystem<?> system)
+            {
+                Config config = system.settings ().config ().getConfig ("order-service.archive");
+                OrderArchive archive = new OrderArchive (Path.of (config.getString ("directory")),
+                                                         (int) config.getBytes ("block-size").longValue (),
+                                                         config.getDuration ("refresh-interval"));
+                system.getWhenTerminated ().thenRun (archive::close);
+                return new ArchiveExtension (archive);
+            }
+        };
+
+    private OrderArchiver ()
+    {
+    }
+
+/**
+  * Returns the archive of the given actor system, which is opened on first use.
+  * <p>
+  * @param system the actor system
+  * @return the archive
+  */
+
+    public static OrderArchive get (ActorSystem<?> system)
+    {
+        return ID.apply (system).archive ();
+    }
+
+/**
+  * Starts the archival job, if it is enabled.
+  * <p>
+  * @param system the actor system
+  */
+
+    public static void init (ActorSystem<?> system)
+    {
+        Config config = system.settings ().config ().getConfig ("order-service.archive");
+
+        if (config.getBoolean ("enabled")) {
+            OrderArchive archive = get (system);
+            ShardedDaemonProcess.get (system).init (
+                Command.class,
+                "OrderArchiver",
+                1,
+                id -> create (archive, config),
+                ShardedDaemonProcessSettings.create (system),
+                Optional.empty ());
+        }
+    }
+
+/**
+  * Returns the behavior of the job.
+  */
+
+    private static Behavior<Command> create (OrderArchive archive, Config config)
+    {
+        return Behaviors.setup (
+            ctx -> Behaviors.withTimers (
+                timers -> {
+                    timers.startSingleTimer (TIMER_KEY, new ArchiveBatch (), config.getDuration ("initial-delay"));
+                    return idle (ctx, timers, archive, new EventSourcedCleanup (ctx.getSystem ()), config);
+                }));
+    }
+
+    private static Behavior<Command> idle (
+        ActorContext<Command> ctx,
+        TimerScheduler<Command> timers,
+        OrderArchive archive,
+        EventSourcedCleanup cleanup,
+        Config config)
+    {
+        return Behaviors.receive (Command.class)
+            .onMessage (ArchiveBatch.class, cmd -> {
+                ctx.pipeToSelf (
+                    archiveBatch (ctx.getSystem (), archive, cleanup, config),
+                    (archived, exc) -> {
+                        if (exc != null) {
+                            ctx.getLog ().warn ("Archiving orders failed", exc);
+                            return new BatchDone (-1);
+                        }
+                        return new BatchDone (archived);
+                    });
+                return Behaviors.same ();
+            })
+            .onMessage (BatchDone.class, done -> {
+// -- a full batch means more orders are waiting, so they are archived right away
+                if (done.archived () == config.getInt ("batch-size")) {
+                    ctx.getSelf ().tell (new ArchiveBatch ());
+                } else {
+                    timers.startSingleTimer (TIMER_KEY, new ArchiveBatch (), config.getDuration ("interval"));
+                }
+                if (done.archived () > 0) {
+                    ctx.getLog ().info ("Archived {} orders", done.archived ());
+                }
+                return Behaviors.same ();
+            })
+            .build ();
+    }
+
+/**
+  * Archives a batch of orders.
+  * <p>
+  * @return the number of archived orders
+  */
+
+    private static CompletionStage<Integer> archiveBatch (
+        ActorSystem<?> system,
+        OrderArchive archive,
+        EventSourcedCleanup cleanup,
+        Config config)
+    {
+        Executor blocking = system.dispatchers ().lookup (DispatcherSelector.blocking ());
+        String prefix = Order.ENTITY_KEY.name () + PersistenceId.DefaultSeparator ();
+
+        return R2dbcSession.withSession (
+                system,
+                session -> session.select (
+                    session.createStatement (SELECT_SQL)
+                           .bind (0, (double) config.getDuration ("cut-off").toSeconds ())
+                           .bind (1, prefix)
+                           .bind (2, config.getInt ("batch-size")),
+                    row -> new Candidate (
+                        row.get ("seq_nr", Long.class),
+                        new OrderArchive.Entry (row.get ("order_id", String.class),
+                                                row.get ("state_ser_id", Integer.class),
+                                                row.get ("state_ser_manifest", String.class),
+                                                row.get ("state_payload", byte[].class)))))
+            .thenCompose (candidates -> {
+                if (candidates.isEmpty ()) {
+                    return CompletableFuture.completedFuture (0);
+                }
+                return CompletableFuture
+                    .runAsync (() -> archive.write (candidates.stream ().map (Candidate::entry).toList ()), blocking)
+                    .thenRunAsync (() -> archive.compact (config.getInt ("max-segments")), blocking)
+                    .thenCompose (written -> delete (system, cleanup, prefix, candidates))
+                    .thenApply (deleted -> candidates.size ());
+            });
+    }
+
+/**
+  * Deletes the archived orders from the hot tables. The events and snapshots are deleted
+  * before the view rows, since the view rows select the orders to archive.
+  */
+
+    private static CompletionStage<?> delete (
+        ActorSystem<?> system,
+        EventSourcedCleanup cleanup,
+        String prefix,
+        List<Candidate> candidates)
+    {
+        String[] orderIDs = candidates.stream ().map (c -> c.entry ().orderID ()).toArray (String[]::new);
+        List<String> persistenceIDs = candidates.stream ().map (c -> prefix + c.entry ().orderID ()).toList ();
+        Long[] seqNrs = candidates.stream ().map (Candidate::seqNr).toArray (Long[]::new);
+
+        return cleanup.deleteAll (persistenceIDs, false)
+            .thenCompose (done -> R2dbcSession.withSession (
+                system,
+                session -> session.updateOne (
+                    session.createStatement (DELETE_VIEW_SQL).bind (0, orderIDs).bind (1, seqNrs))));
+    }
+
+}
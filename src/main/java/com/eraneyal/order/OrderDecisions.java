@@ -0,0 +1,915 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.Order.AllocatedOrderState;
+import com.eraneyal.order.Order.AllocationRejected;
+import com.eraneyal.order.Order.BlankState;
+import com.eraneyal.order.Order.BookDeliveryFailure;
+import com.eraneyal.order.Order.BookDeliveryResult;
+import com.eraneyal.order.Order.BookDeliverySuccess;
+import com.eraneyal.order.Order.Command;
+import com.eraneyal.order.Order.Event;
+import com.eraneyal.order.Order.FetchOrderDetails;
+import com.eraneyal.order.Order.NewOrderState;
+import com.eraneyal.order.Order.OrderAllocationBookingFailed;
+import com.eraneyal.order.Order.OrderAllocationBookingStarted;
+import com.eraneyal.order.Order.OrderAllocationPacked;
+import com.eraneyal.order.Order.OrderAllocationsReceived;
+import com.eraneyal.order.Order.OrderReceived;
+import com.eraneyal.order.Order.PackAllOrderAllocations;
+import com.eraneyal.order.Order.PackAllOrderAllocationsResult;
+import com.eraneyal.order.Order.PackJob;
+import com.eraneyal.order.Order.PackOrderAllocation;
+import com.eraneyal.order.Order.PackOrderAllocationResult;
+import com.eraneyal.order.Order.ReceiveOrder;
+import com.eraneyal.order.Order.ReceiveOrderAllocations;
+import com.eraneyal.order.Order.RetryAllocation;
+import com.eraneyal.order.Order.StartPackOrderAllocation;
+import com.eraneyal.order.Order.State;
+import com.eraneyal.order.Order.TrackingUpdated;
+import com.eraneyal.order.Order.UpdateParcelTracking;
+import com.eraneyal.order.Order.UpdateTracking;
+import com.eraneyal.order.Order.WrappedPackAllOrderAllocationsResult;
+import com.eraneyal.order.Order.WrappedPackOrderAllocationResult;
+
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.japi.Pair;
+import akka.pattern.StatusReply;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+  * Implements the command handling logic of an order entity, shared by its event sourced
+  * ({@link Order}) and durable state ({@link DurableOrder}) implementations, so both
+  * validate commands, book deliveries and reply in exactly the same way.
+  * <p>
+  * The handling of a command is described by a {@link Decision}: the events to persist,
+  * if any, an action to run once they are persisted, and the reply. Each implementation
+  * turns a decision into its own effect: {@link Order} persists the events, while
+  * {@link DurableOrder} persists the state that results from applying them (see
+  * {@link Order#applyEvent}). Work that doesn't wait for persistence, such as a courier
+  * booking whose result comes back to the entity as a command, is started while the
+  * decision is made.
+  * <p>
+  * An instance holds the runtime state of a single entity, such as the number of bookings
+  * in progress, which isn't persisted.
+  */
+
+final class OrderDecisions
+{
+
+/**
+  * Represents the handling of a command.
+  * <p>
+  * @param events the events to persist, which may be empty
+  * @param then an action to run once the events are persisted, or null
+  * @param replyTo a reference to the actor that will receive the reply, or null if no
+  *                reply is sent
+  * @param reply a function that returns the reply, given the state after the events are
+  *              applied
+  */
+
+    record Decision<R> (
+        List<Event> events,
+        Consumer<State> then,
+        ActorRef<R> replyTo,
+        Function<State,R> reply)
+    {
+
+/**
+  * Returns a decision that persists nothing and replies nothing.
+  * <p>
+  * @return the decision
+  */
+
+        static <R> Decision<R> none ()
+        {
+            return new Decision<> (List.of (), null, null, null);
+        }
+
+/**
+  * Returns a decision that persists nothing and replies the given message.
+  * <p>
+  * @param replyTo a reference to the actor that will receive the reply
+  * @param message the reply
+  * @return the decision
+  */
+
+        static <R> Decision<R> reply (ActorRef<R> replyTo, R message)
+        {
+            return new Decision<> (List.of (), null, replyTo, state -> message);
+        }
+
+/**
+  * Returns a decision that persists the given events and replies nothing.
+  * <p>
+  * @param events the events to persist
+  * @param then an action to run once the events are persisted, or null
+  * @return the decision
+  */
+
+        static <R> Decision<R> persist (List<Event> events, Consumer<State> then)
+        {
+            return new Decision<> (events, then, null, null);
+        }
+
+/**
+  * Returns a decision that persists the given events and replies.
+  * <p>
+  * @param events the events to persist
+  * @param then an action to run once the events are persisted, or null
+  * @param replyTo a reference to the actor that will receive the reply
+  * @param reply a function that returns the reply, given the new state
+  * @return the decision
+  */
+
+        static <R> Decision<R> persist (
+            List<Event> events,
+            Consumer<State> then,
+            ActorRef<R> replyTo,
+            Function<State,R> reply)
+        {
+            return new Decision<> (events, then, replyTo, reply);
+        }
+
+    }
+
+/**
+  * Holds the maximum number of booking API calls that be concurrently in progress.
+  */
+
+    static final int MAX_BOOKINGS_IN_PROGRESS = 10;
+
+/**
+  * Holds the key of the timer that triggers allocation retries.
+  */
+
+    static final String ALLOCATION_TIMER_KEY = "allocation";
+
+/**
+  * Holds the time to wait for allocations before requesting them again.
+  */
+
+    static final Duration ALLOCATION_TIMEOUT = Duration.ofSeconds (10);
+
+/**
+  * Holds the time to wait before requesting allocations again after a first rejection by
+  * the allocation service. The delay doubles with each consecutive rejection.
+  */
+
+    static final Duration ALLOCATION_RETRY_DELAY = Duration.ofMillis (500);
+
+/**
+  * Holds the maximum time to wait before requesting allocations again after a rejection,
+  * e.g. while the stock of an item runs out.
+  */
+
+    static final Duration MAX_ALLOCATION_RETRY_DELAY = Duration.ofMinutes (5);
+
+/**
+  * Holds the order identifier.
+  */
+
+    private final String _ident;
+
+/**
+  * Holds the actor context of the entity.
+  */
+
+    private final ActorContext<Command> _ctx;
+
+/**
+  * Used for scheduling allocation retries.
+  */
+
+    private final TimerScheduler<Command> _timers;
+
+/**
+  * Holds a reference to the allocation service.
+  */
+
+    private final ActorRef<OrderAllocationService.Command> _allocator;
+
+/**
+  * Used for booking delivery with the couriers.
+  */
+
+    private final CourierBookings _bookings;
+
+/**
+  * Used for publishing the results of the bookings.
+  */
+
+    private final PackResults _packResults;
+
+/**
+  * Holds the current number of booking API calls in progress.
+  */
+
+    private int _bookingsInProgress = 0;
+
+/**
+  * Holds the identifiers of the allocations whose booking API call is in progress, in
+  * any mode, so an allocation is never booked twice at once.
+  */
+
+    private final Set<String> _inFlight = new HashSet<> ();
+
+/**
+  * Holds true if the order was archived (see {@link OrderArchiver}), i.e. its events were
+  * deleted and the entity recovered a blank state, so it must not accept the order again.
+  */
+
+    private boolean _archived = false;
+
+/**
+  * Holds the number of consecutive rejections of the allocation requests of the order.
+  */
+
+    private int _allocationRejections = 0;
+
+/**
+  * Creates the command handling logic of an order entity.
+  * <p>
+  * @param ident the order identifier
+  * @param ctx the actor context of the entity
+  * @param timers the timer scheduler of the entity
+  * @param allocator a reference to the allocation service
+  */
+
+    OrderDecisions (
+        String ident,
+        ActorContext<Command> ctx,
+        TimerScheduler<Command> timers,
+        ActorRef<OrderAllocationService.Command> allocator)
+    {
+        _ident = ident;
+        _ctx = ctx;
+        _timers = timers;
+        _allocator = allocator;
+        _bookings = CourierBookings.get (ctx.getSystem ());
+        _packResults = PackResults.get (ctx.getSystem ());
+    }
+
+/**
+  * Decides how a command is handled in the given state.
+  * <p>
+  * @param state the order state
+  * @param command the command
+  * @return the decision
+  */
+
+    Decision<?> decide (State state, Command command)
+    {
+        return switch (command) {
+        case ReceiveOrder cmd -> onReceiveOrder (state, cmd);
+        case ReceiveOrderAllocations cmd -> onReceiveAllocations (state, cmd);
+        case AllocationRejected cmd -> onAllocationRejected (state, cmd);
+        case RetryAllocation cmd -> onRetryAllocation (state, cmd);
+        case PackOrderAllocation cmd -> onPackAllocation (state, cmd);
+        case StartPackOrderAllocation cmd -> onStartPackAllocation (state, cmd);
+        case WrappedPackOrderAllocationResult cmd -> onPackAllocationResult (state, cmd);
+        case PackAllOrderAllocations cmd -> onPackAllAllocations (state, cmd);
+        case WrappedPackAllOrderAllocationsResult cmd -> onPackAllAllocationsResult (state, cmd);
+        case UpdateTracking cmd -> onUpdateTracking (state, cmd);
+        case UpdateParcelTracking cmd -> onUpdateParcelTracking (state, cmd);
+        case FetchOrderDetails cmd -> Decision.reply (cmd.replyTo (), state.toOrderDetails ());
+        };
+    }
+
+/**
+  * Resumes the work of a recovered entity.
+  * <p>
+  * @param state the recovered order state
+  * @param archived true if the order was archived
+  */
+
+    void onRecoveryCompleted (State state, boolean archived)
+    {
+        _archived = archived;
+
+// -- if a new order was persisted, but failed to be assigned allocations, attempt to
+// -- create allocations again
+        if (state instanceof NewOrderState newOrder) {
+            requestAllocation (newOrder.items (), newOrder.customer ());
+        }
+// -- resume the background bookings that didn't finish, e.g. when the entity was moved
+// -- to another node while booking
+        if (state instanceof AllocatedOrderState allocated) {
+            allocated.allocations ()
+                     .keySet ()
+                     .stream ()
+                     .filter (id -> allocated.getLatestAllocationStatus (id) == Allocation.Status.BOOKING)
+                     .forEach (id -> startBooking (allocated, id));
+        }
+    }
+
+/**
+  * Returns the reason a command that requires allocations is rejected in the given
+  * state.
+  * <p>
+  * @param state the order state, which isn't allocated
+  * @return the reason
+  */
+
+    private static String notAllocated (State state)
+    {
+        return state instanceof BlankState ? "Order doesn't exist" : "Order has no allocations";
+    }
+
+/**
+  * Handles a new order. The order is persisted, order allocation is initiated, and an
+  * acknowledgement is sent to the caller. An archived order is rejected, like any order
+  * that exists.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onReceiveOrder (State state, ReceiveOrder cmd)
+    {
+        if (!(state instanceof BlankState) || _archived) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Order already exists"));
+        } else if (cmd.customer () == null) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Customer details must be supplied"));
+        } else if (cmd.items () == null || cmd.items ().isEmpty ()) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Order must contain at least one item"));
+        } else {
+            return Decision.persist (List.of (new OrderReceived (_ident, cmd.items (), cmd.customer ())),
+                                     newState -> requestAllocation (cmd.items (), cmd.customer ()),
+                                     cmd.replyTo (),
+                                     newState -> StatusReply.ack ());
+        }
+    }
+
+/**
+  * Handles received order allocations. The order allocations are persisted, unless the
+  * order is already allocated, in which case they are a late reply to an earlier
+  * allocation attempt, and their stock is released.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onReceiveAllocations (State state, ReceiveOrderAllocations cmd)
+    {
+        if (cmd.allocations () == null || cmd.allocations ().isEmpty ()) {
+            return Decision.none ();
+        } else if (state instanceof NewOrderState) {
+            _allocationRejections = 0;
+            return Decision.persist (List.of (new OrderAllocationsReceived (_ident, cmd.allocations ())),
+                                     newState -> _timers.cancel (ALLOCATION_TIMER_KEY));
+        } else {
+            if (cmd.allocator () != null && cmd.plan () != null) {
+                _ctx.getLog ().debug ("Releasing the duplicate allocations {} of order {}", cmd.reservationID (), _ident);
+                cmd.allocator ().tell (new OrderAllocationService.Release (cmd.reservationID (), cmd.plan (), cmd.reserved ()));
+            }
+            return Decision.none ();
+        }
+    }
+
+/**
+  * Handles a rejection of an allocation request, by an overloaded allocation service or
+  * for lack of stock. Allocation is requested again after a delay that grows
+  * exponentially with the consecutive rejections, up to a maximum, so an order whose
+  * stock ran out doesn't keep the allocation service busy.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onAllocationRejected (State state, AllocationRejected cmd)
+    {
+        if (state instanceof NewOrderState) {
+            Duration delay = allocationRetryDelay (_allocationRejections++);
+            _ctx.getLog ().debug ("Allocation of order {} rejected: {}, retrying in {}", _ident, cmd.reason (), delay);
+            _timers.startSingleTimer (ALLOCATION_TIMER_KEY, new RetryAllocation (), delay);
+        }
+
+        return Decision.none ();
+    }
+
+/**
+  * Returns the time to wait before requesting allocations again after the given number
+  * of earlier consecutive rejections.
+  * <p>
+  * @param rejections the number of earlier consecutive rejections
+  * @return the time to wait
+  */
+
+    static Duration allocationRetryDelay (int rejections)
+    {
+        Duration delay = ALLOCATION_RETRY_DELAY.multipliedBy (1L << Math.min (rejections, 20));
+
+        return delay.compareTo (MAX_ALLOCATION_RETRY_DELAY) < 0 ? delay : MAX_ALLOCATION_RETRY_DELAY;
+    }
+
+/**
+  * Handles a retry of an allocation request.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onRetryAllocation (State state, RetryAllocation cmd)
+    {
+        if (state instanceof NewOrderState newOrder) {
+            requestAllocation (newOrder.items (), newOrder.customer ());
+        }
+
+        return Decision.none ();
+    }
+
+/**
+  * Sends an allocation request to the allocation service, and schedules a retry in case
+  * the allocations are not received in time (e.g. the request or the reply was lost, or
+  * no allocation service was available yet). Each attempt reserves stock under its own
+  * reservation identifier, so the stock of an attempt that isn't accepted can be released
+  * on its own.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @param customer the customer of the order
+  */
+
+    private void requestAllocation (Map<String,OrderItem> items, Customer customer)
+    {
+        String reservationID = _ident + "#" + UUID.randomUUID ();
+
+        _allocator.tell (new OrderAllocationService.Allocate (_ident, reservationID, items, customer, _ctx.getSelf ()));
+        _timers.startSingleTimer (ALLOCATION_TIMER_KEY, new RetryAllocation (), ALLOCATION_TIMEOUT);
+    }
+
+/**
+  * Handles order allocation packing. The courier booking API is executed, and when a
+  * response is returned, a new command containing the response is sent to same actor.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onPackAllocation (State state, PackOrderAllocation cmd)
+    {
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error (notAllocated (state)));
+        } else if (cmd.allocationID () == null || cmd.allocationID ().isBlank ()) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Pack items request must contain a valid allocation identifier"));
+        } else if (!allocated.hasAllocation (cmd.allocationID ())) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Allocation not found"));
+        }
+
+        Allocation.Status latest = allocated.getLatestAllocationStatus (cmd.allocationID ());
+        if (latest == Allocation.Status.BOOKING || _inFlight.contains (cmd.allocationID ())) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Delivery booking already in progress"));
+        } else if (latest != Allocation.Status.ALLOCATED) {
+            return Decision.reply (
+                cmd.replyTo (),
+                StatusReply.success (
+                    new PackOrderAllocationResult (allocated.getAllocation (cmd.allocationID ()).getTrackingID ())));
+        } else if (_bookingsInProgress >= MAX_BOOKINGS_IN_PROGRESS) {
+            return Decision.reply (cmd.replyTo (),
+                StatusReply.error ("Max " + MAX_BOOKINGS_IN_PROGRESS + " concurrent pack operations supported"));
+        }
+
+        bookDelivery (allocated.getAllocation (cmd.allocationID ()), allocated.customer (), cmd.replyTo (), false);
+        return Decision.none ();
+    }
+
+/**
+  * Handles asynchronous order allocation packing. The packing is persisted, the courier
+  * booking API is executed in the background, and the booking job is replied. A request
+  * for an allocation that is already being booked, or that is already booked, replies
+  * the same job, whose result is known to {@link PackResults} subscribers or can be read
+  * from the order details. A request for an allocation that is being booked
+  * synchronously is rejected, since that booking doesn't publish its result.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onStartPackAllocation (State state, StartPackOrderAllocation cmd)
+    {
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error (notAllocated (state)));
+        } else if (cmd.allocationID () == null || cmd.allocationID ().isBlank ()) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Pack items request must contain a valid allocation identifier"));
+        } else if (!allocated.hasAllocation (cmd.allocationID ())) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Allocation not found"));
+        }
+
+        PackJob job = new PackJob (PackResults.jobID (_ident, cmd.allocationID ()));
+        if (allocated.getLatestAllocationStatus (cmd.allocationID ()) != Allocation.Status.ALLOCATED) {
+            return Decision.reply (cmd.replyTo (), StatusReply.success (job));
+        } else if (_inFlight.contains (cmd.allocationID ())) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Delivery booking already in progress"));
+        } else if (_bookingsInProgress >= MAX_BOOKINGS_IN_PROGRESS) {
+            return Decision.reply (cmd.replyTo (),
+                StatusReply.error ("Max " + MAX_BOOKINGS_IN_PROGRESS + " concurrent pack operations supported"));
+        }
+
+        return Decision.persist (
+            List.of (new OrderAllocationBookingStarted (_ident, cmd.allocationID (), Instant.now ())),
+            newState -> startBooking ((AllocatedOrderState) newState, cmd.allocationID ()),
+            cmd.replyTo (),
+            newState -> StatusReply.success (job));
+    }
+
+/**
+  * Books delivery in the background for an allocation whose booking was started.
+  * <p>
+  * @param allocated the order state
+  * @param allocationID the allocation identifier
+  */
+
+    private void startBooking (AllocatedOrderState allocated, String allocationID)
+    {
+        bookDelivery (allocated.getAllocation (allocationID),
+                      allocated.customer (),
+                      _ctx.getSystem ().ignoreRef (),
+                      true);
+    }
+
+/**
+  * Books delivery for an allocation with its courier (see {@link CourierBookings}), and
+  * sends the result to the entity as a {@link WrappedPackOrderAllocationResult} command
+  * when the booking finishes. The booking runs on the dispatcher of the courier
+  * bookings, not on the thread of the entity, and is tracked as in flight until its
+  * result is handled.
+  * <p>
+  * @param allocation the allocation to book delivery for
+  * @param customer the customer of the order
+  * @param replyTo a reference to the actor that will receive the reply of the pack
+  *                command, or the ignoring actor for a booking in the background
+  * @param background true for a booking in the background
+  */
+
+    private void bookDelivery (
+        Allocation allocation,
+        Customer customer,
+        ActorRef<StatusReply<PackOrderAllocationResult>> replyTo,
+        boolean background)
+    {
+        _ctx.pipeToSelf (
+            _bookings.book (_ident, allocation, customer),
+            (result, ex) -> new WrappedPackOrderAllocationResult (allocation.getID (),
+                                                                  toBookDeliveryResult (result, ex),
+                                                                  replyTo,
+                                                                  background));
+        _inFlight.add (allocation.getID ());
+        _bookingsInProgress++;
+    }
+
+/**
+  * Books delivery for parcels of allocations with their couriers, at most the given number
+  * at once, and sends the results to the entity as a single
+  * {@link WrappedPackAllOrderAllocationsResult} command when all the bookings finish. Each
+  * parcel is booked with a single courier call (see {@link Allocation#merge}), whose
+  * result applies to all its allocations.
+  * <p>
+  * @param parcels the parcels to book delivery for (see {@link CourierBookings#parcels})
+  * @param customer the customer of the order
+  * @param parallelism the maximum number of bookings in progress at once
+  * @param replyTo a reference to the actor that will receive the reply of the pack
+  *                command
+  */
+
+    private void bookDeliveries (
+        List<List<Allocation>> parcels,
+        Customer customer,
+        int parallelism,
+        ActorRef<StatusReply<PackAllOrderAllocationsResult>> replyTo)
+    {
+        _ctx.pipeToSelf (
+            Source.from (parcels)
+                  .mapAsyncUnordered (
+                      parallelism,
+                      parcel -> _bookings.book (_ident, Allocation.merge (parcel), customer)
+                                         .handle ((result, ex) -> Pair.create (parcel,
+                                                                               toBookDeliveryResult (result, ex))))
+                  .runWith (Sink.seq (), _ctx.getSystem ()),
+            (results, ex) -> {
+                Map<String,BookDeliveryResult> byAllocation = new HashMap<> ();
+                for (List<Allocation> parcel : parcels) {
+                    for (Allocation allocation : parcel) {
+                        byAllocation.put (allocation.getID (),
+                                          new BookDeliveryFailure (ex != null ? ex.getMessage () : "booking didn't finish"));
+                    }
+                }
+                if (results != null) {
+                    for (Pair<List<Allocation>,BookDeliveryResult> result : results) {
+                        result.first ().forEach (allocation -> byAllocation.put (allocation.getID (), result.second ()));
+                    }
+                }
+                return new WrappedPackAllOrderAllocationsResult (byAllocation, parallelism, replyTo);
+            });
+    }
+
+/**
+  * Returns the result of a book delivery courier API call.
+  */
+
+    static BookDeliveryResult toBookDeliveryResult (CourierBookingService.BookingResult result, Throwable ex)
+    {
+        if (ex != null) {
+// -- booking failed
+            Throwable cause = ex instanceof CompletionException && ex.getCause () != null ? ex.getCause () : ex;
+            return new BookDeliveryFailure (cause.getMessage ());
+        } else {
+            return new BookDeliverySuccess (result.trackingID ());
+        }
+    }
+
+/**
+  * Returns the response to a pack all order allocations request: the tracking identifiers
+  * of the packed allocations, and the reasons the others weren't packed.
+  * <p>
+  * @param allocated the order state
+  * @param failures the reasons of the failed bookings, indexed by allocation identifier
+  * @return the response
+  */
+
+    private PackAllOrderAllocationsResult packAllResult (AllocatedOrderState allocated, Map<String,String> failures)
+    {
+        Map<String,String> trackingIDs = new HashMap<> ();
+        Map<String,String> errors = new HashMap<> ();
+
+        for (Allocation allocation : allocated.allocations ().values ()) {
+            if (allocation.getTrackingID () != null) {
+                trackingIDs.put (allocation.getID (), allocation.getTrackingID ());
+            } else if (allocation.getLatestAllocationStatus () == Allocation.Status.BOOKING ||
+                       _inFlight.contains (allocation.getID ())) {
+                errors.put (allocation.getID (), "Delivery booking already in progress");
+            } else {
+                errors.put (allocation.getID (), failures.getOrDefault (allocation.getID (), "Items aren't packed"));
+            }
+        }
+
+        return new PackAllOrderAllocationsResult (trackingIDs, errors);
+    }
+
+/**
+  * Completes the handling of order allocation packing, when the courier booking API
+  * response is returned. Persists the new allocation state, and publishes the result
+  * with {@link PackResults}. A failed background booking returns the allocation to the
+  * allocated status, which ends its booking job. Only the result of the background
+  * booking of an allocation ends its job; the allocation can't be booked otherwise
+  * while its booking is in flight.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onPackAllocationResult (State state, WrappedPackOrderAllocationResult cmd)
+    {
+        _bookingsInProgress--;
+        _inFlight.remove (cmd.allocationID ());
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Order is not yet allocated"));
+        } else if (!allocated.hasAllocation (cmd.allocationID ())) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Allocation not found"));
+        }
+
+        Allocation.Status latest = allocated.getLatestAllocationStatus (cmd.allocationID ());
+        if (latest != Allocation.Status.ALLOCATED && latest != Allocation.Status.BOOKING) {
+            return Decision.reply (
+                cmd.replyTo (),
+                StatusReply.success (
+                    new PackOrderAllocationResult (allocated.getAllocation (cmd.allocationID ()).getTrackingID ())));
+        }
+
+        return switch (cmd.result ()) {
+        case BookDeliverySuccess success ->
+            Decision.persist (
+                List.of (new OrderAllocationPacked (_ident, cmd.allocationID (), success.trackingID (), Instant.now ())),
+                newState -> _packResults.packed (_ident, cmd.allocationID (), success.trackingID ()),
+                cmd.replyTo (),
+                newState -> StatusReply.success (new PackOrderAllocationResult (success.trackingID ())));
+        case BookDeliveryFailure failure when cmd.background () && latest == Allocation.Status.BOOKING ->
+            Decision.persist (
+                List.of (new OrderAllocationBookingFailed (_ident, cmd.allocationID (), failure.reason (), Instant.now ())),
+                newState -> _packResults.failed (_ident, cmd.allocationID (), "failed to book delivery: " + failure.reason ()),
+                cmd.replyTo (),
+                newState -> StatusReply.error ("failed to book delivery: " + failure.reason ()));
+        case BookDeliveryFailure failure ->
+            Decision.reply (cmd.replyTo (), StatusReply.error ("failed to book delivery: " + failure.reason ()));
+        };
+    }
+
+/**
+  * Handles packing of all the allocated order allocations. The allocations that share a
+  * parcel are consolidated into a single booking, the courier booking APIs are executed
+  * in parallel, within the free booking slots of the entity, and when all of them return,
+  * a single command containing the responses is sent to same actor. The allocations
+  * whose booking is already in flight (e.g. by an overlapping pack request) are left to
+  * that booking, and reported as in progress. If no allocation is waiting to be packed,
+  * the current tracking identifiers are replied.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onPackAllAllocations (State state, PackAllOrderAllocations cmd)
+    {
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error (notAllocated (state)));
+        }
+
+        List<Allocation> pending =
+            allocated.allocations ()
+                     .values ()
+                     .stream ()
+                     .filter (allocation -> allocation.getLatestAllocationStatus () == Allocation.Status.ALLOCATED)
+                     .filter (allocation -> !_inFlight.contains (allocation.getID ()))
+                     .collect (Collectors.toList ());
+
+        if (pending.isEmpty ()) {
+            return Decision.reply (cmd.replyTo (), StatusReply.success (packAllResult (allocated, Map.of ())));
+        } else if (_bookingsInProgress >= MAX_BOOKINGS_IN_PROGRESS) {
+            return Decision.reply (cmd.replyTo (),
+                StatusReply.error ("Max " + MAX_BOOKINGS_IN_PROGRESS + " concurrent pack operations supported"));
+        }
+
+        List<List<Allocation>> parcels = _bookings.parcels (pending);
+        int parallelism = Math.min (parcels.size (), MAX_BOOKINGS_IN_PROGRESS - _bookingsInProgress);
+        bookDeliveries (parcels, allocated.customer (), parallelism, cmd.replyTo ());
+        pending.forEach (allocation -> _inFlight.add (allocation.getID ()));
+        _bookingsInProgress += parallelism;
+        return Decision.none ();
+    }
+
+/**
+  * Completes the handling of packing all the order allocations, when all the courier
+  * booking API responses are returned. The successful bookings are persisted as a single
+  * batch of events, and published with {@link PackResults}.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onPackAllAllocationsResult (State state, WrappedPackAllOrderAllocationsResult cmd)
+    {
+        _bookingsInProgress -= cmd.bookings ();
+        _inFlight.removeAll (cmd.results ().keySet ());
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Order is not yet allocated"));
+        }
+
+        List<Event> events = new ArrayList<> ();
+        Map<String,String> failures = new HashMap<> ();
+        Instant now = Instant.now ();
+
+        cmd.results ().forEach ((allocationID, result) -> {
+            if (allocated.getLatestAllocationStatus (allocationID) == Allocation.Status.ALLOCATED) {
+                switch (result) {
+                case BookDeliverySuccess success ->
+                    events.add (new OrderAllocationPacked (_ident, allocationID, success.trackingID (), now));
+                case BookDeliveryFailure failure ->
+                    failures.put (allocationID, "failed to book delivery: " + failure.reason ());
+                }
+            }
+        });
+
+        if (events.isEmpty ()) {
+            return Decision.reply (cmd.replyTo (), StatusReply.success (packAllResult (allocated, failures)));
+        }
+
+        return Decision.persist (
+            events,
+            newState -> events.forEach (
+                event -> {
+                    OrderAllocationPacked packed = (OrderAllocationPacked) event;
+                    _packResults.packed (_ident, packed.allocationID (), packed.trackingID ());
+                }),
+            cmd.replyTo (),
+            newState -> StatusReply.success (packAllResult ((AllocatedOrderState) newState, failures)));
+    }
+
+/**
+  * Handles order allocation tracking update. Persists the new allocation state.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onUpdateTracking (State state, UpdateTracking cmd)
+    {
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error (notAllocated (state)));
+        } else if (cmd.allocationID () == null || cmd.allocationID ().isBlank ()) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Tracking update request must contain a valid allocation identifier"));
+        } else if (cmd.status () == null) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Tracking update request must contain a valid status"));
+        } else if (!allocated.hasAllocation (cmd.allocationID ())) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error ("Allocation not found"));
+        }
+
+        if (canTrack (allocated, cmd.allocationID (), cmd.status ())) {
+            return Decision.persist (
+                List.of (new TrackingUpdated (_ident, cmd.allocationID (), cmd.status (), Instant.now ())),
+                null,
+                cmd.replyTo (),
+                newState -> StatusReply.ack ());
+        } else {
+            return Decision.reply (
+                cmd.replyTo (),
+                StatusReply.error ("Existing allocation status inconsistent with requested tracking status"));
+        }
+    }
+
+/**
+  * Handles a tracking update of a parcel. The new status of all the allocations of the
+  * parcel is persisted as a single batch of events, and only if it is consistent with the
+  * status of each of them, so a parcel is never left partially updated.
+  * <p>
+  * @param state the order state
+  * @param cmd the command
+  * @return the decision
+  */
+
+    private Decision<?> onUpdateParcelTracking (State state, UpdateParcelTracking cmd)
+    {
+        if (!(state instanceof AllocatedOrderState allocated)) {
+            return Decision.reply (cmd.replyTo (), StatusReply.error (notAllocated (state)));
+        } else if (cmd.trackingID () == null || cmd.trackingID ().isBlank ()) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Tracking update request must contain a valid tracking identifier"));
+        } else if (cmd.status () == null) {
+            return Decision.reply (cmd.replyTo (),
+                                   StatusReply.error ("Tracking update request must contain a valid status"));
+        }
+
+        List<String> allocationIDs =
+            allocated.allocations ()
+                     .values ()
+                     .stream ()
+                     .filter (allocation -> cmd.trackingID ().equals (allocation.getTrackingID ()))
+                     .map (Allocation::getID)
+                     .sorted ()
+                     .collect (Collectors.toList ());
+        if (allocationIDs.isEmpty ()) {
+            if (cmd.allocationID () == null || !allocated.hasAllocation (cmd.allocationID ())) {
+                return Decision.reply (cmd.replyTo (), StatusReply.error ("Allocation not found"));
+            }
+            allocationIDs = List.of (cmd.allocationID ());
+        }
+
+        if (!allocationIDs.stream ().allMatch (id -> canTrack (allocated, id, cmd.status ()))) {
+            return Decision.reply (
+                cmd.replyTo (),
+                StatusReply.error ("Existing allocation status inconsistent with requested tracking status"));
+        }
+
+        Instant now = Instant.now ();
+        return Decision.persist (
+            allocationIDs.stream ()
+                         .map (id -> (Event) new TrackingUpdated (_ident, id, cmd.status (), now))
+                         .toList (),
+            null,
+            cmd.replyTo (),
+            newState -> StatusReply.ack ());
+    }
+
+/**
+  * Returns true if an allocation can move to the given tracking status, i.e. it is
+  * packed, and the status is past its latest status.
+  */
+
+    private static boolean canTrack (AllocatedOrderState allocated, String allocationID, Allocation.Status status)
+    {
+        Allocation.Status latest = allocated.getLatestAllocationStatus (allocationID);
+        return latest.ordinal () >= Allocation.Status.PACKED.ordinal () && latest.ordinal () < status.ordinal ();
+    }
+
+}
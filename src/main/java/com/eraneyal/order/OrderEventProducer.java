@@ -0,0 +1,209 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.events.AllocationPacked;
+import com.eraneyal.order.proto.events.DeliveryStatus;
+import com.eraneyal.order.proto.events.OrderAllocated;
+import com.eraneyal.order.proto.events.OrderReceived;
+import com.eraneyal.order.proto.events.TrackingUpdated;
+
+import akka.actor.typed.ActorSystem;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.japi.function.Function;
+import akka.persistence.query.typed.EventEnvelope;
+import akka.projection.grpc.producer.EventProducerSettings;
+import akka.projection.grpc.producer.javadsl.EventProducer;
+import akka.projection.grpc.producer.javadsl.EventProducerSource;
+import akka.projection.grpc.producer.javadsl.Transformation;
+
+import com.google.protobuf.Timestamp;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+  * Publishes the Order events to downstream consumers (e.g. notifications, analytics),
+  * over gRPC, so they don't have to read the journal of this service.
+  * <p>
+  * The events are published under a stream identifier (by default "order-events"), and are
+  * transformed to the public event schema (see order_events.proto), so the persisted
+  * events can evolve without breaking the consumers. Consumers read the stream by slices
+  * with a GrpcReadJournal, so they can split the slices into ranges and scale out the same
+  * way as the local projections.
+  * <p>
+  * Events are tagged with their type (see {@link Order#tagOf}). Consumers can narrow the
+  * stream with consumer filters (by tag, entity identifier or entity identifier pattern),
+  * which are applied by the producer, so filtered events never leave this service. Event
+  * types can also be withheld from all consumers in the configuration.
+  */
+
+public final class OrderEventProducer
+{
+
+    private OrderEventProducer ()
+    {
+    }
+
+/**
+  * Returns the gRPC handler of the event producer.
+  * <p>
+  * @param system the actor system
+  * @return the gRPC handler
+  */
+
+    public static Function<HttpRequest, CompletionStage<HttpResponse>> grpcServiceHandler (ActorSystem<?> system)
+    {
+        String streamID = system.settings ().config ().getString ("order-service.events.stream-id");
+        Set<String> excludedTags =
+            new HashSet<> (system.settings ().config ().getStringList ("order-service.events.excluded-tags"));
+
+        EventProducerSource source =
+            new EventProducerSource (
+                Order.ENTITY_KEY.name (),
+                streamID,
+                transformation (),
+                EventProducerSettings.create (system))
+            .withProducerFilter ((EventEnvelope<Order.Event> envelope) ->
+                                     Collections.disjoint (envelope.getTags (), excludedTags));
+
+        return EventProducer.grpcServiceHandler (system, source);
+    }
+
+/**
+  * Returns the transformation of the persisted events to the public event schema. The
+  * progress of background delivery bookings is internal, and isn't published.
+  * <p>
+  * @return the transformation
+  */
+
+    static Transformation transformation ()
+    {
+        return Transformation.empty ()
+                             .registerMapper (Order.OrderReceived.class,
+                                              event -> Optional.of (toProto (event)))
+                             .registerMapper (Order.OrderAllocationsReceived.class,
+                                              event -> Optional.of (toProto (event)))
+                             .registerMapper (Order.OrderAllocationPacked.class,
+                                              event -> Optional.of (toProto (event)))
+                             .registerMapper (Order.OrderAllocationBookingStarted.class,
+                                              event -> Optional.empty ())
+                             .registerMapper (Order.OrderAllocationBookingFailed.class,
+                                              event -> Optional.empty ())
+                             .registerMapper (Order.TrackingUpdated.class,
+                                              event -> Optional.of (toProto (event)));
+    }
+
+/**
+  * Converts a new order event to the public event schema.
+  */
+
+    static OrderReceived toProto (Order.OrderReceived event)
+    {
+        OrderReceived.Builder builder =
+            OrderReceived.newBuilder ()
+                         .setOrderId (event.orderID ())
+                         .setCustomer (toProto (event.customer ()));
+        event.items ().values ().forEach (item -> builder.addItems (toProto (item)));
+
+        return builder.build ();
+    }
+
+/**
+  * Converts a received allocations event to the public event schema.
+  */
+
+    static OrderAllocated toProto (Order.OrderAllocationsReceived event)
+    {
+        OrderAllocated.Builder builder = OrderAllocated.newBuilder ().setOrderId (event.orderID ());
+        for (Allocation allocation : event.allocations ().values ()) {
+            com.eraneyal.order.proto.events.Allocation.Builder allocationBuilder =
+                com.eraneyal.order.proto.events.Allocation.newBuilder ()
+                                                          .setAllocationId (allocation.getID ())
+                                                          .setSiteName (allocation.getName ())
+                                                          .setSiteAddress (toProto (allocation.getAddress ()))
+                                                          .setCourier (allocation.getCourier ());
+            allocation.getItems ().values ().forEach (item -> allocationBuilder.addItems (toProto (item)));
+            builder.addAllocations (allocationBuilder);
+        }
+
+        return builder.build ();
+    }
+
+/**
+  * Converts a packed allocation event to the public event schema.
+  */
+
+    static AllocationPacked toProto (Order.OrderAllocationPacked event)
+    {
+        return AllocationPacked.newBuilder ()
+                               .setOrderId (event.orderID ())
+                               .setAllocationId (event.allocationID ())
+                               .setTrackingId (event.trackingID ())
+                               .setTimestamp (toProto (event.timestamp ()))
+                               .build ();
+    }
+
+/**
+  * Converts a tracking update event to the public event schema.
+  */
+
+    static TrackingUpdated toProto (Order.TrackingUpdated event)
+    {
+        DeliveryStatus status = switch (event.status ()) {
+        case PICKED_BY_COURIER -> DeliveryStatus.DELIVERY_STATUS_PICKED_BY_COURIER;
+        case ENROUTE_TO_CUSTOMER -> DeliveryStatus.DELIVERY_STATUS_ENROUTE_TO_CUSTOMER;
+        case DELIVERED -> DeliveryStatus.DELIVERY_STATUS_DELIVERED;
+        default -> DeliveryStatus.DELIVERY_STATUS_UNSPECIFIED;
+        };
+
+        return TrackingUpdated.newBuilder ()
+                              .setOrderId (event.orderID ())
+                              .setAllocationId (event.allocationID ())
+                              .setStatus (status)
+                              .setTimestamp (toProto (event.timestamp ()))
+                              .build ();
+    }
+
+    private static com.eraneyal.order.proto.events.Item toProto (OrderItem item)
+    {
+        return com.eraneyal.order.proto.events.Item.newBuilder ()
+                                                   .setItemId (item.getItemID ())
+                                                   .setName (item.getName ())
+                                                   .setQuantity (item.getQuantity ())
+                                                   .build ();
+    }
+
+    private static com.eraneyal.order.proto.events.Customer toProto (Customer customer)
+    {
+        return com.eraneyal.order.proto.events.Customer.newBuilder ()
+                                                       .setFirstName (customer.getFirstName ())
+                                                       .setLastName (customer.getLastName ())
+                                                       .setAddress (toProto (customer.getAddress ()))
+                                                       .setEmail (customer.getEMail ())
+                                                       .setMobilePhone (customer.getMobilePhone ())
+                                                       .build ();
+    }
+
+    private static com.eraneyal.order.proto.events.Address toProto (Address address)
+    {
+        return com.eraneyal.order.proto.events.Address.newBuilder ()
+                                                      .setStreet (address.getStreet ())
+                                                      .setCity (address.getCity ())
+                                                      .setCountry (address.getCountry ())
+                                                      .setZipCode (address.getZipCode ())
+                                                      .build ();
+    }
+
+    private static Timestamp toProto (Instant instant)
+    {
+        return Timestamp.newBuilder ()
+                        .setSeconds (instant.getEpochSecond ())
+                        .setNanos (instant.getNano ())
+                        .build ();
+    }
+
+}
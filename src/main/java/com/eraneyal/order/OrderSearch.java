@@ -0,0 +1,364 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.OrderSearchResult;
+import com.eraneyal.order.proto.SearchOrdersRequest;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorSystem;
+import akka.japi.Pair;
+import akka.persistence.r2dbc.session.javadsl.R2dbcSession;
+import akka.stream.javadsl.Source;
+
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.Statement;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+  * Implements the search of orders over the search index maintained by
+  * {@link OrderViewProjection} (see {@link OrderView}).
+  * <p>
+  * Results are order allocations, filtered by any combination of customer e-mail, status,
+  * courier and the time the status was entered, and ordered by that time. They are read
+  * page by page with keyset pagination: each page continues after the last result of the
+  * previous page, so a page is read with an index range scan regardless of how deep into
+  * the results it is. Pages are read only when the stream consumer demands them, so large
+  * result sets are never held in memory.
+  * <p>
+  * Every result carries an opaque cursor, which can be passed in a later request to resume
+  * the search after that result.
+  */
+
+public final class OrderSearch
+{
+
+/**
+  * Represents the position of a result in the search order.
+  * <p>
+  * @param statusSince the time the status was entered
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  */
+
+    record Cursor (Instant statusSince, String orderID, String allocationID)
+    {
+
+/**
+  * Encodes the cursor as an opaque string.
+  * <p>
+  * @return the encoded cursor
+  */
+
+        String encode ()
+        {
+            String plain = statusSince.getEpochSecond () + ":" + statusSince.getNano () + ":" +
+                           orderID.length () + ":" + orderID + allocationID;
+            return Base64.getUrlEncoder ().withoutPadding ().encodeToString (plain.getBytes (StandardCharsets.UTF_8));
+        }
+
+/**
+  * Decodes an encoded cursor.
+  * <p>
+  * @param encoded the encoded cursor
+  * @return the cursor
+  * @throws IllegalArgumentException if the cursor is malformed
+  */
+
+        static Cursor decode (String encoded)
+        {
+            try {
+                String plain = new String (Base64.getUrlDecoder ().decode (encoded), StandardCharsets.UTF_8);
+                String[] parts = plain.split (":", 4);
+                int length = Integer.parseInt (parts[2]);
+                return new Cursor (Instant.ofEpochSecond (Long.parseLong (parts[0]), Long.parseLong (parts[1])),
+                                   parts[3].substring (0, length),
+                                   parts[3].substring (length));
+            } catch (RuntimeException exc) {
+                throw new IllegalArgumentException ("Malformed cursor", exc);
+            }
+        }
+
+    }
+
+/**
+  * Represents the validated filters of a search.
+  * <p>
+  * @param email the customer e-mail, or null
+  * @param status the status, or null
+  * @param courier the courier, or null
+  * @param from the minimal (inclusive) status time, or null
+  * @param to the maximal (exclusive) status time, or null
+  * @param limit the maximum number of results, or 0 for no limit
+  * @param after the cursor after which results start, or null
+  */
+
+    record Filters (
+        String email,
+        Allocation.Status status,
+        String courier,
+        Instant from,
+        Instant to,
+        int limit,
+        Cursor after)
+    {
+
+/**
+  * Validates the filters of a search request.
+  * <p>
+  * @param request the search request
+  * @return the validated filters
+  * @throws IllegalArgumentException if a filter is invalid
+  */
+
+        static Filters of (SearchOrdersRequest request)
+        {
+            if (request.getLimit () < 0) {
+                throw new IllegalArgumentException ("Limit must be non-negative");
+            }
+
+            return new Filters (
+                request.getEmail ().isBlank () ? null : request.getEmail (),
+                request.getStatus ().isBlank () ? null : Allocation.Status.valueOf (request.getStatus ()),
+                request.getCourier ().isBlank () ? null : request.getCourier (),
+                request.getFrom ().isBlank () ? null : Instant.parse (request.getFrom ()),
+                request.getTo ().isBlank () ? null : Instant.parse (request.getTo ()),
+                request.getLimit (),
+                request.getAfter ().isBlank () ? null : Cursor.decode (request.getAfter ()));
+        }
+
+/**
+  * Returns the names of the given filters, without their values, since the filters hold
+  * personal data of the customers (e.g. the e-mail) that must not be logged.
+  * <p>
+  * @return the names of the given filters
+  */
+
+        @Override
+        public String toString ()
+        {
+            StringJoiner names = new StringJoiner (", ", "[", "]");
+            if (email != null) {
+                names.add ("email");
+            }
+            if (status != null) {
+                names.add ("status");
+            }
+            if (courier != null) {
+                names.add ("courier");
+            }
+            if (from != null) {
+                names.add ("from");
+            }
+            if (to != null) {
+                names.add ("to");
+            }
+            if (limit > 0) {
+                names.add ("limit");
+            }
+            if (after != null) {
+                names.add ("after");
+            }
+
+            return names.toString ();
+        }
+
+    }
+
+/**
+  * Represents the progress of a search.
+  * <p>
+  * @param after the cursor of the last result, or null
+  * @param remaining the number of results left to return, or -1 for no limit
+  */
+
+    private record Progress (Cursor after, int remaining) {}
+
+/**
+  * Holds the actor system.
+  */
+
+    private final ActorSystem<?> _system;
+
+/**
+  * Holds the number of results read per page.
+  */
+
+    private final int _pageSize;
+
+/**
+  * Creates a new instance.
+  * <p>
+  * @param system the actor system
+  * @param pageSize the number of results read per page
+  */
+
+    public OrderSearch (ActorSystem<?> system, int pageSize)
+    {
+        _system = system;
+        _pageSize = pageSize;
+    }
+
+/**
+  * Returns a stream of the results of a search.
+  * <p>
+  * @param filters the validated filters
+  * @return a stream of the results
+  */
+
+    public Source<OrderSearchResult,NotUsed> search (Filters filters)
+    {
+        Progress start = new Progress (filters.after (), filters.limit () > 0 ? filters.limit () : -1);
+
+        return Source.unfoldAsync (start, progress -> nextPage (filters, progress))
+                     .mapConcat (page -> page);
+    }
+
+/**
+  * Reads the page that follows the given progress.
+  * <p>
+  * @param filters the filters
+  * @param progress the progress of the search
+  * @return the next progress along with the page, or an empty optional if the search is
+  * 		complete
+  */
+
+    private CompletionStage<Optional<Pair<Progress,List<OrderSearchResult>>>> nextPage (
+        Filters filters,
+        Progress progress)
+    {
+        if (progress.remaining () == 0) {
+            return CompletableFuture.completedFuture (Optional.empty ());
+        }
+
+        int pageSize = progress.remaining () > 0 ? Math.min (_pageSize, progress.remaining ()) : _pageSize;
+
+        return R2dbcSession.withSession (
+                _system,
+                session -> session.select (bind (session.createStatement (toSQL (filters, progress.after ())),
+                                                 filters,
+                                                 progress.after (),
+                                                 pageSize),
+                                           OrderSearch::toResult))
+            .thenApply (results -> {
+                if (results.isEmpty ()) {
+                    return Optional.empty ();
+                }
+                OrderSearchResult last = results.get (results.size () - 1);
+// -- a short page is the last one
+                Progress next =
+                    new Progress (Cursor.decode (last.getCursor ()),
+                                  results.size () < pageSize
+                                      ? 0
+                                      : progress.remaining () > 0 ? progress.remaining () - results.size () : -1);
+                return Optional.of (Pair.create (next, results));
+            });
+    }
+
+/**
+  * Returns the query of the given filters.
+  * <p>
+  * @param filters the filters
+  * @param after the cursor after which results start, or null
+  * @return the query
+  */
+
+    static String toSQL (Filters filters, Cursor after)
+    {
+        StringBuilder sql =
+            new StringBuilder ("SELECT order_id, allocation_id, email, courier, status, status_since, tracking_id " +
+                               "FROM order_allocation_view WHERE true");
+        int param = 1;
+
+        if (filters.email () != null) {
+            sql.append (" AND email = $").append (param++);
+        }
+        if (filters.status () != null) {
+            sql.append (" AND status = $").append (param++);
+        }
+        if (filters.courier () != null) {
+            sql.append (" AND courier = $").append (param++);
+        }
+        if (filters.from () != null) {
+            sql.append (" AND status_since >= $").append (param++);
+        }
+        if (filters.to () != null) {
+            sql.append (" AND status_since < $").append (param++);
+        }
+        if (after != null) {
+            sql.append (" AND (status_since, order_id, allocation_id) > ($")
+               .append (param++).append (", $").append (param++).append (", $").append (param++).append (')');
+        }
+        sql.append (" ORDER BY status_since, order_id, allocation_id LIMIT $").append (param);
+
+        return sql.toString ();
+    }
+
+/**
+  * Binds the parameters of the query of the given filters.
+  */
+
+    private static Statement bind (Statement statement, Filters filters, Cursor after, int pageSize)
+    {
+        List<Object> params = new ArrayList<> ();
+
+        if (filters.email () != null) {
+            params.add (filters.email ());
+        }
+        if (filters.status () != null) {
+            params.add (filters.status ().name ());
+        }
+        if (filters.courier () != null) {
+            params.add (filters.courier ());
+        }
+        if (filters.from () != null) {
+            params.add (OrderView.toOffsetDateTime (filters.from ()));
+        }
+        if (filters.to () != null) {
+            params.add (OrderView.toOffsetDateTime (filters.to ()));
+        }
+        if (after != null) {
+            params.add (OrderView.toOffsetDateTime (after.statusSince ()));
+            params.add (after.orderID ());
+            params.add (after.allocationID ());
+        }
+        params.add (pageSize);
+
+        for (int i = 0; i < params.size (); i++) {
+            statement.bind (i, params.get (i));
+        }
+
+        return statement;
+    }
+
+/**
+  * Converts a selected row to a search result.
+  */
+
+    private static OrderSearchResult toResult (Row row)
+    {
+        Instant statusSince = row.get ("status_since", OffsetDateTime.class).toInstant ();
+        String orderID = row.get ("order_id", String.class);
+        String allocationID = row.get ("allocation_id", String.class);
+
+        return OrderSearchResult.newBuilder ()
+                                .setOrderId (orderID)
+                                .setAllocationId (allocationID)
+                                .setEmail (row.get ("email", String.class))
+                                .setCourier (row.get ("courier", String.class))
+                                .setStatus (row.get ("status", String.class))
+                                .setStatusSince (statusSince.toString ())
+                                .setTrackingId (row.get ("tracking_id", String.class))
+                                .setCursor (new Cursor (statusSince, orderID, allocationID).encode ())
+                                .build ();
+    }
+
+}
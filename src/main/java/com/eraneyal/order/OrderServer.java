@@ -45,6 +45,8 @@ public final class OrderServer
         Function<HttpRequest, CompletionStage<HttpResponse>> service =
             ServiceHandler.concatOrNotFound (
                 OrderServiceHandlerFactory.create (grpcService, system),
+                // the Order events published to downstream consumers
+                OrderEventProducer.grpcServiceHandler (system),
                 // ServerReflection enabled to support grpcurl without import-path and proto parameters
                 ServerReflection.create (
                     Collections.singletonList (OrderService.description), system));
@@ -1,32 +1,51 @@
 package com.eraneyal.order;
 
+import com.eraneyal.order.proto.DeliveryStatsRequest;
+import com.eraneyal.order.proto.DeliveryStatsResponse;
 import com.eraneyal.order.proto.Item;
 import com.eraneyal.order.proto.OrderDetailsRequest;
 import com.eraneyal.order.proto.OrderDetailsResponse;
+import com.eraneyal.order.proto.OrderSearchResult;
 import com.eraneyal.order.proto.ReceiveOrderRequest;
 import com.eraneyal.order.proto.ReceiveOrderResponse;
+import com.eraneyal.order.proto.SearchOrdersRequest;
+import com.eraneyal.order.proto.TrackUpdateByTrackingIdRequest;
 import com.eraneyal.order.proto.TrackUpdateRequest;
 import com.eraneyal.order.proto.TrackUpdateResponse;
 import com.eraneyal.order.proto.TrackingStatus;
 import com.eraneyal.order.proto.OrderService;
+import com.eraneyal.order.proto.PackAllItemsRequest;
+import com.eraneyal.order.proto.PackAllItemsResponse;
 import com.eraneyal.order.proto.PackItemsRequest;
 import com.eraneyal.order.proto.PackItemsResponse;
+import com.eraneyal.order.proto.PackResult;
+import com.eraneyal.order.proto.StreamPackResultsRequest;
 
 import akka.Done;
+import akka.NotUsed;
 import akka.actor.typed.ActorSystem;
+import akka.actor.typed.DispatcherSelector;
 import akka.cluster.sharding.typed.javadsl.ClusterSharding;
 import akka.cluster.sharding.typed.javadsl.EntityRef;
 import akka.grpc.GrpcServiceException;
+import akka.japi.Pair;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.stream.javadsl.Source;
 import io.grpc.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
@@ -55,6 +74,61 @@ public final class OrderServiceImpl implements OrderService
 
     private final ClusterSharding sharding;
 
+/**
+  * Holds the order view, or null if order details are always fetched from the entities.
+  */
+
+    private final OrderView view;
+
+/**
+  * Holds the maximum age of the order events missing from the order view, for which the
+  * order details are served from the view rather than from the entity.
+  */
+
+    private final Duration maxStaleness;
+
+/**
+  * Holds the order search.
+  */
+
+    private final OrderSearch search;
+
+/**
+  * Holds the tracking index.
+  */
+
+    private final TrackingIndex trackingIndex;
+
+/**
+  * Holds the delivery statistics.
+  */
+
+    private final DeliveryStats deliveryStats;
+
+/**
+  * Holds the archive of delivered orders.
+  */
+
+    private final OrderArchive archive;
+
+/**
+  * Holds the serialization extension, which deserializes archived orders.
+  */
+
+    private final Serialization serialization;
+
+/**
+  * Holds the executor of the blocking archive reads.
+  */
+
+    private final Executor blocking;
+
+/**
+  * Holds the results of the background delivery bookings.
+  */
+
+    private final PackResults packResults;
+
 /**
   * Creates a new order service instance.
   */
@@ -63,6 +137,19 @@ public final class OrderServiceImpl implements OrderService
     {
         timeout = system.settings ().config ().getDuration ("order-service.ask-timeout");
         sharding = ClusterSharding.get (system);
+        view = "view".equals (system.settings ().config ().getString ("order-service.view.read-mode"))
+                   ? new OrderView (system)
+                   : null;
+        maxStaleness = system.settings ().config ().getDuration ("order-service.view.max-staleness");
+        search = new OrderSearch (system, system.settings ().config ().getInt ("order-service.view.search-page-size"));
+        trackingIndex = new TrackingIndex (system, system.settings ().config ().getInt ("order-service.view.tracking-cache-size"));
+        Metrics.register ("TrackingIndex", trackingIndex.getMetrics ());
+        deliveryStats = new DeliveryStats (system);
+        archive = OrderArchiver.get (system);
+        Metrics.register ("OrderArchive", archive.getMetrics ());
+        serialization = SerializationExtension.get (system);
+        blocking = system.dispatchers ().lookup (DispatcherSelector.blocking ());
+        packResults = PackResults.get (system);
     }
 
 /**
@@ -84,6 +171,7 @@ public final class OrderServiceImpl implements OrderService
         EntityRef<Order.Command>
             entityRef = sharding.entityRefFor (Order.ENTITY_KEY, in.getOrderId ());
 
+// -- the entity of an archived order keeps its sequence number, so it rejects the order
         CompletionStage<Done> reply =
             entityRef.askWithStatus (replyTo -> new Order.ReceiveOrder (items, customer, replyTo), timeout);
 
@@ -94,7 +182,8 @@ public final class OrderServiceImpl implements OrderService
     }
 
 /**
-  * Implements the pack items service.
+  * Implements the pack items service. In async mode, the reply is sent once the packing is
+  * persisted, and the delivery is booked in the background (see {@link PackResults}).
   */
 
     @Override
@@ -106,10 +195,21 @@ public final class OrderServiceImpl implements OrderService
                 Status.INVALID_ARGUMENT.withDescription ("Missing order identifier"));
         }
 
-        logger.info ("receivePackItems {}-{}", in.getOrderId (), in.getAllocationId ());
+        logger.info ("receivePackItems {}-{}{}", in.getOrderId (), in.getAllocationId (), in.getAsync () ? " async" : "");
         EntityRef<Order.Command>
             entityRef = sharding.entityRefFor (Order.ENTITY_KEY, in.getOrderId ());
 
+        if (in.getAsync ()) {
+            CompletionStage<Order.PackJob> job =
+                entityRef.askWithStatus (replyTo ->
+                    new Order.StartPackOrderAllocation (in.getAllocationId (), replyTo), timeout);
+            return convertError (
+                job.thenApply (
+                    result -> PackItemsResponse.newBuilder ()
+                                               .setJobId (result.jobID ())
+                                               .build ()));
+        }
+
         CompletionStage<Order.PackOrderAllocationResult> reply =
             entityRef.askWithStatus (replyTo ->
                 new Order.PackOrderAllocation (in.getAllocationId (), replyTo), timeout);
@@ -123,11 +223,13 @@ public final class OrderServiceImpl implements OrderService
     }
 
 /**
-  * Implements the tracking update service.
+  * Implements the pack all items service. The allocations of the order are booked in
+  * parallel by a single command to its entity, which persists the packed allocations
+  * together.
   */
 
     @Override
-    public CompletionStage<TrackUpdateResponse> trackingUpdate (TrackUpdateRequest in)
+    public CompletionStage<PackAllItemsResponse> packAllItems (PackAllItemsRequest in)
     {
 // -- validate input
         if (in.getOrderId () == null || in.getOrderId ().isBlank ()) {
@@ -135,24 +237,126 @@ public final class OrderServiceImpl implements OrderService
                 Status.INVALID_ARGUMENT.withDescription ("Missing order identifier"));
         }
 
-        logger.info ("trackingUpdate {}-{}-{}", in.getOrderId (), in.getAllocationId (), in.getStatus ());
+        logger.info ("receivePackAllItems {}", in.getOrderId ());
         EntityRef<Order.Command>
             entityRef = sharding.entityRefFor (Order.ENTITY_KEY, in.getOrderId ());
 
-        CompletionStage<Done> reply =
-            entityRef.askWithStatus (replyTo ->
-                new Order.UpdateTracking (in.getAllocationId (),
-                                          toStatus (in.getStatus ()),
-                                          replyTo),
-                timeout);
-        CompletionStage<TrackUpdateResponse> response =
-            reply.thenApply (done -> TrackUpdateResponse.newBuilder ().setOk (true).build ());
+        CompletionStage<Order.PackAllOrderAllocationsResult> reply =
+            entityRef.askWithStatus (Order.PackAllOrderAllocations::new, timeout);
+        CompletionStage<PackAllItemsResponse> response =
+            reply.thenApply (
+                result -> {
+                    PackAllItemsResponse.Builder builder = PackAllItemsResponse.newBuilder ();
+                    result.trackingIDs ().forEach (
+                        (allocationID, trackingID) -> builder.addResults (
+                            toProtoPackResult (new PackResults.PackResult (PackResults.jobID (in.getOrderId (), allocationID),
+                                                                           in.getOrderId (),
+                                                                           allocationID,
+                                                                           trackingID,
+                                                                           null))));
+                    result.errors ().forEach (
+                        (allocationID, error) -> builder.addResults (
+                            toProtoPackResult (new PackResults.PackResult (PackResults.jobID (in.getOrderId (), allocationID),
+                                                                           in.getOrderId (),
+                                                                           allocationID,
+                                                                           null,
+                                                                           error))));
+                    return builder.build ();
+                });
 
         return convertError (response);
     }
 
+/**
+  * Implements the pack results service.
+  * <p>
+  * Without job identifiers, the stream follows all the results published from now on.
+  * Otherwise it streams the result of each requested job once, and completes after the
+  * last one (see {@link PackResults#results}).
+  */
+
+    @Override
+    public Source<PackResult,NotUsed> streamPackResults (StreamPackResultsRequest in)
+    {
+// -- validate input
+        for (String jobID : in.getJobIdsList ()) {
+            if (PackResults.parseJobID (jobID).isEmpty ()) {
+                throw new GrpcServiceException (
+                    Status.INVALID_ARGUMENT.withDescription ("Invalid job identifier " + jobID));
+            }
+        }
+
+        logger.info ("streamPackResults {}", in.getJobIdsList ());
+        if (in.getJobIdsCount () == 0) {
+            return packResults.subscribe ().map (OrderServiceImpl::toProtoPackResult);
+        }
+
+        return packResults.results (in.getJobIdsList (), this::fetchPackResult)
+                          .map (OrderServiceImpl::toProtoPackResult);
+    }
+
+/**
+  * Implements the tracking update service.
+  */
+
+    @Override
+    public CompletionStage<TrackUpdateResponse> trackingUpdate (TrackUpdateRequest in)
+    {
+// -- validate input
+        if (in.getOrderId () == null || in.getOrderId ().isBlank ()) {
+            throw new GrpcServiceException (
+                Status.INVALID_ARGUMENT.withDescription ("Missing order identifier"));
+        }
+
+        logger.info ("trackingUpdate {}-{}-{}", in.getOrderId (), in.getAllocationId (), in.getStatus ());
+
+        return convertError (updateTracking (in.getOrderId (), in.getAllocationId (), in.getStatus ()));
+    }
+
+/**
+  * Implements the tracking update service for couriers, which only know the tracking
+  * identifier. The tracking identifier is resolved with the tracking index, which may
+  * not know an allocation for a short while after it was packed. A tracking identifier
+  * of a consolidated parcel is shared by several allocations of the order, which are all
+  * updated.
+  */
+
+    @Override
+    public CompletionStage<TrackUpdateResponse> trackingUpdateByTrackingId (TrackUpdateByTrackingIdRequest in)
+    {
+// -- validate input
+        if (in.getTrackingId () == null || in.getTrackingId ().isBlank ()) {
+            throw new GrpcServiceException (
+                Status.INVALID_ARGUMENT.withDescription ("Missing tracking identifier"));
+        }
+
+        logger.info ("trackingUpdateByTrackingId {}-{}", in.getTrackingId (), in.getStatus ());
+
+        return trackingIndex.resolve (in.getTrackingId ())
+                            .thenCompose (entry -> {
+                                if (entry.isEmpty ()) {
+                                    throw new GrpcServiceException (
+                                        Status.NOT_FOUND.withDescription ("Tracking identifier " + in.getTrackingId () + " not found"));
+                                }
+                                return convertError (updateParcelTracking (entry.get ().orderID (),
+                                                                           entry.get ().allocationID (),
+                                                                           in.getTrackingId (),
+                                                                           in.getStatus ()));
+                            });
+    }
+
 /**
   * Implements the fetch order details service.
+  * <p>
+  * In the "view" read mode, the details are served from the order view when it is fresh
+  * enough, so reading a cold order doesn't recover its entity. The entity is asked if the
+  * order isn't in the view yet, if the view misses events older than the staleness bound,
+  * or if the view can't be read.
+  * <p>
+  * Orders that were archived (see {@link OrderArchiver}) are served from the archive. An
+  * order that may be archived, according to the in-memory index of the archive, is looked
+  * up in the archive first. An order that isn't found in the hot tables is looked up again
+  * after the archive is refreshed, in case it was archived by another node just now.
   */
 
     @Override
@@ -165,11 +369,15 @@ public final class OrderServiceImpl implements OrderService
         }
 
         logger.info ("fetchOrderDetails {}", in.getOrderId ());
-        EntityRef<Order.Command>
-            entityRef = sharding.entityRefFor (Order.ENTITY_KEY, in.getOrderId ());
-
         CompletionStage<Order.OrderDetails> reply =
-            entityRef.ask (Order.FetchOrderDetails::new, timeout);
+            fetchFromArchive (in.getOrderId (), false)
+                .thenCompose (archived -> archived.isPresent ()
+                                              ? CompletableFuture.completedFuture (archived.get ())
+                                              : fetchFromHot (in.getOrderId ()))
+                .thenCompose (order -> order.allocations ().isEmpty ()
+                                           ? fetchFromArchive (in.getOrderId (), true)
+                                                 .thenApply (archived -> archived.orElse (order))
+                                           : CompletableFuture.completedFuture (order));
 
         CompletionStage<OrderDetailsResponse> protoOrder =
             reply.thenApply (
@@ -184,6 +392,228 @@ public final class OrderServiceImpl implements OrderService
         return convertError (protoOrder);
     }
 
+/**
+  * Implements the search orders service. Results are streamed with backpressure, and read
+  * from the search index page by page as the client consumes them.
+  */
+
+    @Override
+    public Source<OrderSearchResult,NotUsed> searchOrders (SearchOrdersRequest in)
+    {
+        OrderSearch.Filters filters;
+
+        try {
+            filters = OrderSearch.Filters.of (in);
+        }
+        catch (Exception exc) {
+            throw new GrpcServiceException (
+                Status.INVALID_ARGUMENT.withDescription (exc.getMessage ()));
+        }
+
+        logger.info ("searchOrders {}", filters);
+        return search.search (filters);
+    }
+
+/**
+  * Implements the delivery statistics service. The statistics are read from the daily
+  * sketches maintained by {@link DeliveryStatsProjection}, so they may lag slightly
+  * behind the orders.
+  */
+
+    @Override
+    public CompletionStage<DeliveryStatsResponse> getDeliveryStats (DeliveryStatsRequest in)
+    {
+        DeliveryStats.Dimension dimension;
+        String name;
+        LocalDate from;
+        LocalDate to;
+
+// -- validate input
+        if (in.getCourier ().isBlank () == in.getSite ().isBlank ()) {
+            throw new GrpcServiceException (
+                Status.INVALID_ARGUMENT.withDescription ("Exactly one of courier and site is required"));
+        }
+        dimension = in.getCourier ().isBlank () ? DeliveryStats.Dimension.SITE : DeliveryStats.Dimension.COURIER;
+        name = in.getCourier ().isBlank () ? in.getSite () : in.getCourier ();
+
+        try {
+            from = LocalDate.parse (in.getFrom ());
+            to = LocalDate.parse (in.getTo ());
+        }
+        catch (Exception exc) {
+            throw new GrpcServiceException (
+                Status.INVALID_ARGUMENT.withDescription ("Invalid day: " + exc.getMessage ()));
+        }
+
+        logger.info ("getDeliveryStats {} {} {}-{}", dimension, name, from, to);
+        try {
+            return deliveryStats.fetch (dimension, name, from, to);
+        }
+        catch (IllegalArgumentException exc) {
+            throw new GrpcServiceException (
+                Status.INVALID_ARGUMENT.withDescription (exc.getMessage ()));
+        }
+    }
+
+/**
+  * Updates the tracking status of an allocation with its order entity.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param status the new tracking status
+  * @return the response
+  */
+
+    private CompletionStage<TrackUpdateResponse> updateTracking (
+        String orderID,
+        String allocationID,
+        TrackingStatus status)
+    {
+        EntityRef<Order.Command>
+            entityRef = sharding.entityRefFor (Order.ENTITY_KEY, orderID);
+
+        CompletionStage<Done> reply =
+            entityRef.askWithStatus (replyTo ->
+                new Order.UpdateTracking (allocationID,
+                                          toStatus (status),
+                                          replyTo),
+                timeout);
+
+        return reply.thenApply (done -> TrackUpdateResponse.newBuilder ().setOk (true).build ());
+    }
+
+/**
+  * Updates the tracking status of all the allocations of an order that were booked under
+  * a tracking identifier, together (see {@link Order.UpdateParcelTracking}).
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier found in the tracking index
+  * @param trackingID the tracking identifier
+  * @param status the new tracking status
+  * @return the response
+  */
+
+    private CompletionStage<TrackUpdateResponse> updateParcelTracking (
+        String orderID,
+        String allocationID,
+        String trackingID,
+        TrackingStatus status)
+    {
+        EntityRef<Order.Command>
+            entityRef = sharding.entityRefFor (Order.ENTITY_KEY, orderID);
+
+        CompletionStage<Done> reply =
+            entityRef.askWithStatus (replyTo ->
+                new Order.UpdateParcelTracking (trackingID,
+                                                allocationID,
+                                                toStatus (status),
+                                                replyTo),
+                timeout);
+
+        return reply.thenApply (done -> TrackUpdateResponse.newBuilder ().setOk (true).build ());
+    }
+
+/**
+  * Fetches the order details from the order view, if it is enabled and fresh enough, or
+  * from the order entity.
+  * <p>
+  * @param orderID the order identifier
+  * @return the order details
+  */
+
+    private CompletionStage<Order.OrderDetails> fetchFromHot (String orderID)
+    {
+        if (view != null) {
+            return view.fetchState (orderID, maxStaleness)
+                       .exceptionally (exc -> {
+                           logger.warn ("Failed to read order {} from the view", orderID, exc);
+                           return Optional.empty ();
+                       })
+                       .thenCompose (state -> state.isPresent ()
+                                                  ? CompletableFuture.completedFuture (state.get ().toOrderDetails ())
+                                                  : fetchFromEntity (orderID));
+        } else {
+            return fetchFromEntity (orderID);
+        }
+    }
+
+/**
+  * Fetches the order details from the archive. The archive is only read from disk if its
+  * in-memory index tells the order may be archived.
+  * <p>
+  * @param orderID the order identifier
+  * @param refresh true to pick up segments written since the archive was last refreshed
+  * @return the order details, or an empty optional if the order isn't archived
+  */
+
+    private CompletionStage<Optional<Order.OrderDetails>> fetchFromArchive (String orderID, boolean refresh)
+    {
+        if (!refresh && !archive.mightContain (orderID)) {
+            return CompletableFuture.completedFuture (Optional.empty ());
+        }
+
+        return CompletableFuture.supplyAsync (
+            () -> {
+                if (refresh) {
+                    archive.refreshIfModified ();
+                }
+                return archive.find (orderID)
+                              .map (entry -> (Order.State) serialization.deserialize (entry.payload (),
+                                                                                      entry.serializerID (),
+                                                                                      entry.manifest ()).get ())
+                              .map (Order.State::toOrderDetails);
+            },
+            blocking);
+    }
+
+/**
+  * Fetches the order details from the order entity.
+  * <p>
+  * @param orderID the order identifier
+  * @return the order details
+  */
+
+    private CompletionStage<Order.OrderDetails> fetchFromEntity (String orderID)
+    {
+        EntityRef<Order.Command>
+            entityRef = sharding.entityRefFor (Order.ENTITY_KEY, orderID);
+
+        return entityRef.ask (Order.FetchOrderDetails::new, timeout);
+    }
+
+/**
+  * Reads the result of a booking job from its order entity.
+  * <p>
+  * @param jobID the job identifier
+  * @return the result, or an empty optional if the job is still running, or if the
+  *         entity couldn't be read
+  */
+
+    private CompletionStage<Optional<PackResults.PackResult>> fetchPackResult (String jobID)
+    {
+        Pair<String,String> ids = PackResults.parseJobID (jobID).get ();
+
+        return fetchFromEntity (ids.first ())
+            .thenApply (details -> {
+                Allocation allocation = details.getAllocation (ids.second ());
+                if (allocation == null) {
+                    return Optional.of (new PackResults.PackResult (jobID, ids.first (), ids.second (), null, "Allocation not found"));
+                } else if (allocation.getLatestAllocationStatus () == Allocation.Status.BOOKING) {
+                    return Optional.<PackResults.PackResult>empty ();
+                } else if (allocation.getTrackingID () != null) {
+                    return Optional.of (new PackResults.PackResult (jobID, ids.first (), ids.second (), allocation.getTrackingID (), null));
+                } else if (allocation.getStatuses ().containsValue (Allocation.Status.BOOKING)) {
+                    return Optional.of (new PackResults.PackResult (jobID, ids.first (), ids.second (), null, "failed to book delivery"));
+                } else {
+                    return Optional.of (new PackResults.PackResult (jobID, ids.first (), ids.second (), null, "Items aren't packed"));
+                }
+            })
+            .exceptionally (exc -> {
+                logger.warn ("Failed to read the result of job {}", jobID, exc);
+                return Optional.empty ();
+            });
+    }
+
 /**
   * Validates the request proto Items and converts them to order Items.
   * <p>
@@ -325,7 +755,7 @@ public final class OrderServiceImpl implements OrderService
   * @return the proto order
   */
 
-    private static OrderDetailsResponse toProtoOrder (
+    static OrderDetailsResponse toProtoOrder (
         String ident,
         Order.OrderDetails details)
     {
@@ -359,6 +789,24 @@ public final class OrderServiceImpl implements OrderService
                                    .build ();
     }
 
+/**
+  * Converts the result of a booking job to a proto PackResult.
+  * <p>
+  * @param result the result of the booking job
+  * @return the proto pack result
+  */
+
+    private static PackResult toProtoPackResult (PackResults.PackResult result)
+    {
+        return PackResult.newBuilder ()
+                         .setJobId (result.jobID ())
+                         .setOrderId (result.orderID ())
+                         .setAllocationId (result.allocationID ())
+                         .setTrackingId (result.trackingID () != null ? result.trackingID () : "")
+                         .setError (result.error () != null ? result.error () : "")
+                         .build ();
+    }
+
 /**
   * Converts errors returned by the order entity.
   */
@@ -0,0 +1,320 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorSystem;
+import akka.persistence.r2dbc.session.javadsl.R2dbcSession;
+import akka.persistence.typed.PersistenceId;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+import io.r2dbc.spi.Statement;
+
+/**
+  * Implements access to the order_view table, a denormalized read model of the orders,
+  * which is kept up to date from the Order events by {@link OrderViewProjection}.
+  * <p>
+  * Each row holds the order state, serialized like the entity snapshots, along with
+  * queryable columns: the customer e-mail, the order status and the tracking identifiers
+  * of the allocations. The row also records the sequence number of the last projected
+  * event, which is compared with the journal to decide whether the row is fresh enough to
+  * be served instead of the entity.
+  * <p>
+  * The order_allocation_view table is the search index of the orders (see
+  * {@link OrderSearch}). It holds a row per allocation, with the customer e-mail, the
+  * courier, and the latest status along with the time it was entered. An order that isn't
+  * allocated yet has a single row, with an empty allocation identifier.
+  */
+
+public final class OrderView
+{
+
+/**
+  * Holds the statement that upserts a row.
+  */
+
+    static final String UPSERT_SQL =
+        "INSERT INTO order_view (order_id, seq_nr, email, status, tracking_ids, state_ser_id, " +
+        "state_ser_manifest, state_payload, event_timestamp, updated_at) " +
+        "VALUES ($1, $2, $3, $4, $5, $6, $7, $8, $9, transaction_timestamp()) " +
+        "ON CONFLICT (order_id) DO UPDATE SET seq_nr = excluded.seq_nr, email = excluded.email, " +
+        "status = excluded.status, tracking_ids = excluded.tracking_ids, " +
+        "state_ser_id = excluded.state_ser_id, state_ser_manifest = excluded.state_ser_manifest, " +
+        "state_payload = excluded.state_payload, event_timestamp = excluded.event_timestamp, " +
+        "updated_at = excluded.updated_at";
+
+/**
+  * Holds the statement that selects the state of a row, for the projection.
+  */
+
+    static final String SELECT_STATE_SQL =
+        "SELECT seq_nr, state_ser_id, state_ser_manifest, state_payload FROM order_view WHERE order_id = $1";
+
+/**
+  * Holds the statement that selects the state of a row, along with a flag that tells
+  * whether the journal holds events of the order that are older than the staleness bound
+  * and were not projected yet.
+  */
+
+    private static final String SELECT_FRESH_STATE_SQL =
+        "SELECT v.seq_nr, v.state_ser_id, v.state_ser_manifest, v.state_payload, " +
+        "EXISTS (SELECT 1 FROM event_journal j WHERE j.persistence_id = $2 AND j.seq_nr > v.seq_nr " +
+        "AND j.db_timestamp < transaction_timestamp() - make_interval(secs => $3)) AS stale " +
+        "FROM order_view v WHERE v.order_id = $1";
+
+/**
+  * Holds the statement that deletes the allocation rows of an order that no longer exist.
+  */
+
+    static final String DELETE_ALLOCATIONS_SQL =
+        "DELETE FROM order_allocation_view WHERE order_id = $1 AND NOT (allocation_id = ANY($2))";
+
+/**
+  * Holds the statement that upserts an allocation row.
+  */
+
+    static final String UPSERT_ALLOCATION_SQL =
+        "INSERT INTO order_allocation_view (order_id, allocation_id, email, courier, status, " +
+        "status_since, tracking_id) VALUES ($1, $2, $3, $4, $5, $6, $7) " +
+        "ON CONFLICT (order_id, allocation_id) DO UPDATE SET email = excluded.email, " +
+        "courier = excluded.courier, status = excluded.status, status_since = excluded.status_since, " +
+        "tracking_id = excluded.tracking_id";
+
+/**
+  * Represents a row of the view.
+  * <p>
+  * @param seqNr the sequence number of the last projected event
+  * @param state the order state
+  * @param stale true if the row misses events that are older than the staleness bound
+  */
+
+    record Row (long seqNr, Order.State state, boolean stale) {}
+
+/**
+  * Holds the actor system.
+  */
+
+    private final ActorSystem<?> _system;
+
+/**
+  * Holds the serialization extension.
+  */
+
+    private final Serialization _serialization;
+
+/**
+  * Creates a new instance.
+  * <p>
+  * @param system the actor system
+  */
+
+    public OrderView (ActorSystem<?> system)
+    {
+        _system = system;
+        _serialization = SerializationExtension.get (system);
+    }
+
+/**
+  * Returns the order state of the given order, if the view holds it and it doesn't miss
+  * any event older than the given staleness bound.
+  * <p>
+  * @param orderID the order identifier
+  * @param maxStaleness the staleness bound
+  * @return the order state, or an empty optional if the entity should be asked instead
+  */
+
+    public CompletionStage<Optional<Order.State>> fetchState (String orderID, Duration maxStaleness)
+    {
+        return R2dbcSession.withSession (
+            _system,
+            session -> session.selectOne (
+                session.createStatement (SELECT_FRESH_STATE_SQL)
+                       .bind (0, orderID)
+                       .bind (1, PersistenceId.of (Order.ENTITY_KEY.name (), orderID).id ())
+                       .bind (2, maxStaleness.toMillis () / 1000.0),
+                row -> toRow (row, row.get ("stale", Boolean.class))))
+          .thenApply (row -> row.filter (r -> !r.stale ()).map (Row::state));
+    }
+
+/**
+  * Converts a selected row.
+  * <p>
+  * @param row the selected row
+  * @param stale true if the row misses events older than the staleness bound
+  * @return the converted row
+  */
+
+    Row toRow (io.r2dbc.spi.Row row, Boolean stale)
+    {
+        Order.State state =
+            (Order.State) _serialization.deserialize (
+                row.get ("state_payload", byte[].class),
+                row.get ("state_ser_id", Integer.class),
+                row.get ("state_ser_manifest", String.class)).get ();
+
+        return new Row (row.get ("seq_nr", Long.class), state, stale != null && stale);
+    }
+
+/**
+  * Binds the columns of an upserted row to the given statement.
+  * <p>
+  * @param statement the upsert statement
+  * @param orderID the order identifier
+  * @param seqNr the sequence number of the projected event
+  * @param state the order state after the projected event
+  * @param eventTimestamp the timestamp of the projected event
+  * @return the statement
+  */
+
+    Statement bindUpsert (
+        Statement statement,
+        String orderID,
+        long seqNr,
+        Order.State state,
+        Instant eventTimestamp)
+    {
+        Serializer serializer = _serialization.findSerializerFor (state);
+        Order.OrderDetails details = state.toOrderDetails ();
+        String email = details.customer () != null ? details.customer ().getEMail () : null;
+
+        statement.bind (0, orderID)
+                 .bind (1, seqNr)
+                 .bind (3, statusOf (state).name ())
+                 .bind (4, trackingIDsOf (state))
+                 .bind (5, serializer.identifier ())
+                 .bind (6, Serializers.manifestFor (serializer, state))
+                 .bind (7, serializer.toBinary (state))
+                 .bind (8, toOffsetDateTime (eventTimestamp));
+        if (email != null) {
+            statement.bind (2, email);
+        } else {
+            statement.bindNull (2, String.class);
+        }
+
+        return statement;
+    }
+
+/**
+  * Returns the statements that update the allocation rows of an order to the given state.
+  * <p>
+  * @param createStatement a function that creates a statement of the projection session
+  * @param orderID the order identifier
+  * @param state the order state
+  * @param eventTimestamp the timestamp of the projected event, used as the status time of
+  * 		     an order that isn't allocated yet
+  * @return the statements
+  */
+
+    static List<Statement> allocationStatements (
+        Function<String,Statement> createStatement,
+        String orderID,
+        Order.State state,
+        Instant eventTimestamp)
+    {
+        List<Statement> statements = new ArrayList<> ();
+        Order.OrderDetails details = state.toOrderDetails ();
+        String email = details.customer () != null ? details.customer ().getEMail () : "";
+        List<String> allocationIDs = new ArrayList<> ();
+
+        if (state instanceof Order.AllocatedOrderState allocated) {
+            for (Allocation allocation : allocated.allocations ().values ()) {
+                SortedMap<Instant,Allocation.Status> statuses = allocation.getStatuses ();
+                allocationIDs.add (allocation.getID ());
+                statements.add (
+                    createStatement.apply (UPSERT_ALLOCATION_SQL)
+                                   .bind (0, orderID)
+                                   .bind (1, allocation.getID ())
+                                   .bind (2, email)
+                                   .bind (3, allocation.getCourier ())
+                                   .bind (4, allocation.getLatestAllocationStatus ().name ())
+                                   .bind (5, toOffsetDateTime (statuses.isEmpty () ? eventTimestamp : statuses.lastKey ()))
+                                   .bind (6, allocation.getTrackingID () != null ? allocation.getTrackingID () : ""));
+            }
+        } else if (state instanceof Order.NewOrderState) {
+            allocationIDs.add ("");
+            statements.add (
+                createStatement.apply (UPSERT_ALLOCATION_SQL)
+                               .bind (0, orderID)
+                               .bind (1, "")
+                               .bind (2, email)
+                               .bind (3, "")
+                               .bind (4, Allocation.Status.CREATED.name ())
+                               .bind (5, toOffsetDateTime (eventTimestamp))
+                               .bind (6, ""));
+        }
+        statements.add (0,
+                        createStatement.apply (DELETE_ALLOCATIONS_SQL)
+                                       .bind (0, orderID)
+                                       .bind (1, allocationIDs.toArray (new String[0])));
+
+        return statements;
+    }
+
+/**
+  * Converts an instant to a timestamp with time zone.
+  */
+
+    static OffsetDateTime toOffsetDateTime (Instant instant)
+    {
+        return OffsetDateTime.ofInstant (instant, ZoneOffset.UTC);
+    }
+
+/**
+  * Returns the status of an order: the least advanced latest status of its allocations,
+  * or {@link Allocation.Status#CREATED} if the order isn't allocated yet.
+  * <p>
+  * @param state the order state
+  * @return the status of the order
+  */
+
+    static Allocation.Status statusOf (Order.State state)
+    {
+        if (state instanceof Order.AllocatedOrderState allocated && !allocated.allocations ().isEmpty ()) {
+            return allocated.allocations ()
+                            .values ()
+                            .stream ()
+                            .map (Allocation::getLatestAllocationStatus)
+                            .min (Enum::compareTo)
+                            .orElse (Allocation.Status.ALLOCATED);
+        } else if (state instanceof Order.BlankState) {
+            return Allocation.Status.NA;
+        } else {
+            return Allocation.Status.CREATED;
+        }
+    }
+
+/**
+  * Returns the tracking identifiers of the packed allocations of an order.
+  * <p>
+  * @param state the order state
+  * @return the tracking identifiers, ordered by allocation identifier
+  */
+
+    static String[] trackingIDsOf (Order.State state)
+    {
+        if (state instanceof Order.AllocatedOrderState allocated) {
+            return allocated.allocations ()
+                            .values ()
+                            .stream ()
+                            .sorted (Comparator.comparing (Allocation::getID))
+                            .map (Allocation::getTrackingID)
+                            .filter (trackingID -> trackingID != null)
+                            .toArray (String[]::new);
+        } else {
+            return new String[0];
+        }
+    }
+
+}
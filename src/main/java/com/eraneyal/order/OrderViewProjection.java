@@ -0,0 +1,157 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.typed.ActorSystem;
+import akka.persistence.query.Offset;
+import akka.persistence.query.typed.EventEnvelope;
+import akka.persistence.r2dbc.query.javadsl.R2dbcReadJournal;
+import akka.persistence.typed.PersistenceId;
+import akka.projection.Projection;
+import akka.projection.ProjectionId;
+import akka.projection.eventsourced.javadsl.EventSourcedProvider;
+import akka.projection.javadsl.SourceProvider;
+import akka.projection.r2dbc.R2dbcProjectionSettings;
+import akka.projection.r2dbc.javadsl.R2dbcHandler;
+import akka.projection.r2dbc.javadsl.R2dbcProjection;
+import akka.projection.r2dbc.javadsl.R2dbcSession;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import io.r2dbc.spi.Statement;
+
+/**
+  * Implements the projection that keeps the order_view table (see {@link OrderView}) up to
+  * date from the Order events.
+  * <p>
+  * The events are consumed by slices, and the slices are split into ranges, each processed
+  * by a projection instance (see {@link SlicedProjection}), so the instances are spread
+  * over the cluster. Each event is applied to the projected order state, and the
+  * order row and the allocation rows of the search index are written in the same
+  * transaction as the projection offset (exactly once). Packed allocations are also added
+  * to the tracking index (see {@link TrackingIndex}).
+  */
+
+public final class OrderViewProjection
+{
+
+/**
+  * Holds the projection name.
+  */
+
+    static final String NAME = "OrderViewProjection";
+
+    private OrderViewProjection ()
+    {
+    }
+
+/**
+  * Starts the projection instances.
+  * <p>
+  * @param system the actor system
+  */
+
+    public static void init (ActorSystem<?> system)
+    {
+        int instances = system.settings ().config ().getInt ("order-service.view.projection-instances");
+
+        SlicedProjection.init (
+            system,
+            NAME,
+            instances,
+            (minSlice, maxSlice) -> createProjection (system, minSlice, maxSlice));
+    }
+
+/**
+  * Returns the projection of a slice range.
+  * <p>
+  * @param system the actor system
+  * @param minSlice the minimal slice of the range
+  * @param maxSlice the maximal slice of the range
+  * @return the projection
+  */
+
+    private static Projection<EventEnvelope<Order.Event>> createProjection (
+        ActorSystem<?> system,
+        int minSlice,
+        int maxSlice)
+    {
+        SourceProvider<Offset,EventEnvelope<Order.Event>> sourceProvider =
+            EventSourcedProvider.eventsBySlices (
+                system,
+                R2dbcReadJournal.Identifier (),
+                Order.ENTITY_KEY.name (),
+                minSlice,
+                maxSlice);
+
+        ProjectionId projectionId = ProjectionId.of (NAME, "orders-" + minSlice + "-" + maxSlice);
+        Optional<R2dbcProjectionSettings> settings = Optional.empty ();
+        OrderView view = new OrderView (system);
+
+        return R2dbcProjection.exactlyOnce (
+            projectionId,
+            settings,
+            sourceProvider,
+            () -> new Handler (view),
+            system);
+    }
+
+/**
+  * Implements the handler that applies an event to the projected order state.
+  */
+
+    static final class Handler extends R2dbcHandler<EventEnvelope<Order.Event>>
+    {
+
+/**
+  * Holds the view.
+  */
+
+        private final OrderView _view;
+
+        Handler (OrderView view)
+        {
+            _view = view;
+        }
+
+        @Override
+        public CompletionStage<Done> process (R2dbcSession session, EventEnvelope<Order.Event> envelope)
+        {
+            String orderID = PersistenceId.extractEntityId (envelope.persistenceId ());
+
+            return session.selectOne (
+                        session.createStatement (OrderView.SELECT_STATE_SQL).bind (0, orderID),
+                        row -> _view.toRow (row, null))
+                .thenCompose (row -> {
+// -- events that were already applied (e.g. replayed after a restart) are skipped
+                    if (row.isPresent () && row.get ().seqNr () >= envelope.sequenceNr ()) {
+                        return CompletableFuture.completedFuture (Done.getInstance ());
+                    }
+                    Order.State state =
+                        Order.applyEvent (row.map (OrderView.Row::state).orElseGet (Order.BlankState::new),
+                                          envelope.event ());
+                    Instant timestamp = Instant.ofEpochMilli (envelope.timestamp ());
+                    List<Statement> statements =
+                        OrderView.allocationStatements (session::createStatement, orderID, state, timestamp);
+                    statements.add (0, _view.bindUpsert (session.createStatement (OrderView.UPSERT_SQL),
+                                                         orderID,
+                                                         envelope.sequenceNr (),
+                                                         state,
+                                                         timestamp));
+                    if (envelope.event () instanceof Order.OrderAllocationPacked packed) {
+                        statements.add (session.createStatement (TrackingIndex.INSERT_SQL)
+                                               .bind (0, packed.trackingID ())
+                                               .bind (1, orderID)
+                                               .bind (2, packed.allocationID ()));
+                    }
+                    return session.update (statements)
+                                  .thenApply (counts -> Done.getInstance ());
+                });
+        }
+
+    }
+
+}
@@ -0,0 +1,240 @@
+package com.eraneyal.order;
+
+import akka.NotUsed;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Extension;
+import akka.actor.typed.ExtensionId;
+import akka.actor.typed.Props;
+import akka.actor.typed.pubsub.Topic;
+import akka.japi.Pair;
+import akka.serialization.jackson.CborSerializable;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.SystemMaterializer;
+import akka.stream.javadsl.Source;
+import akka.stream.typed.javadsl.ActorSource;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+  * Publishes the results of the delivery bookings of the order entities across the
+  * cluster, for the clients that pack items asynchronously (see
+  * {@link Order.StartPackOrderAllocation}).
+  * <p>
+  * A booking job is identified by its booking identifier (the order identifier and the
+  * allocation identifier joined by a dash), so a job is known to the client before it
+  * starts, and a retried pack request resumes the same job. A result is published when
+  * the booking finishes, after its outcome is persisted. Subscribers only receive the
+  * results published after they subscribe, so a client that needs the results of earlier
+  * jobs reads them from the order entities.
+  */
+
+public final class PackResults implements Extension
+{
+
+/**
+  * Represents the result of a booking job.
+  * <p>
+  * @param jobID the job identifier
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param trackingID the tracking identifier returned by the courier, or null if the
+  *        booking failed
+  * @param error the reason the booking failed, or null if it succeeded
+  */
+
+    public record PackResult (
+        String jobID,
+        String orderID,
+        String allocationID,
+        String trackingID,
+        String error)
+    implements CborSerializable {}
+
+/**
+  * Identifies the extension.
+  */
+
+    public static final ExtensionId<PackResults> ID =
+        new ExtensionId<> ()
+        {
+            @Override
+            public PackResults createExtension (ActorSystem<?> system)
+            {
+                return new PackResults (system);
+            }
+        };
+
+/**
+  * Holds the topic of the results.
+  */
+
+    private final ActorRef<Topic.Command<PackResult>> _topic;
+
+/**
+  * Holds the maximum results buffered for a subscriber that falls behind.
+  */
+
+    private final int _bufferSize;
+
+/**
+  * Holds the interval at which a results stream reads its unfinished jobs from the order
+  * entities.
+  */
+
+    private final Duration _pollInterval;
+
+/**
+  * Holds the maximum number of jobs whose results are read from the order entities at
+  * once.
+  */
+
+    private static final int POLL_PARALLELISM = 8;
+
+    private final Materializer _materializer;
+
+    private PackResults (ActorSystem<?> system)
+    {
+        _topic = system.systemActorOf (Topic.create (PackResult.class, "pack-results"), "pack-results", Props.empty ());
+        _bufferSize = system.settings ().config ().getInt ("order-service.pack-results.buffer-size");
+        _pollInterval = system.settings ().config ().getDuration ("order-service.pack-results.poll-interval");
+        _materializer = SystemMaterializer.get (system).materializer ();
+    }
+
+/**
+  * Returns the pack results of the given actor system.
+  * <p>
+  * @param system the actor system
+  * @return the pack results of the actor system
+  */
+
+    public static PackResults get (ActorSystem<?> system)
+    {
+        return ID.apply (system);
+    }
+
+/**
+  * Returns the job identifier of the booking of an allocation.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @return the job identifier
+  */
+
+    public static String jobID (String orderID, String allocationID)
+    {
+        return orderID + "-" + allocationID;
+    }
+
+/**
+  * Splits a job identifier into the order identifier and the allocation identifier.
+  * Allocation identifiers don't contain dashes, while order identifiers may.
+  * <p>
+  * @param jobID the job identifier
+  * @return the order identifier and the allocation identifier, or an empty optional if
+  *         the job identifier is malformed
+  */
+
+    public static Optional<Pair<String,String>> parseJobID (String jobID)
+    {
+        int dash = jobID.lastIndexOf ('-');
+        if (dash <= 0 || dash == jobID.length () - 1) {
+            return Optional.empty ();
+        }
+
+        return Optional.of (Pair.create (jobID.substring (0, dash), jobID.substring (dash + 1)));
+    }
+
+/**
+  * Publishes the successful booking of an allocation.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param trackingID the tracking identifier returned by the courier
+  */
+
+    public void packed (String orderID, String allocationID, String trackingID)
+    {
+        _topic.tell (Topic.publish (new PackResult (jobID (orderID, allocationID), orderID, allocationID, trackingID, null)));
+    }
+
+/**
+  * Publishes the failed booking of an allocation.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  * @param error the reason the booking failed
+  */
+
+    public void failed (String orderID, String allocationID, String error)
+    {
+        _topic.tell (Topic.publish (new PackResult (jobID (orderID, allocationID), orderID, allocationID, null, error)));
+    }
+
+/**
+  * Subscribes to the results published from now on. The subscription ends when the
+  * returned source is cancelled, and fails when the subscriber falls behind by more than
+  * order-service.pack-results.buffer-size results, since a dropped result would never be
+  * delivered.
+  * <p>
+  * @return the results
+  */
+
+    public Source<PackResult,NotUsed> subscribe ()
+    {
+        Pair<ActorRef<PackResult>,Source<PackResult,NotUsed>> subscriber =
+            ActorSource.<PackResult>actorRef (result -> false,
+                                              result -> Optional.empty (),
+                                              _bufferSize,
+                                              OverflowStrategy.fail ())
+                       .preMaterialize (_materializer);
+
+        _topic.tell (Topic.subscribe (subscriber.first ()));
+
+        return subscriber.second ();
+    }
+
+/**
+  * Streams the results of the given jobs, each once, and completes after the last one.
+  * <p>
+  * The stream subscribes to the published results before it reads the jobs from their
+  * order entities, so a job that finishes in between is seen by one or both. The jobs
+  * that are still unfinished are read again every poll interval, in case their results
+  * were published before the subscription reached the other nodes of the cluster.
+  * <p>
+  * @param jobIDs the job identifiers, which must not be empty
+  * @param fetch reads the result of a job from its order entity, or returns an empty
+  *        optional if the job is still running
+  * @return the results
+  */
+
+    public Source<PackResult,NotUsed> results (
+        Collection<String> jobIDs,
+        Function<String,CompletionStage<Optional<PackResult>>> fetch)
+    {
+        Source<PackResult,NotUsed> published = subscribe ();
+
+        Set<String> remaining = ConcurrentHashMap.newKeySet ();
+        remaining.addAll (jobIDs);
+        Source<PackResult,NotUsed> polled =
+            Source.tick (Duration.ZERO, _pollInterval, NotUsed.notUsed ())
+                  .mapConcat (tick -> List.copyOf (remaining))
+                  .mapAsyncUnordered (POLL_PARALLELISM, fetch::apply)
+                  .mapConcat (result -> result.map (List::of).orElse (List.of ()))
+                  .mapMaterializedValue (cancellable -> NotUsed.notUsed ());
+
+        return published.filter (result -> remaining.contains (result.jobID ()))
+                        .merge (polled)
+                        .filter (result -> remaining.remove (result.jobID ()))
+                        .takeWhile (result -> !remaining.isEmpty (), true);
+    }
+
+}
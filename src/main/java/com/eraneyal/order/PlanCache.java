@@ -0,0 +1,322 @@
+package com.eraneyal.order;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+  * Implements a bounded cache of allocation plans, so the same bundle of items shipped to
+  * the same region is not planned again for every order.
+  * <p>
+  * A plan is cached under the normalized item set of the order (the item identifiers and
+  * quantities, ordered by item identifier) and its region, i.e. the candidate sites nearest
+  * to the customer. The items of a cached plan are matched again with the items of the
+  * order when the plan is reused, so only the site decisions are shared between orders.
+  * <p>
+  * A cached plan becomes stale when the stock level of any of its items changes by at
+  * least the invalidation threshold (e.g. a restock, which may make a nearer or a single
+  * site eligible). Plain reservations don't invalidate plans: a cached plan whose stock
+  * can't be reserved anymore is evicted by the engine.
+  * <p>
+  * Instances of this class are thread safe. The least recently used plan is evicted when
+  * the cache is full.
+  */
+
+public final class PlanCache implements StockIndex.Listener
+{
+
+/**
+  * Represents the metrics of the cache.
+  */
+
+    public interface PlanCacheMXBean
+    {
+
+/**
+  * Returns the number of lookups that found a current plan.
+  */
+
+        long getHits ();
+
+/**
+  * Returns the number of lookups that found no plan, or a stale plan.
+  */
+
+        long getMisses ();
+
+/**
+  * Returns the ratio of hits to lookups, or 0 if there were no lookups.
+  */
+
+        double getHitRatio ();
+
+/**
+  * Returns the number of stock level changes that made the cached plans of an item stale.
+  */
+
+        long getInvalidations ();
+
+/**
+  * Returns the number of cached plans, including stale plans that weren't evicted yet.
+  */
+
+        int getSize ();
+    }
+
+/**
+  * Represents a cache key. The key captures the invalidation generations of its items
+  * when it is created, so a plan computed with the key is never newer than its key.
+  */
+
+    public static final class Key
+    {
+        private final String _ident;
+        private final String[] _itemIDs;
+        private final long[] _generations;
+
+        private Key (String ident, String[] itemIDs, long[] generations)
+        {
+            _ident = ident;
+            _itemIDs = itemIDs;
+            _generations = generations;
+        }
+    }
+
+/**
+  * Represents a cached plan.
+  * <p>
+  * @param positions the positions of the sites of the plan
+  * @param itemIDs the identifiers of the items assigned to each site
+  * @param generations the invalidation generations of the items when the plan was made
+  */
+
+    private record Entry (int[] positions, String[][] itemIDs, long[] generations) {}
+
+/**
+  * Holds the maximum number of cached plans.
+  */
+
+    private final int _capacity;
+
+/**
+  * Holds the minimal stock level change that invalidates the plans of an item.
+  */
+
+    private final int _threshold;
+
+/**
+  * Holds the cached plans, in least recently used order.
+  */
+
+    private final LinkedHashMap<String,Entry> _plans;
+
+/**
+  * Holds the invalidation generations of the items, indexed by item identifier. Items
+  * that were never invalidated have generation zero.
+  */
+
+    private final ConcurrentHashMap<String,Long> _generations = new ConcurrentHashMap<> ();
+
+    private final LongAdder _hits = new LongAdder ();
+
+    private final LongAdder _misses = new LongAdder ();
+
+    private final LongAdder _invalidations = new LongAdder ();
+
+/**
+  * Creates a new cache.
+  * <p>
+  * @param capacity the maximum number of cached plans
+  * @param threshold the minimal stock level change that invalidates the plans of an item
+  */
+
+    public PlanCache (int capacity, int threshold)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException ("Capacity must be positive");
+        }
+
+        _capacity = capacity;
+        _threshold = Math.max (1, threshold);
+        _plans = new LinkedHashMap<> (16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String,Entry> eldest)
+            {
+                return size () > _capacity;
+            }
+        };
+    }
+
+/**
+  * Returns the cache key of the given order items and candidate sites.
+  * <p>
+  * @param items the items of the order, indexed by item identifier
+  * @param candidates the positions of the candidate sites, or null if all the sites are
+  * 		  candidates
+  * @return the cache key
+  */
+
+    public Key key (Map<String,OrderItem> items, int[] candidates)
+    {
+        String[] itemIDs = items.keySet ().toArray (new String[0]);
+        Arrays.sort (itemIDs);
+
+        StringBuilder ident = new StringBuilder ();
+        long[] generations = new long[itemIDs.length];
+        for (int i = 0; i < itemIDs.length; i++) {
+            ident.append (itemIDs[i]).append ('\u0000').append (items.get (itemIDs[i]).getQuantity ()).append ('\u0000');
+            generations[i] = _generations.getOrDefault (itemIDs[i], 0L);
+        }
+        ident.append ('@').append (candidates != null ? Arrays.toString (candidates) : "*");
+
+        return new Key (ident.toString (), itemIDs, generations);
+    }
+
+/**
+  * Returns the plan cached under the given key, with the given order items, or null if no
+  * plan is cached or the cached plan is stale.
+  * <p>
+  * @param key the cache key
+  * @param items the items of the order, indexed by item identifier
+  * @return the cached plan, or null
+  */
+
+    public List<AllocationEngine.Assignment> get (Key key, Map<String,OrderItem> items)
+    {
+        Entry entry;
+        synchronized (_plans) {
+            entry = _plans.get (key._ident);
+        }
+
+        if (entry == null || !isCurrent (key, entry.generations ())) {
+            _misses.increment ();
+            return null;
+        }
+
+        _hits.increment ();
+        List<AllocationEngine.Assignment> plan = new ArrayList<> (entry.positions ().length);
+        for (int s = 0; s < entry.positions ().length; s++) {
+            Map<String,OrderItem> assigned = new HashMap<> ();
+            for (String itemID : entry.itemIDs ()[s]) {
+                assigned.put (itemID, items.get (itemID));
+            }
+            plan.add (new AllocationEngine.Assignment (entry.positions ()[s], assigned));
+        }
+
+        return plan;
+    }
+
+/**
+  * Caches a plan under the given key.
+  * <p>
+  * @param key the cache key
+  * @param plan the plan
+  */
+
+    public void put (Key key, List<AllocationEngine.Assignment> plan)
+    {
+        int[] positions = new int[plan.size ()];
+        String[][] itemIDs = new String[plan.size ()][];
+        for (int s = 0; s < plan.size (); s++) {
+            positions[s] = plan.get (s).position ();
+            itemIDs[s] = plan.get (s).items ().keySet ().toArray (new String[0]);
+        }
+
+        synchronized (_plans) {
+            _plans.put (key._ident, new Entry (positions, itemIDs, key._generations));
+        }
+    }
+
+/**
+  * Evicts the plan cached under the given key.
+  * <p>
+  * @param key the cache key
+  */
+
+    public void evict (Key key)
+    {
+        synchronized (_plans) {
+            _plans.remove (key._ident);
+        }
+    }
+
+/**
+  * Invalidates the plans of an item if its stock level changed by at least the threshold.
+  */
+
+    @Override
+    public void stockChanged (String itemID, int position, int delta)
+    {
+        if (Math.abs (delta) >= _threshold) {
+            _generations.merge (itemID, 1L, Long::sum);
+            _invalidations.increment ();
+        }
+    }
+
+/**
+  * Returns the metrics of the cache.
+  * <p>
+  * @return the metrics of the cache
+  */
+
+    public PlanCacheMXBean getMetrics ()
+    {
+        return new PlanCacheMXBean () {
+            @Override
+            public long getHits ()
+            {
+                return _hits.sum ();
+            }
+
+            @Override
+            public long getMisses ()
+            {
+                return _misses.sum ();
+            }
+
+            @Override
+            public double getHitRatio ()
+            {
+                long hits = _hits.sum ();
+                long total = hits + _misses.sum ();
+                return total > 0 ? (double) hits / total : 0;
+            }
+
+            @Override
+            public long getInvalidations ()
+            {
+                return _invalidations.sum ();
+            }
+
+            @Override
+            public int getSize ()
+            {
+                synchronized (_plans) {
+                    return _plans.size ();
+                }
+            }
+        };
+    }
+
+/**
+  * Returns true if the items of the given key weren't invalidated since the given
+  * generations were captured.
+  */
+
+    private boolean isCurrent (Key key, long[] generations)
+    {
+        for (int i = 0; i < key._itemIDs.length; i++) {
+            if (_generations.getOrDefault (key._itemIDs[i], 0L) != generations[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.eraneyal.order;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+  * Implements a mergeable sketch of the distribution of non-negative durations, which
+  * answers quantile queries with a bounded relative error.
+  * <p>
+  * Values are counted in logarithmic buckets: bucket i holds the values in
+  * (γ^(i-1), γ^i], where γ = (1 + α) / (1 - α) for the relative accuracy α. A quantile is
+  * estimated by the bucket that holds it, so the estimate is within α of the true value,
+  * regardless of the distribution. Two sketches of the same accuracy are merged by adding
+  * their bucket counts, so sketches of disjoint periods, couriers or sites can be combined
+  * into one without loss.
+  * <p>
+  * The number of buckets grows with the logarithm of the value range, e.g. about 1,400
+  * buckets for durations between a millisecond and a year at 1% accuracy, and only
+  * occupied buckets are kept. Instances of this class are not thread safe.
+  */
+
+public final class QuantileSketch
+{
+
+/**
+  * Holds the format version of serialized sketches.
+  */
+
+    private static final int VERSION = 1;
+
+/**
+  * Holds the relative accuracy.
+  */
+
+    private final double _accuracy;
+
+/**
+  * Holds the logarithm of the bucket growth factor.
+  */
+
+    private final double _logGamma;
+
+/**
+  * Holds the bucket counts, indexed by bucket.
+  */
+
+    private final TreeMap<Integer,Long> _buckets = new TreeMap<> ();
+
+/**
+  * Holds the number of zero values, which have no logarithmic bucket.
+  */
+
+    private long _zeroCount;
+
+/**
+  * Holds the total number of values.
+  */
+
+    private long _count;
+
+/**
+  * Creates a new empty sketch.
+  * <p>
+  * @param accuracy the relative accuracy, between 0 and 1 (exclusive)
+  */
+
+    public QuantileSketch (double accuracy)
+    {
+        if (accuracy <= 0 || accuracy >= 1) {
+            throw new IllegalArgumentException ("Accuracy must be between 0 and 1");
+        }
+
+        _accuracy = accuracy;
+        _logGamma = Math.log ((1 + accuracy) / (1 - accuracy));
+    }
+
+/**
+  * Adds a value.
+  * <p>
+  * @param value the value, e.g. a duration in milliseconds
+  * @throws IllegalArgumentException if the value is negative
+  */
+
+    public void add (long value)
+    {
+        if (value < 0) {
+            throw new IllegalArgumentException ("Value must be non-negative");
+        }
+
+        if (value == 0) {
+            _zeroCount++;
+        } else {
+            _buckets.merge ((int) Math.ceil (Math.log (value) / _logGamma), 1L, Long::sum);
+        }
+        _count++;
+    }
+
+/**
+  * Adds the values of another sketch to this sketch.
+  * <p>
+  * @param other the other sketch
+  * @throws IllegalArgumentException if the other sketch has a different accuracy
+  */
+
+    public void merge (QuantileSketch other)
+    {
+        if (other._accuracy != _accuracy) {
+            throw new IllegalArgumentException ("Sketches of different accuracy can't be merged");
+        }
+
+        other._buckets.forEach ((bucket, count) -> _buckets.merge (bucket, count, Long::sum));
+        _zeroCount += other._zeroCount;
+        _count += other._count;
+    }
+
+/**
+  * Returns a copy of this sketch.
+  * <p>
+  * @return the copy
+  */
+
+    public QuantileSketch copy ()
+    {
+        QuantileSketch copy = new QuantileSketch (_accuracy);
+        copy.merge (this);
+        return copy;
+    }
+
+/**
+  * Returns the number of values.
+  * <p>
+  * @return the number of values
+  */
+
+    public long count ()
+    {
+        return _count;
+    }
+
+/**
+  * Returns the estimated value of a quantile.
+  * <p>
+  * @param q the quantile, between 0 and 1 (inclusive), e.g. 0.95
+  * @return the estimated value, or 0 if the sketch is empty
+  */
+
+    public long quantile (double q)
+    {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException ("Quantile must be between 0 and 1");
+        }
+        if (_count == 0) {
+            return 0;
+        }
+
+// -- the rank of the quantile value, counting from zero
+        long rank = (long) Math.floor (q * (_count - 1));
+        if (rank < _zeroCount) {
+            return 0;
+        }
+
+        long seen = _zeroCount;
+        for (Map.Entry<Integer,Long> bucket : _buckets.entrySet ()) {
+            seen += bucket.getValue ();
+            if (seen > rank) {
+// -- the estimate that is within the relative accuracy of any value of the bucket
+                return Math.round (2 * Math.exp (bucket.getKey () * _logGamma) / (1 + Math.exp (_logGamma)));
+            }
+        }
+
+        return Math.round (Math.exp (_buckets.lastKey () * _logGamma));
+    }
+
+/**
+  * Serializes the sketch.
+  * <p>
+  * @return the serialized sketch
+  */
+
+    public byte[] toBytes ()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream (32 + _buckets.size () * 12);
+
+        try (DataOutputStream out = new DataOutputStream (bytes)) {
+            out.writeByte (VERSION);
+            out.writeDouble (_accuracy);
+            out.writeLong (_zeroCount);
+            out.writeInt (_buckets.size ());
+            for (Map.Entry<Integer,Long> bucket : _buckets.entrySet ()) {
+                out.writeInt (bucket.getKey ());
+                out.writeLong (bucket.getValue ());
+            }
+        } catch (IOException exc) {
+            throw new UncheckedIOException (exc);
+        }
+
+        return bytes.toByteArray ();
+    }
+
+/**
+  * Deserializes a sketch.
+  * <p>
+  * @param bytes the serialized sketch
+  * @return the sketch
+  * @throws IllegalArgumentException if the bytes are not a serialized sketch
+  */
+
+    public static QuantileSketch fromBytes (byte[] bytes)
+    {
+        try (DataInputStream in = new DataInputStream (new ByteArrayInputStream (bytes))) {
+            if (in.readByte () != VERSION) {
+                throw new IllegalArgumentException ("Unsupported sketch version");
+            }
+            QuantileSketch sketch = new QuantileSketch (in.readDouble ());
+            sketch._zeroCount = in.readLong ();
+            sketch._count = sketch._zeroCount;
+            int buckets = in.readInt ();
+            for (int i = 0; i < buckets; i++) {
+                int bucket = in.readInt ();
+                long count = in.readLong ();
+                sketch._buckets.put (bucket, count);
+                sketch._count += count;
+            }
+            return sketch;
+        } catch (IOException exc) {
+            throw new IllegalArgumentException ("Malformed sketch", exc);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.eraneyal.order;
+
+/**
+  * Represents an immutable site (a store or a warehouse) from which ordered items can be
+  * collected, packed and handed to a courier.
+  */
+
+public final class Site
+{
+
+/**
+  * Holds the site identifier.
+  */
+
+    private final String _ident;
+
+/**
+  * Holds the site name.
+  */
+
+    private final String _name;
+
+/**
+  * Holds the site address.
+  */
+
+    private final Address _address;
+
+/**
+  * Holds the identifier of the courier that delivers items collected at this site.
+  */
+
+    private final String _courier;
+
+/**
+  * Creates a new site instance.
+  * <p>
+  * @param ident the site identifier
+  * @param name the site name
+  * @param address the site address
+  * @param courier the identifier of the courier that delivers items collected at this site
+  */
+
+    public Site (String ident, String name, Address address, String courier)
+    {
+        if (ident == null || ident.isBlank ()) {
+            throw new IllegalArgumentException ("Site identifier is missing or empty");
+        }
+        if (name == null || name.isBlank ()) {
+            throw new IllegalArgumentException ("Site name is missing or empty");
+        }
+        if (address == null) {
+            throw new IllegalArgumentException ("Site address is missing");
+        }
+        if (courier == null || courier.isBlank ()) {
+            throw new IllegalArgumentException ("Site courier is missing or empty");
+        }
+
+        _ident = ident;
+        _name = name;
+        _address = address;
+        _courier = courier;
+    }
+
+/**
+  * Returns the site identifier.
+  * <p>
+  * @return the site identifier
+  */
+
+    public String getID ()
+    {
+        return _ident;
+    }
+
+/**
+  * Returns the site name.
+  * <p>
+  * @return the site name
+  */
+
+    public String getName ()
+    {
+        return _name;
+    }
+
+/**
+  * Returns the site address.
+  * <p>
+  * @return the site address
+  */
+
+    public Address getAddress ()
+    {
+        return _address;
+    }
+
+/**
+  * Returns the identifier of the courier that delivers items collected at this site.
+  * <p>
+  * @return the courier identifier
+  */
+
+    public String getCourier ()
+    {
+        return _courier;
+    }
+
+}
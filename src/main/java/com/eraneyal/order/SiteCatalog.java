@@ -0,0 +1,94 @@
+package com.eraneyal.order;
+
+import com.typesafe.config.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+  * Represents the catalog of the sites from which orders can be fulfilled, along with a
+  * spatial index used to find the sites nearest to a customer.
+  * <p>
+  * The catalog is loaded from the "order-service.sites" configuration.
+  */
+
+public final class SiteCatalog
+{
+
+/**
+  * Holds the sites.
+  */
+
+    private final List<Site> _sites;
+
+/**
+  * Holds the spatial index of the sites.
+  */
+
+    private final SiteLocator _locator;
+
+/**
+  * Creates a new catalog.
+  * <p>
+  * @param sites the sites
+  * @param geocodes the geocode table used to locate sites and customers
+  */
+
+    public SiteCatalog (List<Site> sites, GeocodeTable geocodes)
+    {
+        _sites = Collections.unmodifiableList (new ArrayList<> (sites));
+        _locator = new SiteLocator (_sites, geocodes);
+    }
+
+/**
+  * Returns the sites. The position of a site in this list is its position in the
+  * {@link StockIndex} and in the {@link SiteLocator}.
+  * <p>
+  * @return the sites
+  */
+
+    public List<Site> getSites ()
+    {
+        return _sites;
+    }
+
+/**
+  * Returns the spatial index of the sites.
+  * <p>
+  * @return the spatial index of the sites
+  */
+
+    public SiteLocator getLocator ()
+    {
+        return _locator;
+    }
+
+/**
+  * Loads a catalog from the given configuration.
+  * <p>
+  * @param config the sites configuration
+  * @return the loaded catalog
+  */
+
+    public static SiteCatalog fromConfig (Config config)
+    {
+        List<Site> sites = new ArrayList<> ();
+
+        for (Config site : config.getConfigList ("catalog")) {
+            sites.add (
+                new Site (
+                    site.getString ("id"),
+                    site.getString ("name"),
+                    new Address (
+                        site.getString ("street"),
+                        site.getString ("city"),
+                        site.getString ("country"),
+                        site.getInt ("zip-code")),
+                    site.getString ("courier")));
+        }
+
+        return new SiteCatalog (sites, GeocodeTable.load (config.getString ("geocodes")));
+    }
+
+}
@@ -0,0 +1,349 @@
+package com.eraneyal.order;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+  * Implements a spatial index of sites, which finds the sites nearest to a customer's zip
+  * code.
+  * <p>
+  * Site locations are converted to points on the unit sphere, and held in a static 3-d
+  * tree. The Euclidean distance between two such points grows monotonically with the
+  * great-circle distance between the locations, so the nearest points in the tree are the
+  * nearest sites, without any projection error. Sites whose location is unknown are not
+  * indexed.
+  * <p>
+  * Sites are identified by their position in the list the locator was created with, which
+  * matches their position in the {@link StockIndex}. Instances of this class are immutable
+  * and thread safe.
+  */
+
+public final class SiteLocator
+{
+
+/**
+  * Holds the geocode table used to locate customers.
+  */
+
+    private final GeocodeTable _geocodes;
+
+/**
+  * Holds the site positions, in tree order.
+  */
+
+    private final int[] _positions;
+
+/**
+  * Holds the coordinates of the sites, in tree order (x, y and z of each site).
+  */
+
+    private final double[] _coords;
+
+/**
+  * Creates a new locator for the given sites.
+  * <p>
+  * @param sites the sites, ordered by position
+  * @param geocodes the geocode table used to locate sites and customers
+  */
+
+    public SiteLocator (List<Site> sites, GeocodeTable geocodes)
+    {
+        _geocodes = geocodes;
+
+        List<Integer> located = new ArrayList<> ();
+        List<double[]> points = new ArrayList<> ();
+        for (int i = 0; i < sites.size (); i++) {
+            GeocodeTable.GeoPoint location = geocodes.lookup (sites.get (i).getAddress ().getZipCode ());
+            if (location != null) {
+                located.add (i);
+                points.add (toUnitVector (location));
+            }
+        }
+
+        _positions = new int[located.size ()];
+        _coords = new double[located.size () * 3];
+        for (int i = 0; i < _positions.length; i++) {
+            _positions[i] = located.get (i);
+            System.arraycopy (points.get (i), 0, _coords, i * 3, 3);
+        }
+        build (0, _positions.length, 0);
+    }
+
+/**
+  * Returns the number of indexed (located) sites.
+  * <p>
+  * @return the number of indexed sites
+  */
+
+    public int size ()
+    {
+        return _positions.length;
+    }
+
+/**
+  * Returns the positions of the sites nearest to the given zip code, ordered by distance.
+  * <p>
+  * @param zipCode the zip code
+  * @param count the maximum number of sites to return
+  * @return the positions of the nearest sites ordered by distance, or null if the zip code
+  * 		is unknown
+  */
+
+    public int[] nearest (int zipCode, int count)
+    {
+        GeocodeTable.GeoPoint location = _geocodes.lookup (zipCode);
+        if (location == null) {
+            return null;
+        }
+
+        return nearest (location, count);
+    }
+
+/**
+  * Returns the positions of the sites nearest to the given location, ordered by distance.
+  * <p>
+  * @param location the location
+  * @param count the maximum number of sites to return
+  * @return the positions of the nearest sites, ordered by distance
+  */
+
+    public int[] nearest (GeocodeTable.GeoPoint location, int count)
+    {
+        Neighbours neighbours = new Neighbours (Math.min (count, _positions.length));
+        if (neighbours.capacity > 0) {
+            search (0, _positions.length, 0, toUnitVector (location), neighbours);
+        }
+
+        return neighbours.toSortedPositions ();
+    }
+
+/**
+  * Arranges the given range of sites as a subtree, whose root is the median site on the
+  * given axis.
+  * <p>
+  * @param from the start of the range (inclusive)
+  * @param to the end of the range (exclusive)
+  * @param axis the split axis of the subtree root
+  */
+
+    private void build (int from, int to, int axis)
+    {
+        if (to - from <= 1) {
+            return;
+        }
+
+        int median = (from + to) >>> 1;
+        select (from, to - 1, median, axis);
+        build (from, median, (axis + 1) % 3);
+        build (median + 1, to, (axis + 1) % 3);
+    }
+
+/**
+  * Partially sorts the given range of sites on the given axis, so the site at the given
+  * index is the one that would be there if the range was sorted (quickselect).
+  * <p>
+  * @param left the start of the range (inclusive)
+  * @param right the end of the range (inclusive)
+  * @param index the index to select
+  * @param axis the sort axis
+  */
+
+    private void select (int left, int right, int index, int axis)
+    {
+        while (left < right) {
+            double pivot = _coords[((left + right) >>> 1) * 3 + axis];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (_coords[i * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (_coords[j * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap (i++, j--);
+                }
+            }
+            if (index <= j) {
+                right = j;
+            } else if (index >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+/**
+  * Swaps two sites in tree order.
+  * <p>
+  * @param i the index of the first site
+  * @param j the index of the second site
+  */
+
+    private void swap (int i, int j)
+    {
+        int position = _positions[i];
+        _positions[i] = _positions[j];
+        _positions[j] = position;
+        for (int axis = 0; axis < 3; axis++) {
+            double coord = _coords[i * 3 + axis];
+            _coords[i * 3 + axis] = _coords[j * 3 + axis];
+            _coords[j * 3 + axis] = coord;
+        }
+    }
+
+/**
+  * Searches the given subtree for the sites nearest to the given point.
+  * <p>
+  * @param from the start of the subtree range (inclusive)
+  * @param to the end of the subtree range (exclusive)
+  * @param axis the split axis of the subtree root
+  * @param point the point
+  * @param neighbours the nearest sites found so far
+  */
+
+    private void search (int from, int to, int axis, double[] point, Neighbours neighbours)
+    {
+        if (from >= to) {
+            return;
+        }
+
+        int median = (from + to) >>> 1;
+        double dx = point[0] - _coords[median * 3];
+        double dy = point[1] - _coords[median * 3 + 1];
+        double dz = point[2] - _coords[median * 3 + 2];
+        neighbours.offer (dx * dx + dy * dy + dz * dz, _positions[median]);
+
+        double diff = point[axis] - _coords[median * 3 + axis];
+        int next = (axis + 1) % 3;
+        if (diff < 0) {
+            search (from, median, next, point, neighbours);
+            if (diff * diff < neighbours.worst ()) {
+                search (median + 1, to, next, point, neighbours);
+            }
+        } else {
+            search (median + 1, to, next, point, neighbours);
+            if (diff * diff < neighbours.worst ()) {
+                search (from, median, next, point, neighbours);
+            }
+        }
+    }
+
+/**
+  * Converts a location to a point on the unit sphere.
+  * <p>
+  * @param location the location
+  * @return the x, y and z coordinates of the point
+  */
+
+    private static double[] toUnitVector (GeocodeTable.GeoPoint location)
+    {
+        double latitude = Math.toRadians (location.latitude ());
+        double longitude = Math.toRadians (location.longitude ());
+
+        return new double[] {
+            Math.cos (latitude) * Math.cos (longitude),
+            Math.cos (latitude) * Math.sin (longitude),
+            Math.sin (latitude)
+        };
+    }
+
+/**
+  * Holds the nearest sites found by a search, in a bounded max-heap ordered by distance.
+  */
+
+    private static final class Neighbours
+    {
+
+        private final int capacity;
+
+        private final double[] distances;
+
+        private final int[] positions;
+
+        private int size = 0;
+
+        Neighbours (int capacity)
+        {
+            this.capacity = capacity;
+            distances = new double[capacity];
+            positions = new int[capacity];
+        }
+
+/**
+  * Returns the (squared) distance a site must beat to be added.
+  */
+
+        double worst ()
+        {
+            return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+        }
+
+/**
+  * Adds a site if it is nearer than the farthest site found so far.
+  */
+
+        void offer (double distance, int position)
+        {
+            if (size < capacity) {
+                int i = size++;
+                while (i > 0 && distances[(i - 1) >>> 1] < distance) {
+                    distances[i] = distances[(i - 1) >>> 1];
+                    positions[i] = positions[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                distances[i] = distance;
+                positions[i] = position;
+            } else if (distance < distances[0]) {
+                siftDown (distance, position);
+            }
+        }
+
+/**
+  * Replaces the farthest site with the given one.
+  */
+
+        private void siftDown (double distance, int position)
+        {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= distance) {
+                    break;
+                }
+                distances[i] = distances[child];
+                positions[i] = positions[child];
+                i = child;
+            }
+            distances[i] = distance;
+            positions[i] = position;
+        }
+
+/**
+  * Returns the positions of the sites found, nearest first. Empties the heap.
+  */
+
+        int[] toSortedPositions ()
+        {
+            int[] sorted = new int[size];
+            for (int i = sorted.length - 1; i >= 0; i--) {
+                sorted[i] = positions[0];
+                size--;
+                if (size > 0) {
+                    siftDown (distances[size], positions[size]);
+                }
+            }
+            return sorted;
+        }
+
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.cluster.sharding.typed.ChangeNumberOfProcesses;
+import akka.cluster.sharding.typed.ShardedDaemonProcessCommand;
+import akka.cluster.sharding.typed.ShardedDaemonProcessContext;
+import akka.cluster.sharding.typed.ShardedDaemonProcessSettings;
+import akka.cluster.sharding.typed.javadsl.ShardedDaemonProcess;
+import akka.japi.Pair;
+import akka.pattern.StatusReply;
+import akka.persistence.query.typed.EventEnvelope;
+import akka.persistence.r2dbc.query.javadsl.R2dbcReadJournal;
+import akka.projection.HandlerRecoveryStrategy;
+import akka.projection.Projection;
+import akka.projection.ProjectionBehavior;
+import akka.projection.ProjectionId;
+import akka.projection.StatusObserver;
+import akka.projection.eventsourced.javadsl.EventSourcedProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Runs a projection of events by slices, split into slice ranges, each processed by a
+  * projection instance.
+  * <p>
+  * The instances run as a sharded daemon process, so they are spread over the cluster, and
+  * are moved to the remaining nodes when a node leaves, or to a new node when it joins.
+  * <p>
+  * The number of instances can be changed at runtime (see
+  * {@link SlicedProjectionMXBean#setInstances}): the running instances are stopped, and
+  * the slices are split again between the new number of instances. Offsets are stored per
+  * slice under the projection name, so each new instance resumes its slices from where
+  * the previous instances left off, and no event is lost or processed twice. The number
+  * of instances survives nodes leaving and joining, but a full cluster restart starts with
+  * the configured number again.
+  * <p>
+  * Each node publishes the metrics of the slice ranges it runs, as a
+  * {@link SlicedProjectionMXBean} named after the projection.
+  */
+
+public final class SlicedProjection
+{
+
+/**
+  * Creates the projection instance of a slice range.
+  */
+
+    @FunctionalInterface
+    public interface Factory<Event>
+    {
+
+/**
+  * Returns the projection instance of the given slice range.
+  * <p>
+  * @param minSlice the minimal slice of the range
+  * @param maxSlice the maximal slice of the range
+  * @return the projection instance
+  */
+
+        Projection<EventEnvelope<Event>> create (int minSlice, int maxSlice);
+
+    }
+
+/**
+  * Represents the metrics and controls of a sliced projection.
+  */
+
+    public interface SlicedProjectionMXBean
+    {
+
+/**
+  * Returns the current number of instances, as last seen by this node.
+  */
+
+        int getInstances ();
+
+/**
+  * Changes the number of instances, and waits for the change to complete.
+  */
+
+        void setInstances (int instances);
+
+/**
+  * Returns the lag of each slice range that runs on this node, i.e. the time between
+  * the last processed event was written and processed, in milliseconds.
+  */
+
+        Map<String,Long> getLagMillis ();
+
+/**
+  * Returns the number of events processed by each slice range that runs on this node,
+  * since the range started on this node.
+  */
+
+        Map<String,Long> getProcessedEvents ();
+
+    }
+
+/**
+  * Represents the progress of a slice range.
+  * <p>
+  * @param lagMillis the lag of the last processed event
+  * @param processed the number of processed events
+  */
+
+    private record Progress (long lagMillis, long processed) {}
+
+/**
+  * Holds the projection name.
+  */
+
+    private final String _name;
+
+/**
+  * Holds the actor system.
+  */
+
+    private final ActorSystem<?> _system;
+
+/**
+  * Holds the progress of the slice ranges that run on this node, indexed by range.
+  */
+
+    private final ConcurrentHashMap<String,Progress> _progress = new ConcurrentHashMap<> ();
+
+/**
+  * Holds the number of instances, as last seen by this node.
+  */
+
+    private volatile int _instances;
+
+/**
+  * Holds the control of the sharded daemon process.
+  */
+
+    private ActorRef<ShardedDaemonProcessCommand> _control;
+
+    private SlicedProjection (ActorSystem<?> system, String name, int instances)
+    {
+        _system = system;
+        _name = name;
+        _instances = instances;
+    }
+
+/**
+  * Starts the instances of a sliced projection, and publishes its metrics.
+  * <p>
+  * @param system the actor system
+  * @param name the projection name, under which the offsets are stored
+  * @param instances the initial number of instances
+  * @param factory creates the projection instance of a slice range
+  * @return the sliced projection
+  */
+
+    public static <Event> SlicedProjection init (
+        ActorSystem<?> system,
+        String name,
+        int instances,
+        Factory<Event> factory)
+    {
+        SlicedProjection projection = new SlicedProjection (system, name, instances);
+
+        projection._control = ShardedDaemonProcess.get (system).initWithContext (
+            ProjectionBehavior.Command.class,
+            name,
+            instances,
+            context -> ProjectionBehavior.create (projection.createInstance (context, factory)),
+            ShardedDaemonProcessSettings.create (system),
+            Optional.of (ProjectionBehavior.stopMessage ()));
+
+        Metrics.register ("Projection", name, projection.getMetrics ());
+
+        return projection;
+    }
+
+/**
+  * Changes the number of instances.
+  * <p>
+  * @param instances the new number of instances
+  * @param timeout the maximum time to wait for the change
+  * @throws IllegalStateException if the change fails or times out
+  */
+
+    public void changeInstances (int instances, Duration timeout)
+    {
+        try {
+            StatusReply<Done> reply =
+                AskPattern.<ShardedDaemonProcessCommand,StatusReply<Done>>ask (
+                    _control,
+                    replyTo -> new ChangeNumberOfProcesses (instances, replyTo),
+                    timeout,
+                    _system.scheduler ())
+                .toCompletableFuture ()
+                .get (timeout.toMillis (), TimeUnit.MILLISECONDS);
+            if (reply.isError ()) {
+                throw new IllegalStateException (reply.getError ().getMessage ());
+            }
+            _instances = instances;
+        } catch (Exception exc) {
+            throw new IllegalStateException ("Failed to change the instances of " + _name + ": " + exc.getMessage ());
+        }
+    }
+
+/**
+  * Returns the metrics of the slice ranges that run on this node.
+  * <p>
+  * @return the metrics
+  */
+
+    public SlicedProjectionMXBean getMetrics ()
+    {
+        Duration timeout = _system.settings ().config ().getDuration ("order-service.ask-timeout");
+
+        return new SlicedProjectionMXBean () {
+            @Override
+            public int getInstances ()
+            {
+                return _instances;
+            }
+
+            @Override
+            public void setInstances (int instances)
+            {
+                changeInstances (instances, timeout);
+            }
+
+            @Override
+            public Map<String,Long> getLagMillis ()
+            {
+                Map<String,Long> lags = new TreeMap<> ();
+                _progress.forEach ((range, progress) -> lags.put (range, progress.lagMillis ()));
+                return lags;
+            }
+
+            @Override
+            public Map<String,Long> getProcessedEvents ()
+            {
+                Map<String,Long> processed = new TreeMap<> ();
+                _progress.forEach ((range, progress) -> processed.put (range, progress.processed ()));
+                return processed;
+            }
+        };
+    }
+
+/**
+  * Returns the projection instance of a process of the sharded daemon process, observed
+  * for the metrics.
+  */
+
+    private <Event> Projection<EventEnvelope<Event>> createInstance (
+        ShardedDaemonProcessContext context,
+        Factory<Event> factory)
+    {
+        _instances = context.totalProcesses ();
+        List<Pair<Integer,Integer>> sliceRanges =
+            EventSourcedProvider.sliceRanges (_system, R2dbcReadJournal.Identifier (), context.totalProcesses ());
+        Pair<Integer,Integer> sliceRange = sliceRanges.get (context.processNumber ());
+        String range = sliceRange.first () + "-" + sliceRange.second ();
+
+        return factory.create (sliceRange.first (), sliceRange.second ())
+                      .withStatusObserver (new Observer<> (range));
+    }
+
+/**
+  * Implements the observer that records the progress of a slice range.
+  */
+
+    private final class Observer<Event> extends StatusObserver<EventEnvelope<Event>>
+    {
+
+        private final String _range;
+
+        Observer (String range)
+        {
+            _range = range;
+        }
+
+        @Override
+        public void started (ProjectionId projectionId)
+        {
+            _progress.put (_range, new Progress (0, 0));
+        }
+
+        @Override
+        public void failed (ProjectionId projectionId, Throwable cause)
+        {
+        }
+
+        @Override
+        public void stopped (ProjectionId projectionId)
+        {
+            _progress.remove (_range);
+        }
+
+        @Override
+        public void beforeProcess (ProjectionId projectionId, EventEnvelope<Event> envelope)
+        {
+        }
+
+        @Override
+        public void afterProcess (ProjectionId projectionId, EventEnvelope<Event> envelope)
+        {
+            long lag = Math.max (0, System.currentTimeMillis () - envelope.timestamp ());
+            _progress.merge (_range,
+                             new Progress (lag, 1),
+                             (current, next) -> new Progress (lag, current.processed () + 1));
+        }
+
+        @Override
+        public void offsetProgress (ProjectionId projectionId, EventEnvelope<Event> envelope)
+        {
+        }
+
+        @Override
+        public void error (
+            ProjectionId projectionId,
+            EventEnvelope<Event> envelope,
+            Throwable cause,
+            HandlerRecoveryStrategy recoveryStrategy)
+        {
+        }
+
+    }
+
+}
@@ -0,0 +1,358 @@
+package com.eraneyal.order;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+  * Implements an in-memory index of the stock levels of items per site, which can be read
+  * and updated concurrently.
+  * <p>
+  * The set of sites is fixed when the index is created, and each site is assigned a
+  * position. The stock levels of an item are held in a single atomic array indexed by site
+  * position, so finding the sites that can supply an item requires a single map lookup, and
+  * stock is reserved with lock-free compare-and-set operations.
+  * <p>
+  * Items that have no stock level at any site are not tracked. Such items are considered
+  * available at every site.
+  * <p>
+  * Stock level changes made by {@link #setStock} and {@link #addStock} (e.g. restocks), as
+  * opposed to reservations and releases, are reported to a {@link Listener}, if one is set.
+  */
+
+public final class StockIndex
+{
+
+/**
+  * Represents a listener to stock level changes.
+  */
+
+    public interface Listener
+    {
+
+/**
+  * Invoked when the stock level of an item at a site is set or adjusted.
+  * <p>
+  * @param itemID the item identifier
+  * @param position the site position
+  * @param delta the change of the stock level
+  */
+
+        void stockChanged (String itemID, int position, int delta);
+
+    }
+
+/**
+  * Holds the sites, ordered by position.
+  */
+
+    private final List<Site> _sites;
+
+/**
+  * Holds the positions of the sites, indexed by site identifier.
+  */
+
+    private final Map<String,Integer> _positions;
+
+/**
+  * Holds the stock levels of the tracked items per site position, indexed by item
+  * identifier.
+  */
+
+    private final ConcurrentHashMap<String,AtomicIntegerArray> _stock = new ConcurrentHashMap<> ();
+
+/**
+  * Holds the listener to stock level changes, or null.
+  */
+
+    private volatile Listener _listener;
+
+/**
+  * Creates a new index for the given sites, with no tracked items.
+  * <p>
+  * @param sites the sites
+  */
+
+    public StockIndex (List<Site> sites)
+    {
+        if (sites == null || sites.isEmpty ()) {
+            throw new IllegalArgumentException ("At least one site is required");
+        }
+
+        _sites = Collections.unmodifiableList (new ArrayList<> (sites));
+        _positions = new HashMap<> ();
+        for (int i = 0; i < _sites.size (); i++) {
+            if (_positions.put (_sites.get (i).getID (), i) != null) {
+                throw new IllegalArgumentException ("Duplicate site identifier " + _sites.get (i).getID ());
+            }
+        }
+    }
+
+/**
+  * Returns the number of sites.
+  * <p>
+  * @return the number of sites
+  */
+
+    public int getSiteCount ()
+    {
+        return _sites.size ();
+    }
+
+/**
+  * Returns the site at the given position.
+  * <p>
+  * @param position the site position
+  * @return the site at the given position
+  */
+
+    public Site getSite (int position)
+    {
+        return _sites.get (position);
+    }
+
+/**
+  * Returns the sites, ordered by position.
+  * <p>
+  * @return the sites, ordered by position
+  */
+
+    public List<Site> getSites ()
+    {
+        return _sites;
+    }
+
+/**
+  * Returns the position of the given site, or -1 if the site is unknown.
+  * <p>
+  * @param siteID the site identifier
+  * @return the position of the given site, or -1 if the site is unknown
+  */
+
+    public int getPosition (String siteID)
+    {
+        Integer position = _positions.get (siteID);
+
+        return position != null ? position : -1;
+    }
+
+/**
+  * Sets the listener to stock level changes.
+  * <p>
+  * @param listener the listener, or null
+  */
+
+    public void setListener (Listener listener)
+    {
+        _listener = listener;
+    }
+
+/**
+  * Sets the stock level of an item at a site. The item becomes tracked.
+  * <p>
+  * @param siteID the site identifier
+  * @param itemID the item identifier
+  * @param quantity the stock level
+  */
+
+    public void setStock (String siteID, String itemID, int quantity)
+    {
+        if (quantity < 0) {
+            throw new IllegalArgumentException ("Stock level must be non-negative");
+        }
+
+        int position = requirePosition (siteID);
+        int previous = getOrCreateItemStock (itemID).getAndSet (position, quantity);
+
+        notifyListener (itemID, position, quantity - previous);
+    }
+
+/**
+  * Adds to (or subtracts from) the stock level of an item at a site. The item becomes
+  * tracked. The stock level never drops below zero.
+  * <p>
+  * @param siteID the site identifier
+  * @param itemID the item identifier
+  * @param delta the quantity to add (positive) or subtract (negative)
+  * @return the new stock level
+  */
+
+    public int addStock (String siteID, String itemID, int delta)
+    {
+        AtomicIntegerArray stock = getOrCreateItemStock (itemID);
+        int position = requirePosition (siteID);
+
+        int previous = stock.getAndAccumulate (position, delta, (current, d) -> Math.max (0, current + d));
+        int current = Math.max (0, previous + delta);
+
+        notifyListener (itemID, position, current - previous);
+        return current;
+    }
+
+/**
+  * Returns the stock level of an item at a site, or -1 if the item is not tracked.
+  * <p>
+  * @param siteID the site identifier
+  * @param itemID the item identifier
+  * @return the stock level of the item at the site, or -1 if the item is not tracked
+  */
+
+    public int getStock (String siteID, String itemID)
+    {
+        AtomicIntegerArray stock = _stock.get (itemID);
+
+        return stock != null ? stock.get (requirePosition (siteID)) : -1;
+    }
+
+/**
+  * Returns true if the given item is tracked.
+  * <p>
+  * @param itemID the item identifier
+  * @return true if the given item is tracked
+  */
+
+    public boolean isTracked (String itemID)
+    {
+        return _stock.containsKey (itemID);
+    }
+
+/**
+  * Returns the stock levels of an item per site position, or null if the item is not
+  * tracked.
+  * <p>
+  * @param itemID the item identifier
+  * @return the stock levels of the item per site position, or null if the item is not
+  * 		tracked
+  */
+
+    AtomicIntegerArray getItemStock (String itemID)
+    {
+        return _stock.get (itemID);
+    }
+
+/**
+  * Reserves the given items at the site at the given position. Either all the items are
+  * reserved, or none of them.
+  * <p>
+  * @param position the site position
+  * @param items the items to reserve, indexed by item identifier
+  * @return true if the items were reserved, false if the site doesn't have enough stock
+  */
+
+    public boolean reserve (int position, Map<String,OrderItem> items)
+    {
+        List<OrderItem> reserved = new ArrayList<> (items.size ());
+
+        for (OrderItem item : items.values ()) {
+            AtomicIntegerArray stock = _stock.get (item.getItemID ());
+            if (stock != null) {
+                if (!decrement (stock, position, item.getQuantity ())) {
+// -- roll back the items reserved so far
+                    for (OrderItem rollback : reserved) {
+                        _stock.get (rollback.getItemID ()).addAndGet (position, rollback.getQuantity ());
+                    }
+                    return false;
+                }
+                reserved.add (item);
+            }
+        }
+
+        return true;
+    }
+
+/**
+  * Releases the given items, previously reserved at the site at the given position.
+  * <p>
+  * @param position the site position
+  * @param items the items to release, indexed by item identifier
+  */
+
+    public void release (int position, Map<String,OrderItem> items)
+    {
+        for (OrderItem item : items.values ()) {
+            AtomicIntegerArray stock = _stock.get (item.getItemID ());
+            if (stock != null) {
+                stock.addAndGet (position, item.getQuantity ());
+            }
+        }
+    }
+
+/**
+  * Reports a stock level change to the listener, if there is one.
+  * <p>
+  * @param itemID the item identifier
+  * @param position the site position
+  * @param delta the change of the stock level
+  */
+
+    private void notifyListener (String itemID, int position, int delta)
+    {
+        Listener listener = _listener;
+
+        if (listener != null && delta != 0) {
+            listener.stockChanged (itemID, position, delta);
+        }
+    }
+
+/**
+  * Decrements a stock level by the given quantity, unless it is lower than the quantity.
+  * <p>
+  * @param stock the stock levels of an item per site position
+  * @param position the site position
+  * @param quantity the quantity
+  * @return true if the stock level was decremented
+  */
+
+    private static boolean decrement (AtomicIntegerArray stock, int position, int quantity)
+    {
+        while (true) {
+            int current = stock.get (position);
+            if (current < quantity) {
+                return false;
+            }
+            if (stock.compareAndSet (position, current, current - quantity)) {
+                return true;
+            }
+        }
+    }
+
+/**
+  * Returns the stock levels of an item, creating them (with zero stock at every site) if
+  * the item is not tracked yet.
+  * <p>
+  * @param itemID the item identifier
+  * @return the stock levels of the item per site position
+  */
+
+    private AtomicIntegerArray getOrCreateItemStock (String itemID)
+    {
+        if (itemID == null || itemID.isBlank ()) {
+            throw new IllegalArgumentException ("Item identifier is missing or empty");
+        }
+
+        return _stock.computeIfAbsent (itemID, key -> new AtomicIntegerArray (_sites.size ()));
+    }
+
+/**
+  * Returns the position of the given site.
+  * <p>
+  * @param siteID the site identifier
+  * @return the position of the given site
+  * @exception IllegalArgumentException if the site is unknown
+  */
+
+    private int requirePosition (String siteID)
+    {
+        Integer position = _positions.get (siteID);
+        if (position == null) {
+            throw new IllegalArgumentException ("Unknown site " + siteID);
+        }
+
+        return position;
+    }
+
+}
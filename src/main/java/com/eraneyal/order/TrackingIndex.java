@@ -0,0 +1,201 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorSystem;
+import akka.persistence.r2dbc.session.javadsl.R2dbcSession;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+  * Resolves the tracking identifiers returned by the couriers to the order allocations
+  * they were booked for, so couriers can update the tracking status by tracking identifier
+  * alone.
+  * <p>
+  * The tracking_index table is kept up to date from the Order events by
+  * {@link OrderViewProjection}, so an allocation can be resolved shortly after it was
+  * packed. A tracking identifier is never reassigned, so resolved allocations are cached
+  * on each node for good, up to the cache capacity (least recently used are evicted).
+  * Unknown tracking identifiers are not cached, since they may be indexed later.
+  */
+
+public final class TrackingIndex
+{
+
+/**
+  * Represents the metrics of the cache.
+  */
+
+    public interface TrackingIndexMXBean
+    {
+
+/**
+  * Returns the number of tracking identifiers resolved from the cache.
+  */
+
+        long getHits ();
+
+/**
+  * Returns the number of tracking identifiers that weren't cached, and were read from
+  * the index.
+  */
+
+        long getMisses ();
+
+/**
+  * Returns the current number of cached allocations.
+  */
+
+        int getSize ();
+
+    }
+
+/**
+  * Represents a resolved order allocation.
+  * <p>
+  * @param orderID the order identifier
+  * @param allocationID the allocation identifier
+  */
+
+    public record Entry (String orderID, String allocationID) {}
+
+/**
+  * Holds the statement that indexes a tracking identifier.
+  */
+
+    static final String INSERT_SQL =
+        "INSERT INTO tracking_index (tracking_id, order_id, allocation_id) VALUES ($1, $2, $3) " +
+        "ON CONFLICT (tracking_id) DO NOTHING";
+
+/**
+  * Holds the statement that resolves a tracking identifier.
+  */
+
+    private static final String SELECT_SQL =
+        "SELECT order_id, allocation_id FROM tracking_index WHERE tracking_id = $1";
+
+/**
+  * Holds the function that reads a tracking identifier from the index.
+  */
+
+    private final Function<String,CompletionStage<Optional<Entry>>> _loader;
+
+/**
+  * Holds the cached entries, in least recently used order.
+  */
+
+    private final LinkedHashMap<String,Entry> _cache;
+
+    private final LongAdder _hits = new LongAdder ();
+
+    private final LongAdder _misses = new LongAdder ();
+
+/**
+  * Creates a new instance, which reads the index table.
+  * <p>
+  * @param system the actor system
+  * @param capacity the maximum number of cached entries
+  */
+
+    public TrackingIndex (ActorSystem<?> system, int capacity)
+    {
+        this (capacity,
+              trackingID -> R2dbcSession.withSession (
+                  system,
+                  session -> session.selectOne (
+                      session.createStatement (SELECT_SQL).bind (0, trackingID),
+                      row -> new Entry (row.get ("order_id", String.class),
+                                        row.get ("allocation_id", String.class)))));
+    }
+
+/**
+  * Creates a new instance.
+  * <p>
+  * @param capacity the maximum number of cached entries
+  * @param loader a function that reads a tracking identifier from the index
+  */
+
+    TrackingIndex (int capacity, Function<String,CompletionStage<Optional<Entry>>> loader)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException ("Capacity must be positive");
+        }
+
+        _loader = loader;
+        _cache = new LinkedHashMap<> (16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String,Entry> eldest)
+            {
+                return size () > capacity;
+            }
+        };
+    }
+
+/**
+  * Resolves a tracking identifier.
+  * <p>
+  * @param trackingID the tracking identifier
+  * @return the order allocation, or an empty optional if the tracking identifier isn't
+  * 	   indexed (yet)
+  */
+
+    public CompletionStage<Optional<Entry>> resolve (String trackingID)
+    {
+        Entry entry;
+        synchronized (_cache) {
+            entry = _cache.get (trackingID);
+        }
+
+        if (entry != null) {
+            _hits.increment ();
+            return CompletableFuture.completedFuture (Optional.of (entry));
+        }
+
+        _misses.increment ();
+        return _loader.apply (trackingID)
+                      .thenApply (loaded -> {
+                          loaded.ifPresent (e -> {
+                              synchronized (_cache) {
+                                  _cache.put (trackingID, e);
+                              }
+                          });
+                          return loaded;
+                      });
+    }
+
+/**
+  * Returns the metrics of the cache.
+  * <p>
+  * @return the metrics of the cache
+  */
+
+    public TrackingIndexMXBean getMetrics ()
+    {
+        return new TrackingIndexMXBean () {
+            @Override
+            public long getHits ()
+            {
+                return _hits.sum ();
+            }
+
+            @Override
+            public long getMisses ()
+            {
+                return _misses.sum ();
+            }
+
+            @Override
+            public int getSize ()
+            {
+                synchronized (_cache) {
+                    return _cache.size ();
+                }
+            }
+        };
+    }
+
+}
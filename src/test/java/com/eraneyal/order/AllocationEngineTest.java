@@ -0,0 +1,196 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+  * Unit tests for the allocation engine.
+  */
+
+public class AllocationEngineTest
+{
+
+/**
+  * Holds a test customer.
+  */
+
+    private static final Customer CUSTOMER = new Customer (
+        "Eran",
+        "Eyal",
+        new Address (
+            "Some Street 42",
+            "Some City",
+            "Israel",
+            12345),
+        "someone@gmail.com",
+        "0521234567");
+
+/**
+  * Holds the test sites.
+  */
+
+    private static final List<Site> SITES = List.of (
+        new Site ("north", "North Warehouse", new Address ("Namir 15", "Tel Aviv", "Israel", 12345), "FedEx"),
+        new Site ("south", "South Store", new Address ("Bialik 89", "Ramat Gan", "Israel", 64722), "DeliverIt"),
+        new Site ("east", "East Store", new Address ("Herzl 1", "Haifa", "Israel", 33000), "DeliverIt"));
+
+    private StockIndex index;
+
+    private AllocationEngine engine;
+
+    @Before
+    public void beforeEach ()
+    {
+        index = new StockIndex (AllocationEngineTest.SITES);
+        engine = new AllocationEngine (index);
+    }
+
+/**
+  * Tests that a single site that can supply all the items is preferred over a split.
+  */
+
+    @Test
+    public void singleSiteAllocation ()
+    {
+        index.setStock ("north", "1", 10);
+        index.setStock ("south", "1", 10);
+        index.setStock ("south", "2", 10);
+
+        Map<String,Allocation> allocations = engine.allocate (
+            Map.of ("1", new OrderItem ("1", "pencil", 5),
+                    "2", new OrderItem ("2", "pen", 5)),
+            AllocationEngineTest.CUSTOMER);
+        assertEquals (1, allocations.size ());
+        assertEquals ("South Store", allocations.get ("1").getName ());
+        assertEquals (5, index.getStock ("south", "1"));
+        assertEquals (5, index.getStock ("south", "2"));
+        assertEquals (10, index.getStock ("north", "1"));
+    }
+
+/**
+  * Tests that items are split over the minimal number of sites when no single site can
+  * supply all of them.
+  */
+
+    @Test
+    public void splitAllocation ()
+    {
+        index.setStock ("north", "1", 10);
+        index.setStock ("south", "2", 10);
+        index.setStock ("east", "3", 10);
+        index.setStock ("east", "4", 10);
+
+        Map<String,Allocation> allocations = engine.allocate (
+            Map.of ("1", new OrderItem ("1", "pencil", 5),
+                    "2", new OrderItem ("2", "pen", 5),
+                    "3", new OrderItem ("3", "notebook", 3),
+                    "4", new OrderItem ("4", "folder", 2)),
+            AllocationEngineTest.CUSTOMER);
+        assertEquals (3, allocations.size ());
+        int totalItems = 0;
+        for (Allocation allocation : allocations.values ()) {
+            totalItems += allocation.getItems ().size ();
+        }
+        assertEquals (4, totalItems);
+    }
+
+/**
+  * Tests that an order that can't be fulfilled isn't allocated, and no stock is reserved.
+  */
+
+    @Test
+    public void insufficientStock ()
+    {
+        index.setStock ("north", "1", 10);
+        index.setStock ("south", "2", 1);
+
+        Map<String,Allocation> allocations = engine.allocate (
+            Map.of ("1", new OrderItem ("1", "pencil", 5),
+                    "2", new OrderItem ("2", "pen", 5)),
+            AllocationEngineTest.CUSTOMER);
+        assertTrue (allocations.isEmpty ());
+        assertEquals (10, index.getStock ("north", "1"));
+        assertEquals (1, index.getStock ("south", "2"));
+    }
+
+/**
+  * Tests that untracked items can be allocated from any site.
+  */
+
+    @Test
+    public void untrackedItems ()
+    {
+        Map<String,Allocation> allocations = engine.allocate (
+            Map.of ("1", new OrderItem ("1", "pencil", 5)),
+            AllocationEngineTest.CUSTOMER);
+        assertEquals (1, allocations.size ());
+        assertEquals (-1, index.getStock ("north", "1"));
+    }
+
+/**
+  * Tests that concurrent allocations never reserve more than the available stock.
+  */
+
+    @Test
+    public void concurrentReservations () throws Exception
+    {
+        index.setStock ("north", "1", 500);
+        index.setStock ("south", "1", 500);
+
+        AtomicInteger allocated = new AtomicInteger ();
+        ExecutorService executor = Executors.newFixedThreadPool (8);
+        for (int i = 0; i < 2000; i++) {
+            executor.execute (() -> {
+                if (!engine.allocate (Map.of ("1", new OrderItem ("1", "pencil", 1)),
+                                      AllocationEngineTest.CUSTOMER).isEmpty ()) {
+                    allocated.incrementAndGet ();
+                }
+            });
+        }
+        executor.shutdown ();
+        assertTrue (executor.awaitTermination (30, TimeUnit.SECONDS));
+
+        assertEquals (1000, allocated.get ());
+        assertEquals (0, index.getStock ("north", "1"));
+        assertEquals (0, index.getStock ("south", "1"));
+    }
+
+/**
+  * Tests that the plan of a repeated item set is reused, until the stock of one of its
+  * items changes by at least the invalidation threshold.
+  */
+
+    @Test
+    public void cachedPlans ()
+    {
+        PlanCache cache = new PlanCache (100, 10);
+        engine = new AllocationEngine (index, null, 0, cache);
+        index.setStock ("north", "1", 100);
+        index.setStock ("south", "1", 100);
+        Map<String,OrderItem> items = Map.of ("1", new OrderItem ("1", "pencil", 5));
+
+        assertEquals ("North Warehouse", engine.allocate (items, AllocationEngineTest.CUSTOMER).get ("1").getName ());
+        assertEquals ("North Warehouse", engine.allocate (items, AllocationEngineTest.CUSTOMER).get ("1").getName ());
+        assertEquals (1, cache.getMetrics ().getHits ());
+        assertEquals (1, cache.getMetrics ().getMisses ());
+
+// -- a small stock change keeps the plan, a large one invalidates it
+        index.addStock ("north", "1", -5);
+        engine.allocate (items, AllocationEngineTest.CUSTOMER);
+        assertEquals (2, cache.getMetrics ().getHits ());
+        index.setStock ("north", "1", 0);
+        assertEquals ("South Store", engine.allocate (items, AllocationEngineTest.CUSTOMER).get ("1").getName ());
+        assertEquals (2, cache.getMetrics ().getHits ());
+        assertEquals (2, cache.getMetrics ().getMisses ());
+        assertEquals (95, index.getStock ("south", "1"));
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+  * Unit tests for the consolidation of allocations into parcels.
+  */
+
+public class AllocationTest
+{
+
+    private static final Address STORE = new Address ("Bialik 89", "Ramat Gan", "Israel", 64722);
+
+    private static final Address WAREHOUSE = new Address ("Namir 15", "Tel Aviv", "Israel", 12345);
+
+/**
+  * Tests that the allocations of the same address and courier are grouped, and that the
+  * others are kept apart.
+  */
+
+    @Test
+    public void consolidate ()
+    {
+        Allocation first = allocation ("1", new Address ("Bialik 89", "Ramat Gan", "Israel", 64722), "FedEx",
+                                       Map.of ("a", new OrderItem ("a", "coke", 2)));
+        Allocation second = allocation ("2", WAREHOUSE, "FedEx",
+                                        Map.of ("b", new OrderItem ("b", "bread", 1)));
+        Allocation third = allocation ("3", STORE, "FedEx",
+                                       Map.of ("a", new OrderItem ("a", "coke", 3),
+                                               "c", new OrderItem ("c", "sugar", 1)));
+        Allocation fourth = allocation ("4", STORE, "DeliverIt",
+                                        Map.of ("d", new OrderItem ("d", "milk", 1)));
+
+        List<List<Allocation>> parcels = Allocation.consolidate (List.of (fourth, third, second, first));
+
+        assertEquals (3, parcels.size ());
+        assertEquals (List.of (first, third), parcels.get (0));
+        assertEquals (List.of (second), parcels.get (1));
+        assertEquals (List.of (fourth), parcels.get (2));
+    }
+
+/**
+  * Tests that a parcel is booked at the location of its first allocation, with the items
+  * of all the allocations, under an identifier of its own.
+  */
+
+    @Test
+    public void merge ()
+    {
+        Allocation first = allocation ("1", STORE, "FedEx",
+                                       Map.of ("a", new OrderItem ("a", "coke", 2)));
+        Allocation second = allocation ("2", STORE, "FedEx",
+                                        Map.of ("a", new OrderItem ("a", "coke", 3),
+                                                "c", new OrderItem ("c", "sugar", 1)));
+
+        assertSame (first, Allocation.merge (List.of (first)));
+
+        Allocation parcel = Allocation.merge (List.of (first, second));
+        assertEquals ("1+2", parcel.getID ());
+        assertSame (STORE, parcel.getAddress ());
+        assertEquals ("FedEx", parcel.getCourier ());
+        assertEquals (2, parcel.getItems ().size ());
+        assertEquals (5, parcel.getItems ().get ("a").getQuantity ());
+        assertEquals (1, parcel.getItems ().get ("c").getQuantity ());
+    }
+
+    private static Allocation allocation (String ident, Address address, String courier, Map<String,OrderItem> items)
+    {
+        return new Allocation (ident, "Store", address, items, courier, null,
+                               Map.of (Instant.now (), Allocation.Status.ALLOCATED));
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.eraneyal.order;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.http.javadsl.Http;
+import akka.stream.SystemMaterializer;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import static org.junit.Assert.*;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Unit tests for the courier bookings, and the booking services plugged in by providers.
+  */
+
+public class CourierBookingsTest
+{
+
+/**
+  * Implements a provider of a booking service, listed in the META-INF/services resource
+  * of the tests. The service books with the prefix of its courier definition, and rejects
+  * the bookings of the order "reject".
+  */
+
+    public static class TestProvider implements CourierBookingService.Provider
+    {
+        @Override
+        public String getCourier ()
+        {
+            return "SpiCourier";
+        }
+
+        @Override
+        public CourierBookingService create (CourierBookingService.Context context)
+        {
+// -- the provider is loaded by the actor systems of all the tests, which don't define the courier
+            String prefix = context.config ().hasPath ("prefix") ? context.config ().getString ("prefix") : "test";
+
+            return (order, allocation, customer) -> {
+                if (order.equals ("reject")) {
+                    return CompletableFuture.failedFuture (
+                        new CompletionException (new CourierBookingHandlerException ("rejected by " + getCourier ())));
+                }
+                return CompletableFuture.completedFuture (
+                    new CourierBookingService.BookingResult (prefix + "-" + order + "-" + allocation.getID ()));
+            };
+        }
+    }
+
+/**
+  * Holds a courier that has both a booking service and a definition.
+  */
+
+    private static final Config CONFIG = ConfigFactory.parseString (
+        "order-service.couriers.definitions.SpiCourier {\n" +
+        "  base-uri = \"http://localhost:1/book\"\n" +
+        "  handler = \"com.eraneyal.order.FakeBookingHandlerImpl\"\n" +
+        "  prefix = spi\n" +
+        "}").withFallback (ConfigFactory.load ());
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource (CONFIG);
+
+    private static final Customer CUSTOMER =
+        new Customer ("John", "Smith", new Address ("Herzl 1", "Tel Aviv", "Israel", 61000),
+                      "john@example.com", "+972 50-000-0000");
+
+    private static final CourierSimulator.Latency NO_LATENCY =
+        new CourierSimulator.Latency ("constant", Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ofSeconds (30));
+
+    private static CourierSimulator simulator;
+
+    @BeforeClass
+    public static void start () throws Exception
+    {
+        CourierBookingAPI.reload (CONFIG.getConfig ("order-service.couriers"), true);
+        simulator = CourierSimulator.start (testKit.system (),
+                                            ConfigFactory.parseString ("port = 0")
+                                                         .withFallback (CourierSimulator.defaultConfig ()))
+                                    .toCompletableFuture ()
+                                    .get (10, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public static void stop () throws Exception
+    {
+        CourierBookingAPI.reload (ConfigFactory.load ().getConfig ("order-service.couriers"), true);
+        simulator.stop (Duration.ofSeconds (1)).toCompletableFuture ().get (10, TimeUnit.SECONDS);
+    }
+
+/**
+  * Tests that a courier with a provider is booked by its service, which receives the
+  * definition of the courier, rather than by its booking API.
+  */
+
+    @Test
+    public void serviceTakesPrecedence () throws Exception
+    {
+        assertEquals ("SpiCourier", CourierBookingAPI.getInstanceOrDefault ("SpiCourier").getID ());
+
+        CourierBookingService.BookingResult result =
+            CourierBookings.get (testKit.system ())
+                           .book ("order-1", allocation ("SpiCourier"), CUSTOMER)
+                           .toCompletableFuture ()
+                           .get (10, TimeUnit.SECONDS);
+
+        assertEquals ("spi-order-1-1", result.trackingID ());
+    }
+
+/**
+  * Tests that the failure of a booking service reaches the entity with the reason of the
+  * service, not the completion exception that wraps it.
+  */
+
+    @Test
+    public void serviceFailure () throws Exception
+    {
+        Order.BookDeliveryResult result =
+            bookDeliveryResult (CourierBookings.get (testKit.system ()).book ("reject", allocation ("SpiCourier"), CUSTOMER));
+
+        assertEquals (new Order.BookDeliveryFailure ("rejected by SpiCourier"), result);
+    }
+
+/**
+  * Tests that a booking API that answers with a status other than 200 fails the booking
+  * with a handler exception that tells the status.
+  */
+
+    @Test
+    public void nonOkStatus () throws Exception
+    {
+        Config couriers = ConfigFactory.parseString (
+            "definitions.DeliverIt.base-uri = \"" + simulator.getBaseURI ("DeliverIt") + "\"")
+            .withFallback (CONFIG.getConfig ("order-service.couriers"));
+        CourierBookingAPI api = CourierBookingAPI.fromConfig (couriers).get ("DeliverIt");
+        CourierBookingService service =
+            new CourierBookingHandlerAdapter (api,
+                                              new CourierBookingService.Context (
+                                                  testKit.system (),
+                                                  Http.get (testKit.system ()),
+                                                  SystemMaterializer.get (testKit.system ()).materializer (),
+                                                  testKit.system ().executionContext (),
+                                                  ConfigFactory.empty ()),
+                                              Duration.ofSeconds (5),
+                                              null,
+                                              new CourierEndpoints ("DeliverIt"));
+
+        try {
+            simulator.setProfile ("DeliverIt", new CourierSimulator.Profile (NO_LATENCY, 1.0, 503, 0, 0, 1, Duration.ZERO));
+
+            CompletionStage<CourierBookingService.BookingResult> booking =
+                service.book ("order-1", allocation ("DeliverIt"), CUSTOMER);
+            try {
+                booking.toCompletableFuture ().get (10, TimeUnit.SECONDS);
+                fail ("the booking succeeded");
+            }
+            catch (ExecutionException exc) {
+                assertTrue (exc.getCause () instanceof CourierBookingHandlerException);
+            }
+
+            Order.BookDeliveryResult result = bookDeliveryResult (booking);
+            assertTrue (result instanceof Order.BookDeliveryFailure failure && failure.reason ().contains ("503"));
+        } finally {
+            simulator.setProfile ("DeliverIt", new CourierSimulator.Profile (NO_LATENCY, 0, 503, 0, 0, 1, Duration.ZERO));
+        }
+    }
+
+    private static Order.BookDeliveryResult bookDeliveryResult (
+        CompletionStage<CourierBookingService.BookingResult> booking)
+        throws Exception
+    {
+        return booking.handle (OrderDecisions::toBookDeliveryResult).toCompletableFuture ().get (10, TimeUnit.SECONDS);
+    }
+
+    private static Allocation allocation (String courier)
+    {
+        return new Allocation ("1", "Store", new Address ("Bialik 89", "Ramat Gan", "Israel", 64722),
+                               Map.of (), courier, null, Map.of ());
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+  * Unit tests for the courier definitions.
+  */
+
+public class CourierDefinitionTest
+{
+
+    private static final Customer CUSTOMER =
+        new Customer ("Zoë", "O'Brien & Sons", new Address ("Rue du Café 7/3", "Tel Aviv-Yafo", "Israel", 61000),
+                      "zoe+orders@example.com", "+972 50-000-0000");
+
+    private static final Allocation ALLOCATION =
+        new Allocation ("2", "Outlet Store 🚚", new Address ("Bialik 89", "Ramat Gan", "Israel", 64722),
+                        Map.of (), "FedEx", null, Map.of ());
+
+/**
+  * Tests that the compiled encoder writes the same URI as the parameters encoded with
+  * URLEncoder, for the definitions of couriers.conf.
+  */
+
+    @Test
+    public void bookingURI () throws Exception
+    {
+        for (String courier : new String[] {"FedEx", "DeliverIt"}) {
+            CourierDefinition definition = CourierDefinition.fromConfig (
+                ConfigFactory.load ().getConfig ("order-service.couriers.definitions." + courier));
+            String baseUri = "http://localhost:8080/courier/" + courier.toLowerCase () + "-book.jsp";
+            Map<String,String> params = new TreeMap<> (definition.getHTTPRequestParams ("order-1", ALLOCATION, CUSTOMER));
+
+            String expected =
+                baseUri + "?" + params.entrySet ()
+                                      .stream ()
+                                      .map (e -> e.getKey () + "=" + URLEncoder.encode (e.getValue (), StandardCharsets.UTF_8))
+                                      .collect (Collectors.joining ("&"));
+            assertEquals (expected, definition.getBookingURI (baseUri, "order-1", ALLOCATION, CUSTOMER));
+            assertEquals ("order-1-2", params.get ("orderId"));
+            assertEquals (14, params.size ());
+        }
+    }
+
+/**
+  * Tests literal parameters, base URIs with a query, and unknown fields.
+  */
+
+    @Test
+    public void literalsAndUnknownFields () throws Exception
+    {
+        CourierDefinition definition =
+            new CourierDefinition ("http://courier/book?v=2",
+                                   Map.of ("key", "=a b/c", "zip", "customer.zip-code"),
+                                   "data.tracking");
+        assertEquals ("http://courier/book?v=2&key=a+b%2Fc&zip=61000",
+                      definition.getBookingURI ("http://courier/book?v=2", "order-1", ALLOCATION, CUSTOMER));
+
+        try {
+            CourierDefinition.fromConfig (ConfigFactory.parseString (
+                "base-uri = \"http://courier\", params { id = order.uuid }, tracking-id = id"));
+            fail ("Unknown field accepted");
+        }
+        catch (ConfigException.BadValue expected) {
+        }
+    }
+
+/**
+  * Tests that each endpoint of a definition gets its own base URI.
+  */
+
+    @Test
+    public void endpoints () throws Exception
+    {
+        CourierDefinition definition = CourierDefinition.fromConfig (ConfigFactory.parseString (
+            "endpoints = [\"http://a/book\", \"http://b/book?v=2\"], params { id = order.id }, tracking-id = id"));
+
+        assertEquals ("http://a/book?id=order-1",
+                      definition.getBookingURI ("http://a/book", "order-1", ALLOCATION, CUSTOMER));
+        assertEquals ("http://b/book?v=2&id=order-1",
+                      definition.getBookingURI ("http://b/book?v=2", "order-1", ALLOCATION, CUSTOMER));
+    }
+
+}
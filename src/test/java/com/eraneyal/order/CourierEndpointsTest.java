@@ -0,0 +1,89 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Unit tests for the load balancing of the courier endpoints.
+  */
+
+public class CourierEndpointsTest
+{
+
+    private static final CourierEndpoints.Policy POLICY =
+        new CourierEndpoints.Policy (Duration.ofSeconds (10),
+                                     3,
+                                     Duration.ofSeconds (30),
+                                     Duration.ofMinutes (5),
+                                     50);
+
+    private static final List<String> URIS = List.of ("http://a/book", "http://b/book", "http://c/book");
+
+/**
+  * Tests that the requests go to the faster endpoints.
+  */
+
+    @Test
+    public void preferFastEndpoints ()
+    {
+        CourierEndpoints endpoints = new CourierEndpoints ("test-fast");
+        List<String> uris = URIS.subList (0, 2);
+        endpoints.choose (uris, POLICY);
+        CourierEndpoints.Endpoint slow = endpoints.getEndpoints ().get (0);
+        CourierEndpoints.Endpoint fast = endpoints.getEndpoints ().get (1);
+
+        complete (slow, 200, true);
+        complete (fast, 10, true);
+        for (int i = 0; i < 100; i++) {
+            assertSame (fast, endpoints.choose (uris, POLICY));
+        }
+
+// -- requests in flight make the fast endpoint busier than the slow one
+        for (int i = 0; i < 30; i++) {
+            fast.start ();
+        }
+        assertSame (slow, endpoints.choose (uris, POLICY));
+    }
+
+/**
+  * Tests that an endpoint is ejected after consecutive failures, and that no more than
+  * the maximum share of the endpoints is ejected.
+  */
+
+    @Test
+    public void ejectFailingEndpoints ()
+    {
+        CourierEndpoints endpoints = new CourierEndpoints ("test-eject");
+        endpoints.choose (URIS, POLICY);
+        CourierEndpoints.Endpoint a = endpoints.getEndpoints ().get (0);
+        CourierEndpoints.Endpoint b = endpoints.getEndpoints ().get (1);
+
+        complete (a, 10, false);
+        complete (a, 10, true);
+        complete (a, 10, false);
+        complete (a, 10, false);
+        assertFalse (a.getMetrics ().isEjected ());
+        complete (a, 10, false);
+        assertTrue (a.getMetrics ().isEjected ());
+        for (int i = 0; i < 100; i++) {
+            assertNotSame (a, endpoints.choose (URIS, POLICY));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            complete (b, 10, false);
+        }
+        assertFalse (b.getMetrics ().isEjected ());
+        assertEquals (4, a.getMetrics ().getFailures ());
+        assertEquals (1, a.getMetrics ().getEjections ());
+    }
+
+    private static void complete (CourierEndpoints.Endpoint endpoint, long millis, boolean success)
+    {
+        endpoint.complete (endpoint.start () - TimeUnit.MILLISECONDS.toNanos (millis), success);
+    }
+
+}
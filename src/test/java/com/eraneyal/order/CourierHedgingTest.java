@@ -0,0 +1,151 @@
+package com.eraneyal.order;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.typed.ActorSystem;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.StatusCodes;
+import akka.stream.SystemMaterializer;
+
+import static org.junit.Assert.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Unit tests for the hedged booking requests.
+  */
+
+public class CourierHedgingTest
+{
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource ();
+
+    private static final CourierHedging.Policy POLICY =
+        new CourierHedging.Policy (0.95,
+                                   Duration.ofMillis (100),
+                                   Duration.ofMillis (10),
+                                   Duration.ofSeconds (1),
+                                   Duration.ofMinutes (1),
+                                   10,
+                                   1.0);
+
+/**
+  * Tests that a slow request is hedged, that the hedge wins, and that a fast request
+  * isn't hedged.
+  */
+
+    @Test
+    public void hedgeSlowRequests () throws Exception
+    {
+        CourierHedging hedging = new CourierHedging ();
+        List<CompletableFuture<HttpResponse>> requests = new CopyOnWriteArrayList<> ();
+
+        CompletionStage<HttpResponse> slow = send (hedging, requests);
+        awaitRequests (requests, 2);
+        HttpResponse hedge = HttpResponse.create ();
+        requests.get (1).complete (hedge);
+        assertSame (hedge, slow.toCompletableFuture ().get (3, TimeUnit.SECONDS));
+        requests.get (0).complete (HttpResponse.create ());
+
+        requests.clear ();
+        CompletionStage<HttpResponse> fast = send (hedging, requests);
+        requests.get (0).complete (HttpResponse.create ());
+        fast.toCompletableFuture ().get (3, TimeUnit.SECONDS);
+        Thread.sleep (300);
+        assertEquals (1, requests.size ());
+
+        CourierHedging.CourierHedgingMXBean metrics = hedging.getMetrics ();
+        assertEquals (2, metrics.getRequests ());
+        assertEquals (1, metrics.getHedges ());
+        assertEquals (1, metrics.getHedgeWins ());
+        assertEquals (0.5, metrics.getHedgeRate (), 0.0);
+        assertEquals (1.0, metrics.getWinRate (), 0.0);
+    }
+
+/**
+  * Tests that a booking fails only when all its requests failed.
+  */
+
+    @Test
+    public void failWhenAllRequestsFail () throws Exception
+    {
+        CourierHedging hedging = new CourierHedging ();
+        List<CompletableFuture<HttpResponse>> requests = new CopyOnWriteArrayList<> ();
+
+        CompletionStage<HttpResponse> result = send (hedging, requests);
+        awaitRequests (requests, 2);
+        requests.get (0).completeExceptionally (new RuntimeException ("first"));
+        assertFalse (result.toCompletableFuture ().isDone ());
+        requests.get (1).completeExceptionally (new RuntimeException ("hedge"));
+        try {
+            result.toCompletableFuture ().get (3, TimeUnit.SECONDS);
+            fail ("Booking succeeded");
+        }
+        catch (ExecutionException expected) {
+            assertEquals ("hedge", expected.getCause ().getMessage ());
+        }
+    }
+
+/**
+  * Tests that an error response doesn't beat a request that is still in flight, and that
+  * it is the result when the other request fails too.
+  */
+
+    @Test
+    public void errorResponseDoesNotWin () throws Exception
+    {
+        CourierHedging hedging = new CourierHedging ();
+        List<CompletableFuture<HttpResponse>> requests = new CopyOnWriteArrayList<> ();
+
+        CompletionStage<HttpResponse> result = send (hedging, requests);
+        awaitRequests (requests, 2);
+        requests.get (0).complete (HttpResponse.create ().withStatus (StatusCodes.SERVICE_UNAVAILABLE));
+        assertFalse (result.toCompletableFuture ().isDone ());
+        HttpResponse hedge = HttpResponse.create ();
+        requests.get (1).complete (hedge);
+        assertSame (hedge, result.toCompletableFuture ().get (3, TimeUnit.SECONDS));
+
+        requests.clear ();
+        result = send (hedging, requests);
+        awaitRequests (requests, 2);
+        requests.get (0).complete (HttpResponse.create ().withStatus (StatusCodes.SERVICE_UNAVAILABLE));
+        requests.get (1).complete (HttpResponse.create ().withStatus (StatusCodes.TOO_MANY_REQUESTS));
+        assertEquals (StatusCodes.TOO_MANY_REQUESTS, result.toCompletableFuture ().get (3, TimeUnit.SECONDS).status ());
+    }
+
+    private static CompletionStage<HttpResponse> send (
+        CourierHedging hedging,
+        List<CompletableFuture<HttpResponse>> requests)
+    {
+        ActorSystem<Void> system = testKit.system ();
+
+        return hedging.send (() -> {
+                                 CompletableFuture<HttpResponse> request = new CompletableFuture<> ();
+                                 requests.add (request);
+                                 return request;
+                             },
+                             POLICY,
+                             system.scheduler (),
+                             system.executionContext (),
+                             SystemMaterializer.get (system).materializer ());
+    }
+
+    private static void awaitRequests (List<CompletableFuture<HttpResponse>> requests, int count)
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime () + TimeUnit.SECONDS.toNanos (3);
+        while (requests.size () < count && System.nanoTime () < deadline) {
+            Thread.sleep (10);
+        }
+        assertEquals (count, requests.size ());
+    }
+
+}
@@ -0,0 +1,437 @@
+package com.eraneyal.order;
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.Query;
+import akka.http.javadsl.model.StatusCodes;
+import akka.pattern.Patterns;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+  * Simulates the booking APIs of the couriers with an embedded Akka HTTP server, so
+  * booking performance (hedging, load balancing, pooling, backpressure) can be tested
+  * reproducibly from tests and benchmarks, without the courier container.
+  * <p>
+  * Each simulated courier speaks the protocol of its booking API (see
+  * courier-simulator.conf): a booking with all the required parameters is answered with a
+  * new tracking identifier, and a booking that misses one with status 400, like the
+  * courier container. The profile of a courier shapes its behavior: the distribution of
+  * its response times, its error rate, its rate limit, and the share of its responses
+  * whose body is sent slowly.
+  */
+
+public final class CourierSimulator
+{
+
+    private static final Logger logger = LoggerFactory.getLogger (CourierSimulator.class);
+
+/**
+  * Represents the distribution of the response times of a courier.
+  * <p>
+  * @param distribution "constant", "uniform", "exponential" or "lognormal"
+  * @param min the minimum response time
+  * @param median the median response time
+  * @param p99 the 99th percentile of the response times (lognormal only)
+  * @param max the maximum response time
+  */
+
+    public record Latency (String distribution, Duration min, Duration median, Duration p99, Duration max)
+    {
+
+/**
+  * Holds the 99th percentile of the standard normal distribution.
+  */
+
+        private static final double Z_99 = 2.326348;
+
+/**
+  * Returns the latency of the given settings.
+  * <p>
+  * @param config the latency settings
+  * @return the latency
+  * @exception ConfigException if the distribution is unknown
+  */
+
+        public static Latency fromConfig (Config config)
+        {
+            Latency latency = new Latency (config.getString ("distribution"),
+                                           config.getDuration ("min"),
+                                           config.getDuration ("median"),
+                                           config.getDuration ("p99"),
+                                           config.getDuration ("max"));
+            if (!List.of ("constant", "uniform", "exponential", "lognormal").contains (latency.distribution ())) {
+                throw new ConfigException.BadValue (config.origin (), "distribution", "unknown distribution " + latency.distribution ());
+            }
+            return latency;
+        }
+
+/**
+  * Returns a response time drawn from the distribution.
+  * <p>
+  * @param random the random number generator
+  * @return a response time
+  */
+
+        public Duration sample (ThreadLocalRandom random)
+        {
+            double median = median ().toNanos ();
+            double nanos = switch (distribution ()) {
+                case "uniform" -> random.nextDouble (min ().toNanos (), Math.max (min ().toNanos (), max ().toNanos ()) + 1);
+                case "exponential" -> -median / Math.log (2) * Math.log (1 - random.nextDouble ());
+                case "lognormal" -> median <= 0 ? 0 : Math.exp (Math.log (median)
+                                                                + random.nextGaussian ()
+                                                                  * Math.log (Math.max (p99 ().toNanos (), median) / median) / Z_99);
+                default -> median;
+            };
+
+            return Duration.ofNanos (Math.min (Math.max ((long) nanos, min ().toNanos ()), max ().toNanos ()));
+        }
+
+    }
+
+/**
+  * Represents the behavior of a simulated courier.
+  * <p>
+  * @param latency the distribution of the response times
+  * @param errorRate the share of the bookings that fail
+  * @param errorStatus the status code of the failed bookings
+  * @param rateLimit the maximum bookings per second, or 0 for no limit
+  * @param slowBodyRate the share of the responses whose body is sent slowly
+  * @param slowBodyChunks the number of chunks of a slow body
+  * @param slowBodyChunkDelay the delay between the chunks of a slow body
+  */
+
+    public record Profile (
+        Latency latency,
+        double errorRate,
+        int errorStatus,
+        double rateLimit,
+        double slowBodyRate,
+        int slowBodyChunks,
+        Duration slowBodyChunkDelay)
+    {
+
+/**
+  * Returns the profile of the given settings.
+  * <p>
+  * @param config the profile settings
+  * @return the profile
+  */
+
+        public static Profile fromConfig (Config config)
+        {
+            return new Profile (Latency.fromConfig (config.getConfig ("latency")),
+                                config.getDouble ("error-rate"),
+                                config.getInt ("error-status"),
+                                config.getDouble ("rate-limit"),
+                                config.getDouble ("slow-body.rate"),
+                                config.getInt ("slow-body.chunks"),
+                                config.getDuration ("slow-body.chunk-delay"));
+        }
+
+    }
+
+/**
+  * Represents a simulated courier.
+  */
+
+    private static final class Courier
+    {
+
+        private final String _ident;
+
+        private final String _path;
+
+        private final List<String> _params;
+
+        private final String _trackingKey;
+
+        private final boolean _hex;
+
+        private volatile Profile _profile;
+
+        private final LongAdder _requests = new LongAdder ();
+
+/**
+  * Holds the tokens of the rate limit, and the time they were last refilled. Guarded by
+  * this.
+  */
+
+        private double _tokens;
+
+        private long _refilled = System.nanoTime ();
+
+        private Courier (String ident, Config config)
+        {
+            _ident = ident;
+            _path = config.getString ("path");
+            _params = config.getStringList ("params");
+            _trackingKey = config.getString ("tracking-id");
+            _hex = config.getString ("tracking-id-format").equals ("hex");
+            _profile = Profile.fromConfig (config.getConfig ("profile"));
+            _tokens = Math.max (1, _profile.rateLimit ());
+        }
+
+/**
+  * Takes a token of the rate limit, and returns whether one was available.
+  */
+
+        private synchronized boolean acquire (Profile profile)
+        {
+            if (profile.rateLimit () <= 0) {
+                return true;
+            }
+
+            long now = System.nanoTime ();
+            double capacity = Math.max (1, profile.rateLimit ());
+            _tokens = Math.min (capacity, _tokens + (now - _refilled) / 1e9 * profile.rateLimit ());
+            _refilled = now;
+            if (_tokens < 1) {
+                return false;
+            }
+            _tokens--;
+            return true;
+        }
+
+        private String trackingID ()
+        {
+            String uuid = UUID.randomUUID ().toString ();
+            return _hex ? uuid.replace ("-", "").toUpperCase () : uuid;
+        }
+
+    }
+
+    private final ActorSystem<?> _system;
+
+/**
+  * Holds the simulated couriers, by the path of their booking API.
+  */
+
+    private final Map<String,Courier> _couriers = new HashMap<> ();
+
+    private ServerBinding _binding;
+
+    private CourierSimulator (ActorSystem<?> system, Config config)
+    {
+        _system = system;
+
+        Config couriers = config.getConfig ("couriers");
+        for (String ident : couriers.root ().keySet ()) {
+            Courier courier = new Courier (ident, couriers.getConfig ("\"" + ident + "\""));
+            _couriers.put (courier._path, courier);
+        }
+    }
+
+/**
+  * Returns the default settings of the simulator (courier-simulator.conf), overridden by
+  * the system properties.
+  * <p>
+  * @return the settings of the simulator
+  */
+
+    public static Config defaultConfig ()
+    {
+        return ConfigFactory.systemProperties ()
+                            .withFallback (ConfigFactory.parseResources ("courier-simulator.conf"))
+                            .resolve ()
+                            .getConfig ("courier-simulator");
+    }
+
+/**
+  * Starts a simulator on the given actor system.
+  * <p>
+  * @param system the actor system
+  * @param config the settings of the simulator (see courier-simulator.conf)
+  * @return the simulator, once it is bound to its port
+  */
+
+    public static CompletionStage<CourierSimulator> start (ActorSystem<?> system, Config config)
+    {
+        CourierSimulator simulator = new CourierSimulator (system, config);
+
+        return Http.get (system)
+                   .newServerAt (config.getString ("interface"), config.getInt ("port"))
+                   .bind (simulator::handle)
+                   .thenApply (binding -> {
+                       simulator._binding = binding;
+                       logger.info ("Courier simulator bound to {}", binding.localAddress ());
+                       return simulator;
+                   });
+    }
+
+/**
+  * Returns the port the simulator is bound to.
+  * <p>
+  * @return the port of the simulator
+  */
+
+    public int getPort ()
+    {
+        return _binding.localAddress ().getPort ();
+    }
+
+/**
+  * Returns the base URI of the booking API of a courier.
+  * <p>
+  * @param courier the courier identifier
+  * @return the base URI of the booking API of the courier
+  */
+
+    public String getBaseURI (String courier)
+    {
+        return "http://" + _binding.localAddress ().getHostString () + ":" + getPort () + courier (courier)._path;
+    }
+
+/**
+  * Replaces the profile of a courier, for the bookings that follow.
+  * <p>
+  * @param courier the courier identifier
+  * @param profile the new profile
+  */
+
+    public void setProfile (String courier, Profile profile)
+    {
+        courier (courier)._profile = profile;
+    }
+
+/**
+  * Returns the number of bookings a courier received, including the failed ones.
+  * <p>
+  * @param courier the courier identifier
+  * @return the number of bookings of the courier
+  */
+
+    public long getRequests (String courier)
+    {
+        return courier (courier)._requests.sum ();
+    }
+
+/**
+  * Stops the simulator, and waits for the bookings in progress up to the given deadline.
+  * <p>
+  * @param deadline the maximum time to wait for the bookings in progress
+  * @return completes when the simulator is stopped
+  */
+
+    public CompletionStage<Void> stop (Duration deadline)
+    {
+        return _binding.terminate (deadline).thenApply (terminated -> null);
+    }
+
+    private Courier courier (String ident)
+    {
+        for (Courier courier : _couriers.values ()) {
+            if (courier._ident.equals (ident)) {
+                return courier;
+            }
+        }
+        throw new IllegalArgumentException ("Unknown courier " + ident);
+    }
+
+    private CompletionStage<HttpResponse> handle (HttpRequest request)
+    {
+        request.discardEntityBytes (_system);
+
+        Courier courier = _couriers.get (request.getUri ().path ());
+        if (courier == null) {
+            return CompletableFuture.completedStage (HttpResponse.create ().withStatus (StatusCodes.NOT_FOUND));
+        }
+        courier._requests.increment ();
+
+        Profile profile = courier._profile;
+        if (!courier.acquire (profile)) {
+            return CompletableFuture.completedStage (json (StatusCodes.TOO_MANY_REQUESTS.intValue (), "{\"error\":\"RateLimited\"}"));
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current ();
+        HttpResponse response = respond (courier, profile, request.getUri ().query (), random);
+        Duration latency = profile.latency ().sample (random);
+        if (latency.isZero ()) {
+            return CompletableFuture.completedStage (response);
+        }
+
+        return Patterns.after (latency,
+                               _system.classicSystem ().scheduler (),
+                               _system.executionContext (),
+                               () -> CompletableFuture.completedStage (response));
+    }
+
+    private static HttpResponse respond (Courier courier, Profile profile, Query query, ThreadLocalRandom random)
+    {
+        if (random.nextDouble () < profile.errorRate ()) {
+            return json (profile.errorStatus (), "{\"error\":\"Unavailable\"}");
+        }
+        for (String param : courier._params) {
+            if (query.get (param).isEmpty ()) {
+                return json (StatusCodes.BAD_REQUEST.intValue (), "{\"error\":\"InvalidInput\"}");
+            }
+        }
+
+        String body = "{\"" + courier._trackingKey + "\":\"" + courier.trackingID () + "\"}";
+        if (random.nextDouble () >= profile.slowBodyRate ()) {
+            return json (StatusCodes.OK.intValue (), body);
+        }
+
+// -- the status and headers are sent at once, and the body in chunks
+        List<ByteString> chunks = new ArrayList<> ();
+        int chunkSize = Math.max (1, (body.length () + profile.slowBodyChunks () - 1) / Math.max (1, profile.slowBodyChunks ()));
+        for (int start = 0; start < body.length (); start += chunkSize) {
+            chunks.add (ByteString.fromString (body.substring (start, Math.min (body.length (), start + chunkSize))));
+        }
+        return HttpResponse.create ()
+                           .withEntity (HttpEntities.createChunked (ContentTypes.APPLICATION_JSON,
+                                                                    Source.from (chunks).throttle (1, profile.slowBodyChunkDelay ())));
+    }
+
+    private static HttpResponse json (int status, String body)
+    {
+        return HttpResponse.create ()
+                           .withStatus (status)
+                           .withEntity (ContentTypes.APPLICATION_JSON, body);
+    }
+
+/**
+  * Runs the simulator on its own, in place of the courier container.
+  * <p>
+  * @param args not used
+  */
+
+    public static void main (String[] args)
+    {
+        ActorSystem<Void> system =
+            ActorSystem.create (Behaviors.empty (), "CourierSimulator", ConfigFactory.defaultReference ());
+
+        start (system, defaultConfig ()).whenComplete ((simulator, ex) -> {
+            if (ex != null) {
+                logger.error ("Failed to start the courier simulator", ex);
+                system.terminate ();
+            }
+        });
+    }
+
+}
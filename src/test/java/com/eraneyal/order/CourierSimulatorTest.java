@@ -0,0 +1,161 @@
+package com.eraneyal.order;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.stream.SystemMaterializer;
+
+import com.typesafe.config.ConfigFactory;
+
+import static org.junit.Assert.*;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Unit tests for the courier simulator.
+  */
+
+public class CourierSimulatorTest
+{
+
+    @ClassRule
+    public static final TestKitJunitResource testKit = new TestKitJunitResource ();
+
+    private static final Customer CUSTOMER =
+        new Customer ("John", "Smith", new Address ("Herzl 1", "Tel Aviv", "Israel", 61000),
+                      "john@example.com", "+972 50-000-0000");
+
+    private static final Allocation ALLOCATION =
+        new Allocation ("1", "Store", new Address ("Bialik 89", "Ramat Gan", "Israel", 64722),
+                        Map.of (), "FedEx", null, Map.of ());
+
+    private static final CourierSimulator.Latency NO_LATENCY =
+        new CourierSimulator.Latency ("constant", Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ofSeconds (30));
+
+    private static CourierSimulator simulator;
+
+    @BeforeClass
+    public static void start () throws Exception
+    {
+        simulator = CourierSimulator.start (testKit.system (),
+                                            ConfigFactory.parseString ("port = 0")
+                                                         .withFallback (CourierSimulator.defaultConfig ()))
+                                    .toCompletableFuture ()
+                                    .get (10, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public static void stop () throws Exception
+    {
+        simulator.stop (Duration.ofSeconds (1)).toCompletableFuture ().get (10, TimeUnit.SECONDS);
+    }
+
+/**
+  * Tests that a booking of a defined courier is answered in its protocol, and that a
+  * booking that misses parameters is rejected.
+  */
+
+    @Test
+    public void book () throws Exception
+    {
+        CourierDefinition definition = CourierDefinition.fromConfig (
+            ConfigFactory.load ().getConfig ("order-service.couriers.definitions.DeliverIt"));
+        String baseUri = simulator.getBaseURI ("DeliverIt");
+
+        HttpResponse response = send (definition.getBookingURI (baseUri, "order-1", ALLOCATION, CUSTOMER));
+        assertEquals (200, response.status ().intValue ());
+        assertTrue (definition.getTrackingID (body (response)).matches ("[0-9A-F]{32}"));
+
+        response = send (baseUri + "?orderId=order-1");
+        assertEquals (400, response.status ().intValue ());
+        body (response);
+    }
+
+/**
+  * Tests the error rate, the rate limit and the slow bodies of a profile.
+  */
+
+    @Test
+    public void profiles () throws Exception
+    {
+        CourierDefinition definition = CourierDefinition.fromConfig (
+            ConfigFactory.load ().getConfig ("order-service.couriers.definitions.FedEx"));
+        String uri = definition.getBookingURI (simulator.getBaseURI ("FedEx"), "order-1", ALLOCATION, CUSTOMER);
+
+        try {
+            simulator.setProfile ("FedEx", new CourierSimulator.Profile (NO_LATENCY, 1.0, 503, 0, 0, 1, Duration.ZERO));
+            HttpResponse response = send (uri);
+            assertEquals (503, response.status ().intValue ());
+            body (response);
+
+            simulator.setProfile ("FedEx", new CourierSimulator.Profile (NO_LATENCY, 0, 503, 2, 0, 1, Duration.ZERO));
+            int limited = 0;
+            for (int i = 0; i < 5; i++) {
+                response = send (uri);
+                body (response);
+                if (response.status ().intValue () == 429) {
+                    limited++;
+                }
+            }
+            assertTrue (limited >= 2);
+
+            simulator.setProfile ("FedEx", new CourierSimulator.Profile (NO_LATENCY, 0, 503, 0, 1.0, 4, Duration.ofMillis (50)));
+            long start = System.nanoTime ();
+            response = send (uri);
+            assertTrue (response.entity ().isChunked ());
+            assertNotNull (definition.getTrackingID (body (response)));
+            assertTrue (System.nanoTime () - start >= TimeUnit.MILLISECONDS.toNanos (150));
+        } finally {
+            simulator.setProfile ("FedEx", new CourierSimulator.Profile (NO_LATENCY, 0, 503, 0, 0, 1, Duration.ZERO));
+        }
+    }
+
+/**
+  * Tests the median and the p99 of the lognormal response times.
+  */
+
+    @Test
+    public void lognormalLatency ()
+    {
+        CourierSimulator.Latency latency =
+            new CourierSimulator.Latency ("lognormal",
+                                          Duration.ZERO,
+                                          Duration.ofMillis (20),
+                                          Duration.ofMillis (200),
+                                          Duration.ofSeconds (30));
+        QuantileSketch sketch = new QuantileSketch (0.01);
+        for (int i = 0; i < 100_000; i++) {
+            sketch.add (latency.sample (ThreadLocalRandom.current ()).toMillis ());
+        }
+
+        assertEquals (20, sketch.quantile (0.5), 2);
+        assertEquals (200, sketch.quantile (0.99), 20);
+    }
+
+    private static HttpResponse send (String uri) throws Exception
+    {
+        return Http.get (testKit.system ())
+                   .singleRequest (HttpRequest.create (uri))
+                   .toCompletableFuture ()
+                   .get (10, TimeUnit.SECONDS);
+    }
+
+    private static String body (HttpResponse response) throws Exception
+    {
+        return response.entity ()
+                       .toStrict (5000, SystemMaterializer.get (testKit.system ()).materializer ())
+                       .toCompletableFuture ()
+                       .get (10, TimeUnit.SECONDS)
+                       .getData ()
+                       .utf8String ();
+    }
+
+}
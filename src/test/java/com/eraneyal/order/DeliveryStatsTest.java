@@ -0,0 +1,86 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+  * Unit tests for the delivery statistics.
+  */
+
+public class DeliveryStatsTest
+{
+
+/**
+  * Tests that quantiles are within the relative accuracy, and that merged sketches
+  * answer like a single sketch of all the values.
+  */
+
+    @Test
+    public void sketchQuantiles ()
+    {
+        Random random = new Random (7);
+        QuantileSketch first = new QuantileSketch (0.01);
+        QuantileSketch second = new QuantileSketch (0.01);
+        QuantileSketch all = new QuantileSketch (0.01);
+        long[] values = new long[10000];
+
+        for (int i = 0; i < values.length; i++) {
+// -- log-normal durations, around a minute
+            values[i] = Math.round (Math.exp (11 + random.nextGaussian ()));
+            (i % 2 == 0 ? first : second).add (values[i]);
+            all.add (values[i]);
+        }
+        Arrays.sort (values);
+
+        first.merge (QuantileSketch.fromBytes (second.toBytes ()));
+        assertEquals (values.length, first.count ());
+        for (double q : new double[] { 0.5, 0.95, 0.99 }) {
+            long exact = values[(int) Math.floor (q * (values.length - 1))];
+            assertEquals (all.quantile (q), first.quantile (q));
+            assertEquals (exact, first.quantile (q), exact * 0.01 + 1);
+        }
+    }
+
+/**
+  * Tests that stage durations are recorded per courier and site on the day the stage was
+  * completed, and that delivered allocations are removed from the progress.
+  */
+
+    @Test
+    public void aggregateStages ()
+    {
+        Instant allocated = Instant.parse ("2024-07-01T23:00:00Z");
+        Instant packed = Instant.parse ("2024-07-02T01:00:00Z");
+        Instant delivered = Instant.parse ("2024-07-03T01:00:00Z");
+        Allocation allocation =
+            new Allocation ("1", "Tel Aviv", new Address ("Street 1", "Tel Aviv", "Israel", 12345),
+                            Map.of (), "FedEx", null, Map.of ());
+
+        DeliveryStats.Aggregation aggregation = new DeliveryStats.Aggregation (0.01, List.of ());
+        aggregation.apply (new Order.OrderAllocationsReceived ("order1", Map.of ("1", allocation)), allocated);
+        aggregation.apply (new Order.OrderAllocationPacked ("order1", "1", "T1", packed), packed);
+        aggregation.apply (new Order.TrackingUpdated ("order1", "1", Allocation.Status.DELIVERED, delivered), delivered);
+
+        Map<DeliveryStats.Key,QuantileSketch> sketches = aggregation.sketches ();
+        assertEquals (6, sketches.size ());
+        QuantileSketch packing =
+            sketches.get (new DeliveryStats.Key (DeliveryStats.Dimension.COURIER, "FedEx",
+                                                 LocalDate.parse ("2024-07-02"), DeliveryStats.Stage.PACKING));
+        assertEquals (7_200_000, packing.quantile (0.5), 72_000);
+        QuantileSketch fulfilment =
+            sketches.get (new DeliveryStats.Key (DeliveryStats.Dimension.SITE, "Tel Aviv",
+                                                 LocalDate.parse ("2024-07-03"), DeliveryStats.Stage.FULFILMENT));
+        assertEquals (93_600_000, fulfilment.quantile (0.5), 936_000);
+
+        assertFalse (aggregation.updated ().iterator ().hasNext ());
+        assertTrue (aggregation.removed ().iterator ().hasNext ());
+    }
+
+}
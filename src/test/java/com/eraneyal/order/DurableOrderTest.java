@@ -0,0 +1,185 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.pattern.StatusReply;
+import akka.persistence.state.DurableStateStoreRegistry;
+import akka.persistence.state.javadsl.GetObjectResult;
+import akka.persistence.testkit.javadsl.EventSourcedBehaviorTestKit;
+import akka.persistence.testkit.state.javadsl.PersistenceTestKitDurableStateStore;
+import akka.persistence.typed.PersistenceId;
+import akka.stream.javadsl.Sink;
+
+import com.typesafe.config.ConfigFactory;
+
+import static org.junit.Assert.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Unit tests for the durable state Order entity.
+  */
+
+public class DurableOrderTest
+{
+
+    private static final Map<String,OrderItem> ITEMS = Map.of ("1", new OrderItem ("1", "pencil", 5));
+
+    private static final Customer CUSTOMER =
+        new Customer ("Eran",
+                      "Eyal",
+                      new Address ("Some Street 42", "Some City", "Israel", 12345),
+                      "someone@gmail.com",
+                      "0521234567");
+
+    @ClassRule
+    public static final TestKitJunitResource testKit =
+        new TestKitJunitResource (
+            ConfigFactory.parseString ("akka.persistence.state.plugin = \"akka.persistence.testkit.state\"")
+                         .withFallback (EventSourcedBehaviorTestKit.config ()));
+
+/**
+  * Tests that a received order is allocated, and that the order state survives a restart
+  * of the entity.
+  */
+
+    @Test
+    public void receiveAndRecoverOrder ()
+    {
+        ActorRef<Order.Command> order = testKit.spawn (DurableOrder.create ("durable"));
+        TestProbe<StatusReply<Done>> ackProbe = testKit.createTestProbe ();
+        order.tell (new Order.ReceiveOrder (ITEMS, CUSTOMER, ackProbe.getRef ()));
+        assertTrue (ackProbe.receiveMessage ().isSuccess ());
+
+        order.tell (new Order.ReceiveOrder (ITEMS, CUSTOMER, ackProbe.getRef ()));
+        assertEquals ("Order already exists", ackProbe.receiveMessage ().getError ().getMessage ());
+
+        TestProbe<Order.OrderDetails> detailsProbe = testKit.createTestProbe ();
+        Order.OrderDetails details =
+            detailsProbe.awaitAssert (Duration.ofSeconds (5), () -> {
+                order.tell (new Order.FetchOrderDetails (detailsProbe.getRef ()));
+                Order.OrderDetails d = detailsProbe.receiveMessage ();
+                assertFalse (d.allocations ().isEmpty ());
+                return d;
+            });
+
+        testKit.stop (order);
+        ActorRef<Order.Command> recovered = testKit.spawn (DurableOrder.create ("durable"));
+        recovered.tell (new Order.FetchOrderDetails (detailsProbe.getRef ()));
+        assertEquals (details.allocations ().keySet (), detailsProbe.receiveMessage ().allocations ().keySet ());
+    }
+
+/**
+  * Tests asynchronous packing of an allocation - the job is replied once the booking
+  * starts, and the result of the booking is published and stored with the order state.
+  */
+
+    @Test
+    public void packOrderAllocationAsync () throws Exception
+    {
+        ActorRef<Order.Command> order = testKit.spawn (DurableOrder.create ("durable-async"));
+        String allocationID = receiveOrder (order).allocations ().keySet ().iterator ().next ();
+
+        CompletionStage<PackResults.PackResult> published = publishedResult ("durable-async");
+        TestProbe<StatusReply<Order.PackJob>> jobProbe = testKit.createTestProbe ();
+        order.tell (new Order.StartPackOrderAllocation (allocationID, jobProbe.getRef ()));
+        assertEquals (new Order.PackJob (PackResults.jobID ("durable-async", allocationID)),
+                      jobProbe.receiveMessage ().getValue ());
+
+        PackResults.PackResult packed = published.toCompletableFuture ().get (10, TimeUnit.SECONDS);
+        assertNotNull (packed.trackingID ());
+        assertNull (packed.error ());
+
+        TestProbe<Order.OrderDetails> detailsProbe = testKit.createTestProbe ();
+        order.tell (new Order.FetchOrderDetails (detailsProbe.getRef ()));
+        Allocation allocation = detailsProbe.receiveMessage ().getAllocation (allocationID);
+        assertEquals (Allocation.Status.PACKED, allocation.getLatestAllocationStatus ());
+        assertEquals (packed.trackingID (), allocation.getTrackingID ());
+    }
+
+/**
+  * Tests that a background booking that didn't finish before the entity stopped, e.g.
+  * when it was moved to another node, is resumed when the entity recovers.
+  */
+
+    @Test
+    public void resumeBookingOnRecovery () throws Exception
+    {
+        ActorRef<Order.Command> order = testKit.spawn (DurableOrder.create ("durable-resume"));
+        String allocationID = receiveOrder (order).allocations ().keySet ().iterator ().next ();
+        testKit.stop (order);
+
+// -- store the order as it is stored when a booking starts, without booking
+        PersistenceTestKitDurableStateStore<Order.State> store =
+            DurableStateStoreRegistry.get (testKit.system ())
+                                     .getDurableStateStoreFor (PersistenceTestKitDurableStateStore.class,
+                                                               "akka.persistence.testkit.state");
+        String persistenceID = PersistenceId.of (Order.ENTITY_KEY.name (), "durable-resume").id ();
+        GetObjectResult<Order.State> stored =
+            store.getObject (persistenceID).toCompletableFuture ().get (10, TimeUnit.SECONDS);
+        Order.State booking =
+            Order.applyEvent (stored.value ().get (),
+                              new Order.OrderAllocationBookingStarted ("durable-resume", allocationID, Instant.now ()));
+        store.upsertObject (persistenceID, stored.revision () + 1, booking, "")
+             .toCompletableFuture ()
+             .get (10, TimeUnit.SECONDS);
+
+        CompletionStage<PackResults.PackResult> published = publishedResult ("durable-resume");
+        ActorRef<Order.Command> recovered = testKit.spawn (DurableOrder.create ("durable-resume"));
+
+        PackResults.PackResult packed = published.toCompletableFuture ().get (10, TimeUnit.SECONDS);
+        assertEquals (PackResults.jobID ("durable-resume", allocationID), packed.jobID ());
+        assertNotNull (packed.trackingID ());
+
+        TestProbe<Order.OrderDetails> detailsProbe = testKit.createTestProbe ();
+        recovered.tell (new Order.FetchOrderDetails (detailsProbe.getRef ()));
+        assertEquals (Allocation.Status.PACKED,
+                      detailsProbe.receiveMessage ().getAllocation (allocationID).getLatestAllocationStatus ());
+    }
+
+/**
+  * Receives the test order, and waits until it is allocated.
+  * <p>
+  * @param order the order entity
+  * @return the details of the allocated order
+  */
+
+    private static Order.OrderDetails receiveOrder (ActorRef<Order.Command> order)
+    {
+        TestProbe<StatusReply<Done>> ackProbe = testKit.createTestProbe ();
+        order.tell (new Order.ReceiveOrder (ITEMS, CUSTOMER, ackProbe.getRef ()));
+        assertTrue (ackProbe.receiveMessage ().isSuccess ());
+
+        TestProbe<Order.OrderDetails> detailsProbe = testKit.createTestProbe ();
+        return detailsProbe.awaitAssert (Duration.ofSeconds (5), () -> {
+            order.tell (new Order.FetchOrderDetails (detailsProbe.getRef ()));
+            Order.OrderDetails d = detailsProbe.receiveMessage ();
+            assertFalse (d.allocations ().isEmpty ());
+            return d;
+        });
+    }
+
+/**
+  * Subscribes to the first booking result published for an order.
+  * <p>
+  * @param orderID the order identifier
+  * @return the result
+  */
+
+    private static CompletionStage<PackResults.PackResult> publishedResult (String orderID)
+    {
+        return PackResults.get (testKit.system ())
+                          .subscribe ()
+                          .filter (result -> result.orderID ().equals (orderID))
+                          .runWith (Sink.head (), testKit.system ());
+    }
+
+}
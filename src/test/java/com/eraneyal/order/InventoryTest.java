@@ -0,0 +1,333 @@
+package com.eraneyal.order;
+
+import akka.Done;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.persistence.testkit.javadsl.EventSourcedBehaviorTestKit;
+
+import static org.junit.Assert.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+  * Unit tests for the Inventory entity and the inventory reservations front end.
+  */
+
+public class InventoryTest
+{
+
+    @ClassRule
+    public static final TestKitJunitResource testKit =
+        new TestKitJunitResource (EventSourcedBehaviorTestKit.config ());
+
+/**
+  * Tests that reservations and releases are idempotent, and that a reservation is only
+  * accepted if enough stock is available.
+  */
+
+    @Test
+    public void reserveAndRelease ()
+    {
+        EventSourcedBehaviorTestKit<Inventory.Command, Inventory.Event, Inventory.State> inventory =
+            EventSourcedBehaviorTestKit.create (testKit.system (), Inventory.create (Inventory.entityID ("1", "1", 0)));
+
+        assertEquals (10, inventory.<Inventory.StockStatus>runCommand (
+            replyTo -> new Inventory.AddStock ("initial", 10, replyTo)).reply ().available ());
+        assertEquals (10, inventory.<Inventory.StockStatus>runCommand (
+            replyTo -> new Inventory.AddStock ("initial", 10, replyTo)).reply ().available ());
+
+        Inventory.StockStatus status =
+            inventory.<Inventory.StockStatus>runCommand (
+                replyTo -> new Inventory.ReserveBatch (
+                    List.of (new Inventory.Reservation ("a", 6),
+                             new Inventory.Reservation ("b", 6),
+                             new Inventory.Reservation ("c", 4)),
+                    replyTo)).reply ();
+        assertEquals (Set.of ("a", "c"), status.accepted ());
+        assertEquals (0, status.available ());
+
+// -- a reservation that is already held is accepted again without reserving more stock
+        status = inventory.<Inventory.StockStatus>runCommand (
+            replyTo -> new Inventory.ReserveBatch (List.of (new Inventory.Reservation ("a", 6)), replyTo)).reply ();
+        assertEquals (Set.of ("a"), status.accepted ());
+        assertEquals (0, status.available ());
+
+        status = inventory.<Inventory.StockStatus>runCommand (
+            replyTo -> new Inventory.ReleaseBatch (List.of ("a", "a", "unknown"), replyTo)).reply ();
+        assertEquals (Set.of ("a"), status.accepted ());
+        assertEquals (6, status.available ());
+        assertFalse (inventory.getState ().isHeld ("a"));
+        assertTrue (inventory.getState ().isHeld ("c"));
+
+// -- the state is recovered from the journal
+        inventory.restart ();
+        assertEquals (6, inventory.getState ().getAvailable ());
+    }
+
+/**
+  * Tests that restocks are forgotten after the retention period, except for the initial
+  * stock.
+  */
+
+    @Test
+    public void restockRetention ()
+    {
+        Instant start = Instant.now ();
+        Inventory.State state =
+            new Inventory.State (0, new LinkedHashMap<> (), new LinkedHashMap<> ())
+                .restocked (Inventory.INITIAL_RESTOCK_ID, 10, start)
+                .restocked ("r1", 5, start.plusSeconds (1))
+                .restocked ("r2", 5, start.plus (Inventory.RESTOCK_RETENTION));
+
+        assertTrue (state.isRestocked ("r1"));
+
+        state = state.restocked ("r3", 5, start.plus (Inventory.RESTOCK_RETENTION).plusSeconds (2));
+        assertEquals (25, state.getAvailable ());
+        assertTrue (state.isRestocked (Inventory.INITIAL_RESTOCK_ID));
+        assertFalse (state.isRestocked ("r1"));
+        assertTrue (state.isRestocked ("r2"));
+        assertTrue (state.isRestocked ("r3"));
+    }
+
+/**
+  * Tests the throughput of reservations when item popularity is skewed, and that the stock
+  * of every item (including the striped hot item) is fully used but never oversold.
+  */
+
+    @Test
+    public void skewedReservations ()
+    {
+        int items = 20;
+        int requests = 4000;
+        int stock = 200;
+        InventoryReservations.Settings settings =
+            new InventoryReservations.Settings (1, 8, Set.of ("0"), Duration.ofMillis (2), 100, Duration.ofSeconds (5), Duration.ofSeconds (30));
+
+        Map<String,ActorRef<Inventory.Command>> entities = new HashMap<> ();
+        for (int item = 0; item < items; item++) {
+            String itemID = Integer.toString (item);
+            for (int stripe = 0; stripe < settings.stripesOf (itemID); stripe++) {
+                String entityID = Inventory.entityID ("1", itemID, stripe);
+                entities.put (entityID, testKit.spawn (Inventory.create (entityID)));
+            }
+        }
+        ActorRef<InventoryReservations.Command> reservations =
+            testKit.spawn (InventoryReservations.create (settings, entities::get));
+
+        TestProbe<Done> restocked = testKit.createTestProbe ();
+        for (int item = 0; item < items; item++) {
+            reservations.tell (
+                new InventoryReservations.AddStock ("initial",
+                                                    new InventoryReservations.Line ("1", Integer.toString (item), stock),
+                                                    restocked.getRef ()));
+        }
+        restocked.receiveSeveralMessages (items, Duration.ofSeconds (10));
+
+// -- draw the items from a zipf distribution, so a few items get most of the demand
+        double[] cumulative = new double[items];
+        double total = 0;
+        for (int item = 0; item < items; item++) {
+            total += 1.0 / Math.pow (item + 1, 1.2);
+            cumulative[item] = total;
+        }
+        Random random = new Random (11);
+        int[] demand = new int[items];
+        TestProbe<InventoryReservations.ReserveResult> probe = testKit.createTestProbe ();
+
+        long start = System.nanoTime ();
+        for (int r = 0; r < requests; r++) {
+            double u = random.nextDouble () * total;
+            int item = 0;
+            while (cumulative[item] < u) {
+                item++;
+            }
+            demand[item]++;
+            reservations.tell (
+                new InventoryReservations.Reserve (
+                    "order-" + r,
+                    List.of (new InventoryReservations.Line ("1", Integer.toString (item), 1)),
+                    probe.getRef ()));
+        }
+
+        int[] reserved = new int[items];
+        for (InventoryReservations.ReserveResult result : probe.receiveSeveralMessages (requests, Duration.ofSeconds (60))) {
+            if (result.reserved ()) {
+                reserved[Integer.parseInt (result.lines ().get (0).line ().itemID ())]++;
+            }
+        }
+        long elapsed = System.nanoTime () - start;
+        testKit.system ().log ().info ("{} skewed reservations in {} ms ({} per second)",
+                                       requests,
+                                       elapsed / 1_000_000,
+                                       requests * 1_000_000_000L / Math.max (1, elapsed));
+
+        assertTrue ("the hot item should be in excess demand", demand[0] > stock);
+        for (int item = 0; item < items; item++) {
+            assertEquals ("reserved units of item " + item, Math.min (demand[item], stock), reserved[item]);
+        }
+    }
+
+/**
+  * Tests that a reservation whose batch times out is released, since the entity may have
+  * reserved the stock without the reply getting back.
+  */
+
+    @Test
+    public void releaseFailedReservation ()
+    {
+        assertReleasedWhenRepliesAreLost (
+            "lost",
+            new InventoryReservations.Settings (1, 1, Set.of (), Duration.ofMillis (2), 100,
+                                                Duration.ofMillis (300), Duration.ofSeconds (5)));
+    }
+
+/**
+  * Tests that a reservation request that times out fails, and that its stock is released
+  * once the batch that reserved it completes.
+  */
+
+    @Test
+    public void releaseExpiredReservation ()
+    {
+        assertReleasedWhenRepliesAreLost (
+            "expired",
+            new InventoryReservations.Settings (1, 1, Set.of (), Duration.ofMillis (2), 100,
+                                                Duration.ofSeconds (1), Duration.ofMillis (300)));
+    }
+
+/**
+  * Tests that an allocator whose stock index fell behind the inventory reads the stock
+  * levels of the inventory rather than rejecting the order, that an order the inventory
+  * can't supply either is rejected, and that the release of allocations that an order
+  * didn't accept returns their stock to both the stock index and the inventory.
+  */
+
+    @Test
+    public void resyncAndRelease ()
+    {
+        InventoryReservations.Settings settings =
+            new InventoryReservations.Settings (2, 2, Set.of (), Duration.ofMillis (2), 100,
+                                                Duration.ofSeconds (5), Duration.ofSeconds (5));
+        List<Site> sites = AllocationBuilder.getTemplateSites ();
+        String siteID = sites.get (0).getID ();
+
+        Map<String,ActorRef<Inventory.Command>> entities = new HashMap<> ();
+        for (Site site : sites) {
+            for (int stripe = 0; stripe < settings.stripesOf ("resync"); stripe++) {
+                String entityID = Inventory.entityID (site.getID (), "resync", stripe);
+                entities.put (entityID, testKit.spawn (Inventory.create (entityID)));
+            }
+        }
+        ActorRef<InventoryReservations.Command> reservations =
+            testKit.spawn (InventoryReservations.create (settings, entities::get));
+        TestProbe<Done> restocked = testKit.createTestProbe ();
+        reservations.tell (new InventoryReservations.AddStock ("initial",
+                                                               new InventoryReservations.Line (siteID, "resync", 4),
+                                                               restocked.getRef ()));
+        restocked.receiveMessage (Duration.ofSeconds (5));
+
+// -- the stock index of the node has the item run out everywhere, e.g. it missed the restock
+        StockIndex index = new StockIndex (sites);
+        for (Site site : sites) {
+            index.setStock (site.getID (), "resync", 0);
+        }
+        AllocationEngine engine = new AllocationEngine (index);
+        ActorRef<OrderAllocationService.Command> service =
+            testKit.spawn (OrderAllocationService.create (1, 10, Props.empty (), engine, reservations, Duration.ofSeconds (5)));
+        ActorRef<OrderAllocator.Command> allocator =
+            testKit.spawn (OrderAllocator.create (service, engine, reservations, Duration.ofSeconds (5)));
+        Customer customer = new Customer ("Eran", "Eyal", new Address ("Some Street 42", "Some City", "Israel", 12345),
+                                          "someone@gmail.com", "0521234567");
+
+// -- a line is reserved from a single stripe, which holds half of the stock
+        TestProbe<Order.Command> order = testKit.createTestProbe ();
+        allocator.tell (new OrderAllocator.Allocate ("order-1",
+                                                     "order-1#1",
+                                                     Map.of ("resync", new OrderItem ("resync", "pencil", 2)),
+                                                     customer,
+                                                     order.getRef ()));
+        Order.ReceiveOrderAllocations allocations =
+            order.expectMessageClass (Order.ReceiveOrderAllocations.class, Duration.ofSeconds (10));
+        assertEquals (1, allocations.allocations ().size ());
+        assertEquals (service, allocations.allocator ());
+        assertEquals (2, index.getStock (siteID, "resync"));
+
+        allocator.tell (new OrderAllocator.Allocate ("order-2",
+                                                     "order-2#1",
+                                                     Map.of ("resync", new OrderItem ("resync", "pencil", 3)),
+                                                     customer,
+                                                     order.getRef ()));
+        order.expectMessageClass (Order.AllocationRejected.class, Duration.ofSeconds (10));
+
+// -- the order didn't accept the allocations, e.g. they were a late reply to a retried
+// -- attempt
+        allocations.allocator ().tell (
+            new OrderAllocationService.Release (allocations.reservationID (), allocations.plan (), allocations.reserved ()));
+        TestProbe<InventoryReservations.StockLevels> levels = testKit.createTestProbe ();
+        levels.awaitAssert (Duration.ofSeconds (5), () -> {
+            reservations.tell (new InventoryReservations.GetStock (List.of (new InventoryReservations.Line (siteID, "resync", 0)),
+                                                                   levels.getRef ()));
+            assertEquals (4, levels.receiveMessage ().lines ().get (0).available ());
+            return null;
+        });
+        assertEquals (4, index.getStock (siteID, "resync"));
+    }
+
+/**
+  * Reserves stock of an item whose entity reserves it without replying, and asserts that
+  * the request fails and that the stock is eventually released.
+  */
+
+    private void assertReleasedWhenRepliesAreLost (String itemID, InventoryReservations.Settings settings)
+    {
+        String entityID = Inventory.entityID ("1", itemID, 0);
+        ActorRef<Inventory.Command> entity = testKit.spawn (Inventory.create (entityID));
+
+// -- the reservations reach the entity, but their replies are lost
+        Behavior<Inventory.Command> lossy =
+            Behaviors.receiveMessage (command -> {
+                if (command instanceof Inventory.ReserveBatch batch) {
+                    entity.tell (new Inventory.ReserveBatch (batch.reservations (), testKit.system ().ignoreRef ()));
+                } else {
+                    entity.tell (command);
+                }
+                return Behaviors.same ();
+            });
+        ActorRef<Inventory.Command> lossyEntity = testKit.spawn (lossy);
+        ActorRef<InventoryReservations.Command> reservations =
+            testKit.spawn (InventoryReservations.create (settings, id -> lossyEntity));
+
+        TestProbe<Done> restocked = testKit.createTestProbe ();
+        reservations.tell (new InventoryReservations.AddStock ("initial",
+                                                               new InventoryReservations.Line ("1", itemID, 5),
+                                                               restocked.getRef ()));
+        restocked.receiveMessage (Duration.ofSeconds (5));
+
+        TestProbe<InventoryReservations.ReserveResult> probe = testKit.createTestProbe ();
+        reservations.tell (new InventoryReservations.Reserve ("order-1",
+                                                              List.of (new InventoryReservations.Line ("1", itemID, 3)),
+                                                              probe.getRef ()));
+        assertFalse (probe.receiveMessage (Duration.ofSeconds (5)).reserved ());
+
+        TestProbe<Inventory.StockStatus> stock = testKit.createTestProbe ();
+        stock.awaitAssert (Duration.ofSeconds (5), () -> {
+            entity.tell (new Inventory.GetStock (stock.getRef ()));
+            assertEquals (5, stock.receiveMessage ().available ());
+            return null;
+        });
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import akka.util.ByteString;
+
+/**
+  * Unit tests for the JSON field scanner.
+  */
+
+public class JsonScannerTest
+{
+
+/**
+  * Tests that fields are found at any depth and position, with escapes and duplicate
+  * keys, and that missing fields are reported as null.
+  */
+
+    @Test
+    public void find () throws Exception
+    {
+        String json = "{ \"status\" : \"OK\", \"shipment\": {\"labels\": [{\"tracking-id\": \"nested\"}, 1.5e3, null],"
+                      + " \"tracking-id\" : \"TRK-\\u00e9\\\"1\\\"\", \"ok\": true},"
+                      + " \"tracking-id\": \"first\", \"tr\\u0061cking-id\": \"ünïcode\" }";
+
+        assertEquals ("ünïcode", find (json, "tracking-id"));
+        assertEquals ("TRK-é\"1\"", find (json, "shipment", "tracking-id"));
+        assertEquals ("true", find (json, "shipment", "ok"));
+        assertNull (find (json, "tracking-number"));
+        assertNull (find (json, "status", "tracking-id"));
+        assertNull (find ("[\"tracking-id\"]", "tracking-id"));
+    }
+
+/**
+  * Tests that malformed documents and unsupported values are reported.
+  */
+
+    @Test
+    public void unsupported ()
+    {
+        String[] documents = {
+            "",
+            "{\"tracking-id\": \"abc\"",
+            "{\"tracking-id\": \"abc\"} x",
+            "{\"tracking-id\" \"abc\"}",
+            "{\"other\": tru, \"tracking-id\": \"abc\"}",
+            "{\"other\": \"\\x\", \"tracking-id\": \"abc\"}",
+            "{\"tracking-id\": 12345}",
+            "{\"tracking-id\": {\"value\": \"abc\"}}"
+        };
+
+        for (String document : documents) {
+            try {
+                find (document, "tracking-id");
+                fail ("Accepted " + document);
+            }
+            catch (JsonScanner.UnsupportedDocumentException expected) {
+            }
+        }
+    }
+
+    private static String find (String json, String... path)
+        throws JsonScanner.UnsupportedDocumentException
+    {
+        return JsonScanner.find (ByteString.fromString (json), JsonScanner.encodePath (path));
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+  * Unit tests for the archive of delivered orders.
+  */
+
+public class OrderArchiveTest
+{
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+/**
+  * Tests that archived orders are found in any block of any segment, that the newest
+  * segment wins, and that segments are found again when the archive is reopened.
+  */
+
+    @Test
+    public void writeAndFind () throws Exception
+    {
+        List<OrderArchive.Entry> first = new ArrayList<> ();
+        for (int i = 0; i < 2000; i++) {
+            first.add (entry (String.format ("order-%05d", i * 2), "v1"));
+        }
+
+        try (OrderArchive archive = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofMinutes (1))) {
+            archive.write (first);
+            archive.write (List.of (entry ("order-00010", "v2"), entry ("order-99999", "v2")));
+
+            assertEquals ("v1", payload (archive.find ("order-00000")));
+            assertEquals ("v1", payload (archive.find ("order-03998")));
+            assertEquals ("v2", payload (archive.find ("order-00010")));
+            assertEquals ("v2", payload (archive.find ("order-99999")));
+            assertEquals (Optional.empty (), archive.find ("order-00001"));
+            assertEquals (Optional.empty (), archive.find ("another"));
+            assertFalse (archive.mightContain ("another"));
+            assertEquals (2, archive.getMetrics ().getSegments ());
+        }
+
+        try (OrderArchive archive = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofMinutes (1))) {
+            assertEquals (2002, archive.getMetrics ().getOrders ());
+            assertEquals ("v2", payload (archive.find ("order-00010")));
+            assertEquals (7, archive.find ("order-00100").get ().serializerID ());
+        }
+    }
+
+/**
+  * Tests that segments written by another instance are found after a refresh.
+  */
+
+    @Test
+    public void refresh () throws Exception
+    {
+        try (OrderArchive reader = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofHours (1));
+             OrderArchive writer = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofHours (1))) {
+            writer.write (List.of (entry ("order1", "v1")));
+
+            assertFalse (reader.mightContain ("order1"));
+            reader.refresh ();
+            assertEquals ("v1", payload (reader.find ("order1")));
+        }
+    }
+
+/**
+  * Tests that compaction bounds the number of segments, that the newest copy of an order
+  * survives the merges, and that a reader drops the merged segments when it refreshes.
+  */
+
+    @Test
+    public void compact () throws Exception
+    {
+        try (OrderArchive reader = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofHours (1));
+             OrderArchive writer = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofHours (1))) {
+            for (int run = 0; run < 10; run++) {
+                List<OrderArchive.Entry> entries = new ArrayList<> ();
+                for (int i = 0; i < 300; i++) {
+                    entries.add (entry (String.format ("order-%05d", run * 100 + i), "v" + run));
+                }
+                writer.write (entries);
+                writer.compact (3);
+                assertTrue (writer.getMetrics ().getSegments () <= 3);
+            }
+            reader.refresh ();
+
+            for (OrderArchive archive : List.of (writer, reader)) {
+                assertEquals (1200, archive.getMetrics ().getOrders ());
+                assertEquals ("v0", payload (archive.find ("order-00000")));
+                assertEquals ("v4", payload (archive.find ("order-00450")));
+                assertEquals ("v9", payload (archive.find ("order-00999")));
+                assertEquals ("v9", payload (archive.find ("order-01199")));
+                assertEquals (Optional.empty (), archive.find ("order-01200"));
+            }
+            try (Stream<Path> files = Files.list (folder.getRoot ().toPath ())) {
+                assertEquals (writer.getMetrics ().getSegments (), files.count ());
+            }
+        }
+    }
+
+/**
+  * Tests that an order whose state has no serialization manifest is archived with an
+  * empty one.
+  */
+
+    @Test
+    public void nullManifest () throws Exception
+    {
+        try (OrderArchive archive = new OrderArchive (folder.getRoot ().toPath (), 1024, Duration.ofMinutes (1))) {
+            archive.write (List.of (new OrderArchive.Entry ("order1", 7, null, "v1 of order1".getBytes (StandardCharsets.UTF_8))));
+
+            assertEquals ("", archive.find ("order1").get ().manifest ());
+            assertEquals ("v1", payload (archive.find ("order1")));
+        }
+    }
+
+    private static OrderArchive.Entry entry (String orderID, String payload)
+    {
+        return new OrderArchive.Entry (orderID, 7, "manifest",
+                                       (payload + " of " + orderID).getBytes (StandardCharsets.UTF_8));
+    }
+
+    private static String payload (Optional<OrderArchive.Entry> entry)
+    {
+        String payload = new String (entry.orElseThrow ().payload (), StandardCharsets.UTF_8);
+        return payload.substring (0, payload.indexOf (' '));
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.events.OrderAllocated;
+import com.eraneyal.order.proto.events.OrderEventsProto;
+import com.eraneyal.order.proto.events.OrderReceived;
+
+import akka.Done;
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.grpc.GrpcClientSettings;
+import akka.grpc.javadsl.ServiceHandler;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.pattern.StatusReply;
+import akka.persistence.query.Offset;
+import akka.persistence.query.typed.EventEnvelope;
+import akka.persistence.testkit.javadsl.EventSourcedBehaviorTestKit;
+import akka.projection.grpc.consumer.GrpcQuerySettings;
+import akka.projection.grpc.consumer.javadsl.GrpcReadJournal;
+import akka.stream.javadsl.Sink;
+
+import com.typesafe.config.ConfigFactory;
+
+import static org.junit.Assert.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Tests the Order events published over gRPC, with a consumer that reads them from a
+  * local producer over the in-memory journal.
+  */
+
+public class OrderEventProducerTest
+{
+
+    @ClassRule
+    public static final TestKitJunitResource testKit =
+        new TestKitJunitResource (
+            ConfigFactory.parseString (
+                "akka.http.server.enable-http2 = on\n" +
+                "akka.projection.grpc.producer.query-plugin-id = \"akka.persistence.testkit.query\"\n" +
+                "order-service.events.stream-id = \"order-events\"\n" +
+                "order-service.events.excluded-tags = [\"tracking-updated\"]\n")
+                         .withFallback (EventSourcedBehaviorTestKit.config ()));
+
+/**
+  * Tests that a new order is published as public events, in order, to a consumer of all
+  * the slices.
+  */
+
+    @Test
+    public void consumeOrderEvents () throws Exception
+    {
+        ServerBinding binding =
+            Http.get (testKit.system ())
+                .newServerAt ("127.0.0.1", 0)
+                .bind (ServiceHandler.concatOrNotFound (OrderEventProducer.grpcServiceHandler (testKit.system ())))
+                .toCompletableFuture ()
+                .get (10, TimeUnit.SECONDS);
+
+        ActorRef<Order.Command> order = testKit.spawn (Order.create ("published"));
+        StatusReply<Done> reply =
+            AskPattern.<Order.Command,StatusReply<Done>>ask (
+                order,
+                replyTo -> new Order.ReceiveOrder (
+                    Map.of ("1", new OrderItem ("1", "pencil", 5)),
+                    new Customer ("Eran",
+                                  "Eyal",
+                                  new Address ("Some Street 42", "Some City", "Israel", 12345),
+                                  "someone@gmail.com",
+                                  "0521234567"),
+                    replyTo),
+                Duration.ofSeconds (5),
+                testKit.system ().scheduler ())
+            .toCompletableFuture ()
+            .get (10, TimeUnit.SECONDS);
+        assertTrue (reply.isSuccess ());
+
+        GrpcReadJournal journal =
+            GrpcReadJournal.create (
+                testKit.system (),
+                GrpcQuerySettings.create ("order-events"),
+                GrpcClientSettings.connectToServiceAt ("127.0.0.1", binding.localAddress ().getPort (), testKit.system ())
+                                  .withTls (false),
+                List.of (OrderEventsProto.getDescriptor ()));
+
+        List<EventEnvelope<Object>> envelopes =
+            journal.<Object>eventsBySlices (Order.ENTITY_KEY.name (), 0, 1023, Offset.noOffset ())
+                   .take (2)
+                   .runWith (Sink.seq (), testKit.system ())
+                   .toCompletableFuture ()
+                   .get (20, TimeUnit.SECONDS);
+
+        OrderReceived received = (OrderReceived) envelopes.get (0).event ();
+        assertEquals ("published", received.getOrderId ());
+        assertEquals ("pencil", received.getItems (0).getName ());
+        assertEquals ("someone@gmail.com", received.getCustomer ().getEmail ());
+        assertEquals (List.of ("order-received"), List.copyOf (envelopes.get (0).getTags ()));
+
+        OrderAllocated allocated = (OrderAllocated) envelopes.get (1).event ();
+        assertEquals ("published", allocated.getOrderId ());
+        assertFalse (allocated.getAllocationsList ().isEmpty ());
+
+        binding.unbind ();
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.eraneyal.order;
+
+import com.eraneyal.order.proto.SearchOrdersRequest;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.time.Instant;
+
+/**
+  * Unit tests for the order search.
+  */
+
+public class OrderSearchTest
+{
+
+/**
+  * Tests that cursors survive encoding, including identifiers that contain separators.
+  */
+
+    @Test
+    public void cursorRoundTrip ()
+    {
+        OrderSearch.Cursor cursor =
+            new OrderSearch.Cursor (Instant.parse ("2024-05-01T10:15:30.123456Z"), "order:1", "2");
+
+        assertEquals (cursor, OrderSearch.Cursor.decode (cursor.encode ()));
+        assertThrows (IllegalArgumentException.class, () -> OrderSearch.Cursor.decode ("not a cursor"));
+    }
+
+/**
+  * Tests that only the given filters are queried, and that results continue after the
+  * cursor in a stable order.
+  */
+
+    @Test
+    public void queryOfFilters ()
+    {
+        OrderSearch.Cursor after = new OrderSearch.Cursor (Instant.EPOCH, "order1", "1");
+        OrderSearch.Filters filters =
+            OrderSearch.Filters.of (SearchOrdersRequest.newBuilder ()
+                                                       .setStatus ("PACKED")
+                                                       .setCourier ("FedEx")
+                                                       .setTo ("2024-05-01T00:00:00Z")
+                                                       .setAfter (after.encode ())
+                                                       .build ());
+
+        assertEquals (Allocation.Status.PACKED, filters.status ());
+        assertEquals (after, filters.after ());
+        assertEquals ("SELECT order_id, allocation_id, email, courier, status, status_since, tracking_id " +
+                      "FROM order_allocation_view WHERE true AND status = $1 AND courier = $2 " +
+                      "AND status_since < $3 AND (status_since, order_id, allocation_id) > ($4, $5, $6) " +
+                      "ORDER BY status_since, order_id, allocation_id LIMIT $7",
+                      OrderSearch.toSQL (filters, filters.after ()));
+
+        assertThrows (IllegalArgumentException.class,
+                      () -> OrderSearch.Filters.of (SearchOrdersRequest.newBuilder ().setStatus ("LOST").build ()));
+    }
+
+/**
+  * Tests that the filters are logged by their names only, without the e-mail of the
+  * customer.
+  */
+
+    @Test
+    public void filterNames ()
+    {
+        OrderSearch.Filters filters =
+            OrderSearch.Filters.of (SearchOrdersRequest.newBuilder ()
+                                                       .setEmail ("someone@gmail.com")
+                                                       .setCourier ("FedEx")
+                                                       .setLimit (10)
+                                                       .build ());
+
+        assertEquals ("[email, courier, limit]", filters.toString ());
+    }
+
+}
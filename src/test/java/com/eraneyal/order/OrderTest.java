@@ -2,17 +2,22 @@ package com.eraneyal.order;
 
 import akka.Done;
 import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.actor.testkit.typed.javadsl.TestProbe;
 import akka.pattern.StatusReply;
 import akka.persistence.testkit.javadsl.EventSourcedBehaviorTestKit;
 import akka.persistence.testkit.javadsl.EventSourcedBehaviorTestKit.CommandResultWithReply;
+import akka.stream.javadsl.Sink;
 
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 /**
   * Unit tests for Order entity.
@@ -312,6 +317,227 @@ public class OrderTest
             result3.reply ().getValue ().trackingID ());
     }
 
+/**
+  * Tests asynchronous packing of an order allocation - the job is replied once the
+  * booking starts, a second call returns the same job, and the result of the booking is
+  * published.
+  */
+
+    @Test
+    public void packOrderAllocationAsync () throws Exception
+    {
+// -- receive a new order
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Done>>
+            result1 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.ReceiveOrder (
+                        OrderTest.ITEMS,
+                        OrderTest.CUSTOMER,
+                        replyTo));
+        assertTrue (result1.reply ().isSuccess ());
+// -- subscribe to the results before packing
+        CompletionStage<PackResults.PackResult> published =
+            PackResults.get (testKit.system ())
+                       .subscribe ()
+                       .filter (result -> result.orderID ().equals (OrderTest.ORDER_ID))
+                       .runWith (Sink.head (), testKit.system ());
+// -- start packing
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackJob>>
+            result2 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.StartPackOrderAllocation ("1", replyTo));
+        assertTrue (result2.reply ().isSuccess ());
+        assertEquals (OrderTest.ORDER_ID + "-1", result2.reply ().getValue ().jobID ());
+        assertTrue (result2.event () instanceof Order.OrderAllocationBookingStarted);
+        assertEquals (Allocation.Status.BOOKING,
+                      ((Order.AllocatedOrderState) result2.state ()).getLatestAllocationStatus ("1"));
+// -- start packing again - returns the same job
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackJob>>
+            result3 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.StartPackOrderAllocation ("1", replyTo));
+        assertTrue (result3.reply ().isSuccess ());
+        assertTrue (result3.hasNoEvents ());
+        assertEquals (result2.reply ().getValue (), result3.reply ().getValue ());
+// -- the result of the booking is published, and persisted
+        PackResults.PackResult packed = published.toCompletableFuture ().get (10, TimeUnit.SECONDS);
+        assertEquals (OrderTest.ORDER_ID + "-1", packed.jobID ());
+        assertNotNull (packed.trackingID ());
+        assertNull (packed.error ());
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,Order.OrderDetails>
+            result4 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.FetchOrderDetails (replyTo));
+        assertEquals (Allocation.Status.PACKED,
+                      result4.reply ().getAllocation ("1").getLatestAllocationStatus ());
+        assertEquals (packed.trackingID (),
+                      result4.reply ().getAllocation ("1").getTrackingID ());
+    }
+
+/**
+  * Tests that an allocation whose synchronous booking is in progress isn't booked again
+  * in the background, and that the synchronous booking completes.
+  */
+
+    @Test
+    public void rejectOverlappingPack ()
+    {
+// -- receive a new order
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Done>>
+            result1 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.ReceiveOrder (
+                        OrderTest.ITEMS,
+                        OrderTest.CUSTOMER,
+                        replyTo));
+        assertTrue (result1.reply ().isSuccess ());
+// -- start a synchronous booking, without waiting for its reply
+        TestProbe<StatusReply<Order.PackOrderAllocationResult>> probe = testKit.createTestProbe ();
+        eventSourcedTestKit.runCommand (new Order.PackOrderAllocation ("1", probe.getRef ()));
+// -- start packing in the background - rejected while the booking is in flight
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackJob>>
+            result2 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.StartPackOrderAllocation ("1", replyTo));
+        assertTrue (result2.reply ().isError ());
+        assertTrue (result2.hasNoEvents ());
+// -- the synchronous booking packs the allocation
+        assertTrue (probe.receiveMessage (Duration.ofSeconds (10)).isSuccess ());
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,Order.OrderDetails>
+            result3 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.FetchOrderDetails (replyTo));
+        assertEquals (Allocation.Status.PACKED,
+                      result3.reply ().getAllocation ("1").getLatestAllocationStatus ());
+    }
+
+/**
+  * Tests packing of all the order allocations in one call - all the allocations are
+  * packed by a single batch of events, and a second call returns the same tracking
+  * identifiers.
+  */
+
+    @Test
+    public void packAllOrderAllocations ()
+    {
+// -- receive a new order
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Done>>
+            result1 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.ReceiveOrder (
+                        OrderTest.ITEMS,
+                        OrderTest.CUSTOMER,
+                        replyTo));
+        assertTrue (result1.reply ().isSuccess ());
+// -- pack all items
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackAllOrderAllocationsResult>>
+            result2 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.PackAllOrderAllocations (replyTo));
+        assertTrue (result2.reply ().isSuccess ());
+        Order.PackAllOrderAllocationsResult packed = result2.reply ().getValue ();
+        Order.AllocatedOrderState allocated = (Order.AllocatedOrderState) result2.state ();
+        assertEquals (allocated.allocations ().keySet (), packed.trackingIDs ().keySet ());
+        assertTrue (packed.errors ().isEmpty ());
+        assertEquals (allocated.allocations ().size (), result2.events ().size ());
+        for (Order.Event event : result2.events ()) {
+            Order.OrderAllocationPacked packedEvent = (Order.OrderAllocationPacked) event;
+            assertEquals (packed.trackingIDs ().get (packedEvent.allocationID ()), packedEvent.trackingID ());
+            assertEquals (Allocation.Status.PACKED,
+                          allocated.getLatestAllocationStatus (packedEvent.allocationID ()));
+        }
+// -- pack all items again
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackAllOrderAllocationsResult>>
+            result3 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.PackAllOrderAllocations (replyTo));
+        assertTrue (result3.reply ().isSuccess ());
+        assertTrue (result3.hasNoEvents ());
+        assertEquals (packed, result3.reply ().getValue ());
+    }
+
+/**
+  * Tests that a pack all request doesn't book the allocations that an overlapping pack
+  * all request is booking, and reports them as in progress instead.
+  */
+
+    @Test
+    public void rejectOverlappingPackAll ()
+    {
+// -- receive a new order
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Done>>
+            result1 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.ReceiveOrder (
+                        OrderTest.ITEMS,
+                        OrderTest.CUSTOMER,
+                        replyTo));
+        assertTrue (result1.reply ().isSuccess ());
+// -- pack all items, without waiting for the reply
+        TestProbe<StatusReply<Order.PackAllOrderAllocationsResult>> probe = testKit.createTestProbe ();
+        eventSourcedTestKit.runCommand (new Order.PackAllOrderAllocations (probe.getRef ()));
+// -- pack all items again - nothing is booked twice
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackAllOrderAllocationsResult>>
+            result2 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.PackAllOrderAllocations (replyTo));
+        assertTrue (result2.reply ().isSuccess ());
+        assertTrue (result2.hasNoEvents ());
+        assertTrue (result2.reply ().getValue ().trackingIDs ().isEmpty ());
+        assertTrue (result2.reply ().getValue ().errors ().values ().stream ()
+                           .allMatch ("Delivery booking already in progress"::equals));
+// -- pack a single allocation - rejected
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackOrderAllocationResult>>
+            result3 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.PackOrderAllocation ("1", replyTo));
+        assertTrue (result3.reply ().isError ());
+// -- the first request packs all the allocations
+        Order.PackAllOrderAllocationsResult packed = probe.receiveMessage (Duration.ofSeconds (10)).getValue ();
+        assertTrue (packed.errors ().isEmpty ());
+        assertEquals (((Order.AllocatedOrderState) result2.state ()).allocations ().keySet (),
+                      packed.trackingIDs ().keySet ());
+    }
+
+/**
+  * Tests that a tracking update of a parcel updates all the allocations booked under its
+  * tracking identifier in one batch, and that an inconsistent update changes none.
+  */
+
+    @Test
+    public void parcelTrackUpdate ()
+    {
+// -- receive a new order, and pack all items
+        eventSourcedTestKit.runCommand (
+            replyTo -> new Order.ReceiveOrder (OrderTest.ITEMS, OrderTest.CUSTOMER, replyTo));
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Order.PackAllOrderAllocationsResult>>
+            result1 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.PackAllOrderAllocations (replyTo));
+        assertTrue (result1.reply ().isSuccess ());
+        String trackingID = result1.reply ().getValue ().trackingIDs ().get ("1");
+        long parcel = result1.reply ().getValue ().trackingIDs ().values ().stream ().filter (trackingID::equals).count ();
+// -- update the parcel
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Done>>
+            result2 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.UpdateParcelTracking (trackingID, "1", Allocation.Status.PICKED_BY_COURIER, replyTo));
+        assertTrue (result2.reply ().isSuccess ());
+        assertEquals (parcel, result2.events ().size ());
+        for (Order.Event event : result2.events ()) {
+            Order.TrackingUpdated updated = (Order.TrackingUpdated) event;
+            assertEquals (trackingID, ((Order.AllocatedOrderState) result2.state ()).getAllocation (updated.allocationID ()).getTrackingID ());
+            assertEquals (Allocation.Status.PICKED_BY_COURIER, updated.status ());
+        }
+// -- move the parcel back - rejected, nothing is persisted
+        CommandResultWithReply<Order.Command,Order.Event,Order.State,StatusReply<Done>>
+            result3 =
+                eventSourcedTestKit.runCommand (
+                    replyTo -> new Order.UpdateParcelTracking (trackingID, "1", Allocation.Status.PACKED, replyTo));
+        assertTrue (result3.reply ().isError ());
+        assertTrue (result3.hasNoEvents ());
+    }
+
 /**
   * Tests tracking updates.
   */
@@ -534,4 +760,39 @@ public class OrderTest
         assertTrue (result7.hasNoEvents ());
     }
 
+/**
+  * Tests that the events applied by the read side projections produce the order status and
+  * tracking identifiers stored in the order view.
+  */
+
+    @Test
+    public void projectedOrderView ()
+    {
+        Order.State state = Order.applyEvent (new Order.BlankState (),
+                                              new Order.OrderReceived (OrderTest.ORDER_ID,
+                                                                       OrderTest.ITEMS,
+                                                                       OrderTest.CUSTOMER));
+        assertEquals (Allocation.Status.CREATED, OrderView.statusOf (state));
+
+        Allocation allocation = new AllocationBuilder ().setID (1).setItems (OrderTest.ITEMS).build ();
+        state = Order.applyEvent (state, new Order.OrderAllocationsReceived (OrderTest.ORDER_ID,
+                                                                             Map.of (allocation.getID (), allocation)));
+        assertEquals (allocation.getLatestAllocationStatus (), OrderView.statusOf (state));
+        assertArrayEquals (new String[0], OrderView.trackingIDsOf (state));
+
+        state = Order.applyEvent (state, new Order.OrderAllocationPacked (OrderTest.ORDER_ID,
+                                                                          allocation.getID (),
+                                                                          "TRACK1",
+                                                                          Instant.now ()));
+        assertEquals (Allocation.Status.PACKED, OrderView.statusOf (state));
+        assertArrayEquals (new String[] {"TRACK1"}, OrderView.trackingIDsOf (state));
+
+        try {
+            Order.applyEvent (new Order.BlankState (),
+                              new Order.TrackingUpdated (OrderTest.ORDER_ID, "1", Allocation.Status.DELIVERED, Instant.now ()));
+            fail ("An event that doesn't match the state should be rejected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
 }
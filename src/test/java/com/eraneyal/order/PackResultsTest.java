@@ -0,0 +1,126 @@
+package com.eraneyal.order;
+
+import akka.actor.testkit.typed.javadsl.TestKitJunitResource;
+import akka.japi.Pair;
+import akka.stream.javadsl.Sink;
+
+import com.typesafe.config.ConfigFactory;
+
+import static org.junit.Assert.*;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+  * Unit tests for the pack results, and the streams of the results of booking jobs.
+  */
+
+public class PackResultsTest
+{
+
+    @ClassRule
+    public static final TestKitJunitResource testKit =
+        new TestKitJunitResource (
+            ConfigFactory.parseString ("order-service.pack-results {\n" +
+                                       "  buffer-size = 100\n" +
+                                       "  poll-interval = 100 ms\n" +
+                                       "}"));
+
+/**
+  * Tests that a job identifier is split at its last dash, since order identifiers may
+  * contain dashes while allocation identifiers don't.
+  */
+
+    @Test
+    public void parseJobID ()
+    {
+        assertEquals (Optional.of (Pair.create ("order", "1")), PackResults.parseJobID ("order-1"));
+        assertEquals (Optional.of (Pair.create ("my-order", "12")), PackResults.parseJobID ("my-order-12"));
+        assertEquals (Optional.of (Pair.create ("my-order", "12")),
+                      PackResults.parseJobID (PackResults.jobID ("my-order", "12")));
+
+        assertTrue (PackResults.parseJobID ("order").isEmpty ());
+        assertTrue (PackResults.parseJobID ("-1").isEmpty ());
+        assertTrue (PackResults.parseJobID ("order-").isEmpty ());
+        assertTrue (PackResults.parseJobID ("").isEmpty ());
+    }
+
+/**
+  * Tests that a results stream merges the published results with the results read from
+  * the order entities, streams each job once even when it is both published and read,
+  * ignores the other jobs, and completes after the last job.
+  */
+
+    @Test
+    public void results () throws Exception
+    {
+        PackResults packResults = PackResults.get (testKit.system ());
+// -- the job "order-2" is only read from its entity, "order-3" is also published, and
+// -- "order-1" is still running in the entity until it is published
+        Map<String,PackResults.PackResult> entities = new ConcurrentHashMap<> ();
+        entities.put ("order-2", result ("order", "2", "T2"));
+        entities.put ("order-3", result ("order", "3", "T3"));
+
+        CompletionStage<List<PackResults.PackResult>> streamed =
+            packResults.results (List.of ("order-1", "order-2", "order-3"),
+                                 jobID -> CompletableFuture.completedFuture (
+                                     Optional.ofNullable (entities.get (jobID))))
+                       .runWith (Sink.seq (), testKit.system ());
+
+        packResults.packed ("other", "1", "T0");
+        packResults.packed ("order", "3", "T3");
+        packResults.packed ("order", "1", "T1");
+        packResults.packed ("order", "1", "T1");
+
+        List<PackResults.PackResult> results = streamed.toCompletableFuture ().get (10, TimeUnit.SECONDS);
+
+        assertEquals (3, results.size ());
+        assertEquals (Map.of ("order-1", "T1", "order-2", "T2", "order-3", "T3"),
+                      results.stream ()
+                             .collect (Collectors.toMap (PackResults.PackResult::jobID,
+                                                         PackResults.PackResult::trackingID)));
+    }
+
+/**
+  * Tests that a job that is still running is read again from its entity every poll
+  * interval until it finishes, when its result isn't published.
+  */
+
+    @Test
+    public void pollUntilFinished () throws Exception
+    {
+        Map<String,PackResults.PackResult> entities = new ConcurrentHashMap<> ();
+        Map<String,Integer> reads = new ConcurrentHashMap<> ();
+
+        CompletionStage<List<PackResults.PackResult>> streamed =
+            PackResults.get (testKit.system ())
+                       .results (List.of ("order-4"),
+                                 jobID -> {
+// -- the job finishes on its second read
+                                     if (reads.merge (jobID, 1, Integer::sum) == 2) {
+                                         entities.put (jobID, result ("order", "4", "T4"));
+                                     }
+                                     return CompletableFuture.completedFuture (
+                                         Optional.ofNullable (entities.get (jobID)));
+                                 })
+                       .runWith (Sink.seq (), testKit.system ());
+
+        assertEquals (List.of (result ("order", "4", "T4")),
+                      streamed.toCompletableFuture ().get (10, TimeUnit.SECONDS));
+        assertEquals (Integer.valueOf (2), reads.get ("order-4"));
+    }
+
+    private static PackResults.PackResult result (String orderID, String allocationID, String trackingID)
+    {
+        return new PackResults.PackResult (PackResults.jobID (orderID, allocationID), orderID, allocationID, trackingID, null);
+    }
+
+}
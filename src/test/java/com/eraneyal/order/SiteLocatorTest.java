@@ -0,0 +1,128 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+  * Unit tests for the site locator.
+  */
+
+public class SiteLocatorTest
+{
+
+/**
+  * Tests that the nearest sites are found, ordered by distance, by comparing with a brute
+  * force search over randomly placed sites.
+  */
+
+    @Test
+    public void nearestSites ()
+    {
+        Random random = new Random (7);
+        Map<Integer,GeocodeTable.GeoPoint> locations = new HashMap<> ();
+        List<Site> sites = new ArrayList<> ();
+        for (int i = 0; i < 500; i++) {
+            locations.put (i, new GeocodeTable.GeoPoint (29 + random.nextDouble () * 4,
+                                                          34 + random.nextDouble () * 2));
+            sites.add (new Site (Integer.toString (i),
+                                 "Site " + i,
+                                 new Address ("Street", "City", "Israel", i),
+                                 "FedEx"));
+        }
+        SiteLocator locator = new SiteLocator (sites, new GeocodeTable (locations));
+        assertEquals (500, locator.size ());
+
+        for (int query = 0; query < 100; query++) {
+            GeocodeTable.GeoPoint point = new GeocodeTable.GeoPoint (29 + random.nextDouble () * 4,
+                                                                      34 + random.nextDouble () * 2);
+            int[] expected =
+                IntStream.range (0, sites.size ())
+                         .boxed ()
+                         .sorted (Comparator.comparingDouble (i -> distance (point, locations.get (i))))
+                         .limit (10)
+                         .mapToInt (Integer::intValue)
+                         .toArray ();
+            assertArrayEquals (expected, locator.nearest (point, 10));
+        }
+    }
+
+/**
+  * Tests that unknown zip codes aren't located, and sites with unknown zip codes aren't
+  * indexed.
+  */
+
+    @Test
+    public void unknownZipCodes ()
+    {
+        GeocodeTable geocodes = new GeocodeTable (
+            Map.of (12345, new GeocodeTable.GeoPoint (32.0853, 34.7818),
+                    33000, new GeocodeTable.GeoPoint (32.7940, 34.9896)));
+        List<Site> sites = List.of (
+            new Site ("haifa", "Haifa Store", new Address ("Herzl 1", "Haifa", "Israel", 33000), "FedEx"),
+            new Site ("nowhere", "Unknown Store", new Address ("Main 1", "Nowhere", "Israel", 99999), "FedEx"),
+            new Site ("tlv", "TLV Store", new Address ("Namir 15", "Tel Aviv", "Israel", 12345), "FedEx"));
+        SiteLocator locator = new SiteLocator (sites, geocodes);
+
+        assertEquals (2, locator.size ());
+        assertNull (locator.nearest (99999, 5));
+        assertArrayEquals (new int[] {2, 0}, locator.nearest (12345, 5));
+        assertArrayEquals (new int[] {0}, locator.nearest (33000, 1));
+    }
+
+/**
+  * Tests that the allocation engine prefers the site nearest to the customer.
+  */
+
+    @Test
+    public void allocateFromNearestSite ()
+    {
+        GeocodeTable geocodes = new GeocodeTable (
+            Map.of (12345, new GeocodeTable.GeoPoint (32.0853, 34.7818),
+                    33000, new GeocodeTable.GeoPoint (32.7940, 34.9896)));
+        List<Site> sites = List.of (
+            new Site ("tlv", "TLV Store", new Address ("Namir 15", "Tel Aviv", "Israel", 12345), "FedEx"),
+            new Site ("haifa", "Haifa Store", new Address ("Herzl 1", "Haifa", "Israel", 33000), "DeliverIt"));
+        StockIndex index = new StockIndex (sites);
+        AllocationEngine engine = new AllocationEngine (index, new SiteLocator (sites, geocodes), 1);
+        index.setStock ("tlv", "1", 10);
+        index.setStock ("haifa", "1", 10);
+
+        Customer customer = new Customer (
+            "Eran",
+            "Eyal",
+            new Address ("Some Street 42", "Haifa", "Israel", 33000),
+            "someone@gmail.com",
+            "0521234567");
+        Map<String,Allocation> allocations =
+            engine.allocate (Map.of ("1", new OrderItem ("1", "pencil", 5)), customer);
+        assertEquals ("Haifa Store", allocations.get ("1").getName ());
+
+// -- once the nearest site runs out of stock, a farther site is used
+        allocations = engine.allocate (Map.of ("1", new OrderItem ("1", "pencil", 8)), customer);
+        assertEquals ("TLV Store", allocations.get ("1").getName ());
+    }
+
+/**
+  * Returns the great-circle distance (in radians) between two locations.
+  */
+
+    private static double distance (GeocodeTable.GeoPoint a, GeocodeTable.GeoPoint b)
+    {
+        double lat1 = Math.toRadians (a.latitude ());
+        double lat2 = Math.toRadians (b.latitude ());
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians (b.longitude () - a.longitude ());
+        double h = Math.sin (dLat / 2) * Math.sin (dLat / 2)
+                 + Math.cos (lat1) * Math.cos (lat2) * Math.sin (dLon / 2) * Math.sin (dLon / 2);
+        return 2 * Math.asin (Math.sqrt (h));
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.eraneyal.order;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+  * Unit tests for the tracking index.
+  */
+
+public class TrackingIndexTest
+{
+
+/**
+  * Tests that resolved tracking identifiers are served from the cache, and that unknown
+  * tracking identifiers are read again, since they may be indexed later.
+  */
+
+    @Test
+    public void cachedResolution () throws Exception
+    {
+        Map<String,TrackingIndex.Entry> table = new HashMap<> ();
+        table.put ("T1", new TrackingIndex.Entry ("order1", "1"));
+        AtomicInteger reads = new AtomicInteger ();
+        TrackingIndex index =
+            new TrackingIndex (2, trackingID -> {
+                reads.incrementAndGet ();
+                return CompletableFuture.completedFuture (Optional.ofNullable (table.get (trackingID)));
+            });
+
+        assertEquals (Optional.of (new TrackingIndex.Entry ("order1", "1")),
+                      index.resolve ("T1").toCompletableFuture ().get ());
+        assertEquals (Optional.of (new TrackingIndex.Entry ("order1", "1")),
+                      index.resolve ("T1").toCompletableFuture ().get ());
+        assertEquals (1, reads.get ());
+
+        assertEquals (Optional.empty (), index.resolve ("T2").toCompletableFuture ().get ());
+        table.put ("T2", new TrackingIndex.Entry ("order2", "1"));
+        assertEquals (Optional.of (new TrackingIndex.Entry ("order2", "1")),
+                      index.resolve ("T2").toCompletableFuture ().get ());
+        assertEquals (3, reads.get ());
+
+        assertEquals (1, index.getMetrics ().getHits ());
+        assertEquals (3, index.getMetrics ().getMisses ());
+        assertEquals (2, index.getMetrics ().getSize ());
+    }
+
+}